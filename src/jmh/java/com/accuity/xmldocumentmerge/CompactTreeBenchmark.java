@@ -0,0 +1,51 @@
+package com.accuity.xmldocumentmerge;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The same merge on DOM documents and on compact trees. Run with {@code -prof gc} to compare the allocation per merge.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompactTreeBenchmark {
+
+    private final XmlDocumentMerger merger = new XmlDocumentMerger(new RuleProcessor());
+    private Map<String, CompactTree> sourceTrees;
+
+    @Setup
+    public void setUp(MergeFixture fixture) {
+        NamePool namePool = new NamePool();
+        sourceTrees = new HashMap<>();
+        for (Map.Entry<String, Document> source : fixture.sourceDocuments.entrySet()) {
+            sourceTrees.put(source.getKey(), CompactTree.fromDocument(source.getValue(), namePool));
+        }
+    }
+
+    @Benchmark
+    public Document mergeDocuments(MergeFixture fixture) {
+        return merger.mergeDocuments(fixture.mergePlan, fixture.sourceDocuments);
+    }
+
+    @Benchmark
+    public CompactTree mergeTrees(MergeFixture fixture) {
+        return merger.mergeTrees(fixture.mergePlan, sourceTrees);
+    }
+}
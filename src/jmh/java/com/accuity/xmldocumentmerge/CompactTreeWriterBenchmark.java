@@ -0,0 +1,92 @@
+package com.accuity.xmldocumentmerge;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Writes the trusted document to a file: the DOM document with a Transformer, against the tree merged from
+ * {@link MappedXmlIndex} sources with a {@link CompactTreeWriter}, which splices the unchanged imported elements.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompactTreeWriterBenchmark {
+
+    private final CompactTreeWriter writer = new CompactTreeWriter();
+    private Path directory;
+    private Document trustedDocument;
+    private CompactTree trustedTree;
+    private Transformer transformer;
+    private FileChannel output;
+
+    @Setup
+    public void setUp(MergeFixture fixture) throws Exception {
+        XmlDocumentMerger merger = new XmlDocumentMerger(new RuleProcessor());
+        NamePool namePool = new NamePool();
+        directory = Files.createTempDirectory("compact-tree-writer");
+        Map<String, MappedXmlIndex> sourceIndexes = new HashMap<>();
+        for (int source = 0; source < fixture.sources; source++) {
+            String name = MergeFixtureGenerator.sourceName(source);
+            Path file = directory.resolve(name + ".xml");
+            Files.write(file, fixture.generator.generateSourceXml(source).getBytes(StandardCharsets.UTF_8));
+            sourceIndexes.put(name, MappedXmlIndex.map(file, namePool));
+        }
+        trustedDocument = merger.mergeDocuments(fixture.mergePlan, fixture.sourceDocuments);
+        trustedTree = merger.mergeTrees(fixture.mergePlan, sourceIndexes);
+        transformer = TransformerFactory.newInstance().newTransformer();
+        output = FileChannel.open(directory.resolve("trusted.xml"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        output.close();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Benchmark
+    public long transformDocument() throws Exception {
+        output.truncate(0);
+        transformer.transform(new DOMSource(trustedDocument), new StreamResult(Channels.newOutputStream(output)));
+        return output.position();
+    }
+
+    @Benchmark
+    public long writeTree() throws Exception {
+        output.truncate(0);
+        writer.write(trustedTree, output);
+        return output.position();
+    }
+}
@@ -0,0 +1,73 @@
+package com.accuity.xmldocumentmerge;
+
+import com.accuity.xmldocumentmerge.model.Source;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The docroot rule of the fixture without its child rules, merging copies of the sources or consuming them. Both
+ * benchmarks clone the sources before every invocation, so the difference is the cost of the copies.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConsumeSourcesBenchmark {
+
+    @State(Scope.Thread)
+    public static class Sources {
+        private final XmlDocumentMerger copying = new XmlDocumentMerger(new RuleProcessor());
+        private final XmlDocumentMerger consuming = new XmlDocumentMerger(new RuleProcessor(new MergePlanCompiler(), MergeMetrics.DISABLED, true));
+        private Map<String, Document> fixtureDocuments;
+        private MergePlan docRootPlan;
+        Map<String, Document> sourceDocuments;
+
+        @Setup
+        public void setUp(MergeFixture fixture) {
+            CompiledRule docRoot = fixture.mergePlan.getRootRule();
+            StringBuilder rules = new StringBuilder("<tm:rules tm:context=\"/\" xmlns:tm=\"http://accuity.com/apo/trust-matrix\">")
+                    .append("<tm:rule tm:context=\"").append(docRoot.getRule().getContext()).append("\"><tm:weightings>");
+            for (Source source : docRoot.getSources()) {
+                rules.append("<tm:source tm:name=\"").append(source.getName()).append("\" tm:trust=\"").append(source.getTrust()).append("\"/>");
+            }
+            rules.append("</tm:weightings></tm:rule></tm:rules>");
+            fixtureDocuments = fixture.sourceDocuments;
+            docRootPlan = new RulesParser().parsePlan(new ByteArrayInputStream(rules.toString().getBytes(StandardCharsets.UTF_8)));
+        }
+
+        @Setup(Level.Invocation)
+        public void copy() {
+            sourceDocuments = new HashMap<>();
+            for (Map.Entry<String, Document> source : fixtureDocuments.entrySet()) {
+                sourceDocuments.put(source.getKey(), (Document) source.getValue().cloneNode(true));
+            }
+        }
+    }
+
+    @Benchmark
+    public Document copySources(Sources state) {
+        return state.copying.mergeDocuments(state.docRootPlan, state.sourceDocuments);
+    }
+
+    @Benchmark
+    public Document consumeSources(Sources state) {
+        return state.consuming.mergeDocuments(state.docRootPlan, state.sourceDocuments);
+    }
+}
@@ -0,0 +1,125 @@
+package com.accuity.xmldocumentmerge;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the indexed DocumentNodeMerger with the previous implementation, which looked up every destination child
+ * with a scan of all children, on nodes with many repeated children.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DocumentNodeMergerBenchmark {
+
+    @Param({"100", "1000", "5000"})
+    public int siblings;
+
+    private final DocumentNodeMerger merger = new DocumentNodeMerger();
+    private Document source;
+    private Document destination;
+    private Document copy;
+
+    @Setup
+    public void setUp() throws Exception {
+        DocumentBuilder db = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        source = db.parse(new ByteArrayInputStream(buildDocument(siblings, "source").getBytes(StandardCharsets.UTF_8)));
+        destination = db.parse(new ByteArrayInputStream(buildDocument(siblings, "destination").getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Setup(Level.Invocation)
+    public void copyDestination() {
+        copy = (Document) destination.cloneNode(true);
+    }
+
+    @Benchmark
+    public Document indexed() {
+        merger.mergeNodeChildren(copy.getDocumentElement(), source.getDocumentElement());
+        return copy;
+    }
+
+    @Benchmark
+    public Document scanning() {
+        mergeNodeChildrenByScanning(copy.getDocumentElement(), source.getDocumentElement());
+        return copy;
+    }
+
+    /**
+     * an entity with repeated elements, each with a few children of its own
+     */
+    private static String buildDocument(int siblings, String value) {
+        StringBuilder sb = new StringBuilder("<entity><names>");
+        for (int i = 0; i < siblings; i++) {
+            sb.append("<name type=\"t").append(i).append("\"><value>").append(value).append("</value>");
+            if (value.equals("source")) {
+                sb.append("<language>en</language>");
+            }
+            sb.append("</name>");
+        }
+        return sb.append("</names></entity>").toString();
+    }
+
+    /**
+     * the previous implementation, kept as the baseline
+     */
+    private static void mergeNodeChildrenByScanning(Node destinationNode, Node sourceNode) {
+        NodeList sourceChildren = sourceNode.getChildNodes();
+        Set<String> newNodeNames = new HashSet<>();
+        Map<String, Integer> nameCount = new HashMap<>();
+        for (int i = 0; i < sourceChildren.getLength(); i++) {
+            Node childNode = sourceChildren.item(i);
+            int nameOrdinal = nameCount.containsKey(childNode.getNodeName()) ? nameCount.get(childNode.getNodeName()) : 0;
+            Node destinationChildNode = getChildByName(destinationNode, childNode.getNodeName(), nameOrdinal);
+            if (destinationChildNode == null) {
+                if (nameOrdinal == 0 || newNodeNames.contains(childNode.getNodeName())) {
+                    Node importedNode = destinationNode.getOwnerDocument().importNode(childNode, true);
+                    destinationNode.appendChild(importedNode);
+                    newNodeNames.add(importedNode.getNodeName());
+                }
+            } else {
+                mergeNodeChildrenByScanning(destinationChildNode, childNode);
+            }
+            nameCount.put(childNode.getNodeName(), nameOrdinal + 1);
+        }
+    }
+
+    private static Node getChildByName(Node node, String name, int ordinal) {
+        Node childNode = null;
+        NodeList children = node.getChildNodes();
+        for (int i = 0; i < children.getLength(); i++) {
+            if (children.item(i).getNodeName().equals(name) && childNode == null) {
+                ordinal--;
+                if (ordinal < 0) {
+                    childNode = children.item(i);
+                }
+            }
+        }
+        return childNode;
+    }
+}
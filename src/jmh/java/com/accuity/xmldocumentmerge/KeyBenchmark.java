@@ -0,0 +1,79 @@
+package com.accuity.xmldocumentmerge;
+
+import com.accuity.xmldocumentmerge.model.Id;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.w3c.dom.NodeList;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The keys of all items of a source, built for a coalesce rule with two ids: by the legacy buildKeyForNode, which
+ * compiles the ids on every call, and by key extractors compiled for the simple path walker and for JAXP xpath.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyBenchmark {
+
+    @State(Scope.Thread)
+    public static class Items {
+        private final RuleProcessor ruleProcessor = new RuleProcessor();
+        private final List<Id> ids = new ArrayList<>();
+        private KeyExtractor keyExtractor;
+        private KeyExtractor xpathKeyExtractor;
+        private NodeList items;
+
+        @Setup
+        public void setUp(MergeFixture fixture) throws Exception {
+            MergePlanCompiler xpathCompiler = new MergePlanCompiler(Collections.<PathEvaluator>singletonList(new XPathEvaluator()));
+            List<CompiledPath> idPaths = new ArrayList<>();
+            List<CompiledPath> xpathIdPaths = new ArrayList<>();
+            for (String path : new String[]{"@type", "code"}) {
+                Id id = new Id();
+                id.setPath(path);
+                ids.add(id);
+                idPaths.add(new MergePlanCompiler().compile(path));
+                xpathIdPaths.add(xpathCompiler.compile(path));
+            }
+            keyExtractor = new KeyExtractor(idPaths);
+            xpathKeyExtractor = new KeyExtractor(xpathIdPaths);
+            items = fixture.sourceDocuments.get(MergeFixtureGenerator.sourceName(0)).getElementsByTagName("item");
+        }
+    }
+
+    @Benchmark
+    public void buildKeyForNode(Items state, Blackhole blackhole) throws Exception {
+        for (int i = 0; i < state.items.getLength(); i++) {
+            blackhole.consume(state.ruleProcessor.buildKeyForNode(state.items.item(i), state.ids));
+        }
+    }
+
+    @Benchmark
+    public void extractKey(Items state, Blackhole blackhole) throws Exception {
+        for (int i = 0; i < state.items.getLength(); i++) {
+            blackhole.consume(state.keyExtractor.extract(state.items.item(i)));
+        }
+    }
+
+    @Benchmark
+    public void extractKeyWithXPath(Items state, Blackhole blackhole) throws Exception {
+        for (int i = 0; i < state.items.getLength(); i++) {
+            blackhole.consume(state.xpathKeyExtractor.extract(state.items.item(i)));
+        }
+    }
+}
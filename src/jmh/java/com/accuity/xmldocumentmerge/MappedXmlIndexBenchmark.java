@@ -0,0 +1,81 @@
+package com.accuity.xmldocumentmerge;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges from source files: parsed to DOM documents, against mapped and indexed with {@link MappedXmlIndex}. Raise
+ * {@code -p stopRatio} to see the index pay off as more of the less trusted sources is shadowed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MappedXmlIndexBenchmark {
+
+    private final XmlDocumentMerger merger = new XmlDocumentMerger(new RuleProcessor());
+    private final NamePool namePool = new NamePool();
+    private DocumentBuilder documentBuilder;
+    private Path directory;
+    private Map<String, Path> sourceFiles;
+
+    @Setup
+    public void setUp(MergeFixture fixture) throws Exception {
+        documentBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        directory = Files.createTempDirectory("mapped-xml-index");
+        sourceFiles = new HashMap<>();
+        for (int source = 0; source < fixture.sources; source++) {
+            String name = MergeFixtureGenerator.sourceName(source);
+            Path file = directory.resolve(name + ".xml");
+            Files.write(file, fixture.generator.generateSourceXml(source).getBytes(StandardCharsets.UTF_8));
+            sourceFiles.put(name, file);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        for (Path file : sourceFiles.values()) {
+            Files.delete(file);
+        }
+        Files.delete(directory);
+    }
+
+    @Benchmark
+    public Document parseDocuments(MergeFixture fixture) throws Exception {
+        Map<String, Document> sourceDocuments = new HashMap<>();
+        for (Map.Entry<String, Path> source : sourceFiles.entrySet()) {
+            sourceDocuments.put(source.getKey(), documentBuilder.parse(source.getValue().toFile()));
+        }
+        return merger.mergeDocuments(fixture.mergePlan, sourceDocuments);
+    }
+
+    @Benchmark
+    public CompactTree mapIndexes(MergeFixture fixture) throws Exception {
+        Map<String, MappedXmlIndex> sourceIndexes = new HashMap<>();
+        for (Map.Entry<String, Path> source : sourceFiles.entrySet()) {
+            sourceIndexes.put(source.getKey(), MappedXmlIndex.map(source.getValue(), namePool));
+        }
+        return merger.mergeTrees(fixture.mergePlan, sourceIndexes);
+    }
+}
@@ -0,0 +1,58 @@
+package com.accuity.xmldocumentmerge;
+
+import com.accuity.xmldocumentmerge.model.Rules;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.w3c.dom.Document;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * The generated rules and sources shared by the benchmarks, see {@link MergeFixtureGenerator} for the parameters.
+ */
+@State(Scope.Benchmark)
+public class MergeFixture {
+
+    @Param({"2"})
+    public int depth;
+
+    @Param({"4"})
+    public int fanOut;
+
+    @Param({"10", "200"})
+    public int repeats;
+
+    @Param({"3"})
+    public int sources;
+
+    @Param({"0.5"})
+    public double coalesceRatio;
+
+    @Param({"0.2"})
+    public double stopRatio;
+
+    public MergeFixtureGenerator generator;
+    public byte[] rulesXml;
+    public Rules rules;
+    public MergePlan mergePlan;
+    public Map<String, Document> sourceDocuments;
+
+    @Setup
+    public void setUp() {
+        generator = new MergeFixtureGenerator();
+        generator.setDepth(depth);
+        generator.setFanOut(fanOut);
+        generator.setRepeats(repeats);
+        generator.setSources(sources);
+        generator.setCoalesceRatio(coalesceRatio);
+        generator.setStopRatio(stopRatio);
+
+        rulesXml = generator.generateRulesXml().getBytes(StandardCharsets.UTF_8);
+        rules = generator.generateRules();
+        mergePlan = new MergePlanCompiler().compile(rules);
+        sourceDocuments = generator.generateSources();
+    }
+}
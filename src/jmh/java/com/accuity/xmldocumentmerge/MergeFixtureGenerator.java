@@ -0,0 +1,202 @@
+package com.accuity.xmldocumentmerge;
+
+import com.accuity.xmldocumentmerge.model.Rules;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Generates rules and source documents for the benchmarks.
+ * <p>
+ * The documents are a tree of containers: depth levels below the root, with fanOut differently named containers
+ * under each container. Every container of the last level holds repeats repeated item elements, identified by a type
+ * attribute. Each source has most of the items of the source before it, so that sources overlap as real sources do,
+ * and leaves out some containers.
+ * <p>
+ * The rules follow the tree: a docroot rule, a rule per container, and a rule for the items of every last level
+ * container, which is a coalesce rule on the type attribute or a positional rule, and a stop rule or not, in the
+ * given proportions. Every rule trusts the sources in a random order. The same seed generates the same fixtures.
+ */
+public class MergeFixtureGenerator {
+
+    private int depth = 2;
+    private int fanOut = 4;
+    private int repeats = 10;
+    private int sources = 3;
+    private double coalesceRatio = 0.5;
+    private double stopRatio = 0.2;
+    private long seed = 42;
+
+    public String generateRulesXml() {
+        Random random = new Random(seed);
+        StringBuilder sb = new StringBuilder("<tm:rules tm:context=\"/\" xmlns:tm=\"http://accuity.com/apo/trust-matrix\">");
+        sb.append("<tm:rule tm:context=\"entity\">");
+        appendWeightings(sb, random);
+        appendContainerRules(sb, random, 1);
+        sb.append("</tm:rule></tm:rules>");
+        return sb.toString();
+    }
+
+    public Rules generateRules() {
+        return new RulesParser().parse(new ByteArrayInputStream(generateRulesXml().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * @return the documents of all sources, keyed by source name
+     */
+    public Map<String, Document> generateSources() {
+        DocumentBuilder db = newDocumentBuilder();
+        Map<String, Document> documents = new HashMap<>();
+        for (int s = 0; s < sources; s++) {
+            try {
+                documents.put(sourceName(s), db.parse(new ByteArrayInputStream(generateSourceXml(s).getBytes(StandardCharsets.UTF_8))));
+            } catch (SAXException | IOException e) {
+                throw new RuntimeException("error parsing generated source", e);
+            }
+        }
+        return documents;
+    }
+
+    public String generateSourceXml(int source) {
+        Random random = new Random(seed + 31 * (source + 1));
+        StringBuilder sb = new StringBuilder("<entity id=\"").append(sourceName(source)).append("\">");
+        sb.append("<status>").append(sourceName(source)).append("</status>");
+        appendContainers(sb, random, source, 1);
+        return sb.append("</entity>").toString();
+    }
+
+    public static String sourceName(int source) {
+        return "source" + source;
+    }
+
+    private void appendWeightings(StringBuilder sb, Random random) {
+        sb.append("<tm:weightings>");
+        for (int s = 0; s < sources; s++) {
+            sb.append("<tm:source tm:name=\"").append(sourceName(s)).append("\" tm:trust=\"")
+                    .append(0.1f + random.nextInt(90) / 100f).append("\"></tm:source>");
+        }
+        sb.append("</tm:weightings>");
+    }
+
+    private void appendContainerRules(StringBuilder sb, Random random, int level) {
+        for (int k = 0; k < fanOut; k++) {
+            String name = containerName(level, k);
+            sb.append("<tm:rule tm:context=\"").append(name).append("\">");
+            appendWeightings(sb, random);
+            if (level < depth) {
+                appendContainerRules(sb, random, level + 1);
+            } else {
+                boolean coalesce = random.nextDouble() < coalesceRatio;
+                boolean stop = random.nextDouble() < stopRatio;
+                sb.append("<tm:rule tm:context=\"item\">");
+                sb.append("<tm:field tm:coalesce=\"").append(coalesce).append("\" tm:stop=\"").append(stop).append("\">");
+                if (coalesce) {
+                    sb.append("<tm:id tm:path=\"@type\"></tm:id>");
+                }
+                sb.append("</tm:field>");
+                appendWeightings(sb, random);
+                sb.append("</tm:rule>");
+            }
+            sb.append("</tm:rule>");
+        }
+    }
+
+    private void appendContainers(StringBuilder sb, Random random, int source, int level) {
+        for (int k = 0; k < fanOut; k++) {
+            String name = containerName(level, k);
+            if (source > 0 && random.nextInt(10) == 0) {
+                // less trusted sources miss some of the data
+                continue;
+            }
+            sb.append('<').append(name).append('>');
+            if (level < depth) {
+                appendContainers(sb, random, source, level + 1);
+            } else {
+                // each source shares most of its items with the previous source
+                int first = source * Math.max(1, repeats / 4);
+                for (int i = first; i < first + repeats; i++) {
+                    sb.append("<item type=\"t").append(i).append("\"><value>").append(sourceName(source)).append(' ').append(i)
+                            .append("</value><code>").append(random.nextInt(1000)).append("</code></item>");
+                }
+            }
+            sb.append("</").append(name).append('>');
+        }
+    }
+
+    private static String containerName(int level, int k) {
+        return "c" + level + "_" + k;
+    }
+
+    private static DocumentBuilder newDocumentBuilder() {
+        try {
+            return DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        } catch (ParserConfigurationException e) {
+            throw new RuntimeException("error initializing DocumentBuilder", e);
+        }
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public void setDepth(int depth) {
+        this.depth = depth;
+    }
+
+    public int getFanOut() {
+        return fanOut;
+    }
+
+    public void setFanOut(int fanOut) {
+        this.fanOut = fanOut;
+    }
+
+    public int getRepeats() {
+        return repeats;
+    }
+
+    public void setRepeats(int repeats) {
+        this.repeats = repeats;
+    }
+
+    public int getSources() {
+        return sources;
+    }
+
+    public void setSources(int sources) {
+        this.sources = sources;
+    }
+
+    public double getCoalesceRatio() {
+        return coalesceRatio;
+    }
+
+    public void setCoalesceRatio(double coalesceRatio) {
+        this.coalesceRatio = coalesceRatio;
+    }
+
+    public double getStopRatio() {
+        return stopRatio;
+    }
+
+    public void setStopRatio(double stopRatio) {
+        this.stopRatio = stopRatio;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+}
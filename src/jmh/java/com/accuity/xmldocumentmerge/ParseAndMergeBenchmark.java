@@ -0,0 +1,74 @@
+package com.accuity.xmldocumentmerge;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges from serialized sources: parsing every source with a new factory and builder on the calling thread, as callers
+ * of mergeDocuments do, against {@link XmlDocumentMerger#mergeStreams} with pooled builders and a thread per source.
+ * Run with {@code -p sources=8} for the usual number of sources of an entity.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParseAndMergeBenchmark {
+
+    private final XmlDocumentMerger merger = new XmlDocumentMerger(new RuleProcessor());
+    private Map<String, byte[]> sourceXml;
+    private ExecutorService executor;
+
+    @Setup
+    public void setUp(MergeFixture fixture) {
+        sourceXml = new HashMap<>();
+        for (int source = 0; source < fixture.sources; source++) {
+            sourceXml.put(MergeFixtureGenerator.sourceName(source), fixture.generator.generateSourceXml(source).getBytes(StandardCharsets.UTF_8));
+        }
+        executor = Executors.newFixedThreadPool(fixture.sources);
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Benchmark
+    public Document parseSequentially(MergeFixture fixture) throws Exception {
+        Map<String, Document> sourceDocuments = new HashMap<>();
+        for (Map.Entry<String, byte[]> source : sourceXml.entrySet()) {
+            sourceDocuments.put(source.getKey(), DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new ByteArrayInputStream(source.getValue())));
+        }
+        return merger.mergeDocuments(fixture.mergePlan, sourceDocuments);
+    }
+
+    @Benchmark
+    public Document parseInParallel(MergeFixture fixture) {
+        Map<String, InputStream> sourceStreams = new HashMap<>();
+        for (Map.Entry<String, byte[]> source : sourceXml.entrySet()) {
+            sourceStreams.put(source.getKey(), new ByteArrayInputStream(source.getValue()));
+        }
+        return merger.mergeStreams(fixture.mergePlan, sourceStreams, executor);
+    }
+}
@@ -0,0 +1,66 @@
+package com.accuity.xmldocumentmerge;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single item rule, processed against a trusted document that only has the docroot rule applied.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RuleProcessorBenchmark {
+
+    @State(Scope.Thread)
+    public static class TrustedDocument {
+        private final RuleProcessor ruleProcessor = new RuleProcessor();
+        private Document afterDocRoot;
+        private CompiledRule itemRule;
+        Document trusted;
+
+        @Setup
+        public void setUp(MergeFixture fixture) throws Exception {
+            CompiledRule docRoot = fixture.mergePlan.getRootRule();
+            Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+            Document first = fixture.sourceDocuments.get(docRoot.getSources().get(0).getName());
+            document.appendChild(document.importNode(first.getDocumentElement(), true));
+            afterDocRoot = document;
+
+            CompiledRule rule = docRoot;
+            while (!rule.getChildren().isEmpty()) {
+                rule = rule.getChildren().get(0);
+            }
+            itemRule = rule;
+        }
+
+        @Setup(Level.Invocation)
+        public void copy() {
+            trusted = (Document) afterDocRoot.cloneNode(true);
+        }
+    }
+
+    @Benchmark
+    public Document processRule(MergeFixture fixture, TrustedDocument state) {
+        return state.ruleProcessor.processRule(state.itemRule, state.trusted, fixture.sourceDocuments);
+    }
+
+    @Benchmark
+    public Document processRuleCompilingEachTime(MergeFixture fixture, TrustedDocument state) {
+        return state.ruleProcessor.processRule(state.itemRule.getRule(), state.trusted, fixture.sourceDocuments);
+    }
+}
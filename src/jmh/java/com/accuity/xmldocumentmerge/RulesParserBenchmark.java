@@ -0,0 +1,45 @@
+package com.accuity.xmldocumentmerge;
+
+import com.accuity.xmldocumentmerge.model.Rules;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading rules: parsing, parsing and compiling, and a plan cache hit.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RulesParserBenchmark {
+
+    private final RulesParser rulesParser = new RulesParser();
+    private final MergePlanCache mergePlanCache = new MergePlanCache(16);
+
+    @Benchmark
+    public Rules parse(MergeFixture fixture) {
+        return rulesParser.parse(new ByteArrayInputStream(fixture.rulesXml));
+    }
+
+    @Benchmark
+    public MergePlan parsePlan(MergeFixture fixture) {
+        return rulesParser.parsePlan(new ByteArrayInputStream(fixture.rulesXml));
+    }
+
+    @Benchmark
+    public MergePlan cachedPlan(MergeFixture fixture) {
+        return mergePlanCache.getPlan(fixture.rulesXml);
+    }
+}
@@ -0,0 +1,38 @@
+package com.accuity.xmldocumentmerge;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Complete merges: with the rules model, which compiles the rules on every merge, and with a compiled plan.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class XmlDocumentMergerBenchmark {
+
+    private final XmlDocumentMerger merger = new XmlDocumentMerger(new RuleProcessor());
+
+    @Benchmark
+    public Document mergeDocumentsWithRules(MergeFixture fixture) {
+        return merger.mergeDocuments(fixture.rules, fixture.sourceDocuments);
+    }
+
+    @Benchmark
+    public Document mergeDocumentsWithPlan(MergeFixture fixture) {
+        return merger.mergeDocuments(fixture.mergePlan, fixture.sourceDocuments);
+    }
+}
@@ -0,0 +1,10 @@
+package com.accuity.xmldocumentmerge;
+
+/**
+ * Receives the results of a batch merge. Results are always delivered on the thread that called
+ * {@link XmlDocumentMerger#mergeBatch}, one at a time, so implementations need no synchronization.
+ */
+public interface BatchMergeCallback {
+
+    void onResult(BatchMergeResult result);
+}
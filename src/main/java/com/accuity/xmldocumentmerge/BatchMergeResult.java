@@ -0,0 +1,57 @@
+package com.accuity.xmldocumentmerge;
+
+import org.w3c.dom.Document;
+
+import java.util.Map;
+
+/**
+ * The outcome of merging one entity of a batch, see {@link XmlDocumentMerger#mergeBatch}.
+ * Exactly one of {@link #getDocument()} and {@link #getError()} is meaningful: a failed merge carries its error,
+ * and never affects the other entities of the batch.
+ */
+public final class BatchMergeResult {
+
+    private final int index;
+    private final Map<String, Document> sourceDocuments;
+    private final Document document;
+    private final Throwable error;
+
+    BatchMergeResult(int index, Map<String, Document> sourceDocuments, Document document, Throwable error) {
+        this.index = index;
+        this.sourceDocuments = sourceDocuments;
+        this.document = document;
+        this.error = error;
+    }
+
+    /**
+     * @return the position of the entity in the batch, starting at 0
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the source documents that were merged
+     */
+    public Map<String, Document> getSourceDocuments() {
+        return sourceDocuments;
+    }
+
+    /**
+     * @return the combined document, or null if the merge failed or generated an empty document
+     */
+    public Document getDocument() {
+        return document;
+    }
+
+    /**
+     * @return the exception or error thrown while merging this entity, or null if the merge succeeded
+     */
+    public Throwable getError() {
+        return error;
+    }
+
+    public boolean isSuccessful() {
+        return error == null;
+    }
+}
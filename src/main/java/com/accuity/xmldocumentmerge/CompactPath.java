@@ -0,0 +1,194 @@
+package com.accuity.xmldocumentmerge;
+
+/**
+ * A {@link SimplePath} compiled for {@link CompactSource}s. Names are looked up in the source's {@link NamePool} once per
+ * evaluation and then compared as ints.
+ * <p>
+ * Element names are compared as written, there is no namespace context: as with the {@link SimplePathEvaluator},
+ * names with a prefix are not supported.
+ */
+final class CompactPath {
+
+    private final String expression;
+    private final boolean absolute;
+    private final String[] stepNames;
+    private final String[][] attributeNames;
+    private final String[][] attributeValues;
+    private final String attribute;
+
+    private CompactPath(String expression, SimplePath path) {
+        this.expression = expression;
+        this.absolute = path.isAbsolute();
+        int steps = path.getSteps().size();
+        stepNames = new String[steps];
+        attributeNames = new String[steps][];
+        attributeValues = new String[steps][];
+        for (int i = 0; i < steps; i++) {
+            SimplePath.Step step = path.getSteps().get(i);
+            stepNames[i] = step.getName();
+            attributeNames[i] = step.getAttributeNames();
+            attributeValues[i] = step.getAttributeValues();
+        }
+        this.attribute = path.getAttribute();
+    }
+
+    /**
+     * @return the compiled path, or null if the expression is not a simple path without prefixes
+     */
+    static CompactPath compile(String expression) {
+        SimplePath path = SimplePath.parse(expression);
+        if (path == null || (path.getAttribute() != null && !isUnprefixed(path.getAttribute()))) {
+            return null;
+        }
+        for (SimplePath.Step step : path.getSteps()) {
+            if (!isUnprefixed(step.getName())) {
+                return null;
+            }
+            for (String attributeName : step.getAttributeNames()) {
+                if (!isUnprefixed(attributeName)) {
+                    return null;
+                }
+            }
+        }
+        return new CompactPath(expression, path);
+    }
+
+    private static boolean isUnprefixed(String name) {
+        return name.indexOf(':') < 0 && !name.equals("xmlns");
+    }
+
+    String getExpression() {
+        return expression;
+    }
+
+    /**
+     * @return true if the path selects elements, false if it selects an attribute of them
+     */
+    boolean selectsElements() {
+        return attribute == null;
+    }
+
+    /**
+     * adds the selected elements to result, in document order
+     */
+    void select(CompactSource source, int context, IntList result) {
+        checkSelectsElements();
+        Names names = resolve(source);
+        if (names != null) {
+            walk(source, names, absolute ? 0 : context, 0, result);
+        }
+    }
+
+    /**
+     * @return the first selected element, or NONE
+     */
+    int selectFirst(CompactSource source, int context) {
+        checkSelectsElements();
+        Names names = resolve(source);
+        return names != null ? walk(source, names, absolute ? 0 : context, 0, null) : CompactTree.NONE;
+    }
+
+    /**
+     * @return the value of the first selected attribute or the text content of the first selected element, null if
+     * nothing is selected
+     */
+    String selectFirstValue(CompactSource source, int context) {
+        Names names = resolve(source);
+        if (names == null) {
+            return null;
+        }
+        int element = walk(source, names, absolute ? 0 : context, 0, null);
+        if (element == CompactTree.NONE) {
+            return null;
+        }
+        return attribute != null ? source.getAttributeValue(element, names.attribute) : source.getTextContent(element);
+    }
+
+    private void checkSelectsElements() {
+        if (attribute != null) {
+            throw new IllegalStateException("path selects an attribute: " + expression);
+        }
+    }
+
+    /**
+     * the name ids of the path in a tree's pool
+     */
+    private static final class Names {
+        int[] steps;
+        int[][] attributes;
+        int attribute;
+    }
+
+    /**
+     * @return the names, or null if a name is not in the pool, so nothing matches
+     */
+    private Names resolve(CompactSource source) {
+        NamePool namePool = source.getNamePool();
+        Names names = new Names();
+        names.steps = new int[stepNames.length];
+        names.attributes = new int[stepNames.length][];
+        for (int i = 0; i < stepNames.length; i++) {
+            names.steps[i] = namePool.get(stepNames[i]);
+            names.attributes[i] = new int[attributeNames[i].length];
+            if (names.steps[i] < 0) {
+                return null;
+            }
+            for (int p = 0; p < attributeNames[i].length; p++) {
+                names.attributes[i][p] = namePool.get(attributeNames[i][p]);
+                if (names.attributes[i][p] < 0) {
+                    return null;
+                }
+            }
+        }
+        names.attribute = attribute != null ? namePool.get(attribute) : CompactTree.NONE;
+        if (attribute != null && names.attribute < 0) {
+            return null;
+        }
+        return names;
+    }
+
+    /**
+     * walks the element steps, with an attribute step only elements that have the attribute are selected
+     *
+     * @param result collects all selected elements, or null to stop at the first one
+     * @return the first selected element when result is null
+     */
+    private int walk(CompactSource source, Names names, int node, int stepIndex, IntList result) {
+        if (stepIndex == stepNames.length) {
+            if (attribute != null && (source.getKind(node) != CompactTree.ELEMENT || source.getAttributeValue(node, names.attribute) == null)) {
+                return CompactTree.NONE;
+            }
+            if (result != null) {
+                result.add(node);
+            }
+            return node;
+        }
+        for (int child = source.getFirstChild(node); child != CompactTree.NONE; child = source.getNextSibling(child)) {
+            if (source.getKind(child) == CompactTree.ELEMENT && matches(source, names, stepIndex, child)) {
+                int first = walk(source, names, child, stepIndex + 1, result);
+                if (first != CompactTree.NONE && result == null) {
+                    return first;
+                }
+            }
+        }
+        return CompactTree.NONE;
+    }
+
+    private boolean matches(CompactSource source, Names names, int stepIndex, int element) {
+        if (source.getNameId(element) != names.steps[stepIndex]) {
+            return false;
+        }
+        int[] attributes = names.attributes[stepIndex];
+        for (int p = 0; p < attributes.length; p++) {
+            if (!source.attributeEquals(element, attributes[p], attributeValues[stepIndex][p])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+}
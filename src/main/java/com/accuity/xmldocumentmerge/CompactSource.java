@@ -0,0 +1,65 @@
+package com.accuity.xmldocumentmerge;
+
+/**
+ * A source document of a merge on compact trees: a {@link CompactTree}, or a {@link MappedXmlIndex} that reads nodes from
+ * the mapped file only when they are needed. Nodes are ints, node 0 is the document.
+ * <p>
+ * The methods are what the rule engine needs from a source: walking the children of a node, comparing attribute values,
+ * the text content of coalesce ids, and copying the nodes that are imported into the trusted tree.
+ */
+public abstract class CompactSource {
+
+    // only implemented in this package
+    CompactSource() {
+    }
+
+    public abstract NamePool getNamePool();
+
+    /**
+     * @return the document element, or NONE
+     */
+    abstract int getDocumentElement();
+
+    abstract byte getKind(int node);
+
+    abstract int getNameId(int node);
+
+    /**
+     * @return the first child of an element or of the document, attributes are not children. NONE if it has none
+     */
+    abstract int getFirstChild(int node);
+
+    abstract int getNextSibling(int node);
+
+    /**
+     * @return true if the element has the attribute with the value
+     */
+    abstract boolean attributeEquals(int element, int attributeNameId, String value);
+
+    /**
+     * @return the value of the element's attribute, or null if it does not have it
+     */
+    abstract String getAttributeValue(int element, int attributeNameId);
+
+    /**
+     * @return the text of the text and cdata descendants of an element, the value of any other node
+     */
+    abstract String getTextContent(int node);
+
+    /**
+     * copies a node with its attributes and descendants into a tree of the same name pool
+     *
+     * @return the copy in the target, without a parent
+     */
+    abstract int copyTo(CompactTree target, int node);
+
+    /**
+     * @return the number of nodes the trusted tree should have room for when this source is merged into it
+     */
+    abstract int getNodeCountHint();
+
+    /**
+     * @return the number of chars the trusted tree should have room for when this source is merged into it
+     */
+    abstract int getCharCountHint();
+}
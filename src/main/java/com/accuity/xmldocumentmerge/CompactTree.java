@@ -0,0 +1,755 @@
+package com.accuity.xmldocumentmerge;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.ProcessingInstruction;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A compact XML tree for merging: every node is a slot in parallel primitive arrays (kind, interned name, links and the
+ * position of its text in a shared char array) instead of a DOM object with its own strings and child list. A tree of a
+ * source document takes a fraction of the heap of its DOM, and copying a subtree of a parsed tree into another tree is a
+ * few array copies, see {@link #copy(CompactTree, int)}.
+ * <p>
+ * Nodes are ints. Node 0 is the document, attributes are nodes linked from their element. Every node has a name: the
+ * qualified name of elements and attributes, the target of processing instructions, and the DOM node name
+ * ({@code #text}, {@code #comment}...) of the others, so children are matched by name as with DOM. Namespace URIs are
+ * not kept, namespace declarations are kept as attributes.
+ * <p>
+ * Build trees with {@link #fromDocument(Document, NamePool)} or {@link #parse(XMLStreamReader, NamePool)}, and convert the
+ * merged tree with {@link #toDocument(Document)}. A tree is not thread-safe.
+ */
+public final class CompactTree extends CompactSource {
+
+    public static final byte DOCUMENT = 0;
+    public static final byte ELEMENT = 1;
+    public static final byte ATTRIBUTE = 2;
+    public static final byte TEXT = 3;
+    public static final byte CDATA = 4;
+    public static final byte COMMENT = 5;
+    public static final byte PROCESSING_INSTRUCTION = 6;
+
+    static final int NONE = -1;
+
+    private static final String[] KIND_NAMES = {"#document", null, null, "#text", "#cdata-section", "#comment", null};
+
+    private final NamePool namePool;
+    private byte[] kinds;
+    private int[] nameIds;
+    private int[] parents;
+    private int[] firstChildren;
+    private int[] lastChildren;
+    private int[] nextSiblings;
+    private int[] previousSiblings;
+    private int[] firstAttributes;
+    private int[] textStarts;
+    private int[] textLengths;
+    // the node after the last descendant, while nodes are in document order
+    private int[] ends;
+    private char[] chars;
+    private int charCount;
+    private int size;
+    // true until the first change after building: every subtree is then a range of nodes and chars
+    private boolean documentOrder = true;
+    // the element being built
+    private int current;
+    // for the elements copied from a MappedXmlIndex and not changed since: the source and the byte range of the element
+    // in its file, see CompactTreeWriter. null until the first element is copied from an index
+    private int[] spliceSources;
+    private int[] spliceStarts;
+    private int[] spliceEnds;
+    private final List<MappedXmlIndex> spliceIndexes = new ArrayList<>(2);
+
+    /**
+     * creates a tree with only the document node
+     */
+    public CompactTree(NamePool namePool) {
+        this(namePool, 64, 256);
+    }
+
+    /**
+     * creates a tree with only the document node, with room for the given number of nodes and chars
+     */
+    CompactTree(NamePool namePool, int nodeCapacity, int charCapacity) {
+        this.namePool = namePool;
+        kinds = new byte[nodeCapacity];
+        nameIds = new int[nodeCapacity];
+        parents = new int[nodeCapacity];
+        firstChildren = new int[nodeCapacity];
+        lastChildren = new int[nodeCapacity];
+        nextSiblings = new int[nodeCapacity];
+        previousSiblings = new int[nodeCapacity];
+        firstAttributes = new int[nodeCapacity];
+        textStarts = new int[nodeCapacity];
+        textLengths = new int[nodeCapacity];
+        ends = new int[nodeCapacity];
+        chars = new char[charCapacity];
+        current = newNode(DOCUMENT, namePool.intern(KIND_NAMES[DOCUMENT]));
+    }
+
+    @Override
+    public NamePool getNamePool() {
+        return namePool;
+    }
+
+    /**
+     * @return the number of nodes, including removed ones and attributes
+     */
+    public int getNodeCount() {
+        return size;
+    }
+
+    /**
+     * @return the number of chars of all text and attribute values, including those of removed nodes
+     */
+    int getCharCount() {
+        return charCount;
+    }
+
+    /**
+     * @return an estimate of the heap taken by the arrays of the tree
+     */
+    public long getHeapBytes() {
+        return kinds.length + 40L * nameIds.length + 2L * chars.length;
+    }
+
+    @Override
+    int getDocumentElement() {
+        for (int child = firstChildren[0]; child != NONE; child = nextSiblings[child]) {
+            if (kinds[child] == ELEMENT) {
+                return child;
+            }
+        }
+        return NONE;
+    }
+
+    @Override
+    byte getKind(int node) {
+        return kinds[node];
+    }
+
+    @Override
+    int getNameId(int node) {
+        return nameIds[node];
+    }
+
+    String getName(int node) {
+        return namePool.getName(nameIds[node]);
+    }
+
+    int getParent(int node) {
+        return parents[node];
+    }
+
+    @Override
+    int getFirstChild(int node) {
+        return firstChildren[node];
+    }
+
+    @Override
+    int getNextSibling(int node) {
+        return nextSiblings[node];
+    }
+
+    /**
+     * the chars of all values, read-only. The value of a node starts at {@link #getValueStart(int)}
+     */
+    char[] getChars() {
+        return chars;
+    }
+
+    int getValueStart(int node) {
+        return textStarts[node];
+    }
+
+    int getValueLength(int node) {
+        return textLengths[node];
+    }
+
+    /**
+     * @return the index the element was copied from if it was not changed since, or null
+     */
+    MappedXmlIndex getSpliceSource(int element) {
+        return spliceSources != null && spliceSources[element] != NONE ? spliceIndexes.get(spliceSources[element]) : null;
+    }
+
+    int getSpliceStart(int element) {
+        return spliceStarts[element];
+    }
+
+    int getSpliceEnd(int element) {
+        return spliceEnds[element];
+    }
+
+    /**
+     * records that an element, with its attributes and descendants, is a copy of a byte range of an index's file. The
+     * record is dropped when a child is added to or removed from the element or one of its descendants
+     */
+    void setSplice(int element, MappedXmlIndex index, int start, int end) {
+        if (spliceSources == null) {
+            spliceSources = new int[kinds.length];
+            spliceStarts = new int[kinds.length];
+            spliceEnds = new int[kinds.length];
+            Arrays.fill(spliceSources, NONE);
+        }
+        int source = spliceIndexes.indexOf(index);
+        if (source < 0) {
+            source = spliceIndexes.size();
+            spliceIndexes.add(index);
+        }
+        spliceSources[element] = source;
+        spliceStarts[element] = start;
+        spliceEnds[element] = end;
+    }
+
+    /**
+     * drops the splice records of a changed node and of its ancestors. The ancestors of a node without a record have
+     * none either, so this stops at the first one
+     */
+    private void dropSplices(int node) {
+        if (spliceSources != null) {
+            for (; node != NONE && spliceSources[node] != NONE; node = parents[node]) {
+                spliceSources[node] = NONE;
+            }
+        }
+    }
+
+    int getFirstAttribute(int node) {
+        return firstAttributes[node];
+    }
+
+    /**
+     * @return the value of an attribute, text, comment or processing instruction
+     */
+    String getValue(int node) {
+        return new String(chars, textStarts[node], textLengths[node]);
+    }
+
+    boolean valueEquals(int node, String value) {
+        int length = textLengths[node];
+        if (length != value.length()) {
+            return false;
+        }
+        int start = textStarts[node];
+        for (int i = 0; i < length; i++) {
+            if (chars[start + i] != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the value of an attribute, or the text of the text and cdata descendants of any other node, as DOM's
+     * getTextContent
+     */
+    @Override
+    String getTextContent(int node) {
+        if (kinds[node] != ELEMENT && kinds[node] != DOCUMENT) {
+            return getValue(node);
+        }
+        StringBuilder sb = new StringBuilder();
+        appendText(node, sb);
+        return sb.toString();
+    }
+
+    private void appendText(int node, StringBuilder sb) {
+        for (int child = firstChildren[node]; child != NONE; child = nextSiblings[child]) {
+            if (kinds[child] == TEXT || kinds[child] == CDATA) {
+                sb.append(chars, textStarts[child], textLengths[child]);
+            } else if (kinds[child] == ELEMENT) {
+                appendText(child, sb);
+            }
+        }
+    }
+
+    /**
+     * @param attributeNameId the interned name of the attribute
+     * @return the attribute of an element, or NONE
+     */
+    int getAttribute(int element, int attributeNameId) {
+        for (int attribute = firstAttributes[element]; attribute != NONE; attribute = nextSiblings[attribute]) {
+            if (nameIds[attribute] == attributeNameId) {
+                return attribute;
+            }
+        }
+        return NONE;
+    }
+
+    @Override
+    boolean attributeEquals(int element, int attributeNameId, String value) {
+        int attribute = getAttribute(element, attributeNameId);
+        return attribute != NONE && valueEquals(attribute, value);
+    }
+
+    @Override
+    String getAttributeValue(int element, int attributeNameId) {
+        int attribute = getAttribute(element, attributeNameId);
+        return attribute != NONE ? getValue(attribute) : null;
+    }
+
+    @Override
+    int copyTo(CompactTree target, int node) {
+        return target.copy(this, node);
+    }
+
+    @Override
+    int getNodeCountHint() {
+        return size;
+    }
+
+    @Override
+    int getCharCountHint() {
+        return charCount;
+    }
+
+    /**
+     * Copies a node with its attributes and descendants from a tree of the same name pool. The copy has no parent.
+     * A subtree of a tree that was not changed since it was built is copied with a few array copies.
+     *
+     * @return the copy
+     */
+    int copy(CompactTree source, int node) {
+        if (source.namePool != namePool) {
+            throw new IllegalArgumentException("trees of different name pools can not be merged");
+        }
+        if (source.documentOrder && source != this) {
+            return copyRange(source, node);
+        }
+        return copyNode(source, node);
+    }
+
+    private int copyRange(CompactTree source, int node) {
+        int count = source.ends[node] - node;
+        int charStart = source.textStarts[node];
+        int charEnd = source.ends[node] < source.size ? source.textStarts[source.ends[node]] : source.charCount;
+        ensureCapacity(size + count, charCount + charEnd - charStart);
+        int base = size;
+        int delta = base - node;
+        int charDelta = charCount - charStart;
+        System.arraycopy(source.chars, charStart, chars, charCount, charEnd - charStart);
+        System.arraycopy(source.kinds, node, kinds, base, count);
+        System.arraycopy(source.nameIds, node, nameIds, base, count);
+        System.arraycopy(source.textLengths, node, textLengths, base, count);
+        for (int i = 0; i < count; i++) {
+            int from = node + i;
+            int to = base + i;
+            parents[to] = relocate(source.parents[from], delta);
+            firstChildren[to] = relocate(source.firstChildren[from], delta);
+            lastChildren[to] = relocate(source.lastChildren[from], delta);
+            nextSiblings[to] = relocate(source.nextSiblings[from], delta);
+            previousSiblings[to] = relocate(source.previousSiblings[from], delta);
+            firstAttributes[to] = relocate(source.firstAttributes[from], delta);
+            textStarts[to] = source.textStarts[from] + charDelta;
+            ends[to] = source.ends[from] + delta;
+        }
+        parents[base] = NONE;
+        nextSiblings[base] = NONE;
+        previousSiblings[base] = NONE;
+        size += count;
+        charCount += charEnd - charStart;
+        documentOrder = false;
+        return base;
+    }
+
+    private static int relocate(int node, int delta) {
+        return node == NONE ? NONE : node + delta;
+    }
+
+    private int copyNode(CompactTree source, int node) {
+        int copy = newNode(source.kinds[node], source.nameIds[node]);
+        setText(copy, source.chars, source.textStarts[node], source.textLengths[node]);
+        int lastAttribute = NONE;
+        for (int attribute = source.firstAttributes[node]; attribute != NONE; attribute = source.nextSiblings[attribute]) {
+            int attributeCopy = copyNode(source, attribute);
+            lastAttribute = linkAttribute(copy, attributeCopy, lastAttribute);
+        }
+        for (int child = source.firstChildren[node]; child != NONE; child = source.nextSiblings[child]) {
+            link(copy, copyNode(source, child));
+        }
+        ends[copy] = size;
+        MappedXmlIndex spliceSource = source.getSpliceSource(node);
+        if (spliceSource != null) {
+            setSplice(copy, spliceSource, source.spliceStarts[node], source.spliceEnds[node]);
+        }
+        documentOrder = false;
+        return copy;
+    }
+
+    /**
+     * Copies the nodes that are still in the tree to a new tree, in document order. Merging leaves the nodes removed from
+     * the trusted tree in its arrays, compacting it drops them, and the copy can be copied from with array copies again.
+     *
+     * @return the new tree
+     */
+    public CompactTree compact() {
+        CompactTree compacted = new CompactTree(namePool, countNodes(0), charCount);
+        for (int child = firstChildren[0]; child != NONE; child = nextSiblings[child]) {
+            compacted.link(0, compacted.copyNode(this, child));
+        }
+        compacted.endDocument();
+        compacted.documentOrder = true;
+        return compacted;
+    }
+
+    private int countNodes(int node) {
+        int count = 1;
+        for (int attribute = firstAttributes[node]; attribute != NONE; attribute = nextSiblings[attribute]) {
+            count++;
+        }
+        for (int child = firstChildren[node]; child != NONE; child = nextSiblings[child]) {
+            count += countNodes(child);
+        }
+        return count;
+    }
+
+    /**
+     * creates a node without a parent
+     *
+     * @param text the value of a text, comment or processing instruction, null for an element
+     */
+    int createNode(byte kind, int nameId, char[] text, int start, int length) {
+        int node = newNode(kind, nameId);
+        if (text != null) {
+            setText(node, text, start, length);
+        }
+        documentOrder = false;
+        return node;
+    }
+
+    /**
+     * adds an attribute after the existing attributes of an element
+     */
+    void addAttribute(int element, int nameId, char[] value, int start, int length) {
+        int attribute = newNode(ATTRIBUTE, nameId);
+        setText(attribute, value, start, length);
+        linkLastAttribute(element, attribute);
+        documentOrder = false;
+    }
+
+    /**
+     * appends a node without a parent as the last child of another node
+     */
+    void appendChild(int parent, int child) {
+        link(parent, child);
+        documentOrder = false;
+    }
+
+    /**
+     * detaches a node from its parent. The node keeps its slot
+     */
+    void removeChild(int child) {
+        int parent = parents[child];
+        int previous = previousSiblings[child];
+        int next = nextSiblings[child];
+        if (previous == NONE) {
+            firstChildren[parent] = next;
+        } else {
+            nextSiblings[previous] = next;
+        }
+        if (next == NONE) {
+            lastChildren[parent] = previous;
+        } else {
+            previousSiblings[next] = previous;
+        }
+        parents[child] = NONE;
+        previousSiblings[child] = NONE;
+        nextSiblings[child] = NONE;
+        dropSplices(parent);
+        documentOrder = false;
+    }
+
+    /**
+     * converts the tree to DOM
+     *
+     * @param document an empty document, receives the children of the document node
+     * @return the document
+     */
+    public Document toDocument(Document document) {
+        for (int child = firstChildren[0]; child != NONE; child = nextSiblings[child]) {
+            document.appendChild(toNode(document, child));
+        }
+        return document;
+    }
+
+    private Node toNode(Document document, int node) {
+        switch (kinds[node]) {
+            case ELEMENT:
+                Element element = document.createElement(getName(node));
+                for (int attribute = firstAttributes[node]; attribute != NONE; attribute = nextSiblings[attribute]) {
+                    element.setAttribute(getName(attribute), getValue(attribute));
+                }
+                for (int child = firstChildren[node]; child != NONE; child = nextSiblings[child]) {
+                    element.appendChild(toNode(document, child));
+                }
+                return element;
+            case TEXT:
+                return document.createTextNode(getValue(node));
+            case CDATA:
+                return document.createCDATASection(getValue(node));
+            case COMMENT:
+                return document.createComment(getValue(node));
+            case PROCESSING_INSTRUCTION:
+                return document.createProcessingInstruction(getName(node), getValue(node));
+            default:
+                throw new IllegalStateException("unexpected node kind " + kinds[node]);
+        }
+    }
+
+    /**
+     * converts a DOM document. Entity references are replaced by their children, document types are dropped
+     */
+    public static CompactTree fromDocument(Document document, NamePool namePool) {
+        CompactTree tree = new CompactTree(namePool);
+        for (Node child = document.getFirstChild(); child != null; child = child.getNextSibling()) {
+            tree.addDomNode(child);
+        }
+        tree.endDocument();
+        return tree;
+    }
+
+    private void addDomNode(Node node) {
+        switch (node.getNodeType()) {
+            case Node.ELEMENT_NODE:
+                startElement(node.getNodeName());
+                NamedNodeMap attributes = node.getAttributes();
+                for (int i = 0; i < attributes.getLength(); i++) {
+                    Attr attribute = (Attr) attributes.item(i);
+                    attribute(attribute.getName(), attribute.getValue());
+                }
+                for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+                    addDomNode(child);
+                }
+                endElement();
+                break;
+            case Node.TEXT_NODE:
+                text(TEXT, node.getNodeValue());
+                break;
+            case Node.CDATA_SECTION_NODE:
+                text(CDATA, node.getNodeValue());
+                break;
+            case Node.COMMENT_NODE:
+                text(COMMENT, node.getNodeValue());
+                break;
+            case Node.PROCESSING_INSTRUCTION_NODE:
+                ProcessingInstruction pi = (ProcessingInstruction) node;
+                processingInstruction(pi.getTarget(), pi.getData());
+                break;
+            case Node.ENTITY_REFERENCE_NODE:
+                for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+                    addDomNode(child);
+                }
+                break;
+            default:
+                // document types
+        }
+    }
+
+    /**
+     * Reads a document from a stream. Adjacent character events become one text node, as in a parsed DOM, and text
+     * outside the document element is dropped.
+     *
+     * @param reader positioned before the document, read to the end
+     */
+    public static CompactTree parse(XMLStreamReader reader, NamePool namePool) throws XMLStreamException {
+        CompactTree tree = new CompactTree(namePool, 1024, 8192);
+        while (reader.hasNext()) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    tree.startElement(qualifiedName(reader.getPrefix(), reader.getLocalName()));
+                    for (int i = 0; i < reader.getNamespaceCount(); i++) {
+                        String prefix = reader.getNamespacePrefix(i);
+                        tree.attribute(prefix == null || prefix.isEmpty() ? "xmlns" : "xmlns:" + prefix, reader.getNamespaceURI(i));
+                    }
+                    for (int i = 0; i < reader.getAttributeCount(); i++) {
+                        tree.attribute(qualifiedName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i)), reader.getAttributeValue(i));
+                    }
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    tree.endElement();
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.SPACE:
+                    if (tree.current != 0) {
+                        tree.characters(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    }
+                    break;
+                case XMLStreamConstants.CDATA:
+                    tree.text(CDATA, reader.getText());
+                    break;
+                case XMLStreamConstants.COMMENT:
+                    tree.text(COMMENT, reader.getText());
+                    break;
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                    tree.processingInstruction(reader.getPITarget(), reader.getPIData());
+                    break;
+                default:
+                    // start and end of document, dtd
+            }
+        }
+        tree.endDocument();
+        return tree;
+    }
+
+    private static String qualifiedName(String prefix, String localName) {
+        return prefix == null || prefix.isEmpty() ? localName : prefix + ":" + localName;
+    }
+
+    private void startElement(String name) {
+        int element = newNode(ELEMENT, namePool.intern(name));
+        link(current, element);
+        current = element;
+    }
+
+    private void attribute(String name, String value) {
+        int attribute = newNode(ATTRIBUTE, namePool.intern(name));
+        setText(attribute, value);
+        linkLastAttribute(current, attribute);
+        ends[attribute] = size;
+    }
+
+    private void linkLastAttribute(int element, int attribute) {
+        int last = NONE;
+        for (int a = firstAttributes[element]; a != NONE; a = nextSiblings[a]) {
+            last = a;
+        }
+        linkAttribute(element, attribute, last);
+    }
+
+    private void endElement() {
+        ends[current] = size;
+        current = parents[current];
+    }
+
+    private void endDocument() {
+        ends[0] = size;
+    }
+
+    private void text(byte kind, String value) {
+        int node = newNode(kind, namePool.intern(KIND_NAMES[kind]));
+        setText(node, value);
+        link(current, node);
+        ends[node] = size;
+    }
+
+    /**
+     * appends characters, to the previous node if it is a text node
+     */
+    private void characters(char[] text, int start, int length) {
+        int last = lastChildren[current];
+        if (last == size - 1 && kinds[last] == TEXT) {
+            ensureCapacity(size, charCount + length);
+            System.arraycopy(text, start, chars, charCount, length);
+            textLengths[last] += length;
+            charCount += length;
+        } else {
+            int node = newNode(TEXT, namePool.intern(KIND_NAMES[TEXT]));
+            setText(node, text, start, length);
+            link(current, node);
+            ends[node] = size;
+        }
+    }
+
+    private void processingInstruction(String target, String data) {
+        int node = newNode(PROCESSING_INSTRUCTION, namePool.intern(target));
+        setText(node, data == null ? "" : data);
+        link(current, node);
+        ends[node] = size;
+    }
+
+    private int newNode(byte kind, int nameId) {
+        ensureCapacity(size + 1, charCount);
+        int node = size++;
+        kinds[node] = kind;
+        nameIds[node] = nameId;
+        parents[node] = NONE;
+        firstChildren[node] = NONE;
+        lastChildren[node] = NONE;
+        nextSiblings[node] = NONE;
+        previousSiblings[node] = NONE;
+        firstAttributes[node] = NONE;
+        textStarts[node] = charCount;
+        textLengths[node] = 0;
+        ends[node] = size;
+        return node;
+    }
+
+    private void setText(int node, String value) {
+        ensureCapacity(size, charCount + value.length());
+        value.getChars(0, value.length(), chars, charCount);
+        textStarts[node] = charCount;
+        textLengths[node] = value.length();
+        charCount += value.length();
+    }
+
+    private void setText(int node, char[] text, int start, int length) {
+        ensureCapacity(size, charCount + length);
+        System.arraycopy(text, start, chars, charCount, length);
+        textStarts[node] = charCount;
+        textLengths[node] = length;
+        charCount += length;
+    }
+
+    private void link(int parent, int child) {
+        dropSplices(parent);
+        int last = lastChildren[parent];
+        parents[child] = parent;
+        previousSiblings[child] = last;
+        nextSiblings[child] = NONE;
+        if (last == NONE) {
+            firstChildren[parent] = child;
+        } else {
+            nextSiblings[last] = child;
+        }
+        lastChildren[parent] = child;
+    }
+
+    /**
+     * @return the attribute, the new last attribute
+     */
+    private int linkAttribute(int element, int attribute, int lastAttribute) {
+        parents[attribute] = element;
+        if (lastAttribute == NONE) {
+            firstAttributes[element] = attribute;
+        } else {
+            nextSiblings[lastAttribute] = attribute;
+            previousSiblings[attribute] = lastAttribute;
+        }
+        return attribute;
+    }
+
+    private void ensureCapacity(int nodeCapacity, int charCapacity) {
+        if (nodeCapacity > kinds.length) {
+            int capacity = Math.max(nodeCapacity, kinds.length * 2);
+            kinds = Arrays.copyOf(kinds, capacity);
+            nameIds = Arrays.copyOf(nameIds, capacity);
+            parents = Arrays.copyOf(parents, capacity);
+            firstChildren = Arrays.copyOf(firstChildren, capacity);
+            lastChildren = Arrays.copyOf(lastChildren, capacity);
+            nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+            previousSiblings = Arrays.copyOf(previousSiblings, capacity);
+            firstAttributes = Arrays.copyOf(firstAttributes, capacity);
+            textStarts = Arrays.copyOf(textStarts, capacity);
+            textLengths = Arrays.copyOf(textLengths, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+            if (spliceSources != null) {
+                spliceSources = Arrays.copyOf(spliceSources, capacity);
+                spliceStarts = Arrays.copyOf(spliceStarts, capacity);
+                spliceEnds = Arrays.copyOf(spliceEnds, capacity);
+                Arrays.fill(spliceSources, size, capacity, NONE);
+            }
+        }
+        if (charCapacity > chars.length) {
+            chars = Arrays.copyOf(chars, Math.max(charCapacity, chars.length * 2));
+        }
+    }
+}
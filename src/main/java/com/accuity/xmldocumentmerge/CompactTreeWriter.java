@@ -0,0 +1,309 @@
+package com.accuity.xmldocumentmerge;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Writes a {@link CompactTree} as UTF-8 XML.
+ * <p>
+ * An element copied whole from a {@link MappedXmlIndex} and not changed since is not serialized again: the tree keeps
+ * the byte range of such elements in their file, and the writer splices the range into the output. Ranges of at least
+ * transferThreshold bytes are passed to {@link FileChannel#transferTo}, so the operating system copies them from the
+ * file without going through the heap; smaller ones are copied from the mapping into the output buffer. Spliced
+ * elements keep the formatting of their source: quotes, character references and line ends.
+ * <p>
+ * A CompactTreeWriter is immutable and can be used by several threads.
+ */
+public final class CompactTreeWriter {
+
+    private static final byte[] XML_DECLARATION = ascii("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+    private static final byte[] CDATA_START = ascii("<![CDATA[");
+    private static final byte[] CDATA_END = ascii("]]>");
+    private static final byte[] CDATA_SPLIT = ascii("]]><![CDATA[");
+    private static final byte[] COMMENT_START = ascii("<!--");
+    private static final byte[] COMMENT_END = ascii("-->");
+    private static final byte[] PI_START = ascii("<?");
+    private static final byte[] PI_END = ascii("?>");
+    private static final byte[] ATTRIBUTE_START = ascii("=\"");
+    private static final byte[] EMPTY_ELEMENT_END = ascii("/>");
+    private static final byte[] END_TAG_START = ascii("</");
+    private static final byte[] AMP = ascii("&amp;");
+    private static final byte[] LT = ascii("&lt;");
+    private static final byte[] GT = ascii("&gt;");
+    private static final byte[] QUOT = ascii("&quot;");
+    private static final byte[] CHAR_REFERENCE_START = ascii("&#");
+
+    private static final int TEXT = 0;
+    private static final int ATTRIBUTE = 1;
+    private static final int RAW = 2;
+
+    private final int bufferSize;
+    private final int transferThreshold;
+
+    public CompactTreeWriter() {
+        this(64 * 1024, 16 * 1024);
+    }
+
+    /**
+     * @param bufferSize        the size of the output buffer
+     * @param transferThreshold the size from which spliced ranges are transferred from the file instead of copied
+     */
+    public CompactTreeWriter(int bufferSize, int transferThreshold) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("bufferSize must be at least 1");
+        }
+        this.bufferSize = bufferSize;
+        this.transferThreshold = transferThreshold;
+    }
+
+    /**
+     * writes the tree. The channel is not closed
+     */
+    public void write(CompactTree tree, WritableByteChannel channel) throws IOException {
+        Output output = new Output(tree, channel);
+        try {
+            output.put(XML_DECLARATION);
+            for (int child = tree.getFirstChild(0); child != CompactTree.NONE; child = tree.getNextSibling(child)) {
+                output.writeNode(child);
+            }
+            output.flush();
+        } finally {
+            output.closeFiles();
+        }
+    }
+
+    /**
+     * writes the tree. The stream is not closed
+     */
+    public void write(CompactTree tree, OutputStream outputStream) throws IOException {
+        write(tree, Channels.newChannel(outputStream));
+        outputStream.flush();
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * the state of one write
+     */
+    private final class Output {
+        private final CompactTree tree;
+        private final WritableByteChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+        // the UTF-8 bytes of the names by id
+        private byte[][] names = new byte[64][];
+        // the files of the indexes, opened for transfers
+        private final Map<MappedXmlIndex, FileChannel> files = new IdentityHashMap<>();
+
+        Output(CompactTree tree, WritableByteChannel channel) {
+            this.tree = tree;
+            this.channel = channel;
+        }
+
+        void writeNode(int node) throws IOException {
+            switch (tree.getKind(node)) {
+                case CompactTree.ELEMENT:
+                    MappedXmlIndex spliceSource = tree.getSpliceSource(node);
+                    if (spliceSource != null) {
+                        splice(spliceSource, tree.getSpliceStart(node), tree.getSpliceEnd(node));
+                    } else {
+                        writeElement(node);
+                    }
+                    break;
+                case CompactTree.TEXT:
+                    writeValue(node, TEXT);
+                    break;
+                case CompactTree.CDATA:
+                    put(CDATA_START);
+                    writeCData(node);
+                    put(CDATA_END);
+                    break;
+                case CompactTree.COMMENT:
+                    put(COMMENT_START);
+                    writeValue(node, RAW);
+                    put(COMMENT_END);
+                    break;
+                case CompactTree.PROCESSING_INSTRUCTION:
+                    put(PI_START);
+                    put(name(node));
+                    if (tree.getValueLength(node) > 0) {
+                        put((byte) ' ');
+                        writeValue(node, RAW);
+                    }
+                    put(PI_END);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void writeElement(int element) throws IOException {
+            byte[] name = name(element);
+            put((byte) '<');
+            put(name);
+            for (int attribute = tree.getFirstAttribute(element); attribute != CompactTree.NONE; attribute = tree.getNextSibling(attribute)) {
+                put((byte) ' ');
+                put(name(attribute));
+                put(ATTRIBUTE_START);
+                writeValue(attribute, ATTRIBUTE);
+                put((byte) '"');
+            }
+            int child = tree.getFirstChild(element);
+            if (child == CompactTree.NONE) {
+                put(EMPTY_ELEMENT_END);
+                return;
+            }
+            put((byte) '>');
+            for (; child != CompactTree.NONE; child = tree.getNextSibling(child)) {
+                writeNode(child);
+            }
+            put(END_TAG_START);
+            put(name);
+            put((byte) '>');
+        }
+
+        /**
+         * writes the value of a cdata section, splitting it where it contains the end of a section
+         */
+        private void writeCData(int node) throws IOException {
+            char[] chars = tree.getChars();
+            int start = tree.getValueStart(node);
+            int end = start + tree.getValueLength(node);
+            int from = start;
+            for (int i = start; i + 2 < end; i++) {
+                if (chars[i] == ']' && chars[i + 1] == ']' && chars[i + 2] == '>') {
+                    writeChars(chars, from, i + 2, RAW);
+                    put(CDATA_SPLIT);
+                    from = i + 2;
+                }
+            }
+            writeChars(chars, from, end, RAW);
+        }
+
+        private void writeValue(int node, int mode) throws IOException {
+            int start = tree.getValueStart(node);
+            writeChars(tree.getChars(), start, start + tree.getValueLength(node), mode);
+        }
+
+        private void writeChars(char[] chars, int start, int end, int mode) throws IOException {
+            for (int i = start; i < end; i++) {
+                char c = chars[i];
+                if (c < 0x80) {
+                    if (mode != RAW && (c == '&' || c == '<' || c == '>' || c == '\r' || (mode == ATTRIBUTE && (c == '"' || c == '\t' || c == '\n')))) {
+                        writeReference(c);
+                    } else {
+                        put((byte) c);
+                    }
+                } else if (c < 0x800) {
+                    put((byte) (0xC0 | c >> 6));
+                    put((byte) (0x80 | c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(chars[i + 1])) {
+                    int codePoint = Character.toCodePoint(c, chars[++i]);
+                    put((byte) (0xF0 | codePoint >> 18));
+                    put((byte) (0x80 | codePoint >> 12 & 0x3F));
+                    put((byte) (0x80 | codePoint >> 6 & 0x3F));
+                    put((byte) (0x80 | codePoint & 0x3F));
+                } else {
+                    put((byte) (0xE0 | c >> 12));
+                    put((byte) (0x80 | c >> 6 & 0x3F));
+                    put((byte) (0x80 | c & 0x3F));
+                }
+            }
+        }
+
+        private void writeReference(char c) throws IOException {
+            switch (c) {
+                case '&':
+                    put(AMP);
+                    break;
+                case '<':
+                    put(LT);
+                    break;
+                case '>':
+                    put(GT);
+                    break;
+                case '"':
+                    put(QUOT);
+                    break;
+                default:
+                    put(CHAR_REFERENCE_START);
+                    put(Integer.toString(c).getBytes(StandardCharsets.US_ASCII));
+                    put((byte) ';');
+            }
+        }
+
+        private void splice(MappedXmlIndex index, int start, int end) throws IOException {
+            if (end - start >= transferThreshold && index.getFile() != null) {
+                flush();
+                FileChannel file = files.get(index);
+                if (file == null) {
+                    file = FileChannel.open(index.getFile(), StandardOpenOption.READ);
+                    files.put(index, file);
+                }
+                for (long position = start; position < end; ) {
+                    position += file.transferTo(position, end - position, channel);
+                }
+                return;
+            }
+            ByteBuffer range = index.slice(start, end);
+            if (range.remaining() > buffer.remaining()) {
+                flush();
+                if (range.remaining() > buffer.remaining()) {
+                    while (range.hasRemaining()) {
+                        channel.write(range);
+                    }
+                    return;
+                }
+            }
+            buffer.put(range);
+        }
+
+        private byte[] name(int node) {
+            int nameId = tree.getNameId(node);
+            if (nameId >= names.length) {
+                names = Arrays.copyOf(names, Math.max(nameId + 1, 2 * names.length));
+            }
+            if (names[nameId] == null) {
+                names[nameId] = tree.getNamePool().getName(nameId).getBytes(StandardCharsets.UTF_8);
+            }
+            return names[nameId];
+        }
+
+        private void put(byte[] bytes) throws IOException {
+            for (byte b : bytes) {
+                put(b);
+            }
+        }
+
+        private void put(byte b) throws IOException {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            buffer.put(b);
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        void closeFiles() throws IOException {
+            for (FileChannel file : files.values()) {
+                file.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.accuity.xmldocumentmerge;
+
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.xml.xpath.XPathExpressionException;
+
+/**
+ * A path compiled by a {@link PathEvaluator}. Compiled paths are immutable and can be evaluated by concurrent merges,
+ * each on its own documents.
+ */
+public interface CompiledPath {
+
+    /**
+     * @param context the document or node the path is evaluated against
+     * @return the selected nodes, in document order
+     * @throws XPathExpressionException if the path can not be evaluated
+     */
+    NodeList evaluateNodes(Node context) throws XPathExpressionException;
+
+    /**
+     * @param context the document or node the path is evaluated against
+     * @return the first selected node in document order, or null if the path selects nothing
+     * @throws XPathExpressionException if the path can not be evaluated
+     */
+    default Node evaluateFirstNode(Node context) throws XPathExpressionException {
+        NodeList nodes = evaluateNodes(context);
+        return nodes.getLength() > 0 ? nodes.item(0) : null;
+    }
+
+    String getExpression();
+}
@@ -0,0 +1,185 @@
+package com.accuity.xmldocumentmerge;
+
+import com.accuity.xmldocumentmerge.model.Rule;
+import com.accuity.xmldocumentmerge.model.Source;
+
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A single rule of a {@link MergePlan}, with everything the RuleProcessor needs already resolved:
+ * the compiled rule path, the compiled filterless fallback path, the key extractor for the coalesce ids
+ * and the trusted sources in order of trust.
+ * <p>
+ * Compiled rules are immutable and can be shared by concurrent merges.
+ */
+public final class CompiledRule {
+
+    private final Rule rule;
+    private final boolean docRoot;
+    private final CompiledPath ruleXPath;
+    private final CompiledPath filterlessXPath;
+    private final CompactPath compactRulePath;
+    private final CompactPath compactFilterlessPath;
+    private final KeyExtractor keyExtractor;
+    private final List<Source> sources;
+    private final List<CompiledRule> children;
+    private final String section;
+    private final boolean compactTreeSupported;
+    private final Set<String> consumableSources;
+    private final List<String> sourceNames;
+    private final int[] sourceIndexes;
+    private final BitSet sourceMask;
+
+    CompiledRule(Rule rule, boolean docRoot, CompiledPath ruleXPath, CompiledPath filterlessXPath,
+                 CompactPath compactRulePath, CompactPath compactFilterlessPath,
+                 KeyExtractor keyExtractor, List<Source> sources, List<CompiledRule> children, String section,
+                 Set<String> consumableSources, List<String> sourceNames, int[] sourceIndexes) {
+        this.rule = rule;
+        this.docRoot = docRoot;
+        this.ruleXPath = ruleXPath;
+        this.filterlessXPath = filterlessXPath;
+        this.compactRulePath = compactRulePath;
+        this.compactFilterlessPath = compactFilterlessPath;
+        this.keyExtractor = keyExtractor;
+        this.sources = Collections.unmodifiableList(sources);
+        this.children = Collections.unmodifiableList(children);
+        this.section = section;
+        boolean supported = docRoot || (compactRulePath != null && compactRulePath.selectsElements()
+                && (filterlessXPath == null || (compactFilterlessPath != null && compactFilterlessPath.selectsElements())));
+        supported &= keyExtractor == null || keyExtractor.getCompactIdPaths() != null;
+        for (CompiledRule child : children) {
+            supported &= child.isCompactTreeSupported();
+        }
+        this.compactTreeSupported = supported;
+        this.consumableSources = consumableSources;
+        this.sourceNames = sourceNames;
+        this.sourceIndexes = sourceIndexes;
+        this.sourceMask = new BitSet(sourceNames.size());
+        for (int sourceIndex : sourceIndexes) {
+            sourceMask.set(sourceIndex);
+        }
+    }
+
+    public Rule getRule() {
+        return rule;
+    }
+
+    /**
+     * @return true if this rule has no parent rule and therefore builds the root of the trusted document
+     */
+    public boolean isDocRoot() {
+        return docRoot;
+    }
+
+    /**
+     * @return the trusted sources (trust > 0) for this rule, most trusted first
+     */
+    public List<Source> getSources() {
+        return sources;
+    }
+
+    public List<CompiledRule> getChildren() {
+        return children;
+    }
+
+    public String getFullContextXPath() {
+        return rule.getFullContextXPath();
+    }
+
+    public boolean isStop() {
+        return rule.getField() != null && rule.getField().isStop();
+    }
+
+    public boolean isCoalesce() {
+        return rule.getField() != null && rule.getField().isCoalesce();
+    }
+
+    CompiledPath getRuleXPath() {
+        return ruleXPath;
+    }
+
+    /**
+     * @return the rule xpath without this rule's filter, or null when the rule has no filter
+     */
+    CompiledPath getFilterlessXPath() {
+        return filterlessXPath;
+    }
+
+    CompactPath getCompactRulePath() {
+        return compactRulePath;
+    }
+
+    /**
+     * @return the filterless path for {@link CompactTree}s, or null when the rule has no filter
+     */
+    CompactPath getCompactFilterlessPath() {
+        return compactFilterlessPath;
+    }
+
+    /**
+     * @return true if this rule and all its child rules can be processed on {@link CompactTree}s
+     */
+    boolean isCompactTreeSupported() {
+        return compactTreeSupported;
+    }
+
+    /**
+     * @return the compiled id paths of a coalesce rule, or null when the rule has no ids
+     */
+    List<CompiledPath> getIdExpressions() {
+        return keyExtractor != null ? keyExtractor.getIdPaths() : null;
+    }
+
+    /**
+     * @return the key extractor of a coalesce rule, or null when the rule has no ids
+     */
+    KeyExtractor getKeyExtractor() {
+        return keyExtractor;
+    }
+
+    /**
+     * Every node this rule and its child rules read or change, in the trusted document and in the sources, is inside
+     * an element of this name that is a child of the node matched by the parent rule. Sibling rules with different
+     * sections never touch the same nodes.
+     *
+     * @return the element name, or null if the paths of the rule do not prove it
+     */
+    String getSection() {
+        return section;
+    }
+
+    /**
+     * A source is consumable by a rule when no rule processed after it reads that source at or below the nodes it
+     * matches, so a merge that consumes its sources can move the nodes the rule imports instead of copying them.
+     *
+     * @return true if the rule is the last to read its matches in the source
+     */
+    boolean isConsumable(String sourceName) {
+        return consumableSources.contains(sourceName);
+    }
+
+    /**
+     * @return the names of all the sources of the plan this rule was compiled in, numbered by their position. Shared by
+     * all the rules of the plan
+     */
+    List<String> getSourceNames() {
+        return sourceNames;
+    }
+
+    /**
+     * @return the numbers of the trusted sources, in the order of {@link #getSources()}
+     */
+    int[] getSourceIndexes() {
+        return sourceIndexes;
+    }
+
+    /**
+     * @return the numbers of the trusted sources, as a set
+     */
+    BitSet getSourceMask() {
+        return sourceMask;
+    }
+}
@@ -0,0 +1,104 @@
+package com.accuity.xmldocumentmerge;
+
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A compiled xpath expression that can be evaluated from any number of threads.
+ * <p>
+ * JAXP {@link XPath} and {@link XPathExpression} instances are not thread-safe, so every thread compiles its own
+ * {@link XPathExpression} the first time it evaluates an expression, and keeps it for later evaluations. The compiled
+ * expressions are kept per thread, keyed by the expression string, in a cache of at most
+ * {@value #MAX_CACHED_EXPRESSIONS} expressions that drops the least recently used ones: a CompiledXPath holds no
+ * per-thread state, so the expressions of evicted plans do not stay reachable from long-lived worker threads.
+ * The {@link XPathFactory} lookup is also done once per thread.
+ */
+final class CompiledXPath implements CompiledPath {
+
+    static final int MAX_CACHED_EXPRESSIONS = 1024;
+
+    private static final ThreadLocal<ExpressionCache> CACHE = new ThreadLocal<ExpressionCache>() {
+        @Override
+        protected ExpressionCache initialValue() {
+            return new ExpressionCache();
+        }
+    };
+
+    private final String expression;
+
+    private CompiledXPath(String expression) {
+        this.expression = expression;
+    }
+
+    /**
+     * compiles the expression on the calling thread, so that invalid expressions fail here rather than on first use
+     *
+     * @param expression
+     * @return
+     * @throws XPathExpressionException
+     */
+    static CompiledXPath compile(String expression) throws XPathExpressionException {
+        CACHE.get().compiled(expression);
+        return new CompiledXPath(expression);
+    }
+
+    @Override
+    public NodeList evaluateNodes(Node context) throws XPathExpressionException {
+        return (NodeList) CACHE.get().compiled(expression).evaluate(context, XPathConstants.NODESET);
+    }
+
+    @Override
+    public Node evaluateFirstNode(Node context) throws XPathExpressionException {
+        return (Node) CACHE.get().compiled(expression).evaluate(context, XPathConstants.NODE);
+    }
+
+    @Override
+    public String getExpression() {
+        return expression;
+    }
+
+    /**
+     * @return the number of expressions the calling thread keeps compiled
+     */
+    static int getCachedExpressionCount() {
+        return CACHE.get().size();
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+
+    /**
+     * the XPath of a thread and the expressions it compiled, least recently used first
+     */
+    static final class ExpressionCache extends LinkedHashMap<String, XPathExpression> {
+        private final XPath xPath = XPathFactory.newInstance().newXPath();
+
+        ExpressionCache() {
+            super(16, 0.75f, true);
+        }
+
+        XPathExpression compiled(String expression) throws XPathExpressionException {
+            XPathExpression xPathExpression = get(expression);
+            if (xPathExpression == null) {
+                xPathExpression = xPath.compile(expression);
+                put(expression, xPathExpression);
+            }
+            return xPathExpression;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, XPathExpression> eldest) {
+            return size() > MAX_CACHED_EXPRESSIONS;
+        }
+    }
+}
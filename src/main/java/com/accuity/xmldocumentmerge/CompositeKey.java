@@ -0,0 +1,47 @@
+package com.accuity.xmldocumentmerge;
+
+import java.util.Arrays;
+
+/**
+ * The key of a node of a coalesce rule: one value per id path. The hash is computed once, since keys are only used
+ * for map lookups.
+ */
+final class CompositeKey {
+
+    private final String[] values;
+    private final int hash;
+
+    CompositeKey(String[] values) {
+        this.values = values;
+        this.hash = Arrays.hashCode(values);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CompositeKey)) {
+            return false;
+        }
+        CompositeKey that = (CompositeKey) o;
+        return hash == that.hash && Arrays.equals(values, that.values);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    /**
+     * @return the values, each followed by ";"
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (String value : values) {
+            sb.append(value).append(';');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,121 @@
+package com.accuity.xmldocumentmerge;
+
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A pool of DocumentBuilders from one factory. Creating a factory looks up the implementation on the class path and creating
+ * a builder configures a new parser, both take longer than parsing a small document. A builder is not thread-safe, so each
+ * one is used by one thread at a time and {@link DocumentBuilder#reset() reset} before it is used again.
+ * <p>
+ * The pool is thread-safe. It does not limit the number of builders in use, it only keeps up to maxIdle of them for reuse.
+ */
+public class DocumentBuilderPool {
+
+    private final DocumentBuilderFactory documentBuilderFactory;
+    private final BlockingQueue<DocumentBuilder> idle;
+
+    /**
+     * a pool of builders from the default factory, keeping a builder for each thread the processors can run. The sources
+     * come from feeds, so the builders reject documents with a DOCTYPE declaration: its entities could read local files
+     * or URLs into the document, or expand to more text than fits in memory
+     */
+    public DocumentBuilderPool() {
+        this(secureFactory(), 2 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param documentBuilderFactory configured as needed for the sources. It is only used to create builders, under a lock
+     * @param maxIdle                the maximum number of builders kept for reuse
+     */
+    public DocumentBuilderPool(DocumentBuilderFactory documentBuilderFactory, int maxIdle) {
+        if (maxIdle < 1) {
+            throw new IllegalArgumentException("maxIdle must be at least 1");
+        }
+        this.documentBuilderFactory = documentBuilderFactory;
+        this.idle = new ArrayBlockingQueue<>(maxIdle);
+    }
+
+    private static DocumentBuilderFactory secureFactory() {
+        DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+        try {
+            documentBuilderFactory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            documentBuilderFactory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            documentBuilderFactory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+            documentBuilderFactory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+        } catch (ParserConfigurationException e) {
+            throw new RuntimeException("error configuring DocumentBuilderFactory", e);
+        }
+        documentBuilderFactory.setXIncludeAware(false);
+        documentBuilderFactory.setExpandEntityReferences(false);
+        return documentBuilderFactory;
+    }
+
+    /**
+     * @return an idle builder, or a new one if none is idle. Give it back with {@link #release(DocumentBuilder)}
+     */
+    public DocumentBuilder acquire() {
+        DocumentBuilder documentBuilder = idle.poll();
+        if (documentBuilder == null) {
+            try {
+                // factories are not thread-safe
+                synchronized (documentBuilderFactory) {
+                    documentBuilder = documentBuilderFactory.newDocumentBuilder();
+                }
+            } catch (ParserConfigurationException e) {
+                throw new RuntimeException("error initializing DocumentBuilder", e);
+            }
+        }
+        return documentBuilder;
+    }
+
+    /**
+     * resets the builder and keeps it for reuse, unless maxIdle builders are already idle
+     */
+    public void release(DocumentBuilder documentBuilder) {
+        documentBuilder.reset();
+        idle.offer(documentBuilder);
+    }
+
+    /**
+     * parses a document with a pooled builder
+     *
+     * @param inputStream the document
+     */
+    public Document parse(InputStream inputStream) throws IOException, SAXException {
+        DocumentBuilder documentBuilder = acquire();
+        try {
+            return documentBuilder.parse(inputStream);
+        } finally {
+            release(documentBuilder);
+        }
+    }
+
+    /**
+     * @return a new, empty document
+     */
+    public Document newDocument() {
+        DocumentBuilder documentBuilder = acquire();
+        try {
+            return documentBuilder.newDocument();
+        } finally {
+            release(documentBuilder);
+        }
+    }
+
+    /**
+     * @return the number of builders kept for reuse
+     */
+    public int getIdleCount() {
+        return idle.size();
+    }
+}
@@ -1,12 +1,13 @@
 package com.accuity.xmldocumentmerge;
 
+import org.w3c.dom.Document;
 import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 public class DocumentNodeMerger {
 
@@ -17,41 +18,212 @@ public class DocumentNodeMerger {
      * @param sourceNode
      */
     public void mergeNodeChildren(Node destinationNode, Node sourceNode) {
-        NodeList sourceChildren = sourceNode.getChildNodes();
-        Set<String> newNodeNames = new HashSet<>();
-        Map<String, Integer> nameCount = new HashMap<>();
-        for (int i = 0; i < sourceChildren.getLength(); i++) {
-            Node childNode = sourceChildren.item(i);
-            int nameOrdinal = nameCount.containsKey(childNode.getNodeName()) ? nameCount.get(childNode.getNodeName()) : 0;
-            Node destinationChildNode = getChildByName(destinationNode, childNode.getNodeName(), nameOrdinal);
-            if (destinationChildNode == null) {
-                // if nameOrdinal > 0 and the node name existed in the original form of the destination document,
-                // that means this is an extra instance of this type of node. ignore it
-                if (nameOrdinal == 0 || newNodeNames.contains(childNode.getNodeName())) {
-                    // this is our first node by this name. append it
-                    Node importedNode = destinationNode.getOwnerDocument().importNode(childNode, true);
-                    destinationNode.appendChild(importedNode);
-                    newNodeNames.add(importedNode.getNodeName());
+        mergeNodeChildren(destinationNode, sourceNode, false, new ArrayList<ChildIndex>(), 0);
+    }
+
+    /**
+     * merges like {@link #mergeNodeChildren(Node, Node)}, moving the appended source children into the destination
+     * document instead of copying them when move is true. The moved children are removed from the source node
+     *
+     * @param destinationNode
+     * @param sourceNode
+     * @param move
+     */
+    public void mergeNodeChildren(Node destinationNode, Node sourceNode, boolean move) {
+        mergeNodeChildren(destinationNode, sourceNode, move, new ArrayList<ChildIndex>(), 0);
+    }
+
+    /**
+     * Children are matched by name and ordinal: the n-th source child of a name is merged into the n-th destination
+     * child of that name. Source children of a name the destination does not have are appended, extra source children
+     * of a name it has are ignored. The destination children are indexed by name once per level; the indexes are
+     * reused from one merge level to the next.
+     *
+     * @param move adopt the appended children instead of importing them
+     * @param levels the indexes of the levels above and below, reused across siblings
+     * @param depth the index in levels to use for this level
+     */
+    private void mergeNodeChildren(Node destinationNode, Node sourceNode, boolean move, List<ChildIndex> levels, int depth) {
+        if (levels.size() == depth) {
+            levels.add(new ChildIndex());
+        }
+        ChildIndex index = levels.get(depth);
+        index.build(destinationNode);
+        Node nextNode;
+        for (Node childNode = sourceNode.getFirstChild(); childNode != null; childNode = nextNode) {
+            // taken first, a moved child has no siblings
+            nextNode = childNode.getNextSibling();
+            ChildIndex.Slot slot = index.get(childNode.getNodeName());
+            int nameOrdinal = slot.sourceCount++;
+            if (slot.appended) {
+                // the destination did not have this name originally, append every node by this name
+                destinationNode.appendChild(transfer(destinationNode.getOwnerDocument(), childNode, move));
+            } else if (nameOrdinal < slot.destinationNodes.size()) {
+                mergeNodeChildren(slot.destinationNodes.get(nameOrdinal), childNode, move, levels, depth + 1);
+            }
+            // else: an extra instance of a node the destination already has. ignore it
+        }
+        index.clear();
+    }
+
+    /**
+     * moves a node into the document, or copies it when move is false or the DOM implementation can not adopt it.
+     * A moved node is removed from its parent
+     */
+    static Node transfer(Document document, Node node, boolean move) {
+        if (move) {
+            Node adopted = document.adoptNode(node);
+            if (adopted != null) {
+                return adopted;
+            }
+        }
+        return document.importNode(node, true);
+    }
+
+    /**
+     * merges the children of a node of a compact source into a node of a compact tree, with the same matching as for DOM
+     * nodes. They must share a name pool
+     */
+    public void mergeNodeChildren(CompactTree destinationTree, int destinationNode, CompactSource sourceTree, int sourceNode) {
+        mergeNodeChildren(destinationTree, destinationNode, sourceTree, sourceNode, new ArrayList<CompactChildIndex>(), 0);
+    }
+
+    /**
+     * @param levels the indexes of a previous merge on the same thread, reused since an index is as large as the name pool
+     */
+    void mergeNodeChildren(CompactTree destinationTree, int destinationNode, CompactSource sourceTree, int sourceNode, List<CompactChildIndex> levels) {
+        mergeNodeChildren(destinationTree, destinationNode, sourceTree, sourceNode, levels, 0);
+    }
+
+    private void mergeNodeChildren(CompactTree destinationTree, int destinationNode, CompactSource sourceTree, int sourceNode,
+                                   List<CompactChildIndex> levels, int depth) {
+        if (levels.size() == depth) {
+            levels.add(new CompactChildIndex());
+        }
+        CompactChildIndex index = levels.get(depth);
+        index.build(destinationTree, destinationNode);
+        for (int childNode = sourceTree.getFirstChild(sourceNode); childNode != CompactTree.NONE; childNode = sourceTree.getNextSibling(childNode)) {
+            int nameId = sourceTree.getNameId(childNode);
+            int nameOrdinal = index.nextSourceOrdinal(nameId);
+            IntList destinationNodes = index.get(nameId);
+            if (destinationNodes == null) {
+                // the destination did not have this name originally, append every node by this name
+                destinationTree.appendChild(destinationNode, sourceTree.copyTo(destinationTree, childNode));
+            } else if (nameOrdinal < destinationNodes.size()) {
+                mergeNodeChildren(destinationTree, destinationNodes.get(nameOrdinal), sourceTree, childNode, levels, depth + 1);
+            }
+            // else: an extra instance of a node the destination already has. ignore it
+        }
+        index.clear();
+    }
+
+    /**
+     * the children of a destination node by name, with the number of source children seen for each name
+     */
+    private static final class ChildIndex {
+        private final Map<String, Slot> slots = new HashMap<>();
+        private final List<Slot> free = new ArrayList<>();
+
+        void build(Node destinationNode) {
+            for (Node child = destinationNode.getFirstChild(); child != null; child = child.getNextSibling()) {
+                Slot slot = slots.get(child.getNodeName());
+                if (slot == null) {
+                    slot = newSlot(child.getNodeName(), false);
                 }
-            } else {
-                mergeNodeChildren(destinationChildNode, childNode);
+                slot.destinationNodes.add(child);
+            }
+        }
+
+        /**
+         * @return the slot of a name, a slot for appended nodes if the destination did not have the name
+         */
+        Slot get(String name) {
+            Slot slot = slots.get(name);
+            return slot != null ? slot : newSlot(name, true);
+        }
+
+        void clear() {
+            for (Slot slot : slots.values()) {
+                slot.destinationNodes.clear();
+                free.add(slot);
             }
-            nameCount.put(childNode.getNodeName(), nameOrdinal + 1);
+            slots.clear();
+        }
+
+        private Slot newSlot(String name, boolean appended) {
+            Slot slot = free.isEmpty() ? new Slot() : free.remove(free.size() - 1);
+            slot.appended = appended;
+            slot.sourceCount = 0;
+            slots.put(name, slot);
+            return slot;
+        }
+
+        static final class Slot {
+            final List<Node> destinationNodes = new ArrayList<>();
+            int sourceCount;
+            boolean appended;
         }
     }
 
-    private Node getChildByName(Node node, String name, int ordinal) {
-        Node childNode = null;
-        NodeList children = node.getChildNodes();
-        for (int i = 0; i < children.getLength(); i++) {
-            if (children.item(i).getNodeName().equals(name) && childNode == null) {
-                ordinal--;
-                if (ordinal < 0) {
-                    childNode = children.item(i);
+    /**
+     * the children of a compact destination node by name id. Name ids are small, so the index is an array
+     */
+    static final class CompactChildIndex {
+        private IntList[] destinationNodes = new IntList[64];
+        private int[] sourceCounts = new int[64];
+        // the name ids with destination nodes or source counts, to clear
+        private final IntList used = new IntList();
+        private final List<IntList> free = new ArrayList<>();
+
+        void build(CompactTree destinationTree, int destinationNode) {
+            for (int child = destinationTree.getFirstChild(destinationNode); child != CompactTree.NONE; child = destinationTree.getNextSibling(child)) {
+                int nameId = destinationTree.getNameId(child);
+                ensureCapacity(nameId);
+                if (destinationNodes[nameId] == null) {
+                    destinationNodes[nameId] = free.isEmpty() ? new IntList() : free.remove(free.size() - 1);
+                    if (sourceCounts[nameId] == 0) {
+                        used.add(nameId);
+                    }
                 }
+                destinationNodes[nameId].add(child);
+            }
+        }
+
+        /**
+         * @return the destination nodes of a name, or null if the destination did not have the name
+         */
+        IntList get(int nameId) {
+            return nameId < destinationNodes.length ? destinationNodes[nameId] : null;
+        }
+
+        int nextSourceOrdinal(int nameId) {
+            ensureCapacity(nameId);
+            if (sourceCounts[nameId] == 0 && destinationNodes[nameId] == null) {
+                used.add(nameId);
+            }
+            return sourceCounts[nameId]++;
+        }
+
+        void clear() {
+            for (int i = 0; i < used.size(); i++) {
+                int nameId = used.get(i);
+                if (destinationNodes[nameId] != null) {
+                    destinationNodes[nameId].clear();
+                    free.add(destinationNodes[nameId]);
+                    destinationNodes[nameId] = null;
+                }
+                sourceCounts[nameId] = 0;
+            }
+            used.clear();
+        }
+
+        private void ensureCapacity(int nameId) {
+            if (nameId >= destinationNodes.length) {
+                int capacity = Math.max(nameId + 1, destinationNodes.length * 2);
+                destinationNodes = Arrays.copyOf(destinationNodes, capacity);
+                sourceCounts = Arrays.copyOf(sourceCounts, capacity);
             }
         }
-        return childNode;
     }
 
 }
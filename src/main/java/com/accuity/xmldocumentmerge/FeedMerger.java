@@ -0,0 +1,353 @@
+package com.accuity.xmldocumentmerge;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.xpath.XPathExpressionException;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Merges feeds: documents whose document element lists one record element per entity, such as
+ * {@code <entities><entity id="...">...</entity>...</entities>}. Each source is a feed; records of different feeds
+ * with the same key are joined, merged with the rules like the source documents of a single entity, and the merged
+ * records are written to one output feed.
+ * <p>
+ * The key of a record is the value of the first node the key path selects from the record element: the value of an
+ * attribute, or the text content of an element. Feeds are read record by record, in lockstep, and joined on the
+ * smallest key, so each feed must list its records in ascending key order, by {@link String#compareTo}, with no
+ * key repeated. Memory then only depends on the size of a record, not on the size of the feeds.
+ * <p>
+ * Unsorted feeds are merged by an external sort: the records are sorted by key in runs of bounded size, spilled to
+ * temporary files, and the runs of all feeds are merged into groups of records with the same key. At most
+ * {@link FeedSorter#DEFAULT_MAX_FAN_IN} runs are read at once, more runs are first merged in intermediate passes, so
+ * memory is bounded by the size of a run times that fan-in, not by the size of the feeds, see {@link FeedSorter}.
+ * <p>
+ * A FeedMerger is immutable and can be used by several threads, each with its own feeds.
+ */
+public class FeedMerger {
+    private final static Logger LOG = Logger.getLogger(FeedMerger.class.getName());
+
+    static final long DEFAULT_MAX_RUN_BYTES = 64L * 1024 * 1024;
+
+    private final XmlDocumentMerger xmlDocumentMerger;
+    private final DocumentBuilderPool documentBuilderPool;
+    private final CompiledPath keyPath;
+    private final Path spillDirectory;
+    private final long maxRunBytes;
+
+    /**
+     * @param xmlDocumentMerger merges the records with the same key
+     * @param keyPath           the path of the key, relative to the record element, for example {@code @id}
+     * @throws IllegalArgumentException if the key path is invalid
+     */
+    public FeedMerger(XmlDocumentMerger xmlDocumentMerger, String keyPath) {
+        this(xmlDocumentMerger, new DocumentBuilderPool(), keyPath);
+    }
+
+    /**
+     * @param xmlDocumentMerger   merges the records with the same key
+     * @param documentBuilderPool creates the documents the records are read into
+     * @param keyPath             the path of the key, relative to the record element, for example {@code @id}
+     * @throws IllegalArgumentException if the key path is invalid
+     */
+    public FeedMerger(XmlDocumentMerger xmlDocumentMerger, DocumentBuilderPool documentBuilderPool, String keyPath) {
+        this(xmlDocumentMerger, documentBuilderPool, keyPath, Paths.get(System.getProperty("java.io.tmpdir")), DEFAULT_MAX_RUN_BYTES);
+    }
+
+    /**
+     * @param xmlDocumentMerger   merges the records with the same key
+     * @param documentBuilderPool creates the documents the records are read into
+     * @param keyPath             the path of the key, relative to the record element, for example {@code @id}
+     * @param spillDirectory      the directory the sorted runs of unsorted feeds are written to
+     * @param maxRunBytes         the approximate heap the records of a run may take before the run is spilled
+     * @throws IllegalArgumentException if the key path is invalid or maxRunBytes is less than 1
+     */
+    public FeedMerger(XmlDocumentMerger xmlDocumentMerger, DocumentBuilderPool documentBuilderPool, String keyPath,
+                      Path spillDirectory, long maxRunBytes) {
+        if (maxRunBytes < 1) {
+            throw new IllegalArgumentException("maxRunBytes must be at least 1");
+        }
+        this.spillDirectory = spillDirectory;
+        this.maxRunBytes = maxRunBytes;
+        this.xmlDocumentMerger = xmlDocumentMerger;
+        this.documentBuilderPool = documentBuilderPool;
+        try {
+            this.keyPath = new MergePlanCompiler().compile(keyPath);
+        } catch (XPathExpressionException e) {
+            throw new IllegalArgumentException("invalid key path " + keyPath, e);
+        }
+    }
+
+    /**
+     * Merges feeds sorted by key and writes the output feed. Its document element has the name of the document element
+     * of the first feed. The readers are read up to the end of their document element; neither readers nor writer are
+     * closed.
+     *
+     * @param mergePlan   The compiled rules
+     * @param sourceFeeds the feeds to join, keyed by the source names used in the rules. Each reader must be
+     *                    positioned at or before its document element.
+     * @param writer      receives the output feed
+     * @return the number of records written
+     * @throws IllegalArgumentException if there are no feeds, a feed is not sorted by key or a record has no key
+     * @throws XMLStreamException       if a feed can not be read or the output can not be written
+     */
+    public long mergeFeeds(MergePlan mergePlan, Map<String, XMLStreamReader> sourceFeeds, XMLStreamWriter writer) throws XMLStreamException {
+        try {
+            return merge(mergePlan, sourceFeeds, writer, true);
+        } catch (IOException e) {
+            // only the external sort of unsorted feeds does file io
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Merges feeds in any order and writes the output feed, see {@link #mergeFeeds}. The records are first sorted by
+     * key in runs of maxRunBytes spilled to the spill directory, then the runs of all feeds are merged, so the feeds
+     * can be larger than the heap. The output lists the merged records in key order.
+     *
+     * @throws IllegalArgumentException if there are no feeds, a feed has several records with the same key or a record
+     *                                  has no key
+     * @throws XMLStreamException       if a feed can not be read or the output can not be written
+     * @throws IOException              if a run can not be written or read
+     */
+    public long mergeUnsortedFeeds(MergePlan mergePlan, Map<String, XMLStreamReader> sourceFeeds, XMLStreamWriter writer) throws XMLStreamException, IOException {
+        return merge(mergePlan, sourceFeeds, writer, false);
+    }
+
+    /**
+     * reads feed files sorted by key and writes the output feed as UTF-8, see {@link #mergeFeeds}
+     *
+     * @param mergePlan   The compiled rules
+     * @param sourceFeeds the feeds to join, keyed by the source names used in the rules
+     * @param outputFeed  the file the output feed is written to
+     * @return the number of records written
+     * @throws IllegalArgumentException if a feed is not sorted by key or a record has no key
+     * @throws RuntimeException         if a feed can not be read or the output can not be written
+     */
+    public long mergeFiles(MergePlan mergePlan, Map<String, Path> sourceFeeds, Path outputFeed) {
+        return mergeFiles(mergePlan, sourceFeeds, outputFeed, true);
+    }
+
+    /**
+     * reads feed files in any order and writes the output feed as UTF-8, see {@link #mergeUnsortedFeeds}
+     *
+     * @throws IllegalArgumentException if a feed has several records with the same key or a record has no key
+     * @throws RuntimeException         if a feed or a run can not be read or written
+     */
+    public long mergeUnsortedFiles(MergePlan mergePlan, Map<String, Path> sourceFeeds, Path outputFeed) {
+        return mergeFiles(mergePlan, sourceFeeds, outputFeed, false);
+    }
+
+    private long mergeFiles(MergePlan mergePlan, Map<String, Path> sourceFeeds, Path outputFeed, boolean sorted) {
+        XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        List<Closeable> resources = new ArrayList<>();
+        Map<String, XMLStreamReader> readers = new LinkedHashMap<>();
+        try {
+            for (Map.Entry<String, Path> sourceFeed : sourceFeeds.entrySet()) {
+                InputStream inputStream = Files.newInputStream(sourceFeed.getValue());
+                resources.add(inputStream);
+                readers.put(sourceFeed.getKey(), inputFactory.createXMLStreamReader(inputStream));
+            }
+            OutputStream outputStream = new BufferedOutputStream(Files.newOutputStream(outputFeed));
+            resources.add(outputStream);
+            XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(outputStream, "UTF-8");
+            long written = merge(mergePlan, readers, writer, sorted);
+            writer.close();
+            return written;
+        } catch (IOException | XMLStreamException e) {
+            throw new RuntimeException("error merging feeds into " + outputFeed, e);
+        } finally {
+            for (XMLStreamReader reader : readers.values()) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                    LOG.fine("error closing feed reader: " + e.getMessage());
+                }
+            }
+            for (Closeable resource : resources) {
+                try {
+                    resource.close();
+                } catch (IOException e) {
+                    LOG.warning("error closing feed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private long merge(MergePlan mergePlan, Map<String, XMLStreamReader> sourceFeeds, XMLStreamWriter writer, boolean sorted) throws XMLStreamException, IOException {
+        if (sourceFeeds.isEmpty()) {
+            throw new IllegalArgumentException("no source feeds");
+        }
+        List<FeedReader> feeds = new ArrayList<>();
+        for (Map.Entry<String, XMLStreamReader> sourceFeed : sourceFeeds.entrySet()) {
+            feeds.add(new FeedReader(sourceFeed.getKey(), sourceFeed.getValue(), keyPath, documentBuilderPool));
+        }
+
+        writer.writeStartDocument();
+        FeedReader first = feeds.get(0);
+        writeStartElement(writer, first.getRootPrefix(), first.getRootLocalName(), first.getRootNamespaceURI());
+        if (first.getRootNamespaceURI() != null && !first.getRootNamespaceURI().isEmpty()) {
+            writeNamespace(writer, first.getRootPrefix(), first.getRootNamespaceURI());
+        }
+        long written = sorted ? joinSorted(mergePlan, feeds, writer) : joinUnsorted(mergePlan, feeds, writer);
+        writer.writeEndElement();
+        writer.writeEndDocument();
+        writer.flush();
+        return written;
+    }
+
+    private long joinSorted(MergePlan mergePlan, List<FeedReader> feeds, XMLStreamWriter writer) throws XMLStreamException {
+        for (FeedReader feed : feeds) {
+            feed.next();
+        }
+        long written = 0;
+        long groups = 0;
+        String key;
+        while ((key = smallestKey(feeds)) != null) {
+            Map<String, Document> group = new HashMap<>();
+            for (FeedReader feed : feeds) {
+                if (feed.getRecord() != null && key.equals(feed.getKey())) {
+                    group.put(feed.getSourceName(), feed.getRecord());
+                    advance(feed);
+                }
+            }
+            groups++;
+            if (writeMerged(mergePlan, group, writer)) {
+                written++;
+            }
+        }
+        LOG.fine("merged " + groups + " keys of " + feeds.size() + " feeds into " + written + " records");
+        return written;
+    }
+
+    private long joinUnsorted(MergePlan mergePlan, List<FeedReader> feeds, XMLStreamWriter writer) throws XMLStreamException, IOException {
+        try (FeedSorter feedSorter = new FeedSorter(spillDirectory, maxRunBytes, FeedSorter.DEFAULT_MAX_FAN_IN, documentBuilderPool)) {
+            for (FeedReader feed : feeds) {
+                feedSorter.addFeed(feed);
+            }
+            long written = 0;
+            long groups = 0;
+            while (feedSorter.nextGroup()) {
+                groups++;
+                if (writeMerged(mergePlan, feedSorter.getGroup(), writer)) {
+                    written++;
+                }
+            }
+            LOG.fine("merged " + groups + " keys of " + feeds.size() + " feeds, sorted in " + feedSorter.getRunCount()
+                    + " runs, into " + written + " records");
+            return written;
+        }
+    }
+
+    private boolean writeMerged(MergePlan mergePlan, Map<String, Document> group, XMLStreamWriter writer) throws XMLStreamException {
+        Document trustedDocument = xmlDocumentMerger.mergeDocuments(mergePlan, group);
+        if (trustedDocument == null) {
+            return false;
+        }
+        writeNode(writer, trustedDocument.getDocumentElement());
+        return true;
+    }
+
+    private static String smallestKey(List<FeedReader> feeds) {
+        String key = null;
+        for (FeedReader feed : feeds) {
+            if (feed.getRecord() != null && (key == null || feed.getKey().compareTo(key) < 0)) {
+                key = feed.getKey();
+            }
+        }
+        return key;
+    }
+
+    private static void advance(FeedReader feed) throws XMLStreamException {
+        String previousKey = feed.getKey();
+        if (feed.next() && feed.getKey().compareTo(previousKey) <= 0) {
+            throw new IllegalArgumentException("feed " + feed.getSourceName() + " is not sorted by key: " + feed.getKey()
+                    + " follows " + previousKey + " at record " + feed.getRecordCount());
+        }
+    }
+
+    /**
+     * writes a node and its descendants. Namespaces are written as they are declared in the node
+     */
+    static void writeNode(XMLStreamWriter writer, Node node) throws XMLStreamException {
+        switch (node.getNodeType()) {
+            case Node.ELEMENT_NODE:
+                writeStartElement(writer, node.getPrefix(), localName(node), node.getNamespaceURI());
+                NamedNodeMap attributes = node.getAttributes();
+                for (int i = 0; i < attributes.getLength(); i++) {
+                    Attr attribute = (Attr) attributes.item(i);
+                    if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attribute.getNamespaceURI())) {
+                        String prefix = XMLConstants.XMLNS_ATTRIBUTE.equals(attribute.getNodeName()) ? null : attribute.getLocalName();
+                        writeNamespace(writer, prefix, attribute.getValue());
+                    } else if (attribute.getNamespaceURI() == null) {
+                        writer.writeAttribute(attribute.getNodeName(), attribute.getValue());
+                    } else {
+                        writer.writeAttribute(attribute.getPrefix() != null ? attribute.getPrefix() : "", attribute.getNamespaceURI(),
+                                attribute.getLocalName(), attribute.getValue());
+                    }
+                }
+                for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+                    writeNode(writer, child);
+                }
+                writer.writeEndElement();
+                break;
+            case Node.TEXT_NODE:
+                writer.writeCharacters(node.getNodeValue());
+                break;
+            case Node.CDATA_SECTION_NODE:
+                writer.writeCData(node.getNodeValue());
+                break;
+            case Node.COMMENT_NODE:
+                writer.writeComment(node.getNodeValue());
+                break;
+            case Node.PROCESSING_INSTRUCTION_NODE:
+                writer.writeProcessingInstruction(node.getNodeName(), node.getNodeValue());
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static void writeStartElement(XMLStreamWriter writer, String prefix, String localName, String namespaceURI) throws XMLStreamException {
+        if (namespaceURI == null || namespaceURI.isEmpty()) {
+            writer.writeStartElement(localName);
+        } else {
+            writer.writeStartElement(prefix != null ? prefix : "", localName, namespaceURI);
+        }
+    }
+
+    private static void writeNamespace(XMLStreamWriter writer, String prefix, String namespaceURI) throws XMLStreamException {
+        if (prefix == null || prefix.isEmpty()) {
+            writer.writeDefaultNamespace(namespaceURI);
+        } else {
+            writer.writeNamespace(prefix, namespaceURI);
+        }
+    }
+
+    private static String localName(Node node) {
+        // nodes of documents parsed without namespaces only have a node name
+        return node.getLocalName() != null ? node.getLocalName() : node.getNodeName();
+    }
+}
@@ -0,0 +1,221 @@
+package com.accuity.xmldocumentmerge;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.xpath.XPathExpressionException;
+
+/**
+ * Reads a feed, a document whose document element lists one record element per entity, one record at a time. Each
+ * record is copied into a document of its own, so that the rules can be run on it like on a single source document,
+ * and its key is evaluated on the record element.
+ * <p>
+ * Only the current record is held in memory. Namespaces declared outside a record are declared again on the record
+ * elements that use them.
+ */
+final class FeedReader {
+
+    private final String sourceName;
+    private final XMLStreamReader reader;
+    private final CompiledPath keyPath;
+    private final DocumentBuilderPool documentBuilderPool;
+    private final String rootNamespaceURI;
+    private final String rootPrefix;
+    private final String rootLocalName;
+    private Document record;
+    private String key;
+    private long recordCount;
+    private boolean done;
+
+    /**
+     * @param reader positioned at or before the document element of the feed
+     * @throws IllegalArgumentException if the feed has no document element
+     */
+    FeedReader(String sourceName, XMLStreamReader reader, CompiledPath keyPath, DocumentBuilderPool documentBuilderPool) throws XMLStreamException {
+        this.sourceName = sourceName;
+        this.reader = reader;
+        this.keyPath = keyPath;
+        this.documentBuilderPool = documentBuilderPool;
+        while (reader.getEventType() != XMLStreamConstants.START_ELEMENT) {
+            if (!reader.hasNext()) {
+                throw new IllegalArgumentException("feed " + sourceName + " has no document element");
+            }
+            reader.next();
+        }
+        this.rootNamespaceURI = reader.getNamespaceURI();
+        this.rootPrefix = reader.getPrefix();
+        this.rootLocalName = reader.getLocalName();
+    }
+
+    String getSourceName() {
+        return sourceName;
+    }
+
+    String getRootNamespaceURI() {
+        return rootNamespaceURI;
+    }
+
+    String getRootPrefix() {
+        return rootPrefix;
+    }
+
+    String getRootLocalName() {
+        return rootLocalName;
+    }
+
+    /**
+     * reads the next record
+     *
+     * @return false at the end of the feed
+     * @throws IllegalArgumentException if the record has no key
+     */
+    boolean next() throws XMLStreamException {
+        record = null;
+        key = null;
+        while (!done) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                record = copyElement(reader, documentBuilderPool.newDocument());
+                key = evaluateKey(record.getDocumentElement());
+                recordCount++;
+                return true;
+            } else if (event == XMLStreamConstants.END_ELEMENT || event == XMLStreamConstants.END_DOCUMENT) {
+                done = true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the current record, or null before the first and after the last one
+     */
+    Document getRecord() {
+        return record;
+    }
+
+    /**
+     * @return the key of the current record
+     */
+    String getKey() {
+        return key;
+    }
+
+    /**
+     * @return the number of records read so far
+     */
+    long getRecordCount() {
+        return recordCount;
+    }
+
+    private String evaluateKey(Element recordElement) {
+        Node keyNode;
+        try {
+            keyNode = keyPath.evaluateFirstNode(recordElement);
+        } catch (XPathExpressionException e) {
+            throw new IllegalArgumentException("error evaluating key " + keyPath.getExpression() + " on record " + (recordCount + 1) + " of feed " + sourceName, e);
+        }
+        if (keyNode == null) {
+            throw new IllegalArgumentException("record " + (recordCount + 1) + " of feed " + sourceName + " has no key " + keyPath.getExpression());
+        }
+        return keyNode.getNodeType() == Node.ATTRIBUTE_NODE ? keyNode.getNodeValue() : keyNode.getTextContent();
+    }
+
+    /**
+     * copies the element the reader is at into the empty document, leaving the reader at its end tag
+     *
+     * @return the document
+     */
+    static Document copyElement(XMLStreamReader reader, Document document) throws XMLStreamException {
+        Node parent = document;
+        int depth = 0;
+        while (true) {
+            switch (reader.getEventType()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    Element element = copyStartTag(reader, document, parent);
+                    parent = element;
+                    depth++;
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    parent = parent.getParentNode();
+                    depth--;
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.SPACE:
+                    parent.appendChild(document.createTextNode(reader.getText()));
+                    break;
+                case XMLStreamConstants.CDATA:
+                    parent.appendChild(document.createCDATASection(reader.getText()));
+                    break;
+                case XMLStreamConstants.COMMENT:
+                    parent.appendChild(document.createComment(reader.getText()));
+                    break;
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                    parent.appendChild(document.createProcessingInstruction(reader.getPITarget(), reader.getPIData()));
+                    break;
+                default:
+                    break;
+            }
+            if (depth == 0) {
+                return document;
+            }
+            reader.next();
+        }
+    }
+
+    /**
+     * appends a copy of the start tag the reader is at to the parent: the element, its attributes and the namespaces
+     * it uses that the parent does not declare. Like the documents of the {@link DocumentBuilderPool}, the copy is
+     * built without namespaces: names are qualified names and namespace declarations are plain attributes, so the
+     * rule paths match the record like they match a parsed source document
+     */
+    static Element copyStartTag(XMLStreamReader reader, Document document, Node parent) {
+        Element element = document.createElement(qualifiedName(reader.getPrefix(), reader.getLocalName()));
+        parent.appendChild(element);
+        for (int i = 0; i < reader.getNamespaceCount(); i++) {
+            element.setAttribute(namespaceAttribute(reader.getNamespacePrefix(i)), nullToEmpty(reader.getNamespaceURI(i)));
+        }
+        declareIfMissing(element, reader.getPrefix(), reader.getNamespaceURI());
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            String prefix = reader.getAttributePrefix(i);
+            if (prefix != null && !prefix.isEmpty() && !XMLConstants.XML_NS_PREFIX.equals(prefix)) {
+                declareIfMissing(element, prefix, reader.getAttributeNamespace(i));
+            }
+            element.setAttribute(qualifiedName(prefix, reader.getAttributeLocalName(i)), reader.getAttributeValue(i));
+        }
+        return element;
+    }
+
+    /**
+     * declares a namespace used by the element if neither the element nor its ancestors in the record declare it
+     */
+    private static void declareIfMissing(Element element, String prefix, String namespaceURI) {
+        String name = namespaceAttribute(prefix);
+        String declared = "";
+        for (Node node = element; node instanceof Element; node = node.getParentNode()) {
+            if (((Element) node).hasAttribute(name)) {
+                declared = ((Element) node).getAttribute(name);
+                break;
+            }
+        }
+        if (!declared.equals(nullToEmpty(namespaceURI))) {
+            element.setAttribute(name, nullToEmpty(namespaceURI));
+        }
+    }
+
+    private static String namespaceAttribute(String prefix) {
+        return prefix == null || prefix.isEmpty() ? XMLConstants.XMLNS_ATTRIBUTE : XMLConstants.XMLNS_ATTRIBUTE + ":" + prefix;
+    }
+
+    static String qualifiedName(String prefix, String localName) {
+        return prefix == null || prefix.isEmpty() ? localName : prefix + ":" + localName;
+    }
+
+    private static String nullToEmpty(String value) {
+        return value == null ? "" : value;
+    }
+}
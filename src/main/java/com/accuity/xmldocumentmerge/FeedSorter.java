@@ -0,0 +1,351 @@
+package com.accuity.xmldocumentmerge;
+
+import org.w3c.dom.Document;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.logging.Logger;
+
+/**
+ * Sorts the records of unsorted feeds by key, in bounded memory, and returns them grouped by key across all feeds.
+ * <p>
+ * The records of each feed are read into a run until the run holds maxRunBytes; the run is then sorted and spilled to
+ * a temporary file, one frame per record: the length and UTF-8 bytes of the key, the index of the feed, then the length
+ * and UTF-8 bytes of the record element. Once all feeds are added, the runs of all feeds are merged, keeping one record
+ * and one read buffer per run in memory. At most maxFanIn runs are merged at once: while there are more, the oldest
+ * maxFanIn runs are merged into a new run in an intermediate pass. The runs are deleted on {@link #close()}.
+ * <p>
+ * A FeedSorter is used by one thread.
+ */
+final class FeedSorter implements Closeable {
+    private final static Logger LOG = Logger.getLogger(FeedSorter.class.getName());
+
+    // the approximate heap taken by a record in a run besides its bytes: key string, array headers and list slot
+    static final int RECORD_OVERHEAD = 96;
+    static final int DEFAULT_MAX_FAN_IN = 64;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int END_OF_RUN = -1;
+
+    private static final Comparator<SortedRecord> BY_KEY = new Comparator<SortedRecord>() {
+        @Override
+        public int compare(SortedRecord r1, SortedRecord r2) {
+            return r1.key.compareTo(r2.key);
+        }
+    };
+
+    private static final Comparator<RunReader> BY_KEY_AND_SOURCE = new Comparator<RunReader>() {
+        @Override
+        public int compare(RunReader r1, RunReader r2) {
+            int byKey = r1.key.compareTo(r2.key);
+            return byKey != 0 ? byKey : Integer.compare(r1.sourceIndex, r2.sourceIndex);
+        }
+    };
+
+    private final Path spillDirectory;
+    private final long maxRunBytes;
+    private final int maxFanIn;
+    private final DocumentBuilderPool documentBuilderPool;
+    private final XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+    private final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+    private final List<String> sourceNames = new ArrayList<>();
+    private final Deque<Path> runFiles = new ArrayDeque<>();
+    private final List<RunReader> runReaders = new ArrayList<>();
+    private PriorityQueue<RunReader> merge;
+    private String groupKey;
+    private Map<String, Document> group;
+    private long recordCount;
+    private int spilledRunCount;
+
+    /**
+     * @param spillDirectory      the directory the runs are written to
+     * @param maxRunBytes         the approximate heap a run may take before it is spilled
+     * @param maxFanIn            the number of runs merged at once
+     * @param documentBuilderPool creates the documents of the records of a group
+     */
+    FeedSorter(Path spillDirectory, long maxRunBytes, int maxFanIn, DocumentBuilderPool documentBuilderPool) {
+        if (maxRunBytes < 1) {
+            throw new IllegalArgumentException("maxRunBytes must be at least 1");
+        }
+        if (maxFanIn < 2) {
+            throw new IllegalArgumentException("maxFanIn must be at least 2");
+        }
+        this.spillDirectory = spillDirectory;
+        this.maxRunBytes = maxRunBytes;
+        this.maxFanIn = maxFanIn;
+        this.documentBuilderPool = documentBuilderPool;
+        this.inputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+    }
+
+    /**
+     * reads all records of the feed and spills them in sorted runs
+     */
+    void addFeed(FeedReader feed) throws XMLStreamException, IOException {
+        if (merge != null) {
+            throw new IllegalStateException("feeds can not be added once the groups are read");
+        }
+        int sourceIndex = sourceNames.size();
+        sourceNames.add(feed.getSourceName());
+        List<SortedRecord> run = new ArrayList<>();
+        long runBytes = 0;
+        while (feed.next()) {
+            SortedRecord record = new SortedRecord(feed.getKey(), serialize(feed.getRecord()));
+            run.add(record);
+            runBytes += record.key.length() * 2 + record.bytes.length + RECORD_OVERHEAD;
+            if (runBytes >= maxRunBytes) {
+                spill(run, sourceIndex);
+                run.clear();
+                runBytes = 0;
+            }
+        }
+        if (!run.isEmpty()) {
+            spill(run, sourceIndex);
+        }
+        recordCount += feed.getRecordCount();
+    }
+
+    /**
+     * reads the records with the next smallest key
+     *
+     * @return false once all records are read
+     * @throws IllegalArgumentException if a feed has several records with the same key
+     */
+    boolean nextGroup() throws IOException {
+        if (merge == null) {
+            while (runFiles.size() > maxFanIn) {
+                List<Path> pass = new ArrayList<>();
+                for (int i = 0; i < maxFanIn; i++) {
+                    pass.add(runFiles.poll());
+                }
+                runFiles.add(mergeRuns(pass));
+            }
+            merge = new PriorityQueue<>(Math.max(1, runFiles.size()), BY_KEY_AND_SOURCE);
+            openRuns(runFiles, runReaders, merge);
+            LOG.fine("merging " + runReaders.size() + " runs of " + recordCount + " records from " + sourceNames.size() + " feeds");
+        }
+        if (merge.isEmpty()) {
+            groupKey = null;
+            group = null;
+            return false;
+        }
+        groupKey = merge.peek().key;
+        group = new HashMap<>();
+        while (!merge.isEmpty() && merge.peek().key.equals(groupKey)) {
+            RunReader runReader = merge.poll();
+            String sourceName = sourceNames.get(runReader.sourceIndex);
+            if (group.containsKey(sourceName)) {
+                throw new IllegalArgumentException("feed " + sourceName + " has more than one record with key " + groupKey);
+            }
+            group.put(sourceName, parse(runReader.bytes));
+            if (runReader.next()) {
+                merge.add(runReader);
+            }
+        }
+        return true;
+    }
+
+    String getGroupKey() {
+        return groupKey;
+    }
+
+    /**
+     * @return the records of the current group, keyed by source name
+     */
+    Map<String, Document> getGroup() {
+        return group;
+    }
+
+    /**
+     * @return the number of runs spilled from the feeds, not counting the runs of intermediate passes
+     */
+    int getRunCount() {
+        return spilledRunCount;
+    }
+
+    /**
+     * @return the number of runs left to merge, at most maxFanIn once the groups are read
+     */
+    int getOpenRunCount() {
+        return runFiles.size();
+    }
+
+    /**
+     * closes and deletes the runs
+     */
+    @Override
+    public void close() {
+        for (RunReader runReader : runReaders) {
+            try {
+                runReader.input.close();
+            } catch (IOException e) {
+                LOG.fine("error closing run: " + e.getMessage());
+            }
+        }
+        for (Path runFile : runFiles) {
+            try {
+                Files.deleteIfExists(runFile);
+            } catch (IOException e) {
+                LOG.warning("error deleting run " + runFile + ": " + e.getMessage());
+            }
+        }
+        runReaders.clear();
+        runFiles.clear();
+    }
+
+    private void spill(List<SortedRecord> run, int sourceIndex) throws IOException {
+        Collections.sort(run, BY_KEY);
+        Path runFile = Files.createTempFile(spillDirectory, "feed-run-", ".bin");
+        runFiles.add(runFile);
+        spilledRunCount++;
+        try (DataOutputStream output = newRun(runFile)) {
+            for (SortedRecord record : run) {
+                writeFrame(output, record.key, sourceIndex, record.bytes);
+            }
+            output.writeInt(END_OF_RUN);
+        }
+        LOG.fine("spilled " + run.size() + " records of feed " + sourceNames.get(sourceIndex) + " to " + runFile);
+    }
+
+    /**
+     * merges the runs into a new run, deleting them
+     */
+    private Path mergeRuns(List<Path> runs) throws IOException {
+        Path runFile = Files.createTempFile(spillDirectory, "feed-run-", ".bin");
+        List<RunReader> readers = new ArrayList<>();
+        PriorityQueue<RunReader> pass = new PriorityQueue<>(runs.size(), BY_KEY_AND_SOURCE);
+        try (DataOutputStream output = newRun(runFile)) {
+            openRuns(runs, readers, pass);
+            while (!pass.isEmpty()) {
+                RunReader runReader = pass.poll();
+                writeFrame(output, runReader.key, runReader.sourceIndex, runReader.bytes);
+                if (runReader.next()) {
+                    pass.add(runReader);
+                }
+            }
+            output.writeInt(END_OF_RUN);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(runFile);
+            throw e;
+        } finally {
+            for (RunReader runReader : readers) {
+                runReader.input.close();
+            }
+            for (Path run : runs) {
+                Files.deleteIfExists(run);
+            }
+        }
+        LOG.fine("merged " + runs.size() + " runs into " + runFile);
+        return runFile;
+    }
+
+    /**
+     * opens the runs, adding their readers to the readers and, if not empty, to the queue
+     */
+    private static void openRuns(Iterable<Path> runs, List<RunReader> readers, PriorityQueue<RunReader> queue) throws IOException {
+        for (Path run : runs) {
+            RunReader runReader = new RunReader(new DataInputStream(new BufferedInputStream(Files.newInputStream(run), BUFFER_SIZE)));
+            readers.add(runReader);
+            if (runReader.next()) {
+                queue.add(runReader);
+            }
+        }
+    }
+
+    private static DataOutputStream newRun(Path runFile) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(runFile), BUFFER_SIZE));
+    }
+
+    private static void writeFrame(DataOutputStream output, String key, int sourceIndex, byte[] record) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(keyBytes.length);
+        output.write(keyBytes);
+        output.writeInt(sourceIndex);
+        output.writeInt(record.length);
+        output.write(record);
+    }
+
+    private byte[] serialize(Document record) throws XMLStreamException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        XMLStreamWriter writer = outputFactory.createXMLStreamWriter(bytes, "UTF-8");
+        FeedMerger.writeNode(writer, record.getDocumentElement());
+        writer.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * reads a spilled record back the way {@link FeedReader} reads it from the feed, so that both joins merge the same
+     * documents
+     */
+    private Document parse(byte[] record) {
+        try {
+            XMLStreamReader reader = inputFactory.createXMLStreamReader(new ByteArrayInputStream(record));
+            try {
+                reader.nextTag();
+                return FeedReader.copyElement(reader, documentBuilderPool.newDocument());
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new RuntimeException("error reading spilled record", e);
+        }
+    }
+
+    private static final class SortedRecord {
+        private final String key;
+        private final byte[] bytes;
+
+        SortedRecord(String key, byte[] bytes) {
+            this.key = key;
+            this.bytes = bytes;
+        }
+    }
+
+    private static final class RunReader {
+        private final DataInputStream input;
+        private String key;
+        private int sourceIndex;
+        private byte[] bytes;
+
+        RunReader(DataInputStream input) {
+            this.input = input;
+        }
+
+        boolean next() throws IOException {
+            int keyLength = input.readInt();
+            if (keyLength == END_OF_RUN) {
+                key = null;
+                bytes = null;
+                return false;
+            }
+            byte[] keyBytes = new byte[keyLength];
+            input.readFully(keyBytes);
+            key = new String(keyBytes, StandardCharsets.UTF_8);
+            sourceIndex = input.readInt();
+            bytes = new byte[input.readInt()];
+            input.readFully(bytes);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.accuity.xmldocumentmerge;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The outcome of a merge by an {@link IncrementalMerger}: the trusted document, and what the next
+ * {@link IncrementalMerger#remerge remerge} of the same entity needs.
+ * <p>
+ * A state holds DOM documents, so it must only be used by one thread at a time. Remerging does not change it.
+ */
+public final class IncrementalMergeState {
+
+    private final MergePlan mergePlan;
+    private final Map<String, Document> sourceDocuments;
+    private final Document trustedDocument;
+    private final Map<CompiledRule, List<Node>> retainedImports;
+    private final int recomputedRules;
+    private final int replayedRules;
+
+    IncrementalMergeState(MergePlan mergePlan, Map<String, Document> sourceDocuments, Document trustedDocument,
+                          Map<CompiledRule, List<Node>> retainedImports, int recomputedRules, int replayedRules) {
+        this.mergePlan = mergePlan;
+        this.sourceDocuments = sourceDocuments;
+        this.trustedDocument = trustedDocument;
+        this.retainedImports = retainedImports;
+        this.recomputedRules = recomputedRules;
+        this.replayedRules = replayedRules;
+    }
+
+    public MergePlan getMergePlan() {
+        return mergePlan;
+    }
+
+    /**
+     * @return the source documents that were merged, unmodifiable
+     */
+    public Map<String, Document> getSourceDocuments() {
+        return sourceDocuments;
+    }
+
+    /**
+     * @return the combined document, or null if the merge generated an empty document
+     */
+    public Document getTrustedDocument() {
+        return trustedDocument;
+    }
+
+    /**
+     * @return the number of rules that evaluated their sources in this merge
+     */
+    public int getRecomputedRules() {
+        return recomputedRules;
+    }
+
+    /**
+     * @return the number of rules that replayed the nodes they imported in the previous merge
+     */
+    public int getReplayedRules() {
+        return replayedRules;
+    }
+
+    Map<CompiledRule, List<Node>> getRetainedImports() {
+        return retainedImports;
+    }
+}
@@ -0,0 +1,104 @@
+package com.accuity.xmldocumentmerge;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Merges an entity again when one of its source documents changes, recomputing only the rules that trust that source.
+ * <p>
+ * Every merge retains, for each rule, a copy of the nodes the rule imported from its sources. A {@link #remerge} then
+ * replays the imports of the rules that do not trust the changed source, and evaluates only the rules that do. Child
+ * rules of a recomputed rule run again on the new nodes, replaying their own imports when they can. The trusted
+ * document is the same as the one of a full merge of the new sources; with verify set, every remerge checks that
+ * against a full merge.
+ * <p>
+ * The retained imports take about as much heap as the trusted document itself.
+ */
+public class IncrementalMerger {
+    private final static Logger LOG = Logger.getLogger(IncrementalMerger.class.getName());
+
+    private final DocumentBuilderPool documentBuilderPool;
+    private final boolean verify;
+
+    public IncrementalMerger() {
+        this(new DocumentBuilderPool(), false);
+    }
+
+    /**
+     * @param documentBuilderPool creates the trusted documents and the documents holding the retained imports
+     * @param verify              compare every remerge with a full merge, and throw an IllegalStateException if they differ
+     */
+    public IncrementalMerger(DocumentBuilderPool documentBuilderPool, boolean verify) {
+        this.documentBuilderPool = documentBuilderPool;
+        this.verify = verify;
+    }
+
+    /**
+     * merges all sources, retaining what a later remerge needs
+     *
+     * @param mergePlan       The compiled rules, see {@link MergePlanCompiler}
+     * @param sourceDocuments a map of documents to combine. The keys are the source names used in the rules
+     */
+    public IncrementalMergeState merge(MergePlan mergePlan, Map<String, Document> sourceDocuments) {
+        return merge(mergePlan, new HashMap<>(sourceDocuments), Collections.<CompiledRule, List<Node>>emptyMap(), null);
+    }
+
+    /**
+     * merges the sources of a previous merge again, after one of them changed
+     *
+     * @param previousState   the state of the previous merge of the entity
+     * @param changedSource   the name of the source that changed
+     * @param changedDocument the new document of the source, or null if the entity no longer has one
+     * @return the state of this merge. The previous state is not changed
+     * @throws IllegalStateException with verify set, if the trusted document differs from the one of a full merge
+     */
+    public IncrementalMergeState remerge(IncrementalMergeState previousState, String changedSource, Document changedDocument) {
+        Map<String, Document> sourceDocuments = new HashMap<>(previousState.getSourceDocuments());
+        if (changedDocument != null) {
+            sourceDocuments.put(changedSource, changedDocument);
+        } else {
+            sourceDocuments.remove(changedSource);
+        }
+        IncrementalMergeState state = merge(previousState.getMergePlan(), sourceDocuments, previousState.getRetainedImports(), changedSource);
+        LOG.fine("remerged after a change of " + changedSource + ": " + state.getRecomputedRules() + " rules recomputed, "
+                + state.getReplayedRules() + " replayed");
+        if (verify) {
+            verify(state);
+        }
+        return state;
+    }
+
+    private IncrementalMergeState merge(MergePlan mergePlan, Map<String, Document> sourceDocuments,
+                                        Map<CompiledRule, List<Node>> previousImports, String changedSource) {
+        if (mergePlan.getRootRule() == null) {
+            LOG.warning("missing docroot rule");
+            return new IncrementalMergeState(mergePlan, Collections.unmodifiableMap(sourceDocuments), null,
+                    Collections.<CompiledRule, List<Node>>emptyMap(), 0, 0);
+        }
+        IncrementalRuleProcessor ruleProcessor = new IncrementalRuleProcessor(previousImports, changedSource, documentBuilderPool.newDocument());
+        Document trustedDocument = ruleProcessor.processRule(mergePlan.getRootRule(), documentBuilderPool.newDocument(), sourceDocuments);
+        if (trustedDocument.getDocumentElement() == null) {
+            LOG.info("Trust Generator generated an empty document");
+            trustedDocument = null;
+        }
+        return new IncrementalMergeState(mergePlan, Collections.unmodifiableMap(sourceDocuments), trustedDocument,
+                ruleProcessor.getRetainedImports(), ruleProcessor.getRecomputedRules(), ruleProcessor.getReplayedRules());
+    }
+
+    private void verify(IncrementalMergeState state) {
+        Document expected = new XmlDocumentMerger(new RuleProcessor(), MergeMetrics.DISABLED, documentBuilderPool)
+                .mergeDocuments(state.getMergePlan(), state.getSourceDocuments());
+        Document actual = state.getTrustedDocument();
+        boolean same = expected == null ? actual == null
+                : actual != null && expected.getDocumentElement().isEqualNode(actual.getDocumentElement());
+        if (!same) {
+            throw new IllegalStateException("incremental merge differs from a full merge of the same sources");
+        }
+    }
+}
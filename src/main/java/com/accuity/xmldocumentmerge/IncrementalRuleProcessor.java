@@ -0,0 +1,120 @@
+package com.accuity.xmldocumentmerge;
+
+import com.accuity.xmldocumentmerge.model.Source;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+import javax.xml.xpath.XPathExpressionException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A RuleProcessor for one incremental merge: rules that do not use the changed source replay the nodes they imported in
+ * the previous merge instead of evaluating their sources again.
+ * <p>
+ * A rule removes every match of its path from the trusted document before importing from its sources, and merges only
+ * into the nodes it imports, so what it imports depends on nothing but the documents of its own sources. The removal
+ * and the search for the parent node still run for every rule, since they depend on the rules before it; only the
+ * import is replayed. The imports of every rule are retained, as deep copies taken before its child rules run, for the
+ * next merge.
+ */
+class IncrementalRuleProcessor extends RuleProcessor {
+
+    private final Map<CompiledRule, List<Node>> previousImports;
+    private final String changedSource;
+    private final Map<CompiledRule, List<Node>> retainedImports = new IdentityHashMap<>();
+    private final Document retainedDocument;
+    private int recomputedRules;
+    private int replayedRules;
+
+    /**
+     * @param previousImports the imports retained by the previous merge, empty for a first merge
+     * @param changedSource   the name of the only source that changed since, null to recompute every rule
+     * @param retainedDocument owns the copies of the imports retained by this merge
+     */
+    IncrementalRuleProcessor(Map<CompiledRule, List<Node>> previousImports, String changedSource, Document retainedDocument) {
+        this.previousImports = previousImports;
+        this.changedSource = changedSource;
+        this.retainedDocument = retainedDocument;
+    }
+
+    @Override
+    protected void processDocRoot(CompiledRule compiledRule, Document trustedDocument, Map<String, Document> sourceDocuments, RuleMetrics ruleMetrics) {
+        List<Node> previous = replayable(compiledRule);
+        if (previous != null) {
+            for (Node node : previous) {
+                trustedDocument.appendChild(trustedDocument.importNode(node, true));
+            }
+            retainedImports.put(compiledRule, previous);
+            replayedRules++;
+            return;
+        }
+        super.processDocRoot(compiledRule, trustedDocument, sourceDocuments, ruleMetrics);
+        Node root = trustedDocument.getDocumentElement();
+        retain(compiledRule, root != null ? Collections.singletonList(root) : Collections.<Node>emptyList());
+    }
+
+    @Override
+    protected List<Node> importMatches(CompiledRule compiledRule, Node trustedParentNode, Document trustedDocument,
+                                       Map<String, Document> sourceDocuments, RuleMetrics ruleMetrics) throws XPathExpressionException {
+        List<Node> previous = replayable(compiledRule);
+        if (previous != null) {
+            List<Node> trustedMatches = new ArrayList<>(previous.size());
+            for (Node node : previous) {
+                trustedMatches.add(trustedParentNode.appendChild(trustedDocument.importNode(node, true)));
+            }
+            retainedImports.put(compiledRule, previous);
+            replayedRules++;
+            return trustedMatches;
+        }
+        List<Node> trustedMatches = super.importMatches(compiledRule, trustedParentNode, trustedDocument, sourceDocuments, ruleMetrics);
+        retain(compiledRule, trustedMatches);
+        return trustedMatches;
+    }
+
+    /**
+     * the imports retained by this merge, by rule. Rules that found no parent node have none
+     */
+    Map<CompiledRule, List<Node>> getRetainedImports() {
+        return retainedImports;
+    }
+
+    int getRecomputedRules() {
+        return recomputedRules;
+    }
+
+    int getReplayedRules() {
+        return replayedRules;
+    }
+
+    /**
+     * the previous imports of the rule, or null if it must be recomputed
+     */
+    private List<Node> replayable(CompiledRule compiledRule) {
+        if (changedSource == null || usesSource(compiledRule, changedSource)) {
+            return null;
+        }
+        return previousImports.get(compiledRule);
+    }
+
+    private void retain(CompiledRule compiledRule, List<Node> imports) {
+        List<Node> copies = new ArrayList<>(imports.size());
+        for (Node node : imports) {
+            copies.add(retainedDocument.importNode(node, true));
+        }
+        retainedImports.put(compiledRule, copies);
+        recomputedRules++;
+    }
+
+    private static boolean usesSource(CompiledRule compiledRule, String sourceName) {
+        for (Source source : compiledRule.getSources()) {
+            if (sourceName.equals(source.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,62 @@
+package com.accuity.xmldocumentmerge;
+
+import org.w3c.dom.Node;
+
+import javax.xml.xpath.XPathExpressionException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Builds the keys of the nodes of a coalesce rule from the compiled id paths of its field. The value of an id is the
+ * value of the first node its path selects: the value of an attribute, or the text content of an element. An id path
+ * that selects nothing has the empty value.
+ */
+final class KeyExtractor {
+
+    private final List<CompiledPath> idPaths;
+    private final List<CompactPath> compactIdPaths;
+
+    KeyExtractor(List<CompiledPath> idPaths) {
+        this(idPaths, null);
+    }
+
+    /**
+     * @param compactIdPaths the same paths for {@link CompactSource}s, or null if they are not all supported there
+     */
+    KeyExtractor(List<CompiledPath> idPaths, List<CompactPath> compactIdPaths) {
+        this.idPaths = Collections.unmodifiableList(idPaths);
+        this.compactIdPaths = compactIdPaths != null ? Collections.unmodifiableList(compactIdPaths) : null;
+    }
+
+    List<CompiledPath> getIdPaths() {
+        return idPaths;
+    }
+
+    List<CompactPath> getCompactIdPaths() {
+        return compactIdPaths;
+    }
+
+    CompositeKey extract(Node node) throws XPathExpressionException {
+        String[] values = new String[idPaths.size()];
+        for (int i = 0; i < values.length; i++) {
+            Node keyNode = idPaths.get(i).evaluateFirstNode(node);
+            if (keyNode == null) {
+                values[i] = "";
+            } else if (keyNode.getNodeType() == Node.ATTRIBUTE_NODE) {
+                values[i] = keyNode.getNodeValue();
+            } else {
+                values[i] = keyNode.getTextContent();
+            }
+        }
+        return new CompositeKey(values);
+    }
+
+    CompositeKey extract(CompactSource source, int node) {
+        String[] values = new String[compactIdPaths.size()];
+        for (int i = 0; i < values.length; i++) {
+            String value = compactIdPaths.get(i).selectFirstValue(source, node);
+            values[i] = value == null ? "" : value;
+        }
+        return new CompositeKey(values);
+    }
+}
@@ -0,0 +1,131 @@
+package com.accuity.xmldocumentmerge;
+
+import org.w3c.dom.Document;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Source documents that are loaded the first time a rule needs them. Pass it to the merge in place of a map of parsed
+ * documents: a source no rule trusts, one shadowed by a more trusted source of a stop rule, or one only trusted by
+ * child rules that are never reached, is never loaded. {@link #getUnloadedSources()} tells which ones after the merge.
+ * <p>
+ * Testing whether a source is present does not load it, getting its document does. The merge engines only get the
+ * sources a rule trusts, the {@link ParallelRuleProcessor} too when it copies the sections of the sources. Iterating
+ * over the entries still loads every source.
+ * <p>
+ * A source is loaded at most once, even by concurrent merges, and without waiting for other sources being loaded; an
+ * exception thrown by its supplier is thrown to the rule that needed it, and the source is loaded again the next time.
+ */
+public class LazySourceDocuments extends AbstractMap<String, Document> {
+
+    private final Map<String, Source> sources = new LinkedHashMap<>();
+
+    /**
+     * @param suppliers load the documents to combine. The keys are the source names used in the rules
+     */
+    public LazySourceDocuments(Map<String, Supplier<Document>> suppliers) {
+        for (Entry<String, Supplier<Document>> entry : suppliers.entrySet()) {
+            sources.put(entry.getKey(), new Source(entry.getValue()));
+        }
+    }
+
+    @Override
+    public Document get(Object key) {
+        Source source = sources.get(key);
+        return source != null ? source.get() : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return sources.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return sources.size();
+    }
+
+    /**
+     * @return the names of the sources loaded so far
+     */
+    public Set<String> getLoadedSources() {
+        return Collections.unmodifiableSet(sourceNames(true));
+    }
+
+    /**
+     * @return the names of the sources not loaded so far
+     */
+    public Set<String> getUnloadedSources() {
+        return Collections.unmodifiableSet(sourceNames(false));
+    }
+
+    private Set<String> sourceNames(boolean loaded) {
+        Set<String> names = new LinkedHashSet<>();
+        for (Entry<String, Source> entry : sources.entrySet()) {
+            if (entry.getValue().isLoaded() == loaded) {
+                names.add(entry.getKey());
+            }
+        }
+        return names;
+    }
+
+    @Override
+    public Set<Entry<String, Document>> entrySet() {
+        return new AbstractSet<Entry<String, Document>>() {
+            @Override
+            public Iterator<Entry<String, Document>> iterator() {
+                final Iterator<String> names = sources.keySet().iterator();
+                return new Iterator<Entry<String, Document>>() {
+                    @Override
+                    public boolean hasNext() {
+                        return names.hasNext();
+                    }
+
+                    @Override
+                    public Entry<String, Document> next() {
+                        String name = names.next();
+                        return new SimpleImmutableEntry<>(name, get(name));
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return sources.size();
+            }
+        };
+    }
+
+    /**
+     * a source and its document once loaded, locked on its own so that sources are loaded concurrently
+     */
+    private static class Source {
+        private final Supplier<Document> supplier;
+        private boolean loaded;
+        private Document document;
+
+        Source(Supplier<Document> supplier) {
+            this.supplier = supplier;
+        }
+
+        synchronized Document get() {
+            if (!loaded) {
+                document = supplier.get();
+                loaded = true;
+            }
+            return document;
+        }
+
+        synchronized boolean isLoaded() {
+            return loaded;
+        }
+    }
+}
@@ -0,0 +1,786 @@
+package com.accuity.xmldocumentmerge;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A source document that stays in its file. The file is memory-mapped and indexed in one pass, in the manner of
+ * VTD-XML: every element, text, cdata section, comment and processing instruction is a token with its name id, the
+ * byte offsets of its content and links to its first child and next sibling. No strings or nodes are created while
+ * indexing, only a few int arrays, and attributes are not indexed at all: they are read from the start tag when a path
+ * compares them.
+ * <p>
+ * Rule paths and coalesce ids are evaluated on the index. Only the nodes a rule imports into the trusted
+ * {@link CompactTree} are decoded and copied, so a large source whose content is mostly shadowed by more trusted sources
+ * costs little more than the scan of its bytes.
+ * <p>
+ * The index reads UTF-8 (or ASCII) files and checks that tags are well-formed and balanced. Entities other than the
+ * predefined ones and character references are not supported, so files with an internal DTD subset are rejected;
+ * external DTDs are not read. Files must be smaller than 2 GB. The index can be read by several threads.
+ */
+public final class MappedXmlIndex extends CompactSource {
+
+    private final NamePool namePool;
+    private final ByteBuffer buffer;
+    // the mapped file, or null
+    private final Path file;
+    private final int textNameId;
+    private final int cdataNameId;
+    private final int commentNameId;
+
+    private byte[] kinds;
+    private int[] nameIds;
+    // elements: the offset of the start tag and the offset after the end tag. other tokens: the offsets of their value
+    private int[] starts;
+    private int[] ends;
+    private int[] firstChildren;
+    private int[] nextSiblings;
+    private int size;
+    private int documentElement = CompactTree.NONE;
+    // the attributes and the bytes of the values in the file, how much a copy of the whole document takes
+    private int attributeCount;
+    private int valueBytes;
+
+    // the names of the file by their bytes, so names are interned without decoding them. Read-only once indexed
+    private byte[][] nameBytes = new byte[64][];
+    private int[] nameTableIds = new int[64];
+    private int nameCount;
+
+    MappedXmlIndex(ByteBuffer buffer, NamePool namePool) {
+        this(buffer, null, namePool);
+    }
+
+    private MappedXmlIndex(ByteBuffer buffer, Path file, NamePool namePool) {
+        this.namePool = namePool;
+        this.buffer = buffer;
+        this.file = file;
+        textNameId = namePool.intern("#text");
+        cdataNameId = namePool.intern("#cdata-section");
+        commentNameId = namePool.intern("#comment");
+        int capacity = buffer.limit() / 12 + 16;
+        kinds = new byte[capacity];
+        nameIds = new int[capacity];
+        starts = new int[capacity];
+        ends = new int[capacity];
+        firstChildren = new int[capacity];
+        nextSiblings = new int[capacity];
+        Arrays.fill(nameTableIds, CompactTree.NONE);
+        index();
+    }
+
+    /**
+     * maps and indexes a file. The mapping stays valid after the file is closed, until the index is garbage collected
+     *
+     * @throws IllegalArgumentException if the file is too large or can not be indexed
+     */
+    public static MappedXmlIndex map(Path file, NamePool namePool) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("file is too large to index: " + file);
+            }
+            return new MappedXmlIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), file, namePool);
+        }
+    }
+
+    @Override
+    public NamePool getNamePool() {
+        return namePool;
+    }
+
+    /**
+     * @return the mapped file, or null if the index was built from a buffer
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * @return a read-only view of the bytes from start to end
+     */
+    ByteBuffer slice(int start, int end) {
+        ByteBuffer slice = buffer.asReadOnlyBuffer();
+        slice.position(start);
+        slice.limit(end);
+        return slice;
+    }
+
+    public int getTokenCount() {
+        return size;
+    }
+
+    /**
+     * @return the approximate heap taken by the index, the mapped file is not on the heap
+     */
+    public long getHeapBytes() {
+        long names = 0;
+        for (byte[] name : nameBytes) {
+            names += name != null ? name.length + 16 : 0;
+        }
+        return kinds.length + 20L * nameIds.length + 12L * nameBytes.length + names;
+    }
+
+    @Override
+    int getDocumentElement() {
+        return documentElement;
+    }
+
+    @Override
+    byte getKind(int node) {
+        return kinds[node];
+    }
+
+    @Override
+    int getNameId(int node) {
+        return nameIds[node];
+    }
+
+    @Override
+    int getFirstChild(int node) {
+        return firstChildren[node];
+    }
+
+    @Override
+    int getNextSibling(int node) {
+        return nextSiblings[node];
+    }
+
+    @Override
+    boolean attributeEquals(int element, int attributeNameId, String value) {
+        String attributeValue = getAttributeValue(element, attributeNameId);
+        return attributeValue != null && attributeValue.equals(value);
+    }
+
+    @Override
+    String getAttributeValue(int element, int attributeNameId) {
+        int pos = skipAttributeValue(scanName(starts[element] + 1), attributeNameId);
+        if (pos >= 0) {
+            return null;
+        }
+        int valueStart = -pos - 1;
+        int valueEnd = indexOf(buffer.get(valueStart - 1), valueStart);
+        char[] chars = new char[valueEnd - valueStart];
+        return new String(chars, 0, decode(valueStart, valueEnd, true, true, chars));
+    }
+
+    @Override
+    String getTextContent(int node) {
+        if (kinds[node] != CompactTree.ELEMENT && kinds[node] != CompactTree.DOCUMENT) {
+            return getValue(node);
+        }
+        StringBuilder text = new StringBuilder();
+        appendText(node, text);
+        return text.toString();
+    }
+
+    private void appendText(int node, StringBuilder text) {
+        for (int child = firstChildren[node]; child != CompactTree.NONE; child = nextSiblings[child]) {
+            if (kinds[child] == CompactTree.TEXT || kinds[child] == CompactTree.CDATA) {
+                text.append(getValue(child));
+            } else if (kinds[child] == CompactTree.ELEMENT) {
+                appendText(child, text);
+            }
+        }
+    }
+
+    @Override
+    int copyTo(CompactTree target, int node) {
+        if (target.getNamePool() != namePool) {
+            throw new IllegalArgumentException("the target tree has a different name pool");
+        }
+        if (kinds[node] == CompactTree.DOCUMENT) {
+            throw new IllegalArgumentException("the document node can not be copied");
+        }
+        return copyTo(target, node, new char[64]);
+    }
+
+    /**
+     * copies a node, recording the byte range of each copied element in the target for {@link CompactTreeWriter}
+     *
+     * @param chars the buffer values are decoded into before they are copied
+     */
+    private int copyTo(CompactTree target, int node, char[] chars) {
+        if (kinds[node] != CompactTree.ELEMENT) {
+            chars = ensureLength(chars, ends[node] - starts[node]);
+            int length = decode(starts[node], ends[node], kinds[node] == CompactTree.TEXT, false, chars);
+            return target.createNode(kinds[node], nameIds[node], chars, 0, length);
+        }
+        int copy = target.createNode(CompactTree.ELEMENT, nameIds[node], null, 0, 0);
+        chars = copyAttributes(target, node, copy, chars);
+        for (int child = firstChildren[node]; child != CompactTree.NONE; child = nextSiblings[child]) {
+            if (kinds[child] != CompactTree.ELEMENT) {
+                chars = ensureLength(chars, ends[child] - starts[child]);
+            }
+            target.appendChild(copy, copyTo(target, child, chars));
+        }
+        target.setSplice(copy, this, starts[node], ends[node]);
+        return copy;
+    }
+
+    private static char[] ensureLength(char[] chars, int length) {
+        return chars.length >= length ? chars : new char[Math.max(length, 2 * chars.length)];
+    }
+
+    /**
+     * as much as a copy of the whole document takes, which the trusted tree takes when this is the most trusted source
+     */
+    @Override
+    int getNodeCountHint() {
+        return size + attributeCount;
+    }
+
+    @Override
+    int getCharCountHint() {
+        return valueBytes;
+    }
+
+    private String getValue(int node) {
+        char[] chars = new char[ends[node] - starts[node]];
+        return new String(chars, 0, decode(starts[node], ends[node], kinds[node] == CompactTree.TEXT, false, chars));
+    }
+
+    /**
+     * @return chars, or a larger buffer if a value did not fit
+     */
+    private char[] copyAttributes(CompactTree target, int element, int copy, char[] chars) {
+        int pos = scanName(starts[element] + 1);
+        while (true) {
+            pos = skipWhitespace(pos);
+            byte b = buffer.get(pos);
+            if (b == '>' || b == '/') {
+                return chars;
+            }
+            int nameEnd = scanName(pos);
+            int valueStart = skipWhitespace(skipWhitespace(nameEnd) + 1) + 1;
+            int valueEnd = indexOf(buffer.get(valueStart - 1), valueStart);
+            chars = ensureLength(chars, valueEnd - valueStart);
+            int length = decode(valueStart, valueEnd, true, true, chars);
+            target.addAttribute(copy, lookupName(pos, nameEnd), chars, 0, length);
+            pos = valueEnd + 1;
+        }
+    }
+
+    /**
+     * looks for an attribute in a start tag that has already been checked by {@link #skipAttributes(int)}
+     *
+     * @param pos the offset after the element name
+     * @return -(offset of the value) - 1 if the attribute is found, the offset of the end of the tag if it is not
+     */
+    private int skipAttributeValue(int pos, int attributeNameId) {
+        while (true) {
+            pos = skipWhitespace(pos);
+            byte b = buffer.get(pos);
+            if (b == '>' || b == '/') {
+                return pos;
+            }
+            int nameEnd = scanName(pos);
+            int valueStart = skipWhitespace(skipWhitespace(nameEnd) + 1) + 1;
+            if (lookupName(pos, nameEnd) == attributeNameId) {
+                return -valueStart - 1;
+            }
+            pos = indexOf(buffer.get(valueStart - 1), valueStart) + 1;
+        }
+    }
+
+    /*
+     * indexing
+     */
+
+    private void index() {
+        int limit = buffer.limit();
+        int pos = 0;
+        if (limit >= 2 && ((buffer.get(0) == (byte) 0xFE && buffer.get(1) == (byte) 0xFF) || (buffer.get(0) == (byte) 0xFF && buffer.get(1) == (byte) 0xFE))) {
+            throw new IllegalArgumentException("only UTF-8 files can be indexed, not UTF-16");
+        }
+        if (limit >= 3 && buffer.get(0) == (byte) 0xEF && buffer.get(1) == (byte) 0xBB && buffer.get(2) == (byte) 0xBF) {
+            pos = 3;
+        }
+        addToken(CompactTree.DOCUMENT, CompactTree.NONE, 0, limit);
+        // the open elements, with the last child added to each
+        int[] open = new int[16];
+        int[] lastChildren = new int[16];
+        int depth = 0;
+        lastChildren[0] = CompactTree.NONE;
+        while (pos < limit) {
+            if (buffer.get(pos) != '<') {
+                int end = indexOf('<', pos, limit);
+                if (depth > 0) {
+                    lastChildren[depth] = link(open[depth], lastChildren[depth], addToken(CompactTree.TEXT, textNameId, pos, end));
+                } else if (!isWhitespace(pos, end)) {
+                    throw error("content outside the document element", pos);
+                }
+                pos = end;
+                continue;
+            }
+            byte next = pos + 1 < limit ? buffer.get(pos + 1) : 0;
+            int token = CompactTree.NONE;
+            if (next == '/') {
+                if (depth == 0) {
+                    throw error("end tag without a start tag", pos);
+                }
+                int nameEnd = scanName(pos + 2);
+                int element = open[depth];
+                if (lookupName(pos + 2, nameEnd) != nameIds[element]) {
+                    throw error("end tag does not match " + namePool.getName(nameIds[element]), pos);
+                }
+                int close = skipWhitespace(nameEnd);
+                expect('>', close);
+                ends[element] = close + 1;
+                depth--;
+                pos = close + 1;
+            } else if (next == '?') {
+                int end = indexOf("?>", pos + 2);
+                int nameEnd = scanName(pos + 2);
+                if (pos == 0 || (pos == 3 && limit >= 3 && buffer.get(0) == (byte) 0xEF)) {
+                    if (nameEnd - pos == 5 && buffer.get(pos + 2) == 'x' && buffer.get(pos + 3) == 'm' && buffer.get(pos + 4) == 'l') {
+                        checkEncoding(nameEnd, end);
+                        pos = end + 2;
+                        continue;
+                    }
+                }
+                token = addToken(CompactTree.PROCESSING_INSTRUCTION, internName(pos + 2, nameEnd), Math.min(skipWhitespace(nameEnd), end), end);
+                pos = end + 2;
+            } else if (startsWith(pos, "<!--")) {
+                int end = indexOf("-->", pos + 4);
+                token = addToken(CompactTree.COMMENT, commentNameId, pos + 4, end);
+                pos = end + 3;
+            } else if (startsWith(pos, "<![CDATA[")) {
+                if (depth == 0) {
+                    throw error("content outside the document element", pos);
+                }
+                int end = indexOf("]]>", pos + 9);
+                token = addToken(CompactTree.CDATA, cdataNameId, pos + 9, end);
+                pos = end + 3;
+            } else if (startsWith(pos, "<!DOCTYPE")) {
+                pos = skipDoctype(pos + 9);
+            } else {
+                if (depth == 0 && documentElement != CompactTree.NONE) {
+                    throw error("more than one document element", pos);
+                }
+                int nameEnd = scanName(pos + 1);
+                token = addToken(CompactTree.ELEMENT, internName(pos + 1, nameEnd), pos, limit);
+                if (depth == 0) {
+                    documentElement = token;
+                }
+                int tagEnd = skipAttributes(nameEnd);
+                if (buffer.get(tagEnd) == '/') {
+                    expect('>', tagEnd + 1);
+                    ends[token] = tagEnd + 2;
+                    pos = tagEnd + 2;
+                } else {
+                    lastChildren[depth] = link(open[depth], lastChildren[depth], token);
+                    if (++depth == open.length) {
+                        open = Arrays.copyOf(open, 2 * depth);
+                        lastChildren = Arrays.copyOf(lastChildren, 2 * depth);
+                    }
+                    open[depth] = token;
+                    lastChildren[depth] = CompactTree.NONE;
+                    pos = tagEnd + 1;
+                    // linked with its parent already
+                    token = CompactTree.NONE;
+                }
+            }
+            if (token != CompactTree.NONE) {
+                lastChildren[depth] = link(open[depth], lastChildren[depth], token);
+            }
+        }
+        if (depth > 0) {
+            throw error("element " + namePool.getName(nameIds[open[depth]]) + " is not closed", limit);
+        }
+        if (documentElement == CompactTree.NONE) {
+            throw error("no document element", limit);
+        }
+        kinds = Arrays.copyOf(kinds, size);
+        nameIds = Arrays.copyOf(nameIds, size);
+        starts = Arrays.copyOf(starts, size);
+        ends = Arrays.copyOf(ends, size);
+        firstChildren = Arrays.copyOf(firstChildren, size);
+        nextSiblings = Arrays.copyOf(nextSiblings, size);
+    }
+
+    private int addToken(byte kind, int nameId, int start, int end) {
+        if (kind != CompactTree.ELEMENT && kind != CompactTree.DOCUMENT) {
+            valueBytes += end - start;
+        }
+        if (size == kinds.length) {
+            int capacity = 2 * size;
+            kinds = Arrays.copyOf(kinds, capacity);
+            nameIds = Arrays.copyOf(nameIds, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+            firstChildren = Arrays.copyOf(firstChildren, capacity);
+            nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+        }
+        int token = size++;
+        kinds[token] = kind;
+        nameIds[token] = nameId;
+        starts[token] = start;
+        ends[token] = end;
+        firstChildren[token] = CompactTree.NONE;
+        nextSiblings[token] = CompactTree.NONE;
+        return token;
+    }
+
+    /**
+     * @return the token, the new last child of the parent
+     */
+    private int link(int parent, int lastChild, int token) {
+        if (lastChild == CompactTree.NONE) {
+            firstChildren[parent] = token;
+        } else {
+            nextSiblings[lastChild] = token;
+        }
+        return token;
+    }
+
+    /**
+     * checks the attributes of a start tag and interns their names
+     *
+     * @return the offset of the '>' or of the "/>" that ends the tag
+     */
+    private int skipAttributes(int pos) {
+        while (true) {
+            pos = skipWhitespace(pos);
+            byte b = buffer.get(pos);
+            if (b == '>' || b == '/') {
+                return pos;
+            }
+            int nameEnd = scanName(pos);
+            internName(pos, nameEnd);
+            int equals = skipWhitespace(nameEnd);
+            expect('=', equals);
+            int quote = skipWhitespace(equals + 1);
+            byte quoteChar = buffer.get(quote);
+            if (quoteChar != '"' && quoteChar != '\'') {
+                throw error("attribute value is not quoted", quote);
+            }
+            int valueEnd = indexOf(quoteChar, quote + 1);
+            if (indexOf('<', quote + 1, valueEnd) < valueEnd) {
+                throw error("'<' in attribute value", quote);
+            }
+            attributeCount++;
+            valueBytes += valueEnd - quote - 1;
+            pos = valueEnd + 1;
+        }
+    }
+
+    private void checkEncoding(int pos, int end) {
+        byte[] declaration = new byte[end - pos];
+        for (int i = 0; i < declaration.length; i++) {
+            declaration[i] = buffer.get(pos + i);
+        }
+        String text = new String(declaration, StandardCharsets.US_ASCII);
+        int encoding = text.indexOf("encoding");
+        if (encoding >= 0) {
+            int quote = encoding + 8;
+            while (quote < text.length() && text.charAt(quote) != '"' && text.charAt(quote) != '\'') {
+                quote++;
+            }
+            int close = quote < text.length() ? text.indexOf(text.charAt(quote), quote + 1) : -1;
+            String name = close > 0 ? text.substring(quote + 1, close) : "";
+            if (!name.equalsIgnoreCase("UTF-8") && !name.equalsIgnoreCase("UTF8") && !name.equalsIgnoreCase("US-ASCII")
+                    && !name.equalsIgnoreCase("ASCII")) {
+                throw error("only UTF-8 files can be indexed, not " + name, pos);
+            }
+        }
+    }
+
+    /**
+     * @return the offset after the doctype declaration
+     */
+    private int skipDoctype(int pos) {
+        int limit = buffer.limit();
+        byte quote = 0;
+        for (; pos < limit; pos++) {
+            byte b = buffer.get(pos);
+            if (quote != 0) {
+                if (b == quote) {
+                    quote = 0;
+                }
+            } else if (b == '"' || b == '\'') {
+                quote = b;
+            } else if (b == '[') {
+                throw error("internal DTD subsets are not supported", pos);
+            } else if (b == '>') {
+                return pos + 1;
+            }
+        }
+        throw error("doctype declaration is not closed", pos);
+    }
+
+    /*
+     * names
+     */
+
+    /**
+     * @return the id of a name, adding it to the table and to the pool if it is new
+     */
+    private int internName(int start, int end) {
+        int mask = nameTableIds.length - 1;
+        for (int slot = hash(start, end) & mask; ; slot = (slot + 1) & mask) {
+            if (nameTableIds[slot] == CompactTree.NONE) {
+                byte[] bytes = new byte[end - start];
+                for (int i = 0; i < bytes.length; i++) {
+                    bytes[i] = buffer.get(start + i);
+                }
+                int id = namePool.intern(new String(bytes, StandardCharsets.UTF_8));
+                nameBytes[slot] = bytes;
+                nameTableIds[slot] = id;
+                if (2 * ++nameCount > nameTableIds.length) {
+                    rehash();
+                }
+                return id;
+            }
+            if (nameEquals(nameBytes[slot], start, end)) {
+                return nameTableIds[slot];
+            }
+        }
+    }
+
+    /**
+     * @return the id of a name interned while indexing
+     */
+    private int lookupName(int start, int end) {
+        int mask = nameTableIds.length - 1;
+        for (int slot = hash(start, end) & mask; nameTableIds[slot] != CompactTree.NONE; slot = (slot + 1) & mask) {
+            if (nameEquals(nameBytes[slot], start, end)) {
+                return nameTableIds[slot];
+            }
+        }
+        return CompactTree.NONE;
+    }
+
+    private void rehash() {
+        byte[][] oldBytes = nameBytes;
+        int[] oldIds = nameTableIds;
+        nameBytes = new byte[2 * oldBytes.length][];
+        nameTableIds = new int[2 * oldIds.length];
+        Arrays.fill(nameTableIds, CompactTree.NONE);
+        int mask = nameTableIds.length - 1;
+        for (int i = 0; i < oldIds.length; i++) {
+            if (oldIds[i] != CompactTree.NONE) {
+                int slot = Arrays.hashCode(oldBytes[i]) & mask;
+                while (nameTableIds[slot] != CompactTree.NONE) {
+                    slot = (slot + 1) & mask;
+                }
+                nameBytes[slot] = oldBytes[i];
+                nameTableIds[slot] = oldIds[i];
+            }
+        }
+    }
+
+    /**
+     * the same hash as {@link Arrays#hashCode(byte[])} of the name's bytes
+     */
+    private int hash(int start, int end) {
+        int hash = 1;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + buffer.get(i);
+        }
+        return hash;
+    }
+
+    private boolean nameEquals(byte[] name, int start, int end) {
+        if (name.length != end - start) {
+            return false;
+        }
+        for (int i = 0; i < name.length; i++) {
+            if (name[i] != buffer.get(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * scanning
+     */
+
+    /**
+     * @return the offset after the name that starts at pos
+     */
+    private int scanName(int pos) {
+        int limit = buffer.limit();
+        int end = pos;
+        while (end < limit) {
+            byte b = buffer.get(end);
+            if (b == '>' || b == '/' || b == '=' || b == '?' || b == '<' || isWhitespace(b)) {
+                break;
+            }
+            end++;
+        }
+        if (end == pos) {
+            throw error("name expected", pos);
+        }
+        return end;
+    }
+
+    private int skipWhitespace(int pos) {
+        int limit = buffer.limit();
+        while (pos < limit && isWhitespace(buffer.get(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private boolean isWhitespace(int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (!isWhitespace(buffer.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\t' || b == '\r';
+    }
+
+    private int indexOf(byte b, int pos) {
+        int end = indexOf(b, pos, buffer.limit());
+        if (end == buffer.limit()) {
+            throw error("'" + (char) b + "' expected", pos);
+        }
+        return end;
+    }
+
+    /**
+     * @return the offset of the first b from pos, or end
+     */
+    private int indexOf(int b, int pos, int end) {
+        while (pos < end && buffer.get(pos) != b) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private int indexOf(String s, int pos) {
+        int limit = buffer.limit() - s.length();
+        for (; pos <= limit; pos++) {
+            if (startsWith(pos, s)) {
+                return pos;
+            }
+        }
+        throw error("'" + s + "' expected", pos);
+    }
+
+    private boolean startsWith(int pos, String s) {
+        if (pos + s.length() > buffer.limit()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (buffer.get(pos + i) != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void expect(char c, int pos) {
+        if (pos >= buffer.limit() || buffer.get(pos) != c) {
+            throw error("'" + c + "' expected", pos);
+        }
+    }
+
+    private static IllegalArgumentException error(String message, int offset) {
+        return new IllegalArgumentException(message + " at offset " + offset);
+    }
+
+    /*
+     * values
+     */
+
+    /**
+     * decodes the UTF-8 bytes of a value, normalizing line ends as an XML parser does
+     *
+     * @param references true to replace entity and character references
+     * @param attribute  true to replace whitespace by spaces, as in attribute values
+     * @param chars      receives the value, at least end - start long
+     * @return the length of the value
+     */
+    private int decode(int start, int end, boolean references, boolean attribute, char[] chars) {
+        int length = 0;
+        int i = start;
+        while (i < end) {
+            int b = buffer.get(i) & 0xFF;
+            if (b >= 0x80) {
+                int codePoint;
+                if (b < 0xE0) {
+                    codePoint = (b & 0x1F) << 6 | (buffer.get(i + 1) & 0x3F);
+                    i += 2;
+                } else if (b < 0xF0) {
+                    codePoint = (b & 0x0F) << 12 | (buffer.get(i + 1) & 0x3F) << 6 | (buffer.get(i + 2) & 0x3F);
+                    i += 3;
+                } else {
+                    codePoint = (b & 0x07) << 18 | (buffer.get(i + 1) & 0x3F) << 12 | (buffer.get(i + 2) & 0x3F) << 6 | (buffer.get(i + 3) & 0x3F);
+                    i += 4;
+                }
+                length += Character.toChars(codePoint, chars, length);
+                continue;
+            }
+            i++;
+            if (b == '\r') {
+                if (i < end && buffer.get(i) == '\n') {
+                    i++;
+                }
+                chars[length++] = attribute ? ' ' : '\n';
+            } else if (attribute && (b == '\n' || b == '\t')) {
+                chars[length++] = ' ';
+            } else if (b == '&' && references) {
+                int semicolon = indexOf(';', i, end);
+                if (semicolon == end) {
+                    throw error("entity reference is not closed", i - 1);
+                }
+                length = appendReference(i, semicolon, chars, length);
+                i = semicolon + 1;
+            } else {
+                chars[length++] = (char) b;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * @param start the offset after the '&amp;'
+     * @param end   the offset of the ';'
+     * @return the new length of the value
+     */
+    private int appendReference(int start, int end, char[] chars, int length) {
+        if (bytesEqual(start, end, "lt")) {
+            chars[length++] = '<';
+        } else if (bytesEqual(start, end, "gt")) {
+            chars[length++] = '>';
+        } else if (bytesEqual(start, end, "amp")) {
+            chars[length++] = '&';
+        } else if (bytesEqual(start, end, "quot")) {
+            chars[length++] = '"';
+        } else if (bytesEqual(start, end, "apos")) {
+            chars[length++] = '\'';
+        } else if (buffer.get(start) == '#') {
+            boolean hex = start + 1 < end && buffer.get(start + 1) == 'x';
+            int codePoint = 0;
+            for (int i = hex ? start + 2 : start + 1; i < end; i++) {
+                int digit = Character.digit(buffer.get(i), hex ? 16 : 10);
+                if (digit < 0 || codePoint > Character.MAX_CODE_POINT) {
+                    throw error("invalid character reference", start - 1);
+                }
+                codePoint = codePoint * (hex ? 16 : 10) + digit;
+            }
+            if (!Character.isValidCodePoint(codePoint)) {
+                throw error("invalid character reference", start - 1);
+            }
+            length += Character.toChars(codePoint, chars, length);
+        } else {
+            throw error("undefined entity reference", start - 1);
+        }
+        return length;
+    }
+
+    private boolean bytesEqual(int start, int end, String s) {
+        return end - start == s.length() && startsWith(start, s);
+    }
+}
@@ -0,0 +1,195 @@
+package com.accuity.xmldocumentmerge;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+/**
+ * Collects merge metrics: the latency of whole merges, recorded by the {@link XmlDocumentMerger}, and per rule
+ * metrics keyed by the rule's full context xpath, recorded by the {@link RuleProcessor}. Pass the same instance to
+ * both. The metrics can be exposed as MBeans with {@link #registerMBeans(String)}.
+ * <p>
+ * {@link #DISABLED} is the default: the merge code checks {@link #isEnabled()} once per rule and does not take any
+ * timings or counts when it is false.
+ * <p>
+ * MergeMetrics is thread-safe.
+ */
+public class MergeMetrics implements MergeMetricsMBean {
+    private final static Logger LOG = Logger.getLogger(MergeMetrics.class.getName());
+
+    public static final MergeMetrics DISABLED = new MergeMetrics(false);
+
+    private final boolean enabled;
+    private final LatencyHistogram mergeLatency = new LatencyHistogram();
+    private final ConcurrentMap<String, RuleMetrics> ruleMetrics = new ConcurrentHashMap<>();
+    private volatile String domain;
+
+    public MergeMetrics() {
+        this(true);
+    }
+
+    private MergeMetrics(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param rule the full context xpath of a rule
+     * @return the metrics of the rule, created on first use
+     */
+    public RuleMetrics getRuleMetrics(String rule) {
+        RuleMetrics metrics = ruleMetrics.get(rule);
+        if (metrics == null) {
+            RuleMetrics created = new RuleMetrics(rule);
+            metrics = ruleMetrics.putIfAbsent(rule, created);
+            if (metrics == null) {
+                metrics = created;
+                String registeredDomain = domain;
+                if (registeredDomain != null) {
+                    register(created, ruleObjectName(registeredDomain, rule));
+                }
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * @return the metrics of all rules used so far, by full context xpath
+     */
+    public Map<String, RuleMetrics> getAllRuleMetrics() {
+        return Collections.unmodifiableMap(new TreeMap<>(ruleMetrics));
+    }
+
+    public LatencyHistogram getMergeLatency() {
+        return mergeLatency;
+    }
+
+    void recordMerge(long nanos) {
+        mergeLatency.record(nanos);
+    }
+
+    /**
+     * Registers this object and the metrics of every rule, including rules first used later, with the platform
+     * MBeanServer, as {@code <domain>:type=MergeMetrics} and {@code <domain>:type=RuleMetrics,rule=<xpath>}.
+     *
+     * @param domain the JMX domain, for example the name of the rule set
+     */
+    public synchronized void registerMBeans(String domain) {
+        if (!enabled) {
+            throw new IllegalStateException("metrics are disabled");
+        }
+        unregisterMBeans();
+        this.domain = domain;
+        register(this, mergeObjectName(domain));
+        for (RuleMetrics metrics : ruleMetrics.values()) {
+            register(metrics, ruleObjectName(domain, metrics.getRule()));
+        }
+    }
+
+    public synchronized void unregisterMBeans() {
+        String registeredDomain = domain;
+        if (registeredDomain == null) {
+            return;
+        }
+        domain = null;
+        unregister(mergeObjectName(registeredDomain));
+        for (RuleMetrics metrics : ruleMetrics.values()) {
+            unregister(ruleObjectName(registeredDomain, metrics.getRule()));
+        }
+    }
+
+    @Override
+    public long getMergeCount() {
+        return mergeLatency.getCount();
+    }
+
+    @Override
+    public double getTotalLatencyMillis() {
+        return mergeLatency.getTotalNanos() / 1e6;
+    }
+
+    @Override
+    public double getLatencyP50Millis() {
+        return mergeLatency.getPercentileNanos(0.5) / 1e6;
+    }
+
+    @Override
+    public double getLatencyP95Millis() {
+        return mergeLatency.getPercentileNanos(0.95) / 1e6;
+    }
+
+    @Override
+    public double getLatencyP99Millis() {
+        return mergeLatency.getPercentileNanos(0.99) / 1e6;
+    }
+
+    @Override
+    public double getLatencyMaxMillis() {
+        return mergeLatency.getMaxNanos() / 1e6;
+    }
+
+    @Override
+    public int getRuleCount() {
+        return ruleMetrics.size();
+    }
+
+    /**
+     * resets the merge latency and the metrics of every rule
+     */
+    @Override
+    public void reset() {
+        mergeLatency.reset();
+        for (RuleMetrics metrics : ruleMetrics.values()) {
+            metrics.reset();
+        }
+    }
+
+    static ObjectName mergeObjectName(String domain) {
+        return objectName(domain + ":type=MergeMetrics");
+    }
+
+    static ObjectName ruleObjectName(String domain, String rule) {
+        return objectName(domain + ":type=RuleMetrics,rule=" + ObjectName.quote(rule));
+    }
+
+    private static ObjectName objectName(String name) {
+        try {
+            return new ObjectName(name);
+        } catch (JMException e) {
+            throw new IllegalArgumentException("invalid MBean name " + name, e);
+        }
+    }
+
+    private static void register(Object mbean, ObjectName name) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(mbean, name);
+        } catch (InstanceAlreadyExistsException e) {
+            LOG.warning("MBean " + name + " is already registered");
+        } catch (JMException e) {
+            throw new IllegalStateException("error registering MBean " + name, e);
+        }
+    }
+
+    private static void unregister(ObjectName name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (InstanceNotFoundException e) {
+            // already gone
+        } catch (JMException e) {
+            LOG.warning("error unregistering MBean " + name + ": " + e.getMessage());
+        }
+    }
+}
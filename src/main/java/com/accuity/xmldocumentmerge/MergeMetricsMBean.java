@@ -0,0 +1,23 @@
+package com.accuity.xmldocumentmerge;
+
+/**
+ * JMX view of the whole-merge metrics, see {@link MergeMetrics}
+ */
+public interface MergeMetricsMBean {
+
+    long getMergeCount();
+
+    double getTotalLatencyMillis();
+
+    double getLatencyP50Millis();
+
+    double getLatencyP95Millis();
+
+    double getLatencyP99Millis();
+
+    double getLatencyMaxMillis();
+
+    int getRuleCount();
+
+    void reset();
+}
@@ -0,0 +1,35 @@
+package com.accuity.xmldocumentmerge;
+
+import com.accuity.xmldocumentmerge.model.Rules;
+
+/**
+ * The compiled form of a {@link Rules} tree. Build it once with the {@link MergePlanCompiler}
+ * (or {@link RulesParser#parsePlan(java.io.InputStream)}) and reuse it for every merge against those rules.
+ * <p>
+ * A plan is immutable and can be shared by concurrent merges. The {@link Rules} model it was compiled from
+ * must not be modified afterwards.
+ */
+public final class MergePlan {
+
+    private final Rules rules;
+    private final CompiledRule rootRule;
+
+    MergePlan(Rules rules, CompiledRule rootRule) {
+        this.rules = rules;
+        this.rootRule = rootRule;
+    }
+
+    /**
+     * @return the rules model this plan was compiled from
+     */
+    public Rules getRules() {
+        return rules;
+    }
+
+    /**
+     * @return the compiled docroot rule, or null when the rules have no docroot rule
+     */
+    public CompiledRule getRootRule() {
+        return rootRule;
+    }
+}
@@ -0,0 +1,147 @@
+package com.accuity.xmldocumentmerge;
+
+import com.accuity.xmldocumentmerge.model.Rules;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Caches the MergePlans of rule sets by the SHA-256 hash of their content, so that loading the same rules file again
+ * neither parses nor compiles it. The least recently used plans are evicted when the cache is full.
+ * <p>
+ * A MergePlanCache is thread-safe. Rule sets with the same content share one plan, which must not be modified.
+ */
+public class MergePlanCache {
+    private final static Logger LOG = Logger.getLogger(MergePlanCache.class.getName());
+
+    private final RulesParser rulesParser = new RulesParser();
+    private final MergePlanCompiler mergePlanCompiler;
+    private final Map<String, MergePlan> plans;
+    private long hits;
+    private long misses;
+
+    /**
+     * @param maxSize the maximum number of plans kept
+     */
+    public MergePlanCache(int maxSize) {
+        this(maxSize, new MergePlanCompiler());
+    }
+
+    /**
+     * @param maxSize           the maximum number of plans kept
+     * @param mergePlanCompiler compiles the rule sets that are not cached
+     */
+    public MergePlanCache(final int maxSize, MergePlanCompiler mergePlanCompiler) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be at least 1");
+        }
+        this.mergePlanCompiler = mergePlanCompiler;
+        this.plans = new LinkedHashMap<String, MergePlan>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, MergePlan> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * reads the rules and returns their plan, from the cache if the same rules were loaded before
+     *
+     * @param inputStream the rules, read to the end but not closed
+     * @return the compiled plan, or null if the rules could not be parsed
+     */
+    public MergePlan getPlan(InputStream inputStream) {
+        return getPlan(readFully(inputStream));
+    }
+
+    /**
+     * @param rules the content of a rules file
+     * @return the compiled plan, or null if the rules could not be parsed
+     */
+    public MergePlan getPlan(byte[] rules) {
+        String key = hash(rules);
+        synchronized (plans) {
+            MergePlan plan = plans.get(key);
+            if (plan != null) {
+                hits++;
+                return plan;
+            }
+            misses++;
+        }
+
+        // parsed and compiled outside the lock, so that one slow rule set does not hold up the others
+        Rules parsedRules = rulesParser.parse(new ByteArrayInputStream(rules));
+        if (parsedRules == null) {
+            return null;
+        }
+        MergePlan plan = mergePlanCompiler.compile(parsedRules);
+        synchronized (plans) {
+            MergePlan cached = plans.get(key);
+            if (cached != null) {
+                // compiled concurrently by another thread, keep a single plan
+                return cached;
+            }
+            plans.put(key, plan);
+        }
+        LOG.fine("compiled rules " + key);
+        return plan;
+    }
+
+    public int size() {
+        synchronized (plans) {
+            return plans.size();
+        }
+    }
+
+    public long getHits() {
+        synchronized (plans) {
+            return hits;
+        }
+    }
+
+    public long getMisses() {
+        synchronized (plans) {
+            return misses;
+        }
+    }
+
+    public void clear() {
+        synchronized (plans) {
+            plans.clear();
+        }
+    }
+
+    private static byte[] readFully(InputStream inputStream) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException("error reading rules", e);
+        }
+    }
+
+    private static String hash(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 not available", e);
+        }
+    }
+}
@@ -0,0 +1,376 @@
+package com.accuity.xmldocumentmerge;
+
+import com.accuity.xmldocumentmerge.model.Id;
+import com.accuity.xmldocumentmerge.model.Rule;
+import com.accuity.xmldocumentmerge.model.Rules;
+import com.accuity.xmldocumentmerge.model.Source;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.xml.xpath.XPathExpressionException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Compiles a {@link Rules} tree into a {@link MergePlan}: every rule xpath, filterless fallback xpath and coalesce id path
+ * is compiled once, and the trusted sources of every rule are resolved and sorted once.
+ * <p>
+ * Paths are compiled by the first {@link PathEvaluator} that supports them. By default paths in the
+ * {@link SimplePath} subset are evaluated by walking the DOM, and all other paths by the JAXP xpath engine.
+ * <p>
+ * The compiler holds no state and can be shared between threads.
+ */
+public class MergePlanCompiler {
+    private final static Logger LOG = Logger.getLogger(MergePlanCompiler.class.getName());
+
+    private final List<PathEvaluator> pathEvaluators;
+
+    public MergePlanCompiler() {
+        this(Arrays.asList(new SimplePathEvaluator(), new XPathEvaluator()));
+    }
+
+    /**
+     * @param pathEvaluators the evaluators to try for every path, in order
+     */
+    public MergePlanCompiler(List<PathEvaluator> pathEvaluators) {
+        this.pathEvaluators = Collections.unmodifiableList(new ArrayList<>(pathEvaluators));
+    }
+
+    /**
+     * @param rules the rules model, with parent rules already set (as done by the RulesParser)
+     * @return the compiled plan
+     * @throws IllegalArgumentException if any xpath in the rules can not be compiled
+     */
+    public MergePlan compile(Rules rules) {
+        CompiledRule rootRule = null;
+        if (rules.getRule() != null) {
+            rootRule = compileRule(rules.getRule(), false);
+        } else {
+            LOG.warning("missing docroot rule");
+        }
+        return new MergePlan(rules, rootRule);
+    }
+
+    /**
+     * compiles a rule and all of its child rules for {@link RuleProcessor#processRule(Rule, org.w3c.dom.Document, Map)}. As
+     * before rules were compiled, a rule with an invalid xpath is skipped, with a stack trace, every time it is
+     * processed, while the other rules are merged
+     */
+    CompiledRule compileRule(Rule rule) {
+        return compileRule(rule, true);
+    }
+
+    /**
+     * @param skipInvalid compile invalid xpaths to paths that fail when evaluated, instead of failing
+     * @throws IllegalArgumentException if an xpath of the rules can not be compiled and skipInvalid is false
+     */
+    private CompiledRule compileRule(Rule rule, boolean skipInvalid) {
+        // what a rule needs to know about the other rules of the plan is found first, so that compiled rules are
+        // complete once constructed
+        List<Rule> rules = new ArrayList<>();
+        addInProcessingOrder(rule, rules);
+        Map<Rule, List<Source>> sources = new IdentityHashMap<>();
+        for (Rule each : rules) {
+            sources.put(each, calculateSourcesToUseForRule(each));
+        }
+        List<String> sourceNames = numberSources(rules, sources);
+        Map<Rule, Set<String>> consumableSources = rule.getParentRule() == null
+                ? findConsumableSources(rules, sources) : new IdentityHashMap<Rule, Set<String>>();
+        return compileRuleTree(rule, sources, sourceNames, consumableSources, skipInvalid);
+    }
+
+    private CompiledRule compileRuleTree(Rule rule, Map<Rule, List<Source>> sources, List<String> sourceNames,
+                                         Map<Rule, Set<String>> consumableSources, boolean skipInvalid) {
+        boolean docRoot = rule.getParentRule() == null;
+        CompiledPath ruleXPath = null;
+        CompiledPath filterlessXPath = null;
+        CompactPath compactRulePath = null;
+        CompactPath compactFilterlessPath = null;
+        KeyExtractor keyExtractor = null;
+
+        // the docroot rule never evaluates its own xpath
+        if (!docRoot) {
+            ruleXPath = compileXPath(rule.getFullContextXPath(), rule, skipInvalid);
+            compactRulePath = CompactPath.compile(rule.getFullContextXPath());
+            if (rule.getFilter() != null && !rule.getFilter().isEmpty()) {
+                String filterless = rule.getParentRule().getFullContextXPath() + "/" + rule.getContext();
+                filterlessXPath = compileXPath(filterless, rule, skipInvalid);
+                compactFilterlessPath = CompactPath.compile(filterless);
+            }
+        }
+        if (rule.getField() != null && rule.getField().isCoalesce() && rule.getField().getIds() != null) {
+            List<CompiledPath> idPaths = new ArrayList<>();
+            // null as soon as one id is not supported on compact trees
+            List<CompactPath> compactIdPaths = new ArrayList<>();
+            for (Id id : rule.getField().getIds()) {
+                idPaths.add(compileXPath(id.getPath(), rule, skipInvalid));
+                CompactPath compactIdPath = CompactPath.compile(id.getPath());
+                if (compactIdPath == null) {
+                    compactIdPaths = null;
+                } else if (compactIdPaths != null) {
+                    compactIdPaths.add(compactIdPath);
+                }
+            }
+            keyExtractor = new KeyExtractor(idPaths, compactIdPaths);
+        }
+
+        List<CompiledRule> children = new ArrayList<>();
+        if (rule.getRules() != null) {
+            for (Rule subRule : rule.getRules()) {
+                children.add(compileRuleTree(subRule, sources, sourceNames, consumableSources, skipInvalid));
+            }
+        }
+        List<Source> ruleSources = sources.get(rule);
+        int[] sourceIndexes = new int[ruleSources.size()];
+        for (int i = 0; i < sourceIndexes.length; i++) {
+            sourceIndexes[i] = sourceNames.indexOf(ruleSources.get(i).getName());
+        }
+        Set<String> consumable = consumableSources.get(rule);
+        return new CompiledRule(rule, docRoot, ruleXPath, filterlessXPath, compactRulePath, compactFilterlessPath,
+                keyExtractor, ruleSources, children, docRoot ? null : findSection(rule),
+                consumable != null ? consumable : Collections.<String>emptySet(), sourceNames, sourceIndexes);
+    }
+
+    /**
+     * numbers the sources of all the rules, in order of first use, see {@link CompiledRule#getSourceIndexes()}
+     *
+     * @return the source names by number
+     */
+    private static List<String> numberSources(List<Rule> rules, Map<Rule, List<Source>> sources) {
+        List<String> sourceNames = new ArrayList<>();
+        for (Rule rule : rules) {
+            for (Source source : sources.get(rule)) {
+                if (!sourceNames.contains(source.getName())) {
+                    sourceNames.add(source.getName());
+                }
+            }
+        }
+        return Collections.unmodifiableList(sourceNames);
+    }
+
+    /**
+     * Finds the consumable sources of every rule, see {@link CompiledRule#isConsumable(String)}. Rules are processed in
+     * document order of the rules tree. A later rule reads a source at or below the matches of an earlier one when both
+     * trust the source and the element names of their paths agree over the length of the shorter path; attribute filters
+     * are ignored, so rules that only differ by filter are taken to overlap. A rule whose path is not an absolute
+     * {@link SimplePath}, or whose coalesce ids are not relative simple paths, overlaps every rule, and the docroot rule
+     * reads the whole document.
+     *
+     * @return the consumable sources, by rule
+     */
+    private static Map<Rule, Set<String>> findConsumableSources(List<Rule> rules, Map<Rule, List<Source>> sources) {
+        List<SimplePath> paths = new ArrayList<>(rules.size());
+        for (Rule rule : rules) {
+            paths.add(confinedPath(rule));
+        }
+        Map<Rule, Set<String>> consumableSources = new IdentityHashMap<>();
+        for (int i = 0; i < rules.size(); i++) {
+            if (paths.get(i) == null && rules.get(i).getParentRule() != null) {
+                continue;
+            }
+            Set<String> consumable = new HashSet<>();
+            for (Source source : sources.get(rules.get(i))) {
+                consumable.add(source.getName());
+            }
+            for (int j = i + 1; j < rules.size() && !consumable.isEmpty(); j++) {
+                if (paths.get(i) == null || paths.get(j) == null || overlaps(paths.get(i), paths.get(j))) {
+                    for (Source source : sources.get(rules.get(j))) {
+                        consumable.remove(source.getName());
+                    }
+                }
+            }
+            consumableSources.put(rules.get(i), Collections.unmodifiableSet(consumable));
+        }
+        return consumableSources;
+    }
+
+    /**
+     * @return the path of the rule if it and the coalesce ids of the rule only read nodes at or below its matches,
+     * otherwise null
+     */
+    static SimplePath confinedPath(CompiledRule rule) {
+        return confinedPath(rule.getRule());
+    }
+
+    private static SimplePath confinedPath(Rule model) {
+        SimplePath path = model.getParentRule() == null ? null : SimplePath.parse(model.getFullContextXPath());
+        if (path == null || !path.isAbsolute() || path.getAttribute() != null) {
+            return null;
+        }
+        if (model.getField() != null && model.getField().isCoalesce() && model.getField().getIds() != null) {
+            for (Id id : model.getField().getIds()) {
+                SimplePath idPath = SimplePath.parse(id.getPath());
+                if (idPath == null || idPath.isAbsolute()) {
+                    return null;
+                }
+            }
+        }
+        return path;
+    }
+
+    private static void addInProcessingOrder(Rule rule, List<Rule> rules) {
+        rules.add(rule);
+        if (rule.getRules() != null) {
+            for (Rule subRule : rule.getRules()) {
+                addInProcessingOrder(subRule, rules);
+            }
+        }
+    }
+
+    private static boolean overlaps(SimplePath path, SimplePath laterPath) {
+        int length = Math.min(path.getSteps().size(), laterPath.getSteps().size());
+        for (int i = 0; i < length; i++) {
+            if (!path.getSteps().get(i).getName().equals(laterPath.getSteps().get(i).getName())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the section of a rule, see {@link CompiledRule#getSection()}. A rule has a section when its path, the paths
+     * of all its child rules and their filterless paths are absolute {@link SimplePath}s that start with the path of the
+     * parent rule followed by a step of the same element name and at least one more step, and all its coalesce ids are
+     * relative simple paths. The rule's matches then have a parent inside the section, so nodes are only removed and
+     * appended there.
+     *
+     * @return the element name of the section, or null
+     */
+    String findSection(Rule rule) {
+        SimplePath parentPath = SimplePath.parse(rule.getParentRule().getFullContextXPath());
+        SimplePath path = SimplePath.parse(rule.getFullContextXPath());
+        if (parentPath == null || !parentPath.isAbsolute() || parentPath.getAttribute() != null
+                || path == null || path.getSteps().size() <= parentPath.getSteps().size()) {
+            return null;
+        }
+        String section = path.getSteps().get(parentPath.getSteps().size()).getName();
+        return isConfined(rule, parentPath.getSteps(), section) ? section : null;
+    }
+
+    private boolean isConfined(Rule rule, List<SimplePath.Step> prefix, String section) {
+        if (!isConfined(rule.getFullContextXPath(), prefix, section)) {
+            return false;
+        }
+        if (rule.getFilter() != null && !rule.getFilter().isEmpty()
+                && !isConfined(rule.getParentRule().getFullContextXPath() + "/" + rule.getContext(), prefix, section)) {
+            return false;
+        }
+        if (rule.getField() != null && rule.getField().isCoalesce() && rule.getField().getIds() != null) {
+            for (Id id : rule.getField().getIds()) {
+                SimplePath idPath = SimplePath.parse(id.getPath());
+                if (idPath == null || idPath.isAbsolute()) {
+                    return false;
+                }
+            }
+        }
+        if (rule.getRules() != null) {
+            for (Rule subRule : rule.getRules()) {
+                if (!isConfined(subRule, prefix, section)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean isConfined(String expression, List<SimplePath.Step> prefix, String section) {
+        SimplePath path = SimplePath.parse(expression);
+        // at least two steps below the prefix: the section and the matched nodes
+        if (path == null || !path.isAbsolute() || path.getAttribute() != null || path.getSteps().size() < prefix.size() + 2) {
+            return false;
+        }
+        for (int i = 0; i < prefix.size(); i++) {
+            if (!path.getSteps().get(i).toString().equals(prefix.get(i).toString())) {
+                return false;
+            }
+        }
+        return path.getSteps().get(prefix.size()).getName().equals(section);
+    }
+
+    /**
+     * compiles a single xpath expression. This is also used for the id paths of coalesce rules.
+     *
+     * @param expression
+     * @return
+     * @throws XPathExpressionException
+     */
+    CompiledPath compile(String expression) throws XPathExpressionException {
+        for (PathEvaluator pathEvaluator : pathEvaluators) {
+            CompiledPath compiledPath = pathEvaluator.compile(expression);
+            if (compiledPath != null) {
+                LOG.fine(pathEvaluator.getName() + " evaluates " + expression);
+                return compiledPath;
+            }
+        }
+        throw new XPathExpressionException("no path evaluator supports " + expression);
+    }
+
+    private CompiledPath compileXPath(String expression, Rule rule, boolean skipInvalid) {
+        try {
+            return compile(expression);
+        } catch (XPathExpressionException e) {
+            if (skipInvalid) {
+                LOG.warning("invalid xpath " + expression + " in rule " + rule.getFullContextXPath() + ", the rule is skipped");
+                return new InvalidPath(expression, e);
+            }
+            throw new IllegalArgumentException("invalid xpath " + expression + " in rule " + rule.getFullContextXPath(), e);
+        }
+    }
+
+    /**
+     * an xpath that could not be compiled: evaluating it fails with the compile error
+     */
+    private static final class InvalidPath implements CompiledPath {
+        private final String expression;
+        private final XPathExpressionException error;
+
+        InvalidPath(String expression, XPathExpressionException error) {
+            this.expression = expression;
+            this.error = error;
+        }
+
+        @Override
+        public NodeList evaluateNodes(Node context) throws XPathExpressionException {
+            throw new XPathExpressionException(error);
+        }
+
+        @Override
+        public String getExpression() {
+            return expression;
+        }
+    }
+
+    List<Source> calculateSourcesToUseForRule(Rule rule) {
+        List<Source> sources = null;
+        Rule ruleToUse = rule;
+        while (sources == null && ruleToUse != null) {
+            if (ruleToUse.getWeighting() != null && ruleToUse.getWeighting().getSources() != null) {
+                sources = ruleToUse.getWeighting().getSources();
+            } else {
+                if (ruleToUse.getParentRule() != null) {
+                    ruleToUse = ruleToUse.getParentRule();
+                } else {
+                    sources = new ArrayList<>();
+                }
+            }
+        }
+
+        List<Source> trustedSources = new ArrayList<>();
+
+        for (Source source : sources) {
+            if (source.getTrust() > 0) {
+                trustedSources.add(source);
+            }
+        }
+
+        Collections.sort(trustedSources);
+        return trustedSources;
+    }
+}
@@ -0,0 +1,272 @@
+package com.accuity.xmldocumentmerge;
+
+import org.w3c.dom.Document;
+
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.logging.Logger;
+
+/**
+ * Caches merge results by merge plan and by the SHA-256 hash of the content of every source, in front of an
+ * {@link XmlDocumentMerger}. A hit returns the serialized result without parsing a source or processing a rule.
+ * <p>
+ * Results are kept as UTF-8 XML. The cache is bounded by the total size of the results it keeps; the least recently
+ * used are evicted first. Plans are compared by identity, so use one plan per rule set, for example from a
+ * {@link MergePlanCache}.
+ * <p>
+ * A MergeResultCache is thread-safe. Misses are merged outside the lock, so concurrent misses of the same sources may
+ * both merge.
+ */
+public class MergeResultCache {
+    private final static Logger LOG = Logger.getLogger(MergeResultCache.class.getName());
+
+    // the approximate heap taken by an entry besides its result: map entry, key and digest
+    static final int ENTRY_OVERHEAD = 160;
+    private static final byte[] EMPTY = new byte[0];
+
+    private static final ThreadLocal<Transformer> TRANSFORMER = new ThreadLocal<Transformer>() {
+        @Override
+        protected Transformer initialValue() {
+            try {
+                Transformer transformer = TransformerFactory.newInstance().newTransformer();
+                transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+                return transformer;
+            } catch (TransformerConfigurationException e) {
+                throw new RuntimeException("error creating transformer", e);
+            }
+        }
+    };
+
+    private final XmlDocumentMerger xmlDocumentMerger;
+    private final Executor executor;
+    private final long maxBytes;
+    private final LinkedHashMap<Key, byte[]> results = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param xmlDocumentMerger merges the sources that are not cached, parsing them on the calling thread
+     * @param maxBytes          the maximum total size of the cached results
+     */
+    public MergeResultCache(XmlDocumentMerger xmlDocumentMerger, long maxBytes) {
+        this(xmlDocumentMerger, maxBytes, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+    }
+
+    /**
+     * @param xmlDocumentMerger merges the sources that are not cached
+     * @param maxBytes          the maximum total size of the cached results
+     * @param executor          parses the sources of a miss, see {@link XmlDocumentMerger#mergeStreams}
+     */
+    public MergeResultCache(XmlDocumentMerger xmlDocumentMerger, long maxBytes, Executor executor) {
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("maxBytes must be at least 1");
+        }
+        this.xmlDocumentMerger = xmlDocumentMerger;
+        this.maxBytes = maxBytes;
+        this.executor = executor;
+    }
+
+    /**
+     * returns the merge of the sources, from the cache if the same plan merged the same content before
+     *
+     * @param mergePlan The compiled rules
+     * @param sources   the content of the documents to combine. The keys are the source names used in the rules
+     * @return the combined document as UTF-8 XML, or null if the merge generated an empty document. The array must not
+     * be modified
+     * @throws RuntimeException if a source can not be parsed
+     */
+    public byte[] merge(MergePlan mergePlan, Map<String, byte[]> sources) {
+        Key key = new Key(mergePlan, hash(sources));
+        synchronized (results) {
+            byte[] result = results.get(key);
+            if (result != null) {
+                hits++;
+                return result.length > 0 ? result : null;
+            }
+            misses++;
+        }
+
+        Map<String, InputStream> sourceStreams = new LinkedHashMap<>();
+        for (Map.Entry<String, byte[]> source : sources.entrySet()) {
+            sourceStreams.put(source.getKey(), new ByteArrayInputStream(source.getValue()));
+        }
+        Document trustedDocument = xmlDocumentMerger.mergeStreams(mergePlan, sourceStreams, executor);
+        byte[] result = trustedDocument != null ? serialize(trustedDocument) : EMPTY;
+        put(key, result);
+        return result.length > 0 ? result : null;
+    }
+
+    /**
+     * reads the source files and merges them, see {@link #merge(MergePlan, Map)}
+     *
+     * @throws RuntimeException if a source can not be read or parsed
+     */
+    public byte[] mergeFiles(MergePlan mergePlan, Map<String, Path> sourceFiles) {
+        Map<String, byte[]> sources = new LinkedHashMap<>();
+        for (Map.Entry<String, Path> sourceFile : sourceFiles.entrySet()) {
+            try {
+                sources.put(sourceFile.getKey(), Files.readAllBytes(sourceFile.getValue()));
+            } catch (IOException e) {
+                throw new RuntimeException("error reading source " + sourceFile.getKey(), e);
+            }
+        }
+        return merge(mergePlan, sources);
+    }
+
+    public int size() {
+        synchronized (results) {
+            return results.size();
+        }
+    }
+
+    /**
+     * @return the approximate heap taken by the cached results
+     */
+    public long getBytes() {
+        synchronized (results) {
+            return bytes;
+        }
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getHits() {
+        synchronized (results) {
+            return hits;
+        }
+    }
+
+    public long getMisses() {
+        synchronized (results) {
+            return misses;
+        }
+    }
+
+    public long getEvictions() {
+        synchronized (results) {
+            return evictions;
+        }
+    }
+
+    public void clear() {
+        synchronized (results) {
+            results.clear();
+            bytes = 0;
+        }
+    }
+
+    private void put(Key key, byte[] result) {
+        long entryBytes = result.length + ENTRY_OVERHEAD;
+        if (entryBytes > maxBytes) {
+            LOG.fine("merge result of " + result.length + " bytes is larger than the cache, not cached");
+            return;
+        }
+        synchronized (results) {
+            byte[] previous = results.put(key, result);
+            if (previous != null) {
+                // merged concurrently by another thread
+                bytes -= previous.length + ENTRY_OVERHEAD;
+            }
+            bytes += entryBytes;
+            Iterator<byte[]> eldest = results.values().iterator();
+            while (bytes > maxBytes) {
+                bytes -= eldest.next().length + ENTRY_OVERHEAD;
+                eldest.remove();
+                evictions++;
+            }
+        }
+    }
+
+    private static byte[] serialize(Document document) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            TRANSFORMER.get().transform(new DOMSource(document), new StreamResult(out));
+        } catch (TransformerException e) {
+            throw new RuntimeException("error serializing merge result", e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * hashes the sources in name order: name, length and content of each
+     */
+    private static byte[] hash(Map<String, byte[]> sources) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 not available", e);
+        }
+        byte[] length = new byte[8];
+        for (Map.Entry<String, byte[]> source : new TreeMap<>(sources).entrySet()) {
+            byte[] name = source.getKey().getBytes(StandardCharsets.UTF_8);
+            digest.update(toBytes(name.length, length));
+            digest.update(name);
+            digest.update(toBytes(source.getValue().length, length));
+            digest.update(source.getValue());
+        }
+        return digest.digest();
+    }
+
+    private static byte[] toBytes(long value, byte[] bytes) {
+        for (int i = 0; i < 8; i++) {
+            bytes[i] = (byte) (value >>> (56 - 8 * i));
+        }
+        return bytes;
+    }
+
+    private static final class Key {
+        private final MergePlan mergePlan;
+        private final byte[] digest;
+        private final int hashCode;
+
+        Key(MergePlan mergePlan, byte[] digest) {
+            this.mergePlan = mergePlan;
+            this.digest = digest;
+            this.hashCode = 31 * System.identityHashCode(mergePlan) + Arrays.hashCode(digest);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return mergePlan == other.mergePlan && Arrays.equals(digest, other.digest);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
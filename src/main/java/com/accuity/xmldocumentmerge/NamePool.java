@@ -0,0 +1,63 @@
+package com.accuity.xmldocumentmerge;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Interns the element and attribute names of {@link CompactTree}s as small consecutive ints, so trees store and compare
+ * names as ints. Trees that are merged with each other must share a pool, typically one pool per batch or per
+ * thread, since a pool keeps every name it was given.
+ * <p>
+ * A pool is thread-safe: sources can be parsed into trees of the same pool concurrently.
+ */
+public final class NamePool {
+
+    private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] names = new String[64];
+    private int size;
+
+    /**
+     * @return the id of the name, added to the pool if it is new
+     */
+    public int intern(String name) {
+        Integer id = ids.get(name);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = ids.get(name);
+            if (id == null) {
+                String[] current = names;
+                if (size == current.length) {
+                    current = Arrays.copyOf(current, size * 2);
+                }
+                current[size] = name;
+                names = current;
+                id = size++;
+                // published after the name, so whoever gets the id can read the name
+                ids.put(name, id);
+            }
+            return id;
+        }
+    }
+
+    /**
+     * @return the id of the name, or -1 if the pool does not have it
+     */
+    public int get(String name) {
+        Integer id = ids.get(name);
+        return id != null ? id : -1;
+    }
+
+    public String getName(int id) {
+        return names[id];
+    }
+
+    /**
+     * @return the number of names, all ids are below it
+     */
+    public int size() {
+        return ids.size();
+    }
+}
@@ -0,0 +1,218 @@
+package com.accuity.xmldocumentmerge;
+
+import com.accuity.xmldocumentmerge.model.Source;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Logger;
+
+/**
+ * A RuleProcessor that processes the child rules of the docroot rule concurrently, when the plan proves they touch
+ * disjoint parts of the documents (see {@link CompiledRule#getSection()}).
+ * <p>
+ * Consecutive child rules with a section are grouped by section. The groups run in parallel on the pool, the rules of a
+ * group in rule order. A rule without a section is processed on the calling thread after all rules before it and
+ * before all rules after it. The trusted document is therefore the same as the one built by the sequential
+ * RuleProcessor.
+ * <p>
+ * DOM documents are not thread-safe, even for reads, so every group works on documents of its own. On the calling thread,
+ * the section elements of the trusted document are moved into a private document and the section elements of every source
+ * are copied into private documents. The merged sections are moved back in place once all groups are done. The source
+ * copies are made sequentially, so parallel processing pays off when the rules of a section do more work than a copy of
+ * it: many sources, coalesce keys, nested child rules. Only the sources the rules of a section trust are copied, so
+ * sources no rule reads are not loaded from a {@link LazySourceDocuments}.
+ */
+public class ParallelRuleProcessor extends RuleProcessor {
+    private final static Logger LOG = Logger.getLogger(ParallelRuleProcessor.class.getName());
+
+    private final ForkJoinPool pool;
+
+    public ParallelRuleProcessor(ForkJoinPool pool) {
+        this(new MergePlanCompiler(), MergeMetrics.DISABLED, pool);
+    }
+
+    /**
+     * @param mergePlanCompiler compiles the rules that are not already compiled
+     * @param mergeMetrics      receives the metrics of every rule processed
+     * @param pool              processes the sections of the docroot rule
+     */
+    public ParallelRuleProcessor(MergePlanCompiler mergePlanCompiler, MergeMetrics mergeMetrics, ForkJoinPool pool) {
+        super(mergePlanCompiler, mergeMetrics);
+        this.pool = pool;
+    }
+
+    @Override
+    protected void processChildRules(CompiledRule compiledRule, Document trustedDocument, Map<String, Document> sourceDocuments) {
+        if (!compiledRule.isDocRoot() || trustedDocument.getDocumentElement() == null) {
+            super.processChildRules(compiledRule, trustedDocument, sourceDocuments);
+            return;
+        }
+        Map<String, List<CompiledRule>> sections = new LinkedHashMap<>();
+        for (CompiledRule subRule : compiledRule.getChildren()) {
+            if (subRule.getSection() != null) {
+                List<CompiledRule> sectionRules = sections.get(subRule.getSection());
+                if (sectionRules == null) {
+                    sectionRules = new ArrayList<>();
+                    sections.put(subRule.getSection(), sectionRules);
+                }
+                sectionRules.add(subRule);
+            } else {
+                processSections(sections, trustedDocument, sourceDocuments);
+                sections.clear();
+                LOG.fine("processing rule without a section sequentially: " + subRule.getFullContextXPath());
+                processRule(subRule, trustedDocument, sourceDocuments);
+            }
+        }
+        processSections(sections, trustedDocument, sourceDocuments);
+    }
+
+    private void processSections(Map<String, List<CompiledRule>> sections, Document trustedDocument, Map<String, Document> sourceDocuments) {
+        if (sections.size() < 2) {
+            // nothing to run in parallel, don't bother copying
+            for (List<CompiledRule> sectionRules : sections.values()) {
+                for (CompiledRule sectionRule : sectionRules) {
+                    processRule(sectionRule, trustedDocument, sourceDocuments);
+                }
+            }
+            return;
+        }
+        final List<SectionTask> tasks = new ArrayList<>();
+        for (Map.Entry<String, List<CompiledRule>> section : sections.entrySet()) {
+            tasks.add(new SectionTask(section.getKey(), section.getValue(), trustedDocument, sourceDocuments));
+        }
+        LOG.fine("processing " + tasks.size() + " sections in parallel");
+        pool.invoke(new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+        for (SectionTask task : tasks) {
+            task.restore();
+        }
+    }
+
+    /**
+     * the rules of one section, with private copies of the section in the trusted document and in the sources
+     */
+    private final class SectionTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<CompiledRule> rules;
+        private final Document trustedDocument;
+        private final Document privateTrustedDocument;
+        private final Map<String, Document> privateSourceDocuments = new LinkedHashMap<>();
+        // take the place of the section elements in the trusted document while they are moved out
+        private final List<Node> placeholders = new ArrayList<>();
+
+        SectionTask(String section, List<CompiledRule> rules, Document trustedDocument, Map<String, Document> sourceDocuments) {
+            this.rules = rules;
+            this.trustedDocument = trustedDocument;
+            Element trustedRoot = trustedDocument.getDocumentElement();
+            privateTrustedDocument = newDocument(trustedDocument);
+            Node privateRoot = privateTrustedDocument.appendChild(privateTrustedDocument.importNode(trustedRoot, false));
+            Node next;
+            for (Node child = trustedRoot.getFirstChild(); child != null; child = next) {
+                next = child.getNextSibling();
+                if (isSection(child, section)) {
+                    Node placeholder = trustedDocument.createTextNode("");
+                    trustedRoot.replaceChild(placeholder, child);
+                    placeholders.add(placeholder);
+                    privateRoot.appendChild(move(privateTrustedDocument, child));
+                }
+            }
+            Set<String> trustedSourceNames = new LinkedHashSet<>();
+            for (CompiledRule rule : rules) {
+                addTrustedSourceNames(rule, trustedSourceNames);
+            }
+            for (String sourceName : trustedSourceNames) {
+                Document sourceDocument = sourceDocuments.get(sourceName);
+                if (sourceDocument != null) {
+                    privateSourceDocuments.put(sourceName, copySection(sourceDocument, section));
+                }
+            }
+        }
+
+        @Override
+        protected void compute() {
+            for (CompiledRule rule : rules) {
+                processRule(rule, privateTrustedDocument, privateSourceDocuments);
+            }
+        }
+
+        /**
+         * moves the merged section elements back into the trusted document. Rules with a section never add or remove
+         * the section elements themselves, only nodes inside them
+         */
+        void restore() {
+            List<Node> sectionElements = new ArrayList<>();
+            for (Node child = privateTrustedDocument.getDocumentElement().getFirstChild(); child != null; child = child.getNextSibling()) {
+                sectionElements.add(child);
+            }
+            for (int i = 0; i < placeholders.size(); i++) {
+                Node placeholder = placeholders.get(i);
+                placeholder.getParentNode().replaceChild(move(trustedDocument, sectionElements.get(i)), placeholder);
+            }
+        }
+    }
+
+    private static void addTrustedSourceNames(CompiledRule rule, Set<String> sourceNames) {
+        for (Source source : rule.getSources()) {
+            sourceNames.add(source.getName());
+        }
+        for (CompiledRule child : rule.getChildren()) {
+            addTrustedSourceNames(child, sourceNames);
+        }
+    }
+
+    /**
+     * @return a document with a copy of the source's root element (without children) and of the root's section elements
+     */
+    private static Document copySection(Document sourceDocument, String section) {
+        Document copy = newDocument(sourceDocument);
+        Element sourceRoot = sourceDocument.getDocumentElement();
+        if (sourceRoot != null) {
+            Node copyRoot = copy.appendChild(copy.importNode(sourceRoot, false));
+            for (Node child = sourceRoot.getFirstChild(); child != null; child = child.getNextSibling()) {
+                if (isSection(child, section)) {
+                    copyRoot.appendChild(copy.importNode(child, true));
+                }
+            }
+        }
+        return copy;
+    }
+
+    private static Document newDocument(Document like) {
+        return like.getImplementation().createDocument(null, null, null);
+    }
+
+    /**
+     * moves a node without a parent to another document, copying it if the DOM implementation can not adopt it
+     */
+    private static Node move(Document target, Node node) {
+        Node adopted = target.adoptNode(node);
+        return adopted != null ? adopted : target.importNode(node, true);
+    }
+
+    /**
+     * true for every element a path step of the section's name can match, whatever the namespace
+     */
+    private static boolean isSection(Node node, String section) {
+        if (node.getNodeType() != Node.ELEMENT_NODE) {
+            return false;
+        }
+        String nodeName = node.getNodeName();
+        return nodeName.equals(section) || nodeName.substring(nodeName.indexOf(':') + 1).equals(section);
+    }
+}
@@ -0,0 +1,25 @@
+package com.accuity.xmldocumentmerge;
+
+import javax.xml.xpath.XPathExpressionException;
+
+/**
+ * Compiles the paths of the rules: rule contexts with their filters, and the id paths of coalesce rules.
+ * <p>
+ * The {@link MergePlanCompiler} asks its evaluators in order and uses the first one that supports a path, so an
+ * evaluator for a subset of xpath can be put in front of a general one. Implementations must be thread-safe, and so
+ * must the paths they compile.
+ */
+public interface PathEvaluator {
+
+    /**
+     * @return a short name for log messages
+     */
+    String getName();
+
+    /**
+     * @param expression an xpath expression
+     * @return the compiled path, or null if this evaluator does not support the expression
+     * @throws XPathExpressionException if the expression is invalid
+     */
+    CompiledPath compile(String expression) throws XPathExpressionException;
+}
@@ -0,0 +1,101 @@
+package com.accuity.xmldocumentmerge;
+
+import java.util.AbstractMap;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The sources of one merge, numbered like the sources of the plan (see {@link CompiledRule#getSourceIndexes()}).
+ * Built once per merge and passed down the rules in place of the source map, so that a rule finds its sources by
+ * number and tests whether any of them is present with a single {@link BitSet#intersects}.
+ * <p>
+ * The map itself is an unmodifiable view of the sources it was built from. A source is only got from that map the first
+ * time a rule needs it, so the sources of a {@link LazySourceDocuments} that no rule reaches are never loaded.
+ */
+final class PresentSources<T> extends AbstractMap<String, T> {
+
+    // marks a present source not got from the map yet
+    private static final Object UNRESOLVED = new Object();
+
+    private final List<String> sourceNames;
+    private final Map<String, T> sources;
+    private final Object[] byIndex;
+    private final BitSet present;
+
+    private PresentSources(List<String> sourceNames, Map<String, ? extends T> sources) {
+        this.sourceNames = sourceNames;
+        this.sources = Collections.unmodifiableMap(sources);
+        this.byIndex = new Object[sourceNames.size()];
+        this.present = new BitSet(sourceNames.size());
+        for (int i = 0; i < byIndex.length; i++) {
+            String sourceName = sourceNames.get(i);
+            if (sources.containsKey(sourceName)) {
+                present.set(i);
+                byIndex[i] = UNRESOLVED;
+            }
+        }
+    }
+
+    /**
+     * @param sourceNames the source names of the plan, by number
+     * @return the sources, numbered by the names. The map itself if it was built for the same names
+     */
+    @SuppressWarnings("unchecked")
+    static <T> PresentSources<T> of(List<String> sourceNames, Map<String, ? extends T> sources) {
+        if (sources instanceof PresentSources && ((PresentSources<?>) sources).sourceNames == sourceNames) {
+            return (PresentSources<T>) sources;
+        }
+        return new PresentSources<>(sourceNames, sources);
+    }
+
+    /**
+     * @return true if any source of the mask is present, even with a null value
+     */
+    boolean containsAny(BitSet sourceMask) {
+        return present.intersects(sourceMask);
+    }
+
+    /**
+     * @return true if the source of this number is present, even with a null value
+     */
+    boolean isPresent(int index) {
+        return present.get(index);
+    }
+
+    /**
+     * @return the source of this number, or null if it is not present
+     */
+    @SuppressWarnings("unchecked")
+    T getSource(int index) {
+        Object source = byIndex[index];
+        if (source == UNRESOLVED) {
+            // a race only gets the same source twice
+            source = sources.get(sourceNames.get(index));
+            byIndex[index] = source;
+        }
+        return (T) source;
+    }
+
+    @Override
+    public T get(Object key) {
+        return sources.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return sources.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return sources.size();
+    }
+
+    @Override
+    public Set<Entry<String, T>> entrySet() {
+        return sources.entrySet();
+    }
+}
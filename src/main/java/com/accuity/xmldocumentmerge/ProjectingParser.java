@@ -0,0 +1,245 @@
+package com.accuity.xmldocumentmerge;
+
+import com.accuity.xmldocumentmerge.model.Source;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+/**
+ * Parses source documents keeping only the parts the rules of a plan read. The projection of a source is the set of
+ * paths of the rules that trust it: the elements matching one of those paths are kept with everything below them,
+ * their ancestors are kept with their attributes only, and everything else is skipped without building nodes. Merging
+ * the projected document gives the same trusted document as merging the whole one, while parse time and heap shrink
+ * with the share of the document no rule of the source reads. Like the documents parsed whole, projected documents
+ * are built without namespaces, see {@link FeedReader#copyStartTag}.
+ * <p>
+ * A source is parsed whole when the docroot rule trusts it, since the docroot merges whole documents, or when a rule
+ * trusting it is not an absolute {@link SimplePath} or has coalesce ids that are not relative simple paths.
+ * <p>
+ * A ProjectingParser is thread-safe.
+ */
+public class ProjectingParser {
+    private final static Logger LOG = Logger.getLogger(ProjectingParser.class.getName());
+
+    // the projection of sources parsed whole
+    private static final SimplePath[] WHOLE_DOCUMENT = new SimplePath[0];
+
+    private final MergePlan mergePlan;
+    private final DocumentBuilderPool documentBuilderPool;
+    private final XMLInputFactory inputFactory;
+    private final ConcurrentMap<String, SimplePath[]> projections = new ConcurrentHashMap<>();
+
+    /**
+     * @param mergePlan the rules the projections are derived from
+     */
+    public ProjectingParser(MergePlan mergePlan) {
+        this(mergePlan, new DocumentBuilderPool());
+    }
+
+    /**
+     * @param mergePlan           the rules the projections are derived from
+     * @param documentBuilderPool parses the sources that are not projected and creates the projected documents
+     */
+    public ProjectingParser(MergePlan mergePlan, DocumentBuilderPool documentBuilderPool) {
+        this.mergePlan = mergePlan;
+        this.documentBuilderPool = documentBuilderPool;
+        this.inputFactory = XMLInputFactory.newInstance();
+        this.inputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+    }
+
+    /**
+     * @return false if the source is parsed whole
+     */
+    public boolean isProjected(String sourceName) {
+        return projection(sourceName) != WHOLE_DOCUMENT;
+    }
+
+    /**
+     * parses the document of a source, keeping only what the rules trusting the source read
+     *
+     * @param sourceName    the name of the source in the rules
+     * @param inputStream   the document
+     * @throws IOException if the document can not be read or parsed
+     */
+    public Document parse(String sourceName, InputStream inputStream) throws IOException {
+        SimplePath[] paths = projection(sourceName);
+        try {
+            if (paths == WHOLE_DOCUMENT) {
+                return documentBuilderPool.parse(inputStream);
+            }
+            XMLStreamReader reader;
+            // factories are not thread-safe
+            synchronized (inputFactory) {
+                reader = inputFactory.createXMLStreamReader(inputStream);
+            }
+            try {
+                return parse(reader, paths);
+            } finally {
+                reader.close();
+            }
+        } catch (SAXException | XMLStreamException e) {
+            throw new IOException("error parsing source " + sourceName, e);
+        }
+    }
+
+    private SimplePath[] projection(String sourceName) {
+        SimplePath[] paths = projections.get(sourceName);
+        if (paths == null) {
+            List<SimplePath> trustedPaths = new ArrayList<>();
+            CompiledRule rootRule = mergePlan.getRootRule();
+            if (rootRule != null && !addTrustedPaths(rootRule, sourceName, trustedPaths)) {
+                LOG.fine("source " + sourceName + " is parsed whole");
+                paths = WHOLE_DOCUMENT;
+            } else {
+                LOG.fine("source " + sourceName + " is projected on " + trustedPaths.size() + " paths");
+                paths = trustedPaths.toArray(new SimplePath[trustedPaths.size()]);
+            }
+            projections.putIfAbsent(sourceName, paths);
+        }
+        return paths;
+    }
+
+    /**
+     * @return false if the source has to be parsed whole
+     */
+    private static boolean addTrustedPaths(CompiledRule rule, String sourceName, List<SimplePath> paths) {
+        for (Source source : rule.getSources()) {
+            if (source.getName().equals(sourceName)) {
+                SimplePath path = MergePlanCompiler.confinedPath(rule);
+                if (path == null) {
+                    return false;
+                }
+                paths.add(path);
+            }
+        }
+        for (CompiledRule child : rule.getChildren()) {
+            if (!addTrustedPaths(child, sourceName, paths)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * builds the projected document. Each open element that is not inside a kept subtree has the numbers of the paths
+     * whose steps it and its ancestors match; all paths are absolute child steps, so the element at depth d is matched
+     * against step d of those paths
+     */
+    private Document parse(XMLStreamReader reader, SimplePath[] paths) throws XMLStreamException {
+        Document document = documentBuilderPool.newDocument();
+        Node parent = document;
+        List<int[]> matching = new ArrayList<>();
+        int[] allPaths = new int[paths.length];
+        for (int p = 0; p < allPaths.length; p++) {
+            allPaths[p] = p;
+        }
+        String[] names = new String[8];
+        String[] values = new String[8];
+        int depth = 0;
+        // the depth of the element whose subtree is kept, 0 outside kept subtrees
+        int keptDepth = 0;
+        while (reader.hasNext()) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    if (keptDepth > 0) {
+                        parent = FeedReader.copyStartTag(reader, document, parent);
+                        depth++;
+                        break;
+                    }
+                    int[] candidates = depth == 0 ? allPaths : matching.get(depth - 1);
+                    int count = reader.getAttributeCount();
+                    if (names.length < count) {
+                        names = new String[count];
+                        values = new String[count];
+                    }
+                    for (int a = 0; a < count; a++) {
+                        names[a] = FeedReader.qualifiedName(reader.getAttributePrefix(a), reader.getAttributeLocalName(a));
+                        values[a] = reader.getAttributeValue(a);
+                    }
+                    String elementName = FeedReader.qualifiedName(reader.getPrefix(), reader.getLocalName());
+                    int[] matched = new int[candidates.length];
+                    int matchedCount = 0;
+                    boolean complete = false;
+                    for (int candidate : candidates) {
+                        List<SimplePath.Step> steps = paths[candidate].getSteps();
+                        if (steps.get(depth).matches(elementName, names, values, count)) {
+                            matched[matchedCount++] = candidate;
+                            complete |= steps.size() == depth + 1;
+                        }
+                    }
+                    if (matchedCount == 0 && depth > 0) {
+                        skipElement(reader);
+                        break;
+                    }
+                    // the document element is always kept
+                    parent = FeedReader.copyStartTag(reader, document, parent);
+                    depth++;
+                    matching.add(Arrays.copyOf(matched, matchedCount));
+                    if (complete) {
+                        keptDepth = depth;
+                    }
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    if (keptDepth == 0 || keptDepth == depth) {
+                        matching.remove(depth - 1);
+                        keptDepth = 0;
+                    }
+                    parent = parent.getParentNode();
+                    depth--;
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.SPACE:
+                    if (keptDepth > 0) {
+                        parent.appendChild(document.createTextNode(reader.getText()));
+                    }
+                    break;
+                case XMLStreamConstants.CDATA:
+                    if (keptDepth > 0) {
+                        parent.appendChild(document.createCDATASection(reader.getText()));
+                    }
+                    break;
+                case XMLStreamConstants.COMMENT:
+                    if (keptDepth > 0) {
+                        parent.appendChild(document.createComment(reader.getText()));
+                    }
+                    break;
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                    if (keptDepth > 0) {
+                        parent.appendChild(document.createProcessingInstruction(reader.getPITarget(), reader.getPIData()));
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return document;
+    }
+
+    /**
+     * reads up to the end tag of the element the reader is at
+     */
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+}
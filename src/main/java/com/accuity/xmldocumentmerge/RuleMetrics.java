@@ -0,0 +1,139 @@
+package com.accuity.xmldocumentmerge;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The metrics of one rule, accumulated over all merges. The latency of a rule is the time spent on the rule itself,
+ * without its child rules.
+ */
+public class RuleMetrics implements RuleMetricsMBean {
+
+    private final String rule;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final ConcurrentMap<String, LongAdder> matchedNodesBySource = new ConcurrentHashMap<>();
+    private final LongAdder importedNodes = new LongAdder();
+    private final LongAdder mergedNodes = new LongAdder();
+    private final LongAdder coalesceHits = new LongAdder();
+    private final LongAdder coalesceMisses = new LongAdder();
+
+    RuleMetrics(String rule) {
+        this.rule = rule;
+    }
+
+    void recordEvaluation(long nanos) {
+        latency.record(nanos);
+    }
+
+    void recordMatchedNodes(String source, int count) {
+        LongAdder matched = matchedNodesBySource.get(source);
+        if (matched == null) {
+            LongAdder created = new LongAdder();
+            matched = matchedNodesBySource.putIfAbsent(source, created);
+            if (matched == null) {
+                matched = created;
+            }
+        }
+        matched.add(count);
+    }
+
+    void recordImported() {
+        importedNodes.increment();
+    }
+
+    void recordMerged() {
+        mergedNodes.increment();
+    }
+
+    void recordCoalesce(boolean hit) {
+        if (hit) {
+            coalesceHits.increment();
+        } else {
+            coalesceMisses.increment();
+        }
+    }
+
+    /**
+     * @return the full context xpath of the rule
+     */
+    @Override
+    public String getRule() {
+        return rule;
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    @Override
+    public long getEvaluationCount() {
+        return latency.getCount();
+    }
+
+    @Override
+    public double getTotalLatencyMillis() {
+        return latency.getTotalNanos() / 1e6;
+    }
+
+    @Override
+    public double getLatencyP50Millis() {
+        return latency.getPercentileNanos(0.5) / 1e6;
+    }
+
+    @Override
+    public double getLatencyP95Millis() {
+        return latency.getPercentileNanos(0.95) / 1e6;
+    }
+
+    @Override
+    public double getLatencyP99Millis() {
+        return latency.getPercentileNanos(0.99) / 1e6;
+    }
+
+    @Override
+    public double getLatencyMaxMillis() {
+        return latency.getMaxNanos() / 1e6;
+    }
+
+    @Override
+    public Map<String, Long> getMatchedNodesBySource() {
+        Map<String, Long> matched = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : matchedNodesBySource.entrySet()) {
+            matched.put(entry.getKey(), entry.getValue().sum());
+        }
+        return matched;
+    }
+
+    @Override
+    public long getImportedNodes() {
+        return importedNodes.sum();
+    }
+
+    @Override
+    public long getMergedNodes() {
+        return mergedNodes.sum();
+    }
+
+    @Override
+    public long getCoalesceHits() {
+        return coalesceHits.sum();
+    }
+
+    @Override
+    public long getCoalesceMisses() {
+        return coalesceMisses.sum();
+    }
+
+    @Override
+    public void reset() {
+        latency.reset();
+        matchedNodesBySource.clear();
+        importedNodes.reset();
+        mergedNodes.reset();
+        coalesceHits.reset();
+        coalesceMisses.reset();
+    }
+}
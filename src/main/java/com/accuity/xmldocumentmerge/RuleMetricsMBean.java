@@ -0,0 +1,35 @@
+package com.accuity.xmldocumentmerge;
+
+import java.util.Map;
+
+/**
+ * JMX view of the metrics of one rule, see {@link RuleMetrics}
+ */
+public interface RuleMetricsMBean {
+
+    String getRule();
+
+    long getEvaluationCount();
+
+    double getTotalLatencyMillis();
+
+    double getLatencyP50Millis();
+
+    double getLatencyP95Millis();
+
+    double getLatencyP99Millis();
+
+    double getLatencyMaxMillis();
+
+    Map<String, Long> getMatchedNodesBySource();
+
+    long getImportedNodes();
+
+    long getMergedNodes();
+
+    long getCoalesceHits();
+
+    long getCoalesceMisses();
+
+    void reset();
+}
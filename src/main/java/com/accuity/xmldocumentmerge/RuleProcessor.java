@@ -9,42 +9,89 @@ import org.w3c.dom.NodeList;
 
 import javax.xml.xpath.*;
 import java.util.*;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Applies compiled rules to build the trusted document.
+ * <p>
+ * Concurrency: a RuleProcessor holds no per-merge state, so a single instance (and a single {@link MergePlan})
+ * can be used by any number of threads at once. Rule paths are evaluated by the {@link PathEvaluator}s of the plan's
+ * compiler, which are thread-safe. The documents are not shared: a trusted document and its source documents must only be
+ * used by one merge at a time, since DOM implementations are not thread-safe, even for reads.
+ */
 public class RuleProcessor {
 	private final static  Logger LOG = Logger.getLogger(RuleProcessor.class.getName());
 	private final DocumentNodeMerger documentNodeMerger = new DocumentNodeMerger();
-	private final XPathFactory xPathfactory = XPathFactory.newInstance();
-	private final XPath xpath = xPathfactory.newXPath();
+	private final MergePlanCompiler mergePlanCompiler;
+	private final MergeMetrics mergeMetrics;
+	private final boolean consumeSources;
 
+	public RuleProcessor() {
+		this(new MergePlanCompiler());
+	}
+
+	/**
+	 * @param mergePlanCompiler compiles the rules passed to {@link #processRule(Rule, Document, Map)}, and the ids
+	 *                          passed to {@link #buildKeyForNode(Node, List)}
+	 */
+	public RuleProcessor(MergePlanCompiler mergePlanCompiler) {
+		this(mergePlanCompiler, MergeMetrics.DISABLED);
+	}
+
+	/**
+	 * @param mergePlanCompiler compiles the rules passed to {@link #processRule(Rule, Document, Map)}, and the ids
+	 *                          passed to {@link #buildKeyForNode(Node, List)}
+	 * @param mergeMetrics      receives the metrics of every rule processed
+	 */
+	public RuleProcessor(MergePlanCompiler mergePlanCompiler, MergeMetrics mergeMetrics) {
+		this(mergePlanCompiler, mergeMetrics, false);
+	}
+
+	/**
+	 * @param mergePlanCompiler compiles the rules passed to {@link #processRule(Rule, Document, Map)}, and the ids
+	 *                          passed to {@link #buildKeyForNode(Node, List)}
+	 * @param mergeMetrics      receives the metrics of every rule processed
+	 * @param consumeSources    move source nodes into the trusted document instead of copying them, where no later rule
+	 *                          reads them (see {@link CompiledRule#isConsumable(String)}). The moved nodes are removed from
+	 *                          the source documents, which are left incomplete: use them for nothing after the merge.
+	 *                          Sources that are never consumed are not changed
+	 */
+	public RuleProcessor(MergePlanCompiler mergePlanCompiler, MergeMetrics mergeMetrics, boolean consumeSources) {
+		this.mergePlanCompiler = mergePlanCompiler;
+		this.mergeMetrics = mergeMetrics;
+		this.consumeSources = consumeSources;
+	}
+
+	/**
+	 * compiles the rule (and its child rules) and processes it. Prefer {@link #processRule(CompiledRule, Document, Map)}
+	 * with a rule from a {@link MergePlan} when the same rules are used for more than one merge.
+	 */
 	public Document processRule(Rule rule, Document trustedDocument, Map<String, Document> sourceDocuments) {
-		List<Source> ruleSources = calculateSourcesToUseForRule(rule);
+		return processRule(mergePlanCompiler.compileRule(rule), trustedDocument, sourceDocuments);
+	}
+
+	public Document processRule(CompiledRule compiledRule, Document trustedDocument, Map<String, Document> sourceDocuments) {
+		Rule rule = compiledRule.getRule();
+		// numbered once per merge: the child rules are given the same instance
+		PresentSources<Document> presentSources = PresentSources.of(compiledRule.getSourceNames(), sourceDocuments);
+		// null when metrics are disabled
+		RuleMetrics ruleMetrics = mergeMetrics.isEnabled() ? mergeMetrics.getRuleMetrics(rule.getFullContextXPath()) : null;
+		long startNanos = ruleMetrics != null ? System.nanoTime() : 0;
 
 		// docroot rule
-		if (rule.getParentRule() == null) {
-			// at the doc root
-			for (Source source : ruleSources) {
-				if (sourceDocuments.containsKey(source.getName())) {
-					if (trustedDocument.getDocumentElement() == null) {
-						Node newRootNode = trustedDocument.importNode(sourceDocuments.get(source.getName()).getDocumentElement(), true);
-						trustedDocument.appendChild(newRootNode);
-					} else {
-						if (rule.getField() == null || !rule.getField().isStop()) {
-							documentNodeMerger.mergeNodeChildren(trustedDocument.getDocumentElement(), sourceDocuments.get(source.getName()).getDocumentElement());
-						}
-					}
-				}
-			}
+		if (compiledRule.isDocRoot()) {
+			processDocRoot(compiledRule, trustedDocument, presentSources, ruleMetrics);
 		} else {
 			try {
 				// simple field / sub-field / coalesce
 
 				// xpath for rule
 				LOG.fine("processing rule for xpath: " + rule.getFullContextXPath());
-				XPathExpression ruleXpath = xpath.compile(rule.getFullContextXPath());
+				CompiledPath ruleXpath = compiledRule.getRuleXPath();
 
 				// find the node in trusted doc
-				NodeList nl = (NodeList) ruleXpath.evaluate(trustedDocument, XPathConstants.NODESET);
+				NodeList nl = ruleXpath.evaluateNodes(trustedDocument);
 				LOG.fine(nl.getLength() + " existing matching nodes found in trusted document.");
 				// remove nodes from trusted doc
 				// this assumes all matches have the same parent
@@ -58,11 +105,9 @@ public class RuleProcessor {
 
 				if (trustedParentNode == null) {
 					// remove filter and try to find nodes. if we do, use those nodes' parent
-					if (rule.getFilter() != null && !rule.getFilter().isEmpty()) {
-						String filterlessXpath = rule.getParentRule().getFullContextXPath() + "/" + rule.getContext();
-						XPathExpression filterlessXpathExpression = xpath.compile(filterlessXpath);
-						NodeList filterlessParentNodes = (NodeList) filterlessXpathExpression.evaluate(trustedDocument, XPathConstants.NODESET);
-						LOG.fine(filterlessParentNodes.getLength() + " nodes found by removing filter: " + filterlessXpath);
+					if (compiledRule.getFilterlessXPath() != null) {
+						NodeList filterlessParentNodes = compiledRule.getFilterlessXPath().evaluateNodes(trustedDocument);
+						LOG.fine(filterlessParentNodes.getLength() + " nodes found by removing filter: " + compiledRule.getFilterlessXPath());
 						if (filterlessParentNodes.getLength() > 0) {
 							trustedParentNode = filterlessParentNodes.item(0).getParentNode();
 						}
@@ -74,69 +119,7 @@ public class RuleProcessor {
 					// OR when a subrule has a trusted source which contains data on a node, and that node does not exist in any of the sources in the parent rules
 					LOG.info("no parent node found in trusted document for xpath " + rule.getFullContextXPath() + ". skipping rule.");
 				} else {                	
-					//pre-process coalesce trusted document rule
-					Map<String, Node> coalesceMatches = new HashMap<>();
-					
-					// process sources in order of trustworthyness
-					for (Source source : ruleSources) {
-						int startingNumberOfTrustedNodes = ((NodeList) ruleXpath.evaluate(trustedDocument, XPathConstants.NODESET)).getLength();
-						String trustedSourceName = source.getName();
-						if (sourceDocuments.containsKey(trustedSourceName)) {
-							Document sourceDocument = sourceDocuments.get(trustedSourceName);
-							// get nodes from this source matching the rule xpath
-							NodeList sourceNodes = (NodeList) ruleXpath.evaluate(sourceDocument, XPathConstants.NODESET);
-							LOG.fine(sourceNodes.getLength() + " matching nodes found in " + source.getName() + " document.");
-							if (sourceNodes.getLength() > 0) {
-								// there might be multiple matches
-								for (int i = 0; i < sourceNodes.getLength(); i++) {
-									boolean ignore = false;
-									String newKey = null;
-
-									Node sourceNode = sourceNodes.item(i);
-									Node matchingTrustedNode = null;
-									if (rule.getField() != null && rule.getField().isCoalesce()) {
-										if (rule.getField().getIds() != null) {
-											// coalesce match rules
-											newKey = buildKeyForNode(sourceNode, rule.getField().getIds());
-											LOG.fine("Key for foreign node is " + newKey);
-
-											if (coalesceMatches.containsKey(newKey)) {
-												LOG.fine("matching key found. should merge instead of coalesce");
-												matchingTrustedNode = coalesceMatches.get(newKey);
-											}
-										}
-									} else {
-										if (startingNumberOfTrustedNodes > 0 && startingNumberOfTrustedNodes < i + 1) {
-											// if there are more copies of this node in the source than in trusted, ignore the extras
-											ignore = true;
-										} else {
-											// fall back on matching based on xpath match and position
-											NodeList trustedNodes = (NodeList) ruleXpath.evaluate(trustedDocument, XPathConstants.NODESET);
-											matchingTrustedNode = trustedNodes.item(i);
-										}
-
-									}
-
-									if (matchingTrustedNode == null) {
-										if (!ignore) {
-											LOG.fine("importing " + sourceNode.getNodeName() + " node from " + source.getName());
-											Node newNode = trustedDocument.importNode(sourceNode, true);
-											newNode = trustedParentNode.appendChild(newNode);
-											//add new trusted node to coalesce map
-											if (newKey != null) {
-												coalesceMatches.put(newKey, newNode);
-											}
-										}
-									} else {
-										if (rule.getField() == null || !rule.getField().isStop()) {
-											LOG.fine("merging " + sourceNode.getNodeName() + " node from " + source.getName());
-											documentNodeMerger.mergeNodeChildren(matchingTrustedNode, sourceNode);
-										}
-									}
-								}
-							}
-						}
-					}
+					importMatches(compiledRule, trustedParentNode, trustedDocument, presentSources, ruleMetrics);
 				}
 			} catch (XPathExpressionException e) {
 				e.printStackTrace();
@@ -144,24 +127,22 @@ public class RuleProcessor {
 		}
 
 
+		if (ruleMetrics != null) {
+			// the rule's own time, its child rules record theirs
+			ruleMetrics.recordEvaluation(System.nanoTime() - startNanos);
+		}
+
 		// process child rules
 		boolean processChildRules = rule.getRules() != null;
 		// if there are no trusted documents according to the trust levels of this rule, don't bother processing child rules.
-		boolean hasTrustedDocument = false;
-		for (Source source : ruleSources) {
-			if (sourceDocuments.containsKey(source.getName())) {
-				hasTrustedDocument = true;
-			}
-		}
+		boolean hasTrustedDocument = presentSources.containsAny(compiledRule.getSourceMask());
 		if (!hasTrustedDocument) {
 			processChildRules = false;
 		}
 		if (processChildRules) {
 			// according to ben, stop rules should never have sub rules, so to avoid unexpected behavior, we should not process them.
 			if (rule.getField() == null || !rule.getField().isStop()) {
-				for (Rule subRule : rule.getRules()) {
-					processRule(subRule, trustedDocument, sourceDocuments);
-				}
+				processChildRules(compiledRule, trustedDocument, presentSources);
 			} else {
 				LOG.warning("stop rule at " + rule.getFullContextXPath() + " has children. Ignoring these.");
 			}
@@ -170,56 +151,312 @@ public class RuleProcessor {
 	}
 
 	/**
-	 * builds a key for a node. This is used for matching nodes of the same name
-	 * @param node
-	 * @param ids
-	 * @return
-	 * @throws XPathExpressionException
+	 * builds the root of the trusted document from the sources of the docroot rule: the most trusted source's document
+	 * element, with the other sources merged into it unless the rule is a stop rule
 	 */
-	String buildKeyForNode(Node node, List<Id> ids) throws XPathExpressionException {
-		StringBuilder compoundKey = new StringBuilder();
-		for (Id id : ids) {
-			String idXPath = id.getPath();
-			XPathExpression idPathExpression = xpath.compile(idXPath);
-			NodeList keyNodes = (NodeList) idPathExpression.evaluate(node, XPathConstants.NODESET);
-			Node firstKeyNode = keyNodes.item(0);
-			if (firstKeyNode != null) {
-				if (firstKeyNode.getNodeType() == Node.ATTRIBUTE_NODE) {
-					compoundKey.append(firstKeyNode.getNodeValue());
+	protected void processDocRoot(CompiledRule compiledRule, Document trustedDocument, Map<String, Document> sourceDocuments, RuleMetrics ruleMetrics) {
+		Rule rule = compiledRule.getRule();
+		List<Source> ruleSources = compiledRule.getSources();
+		PresentSources<Document> presentSources = PresentSources.of(compiledRule.getSourceNames(), sourceDocuments);
+		int[] sourceIndexes = compiledRule.getSourceIndexes();
+		// at the doc root
+		for (int s = 0; s < sourceIndexes.length; s++) {
+			if (presentSources.isPresent(sourceIndexes[s])) {
+				boolean consume = consumeSources && compiledRule.isConsumable(ruleSources.get(s).getName());
+				if (trustedDocument.getDocumentElement() == null) {
+					Document sourceDocument = presentSources.getSource(sourceIndexes[s]);
+					Node newRootNode = DocumentNodeMerger.transfer(trustedDocument, sourceDocument.getDocumentElement(), consume);
+					trustedDocument.appendChild(newRootNode);
+					if (ruleMetrics != null) {
+						ruleMetrics.recordImported();
+					}
 				} else {
-					compoundKey.append(firstKeyNode.getTextContent());
+					// the sources shadowed by a stop rule are not even loaded
+					if (rule.getField() == null || !rule.getField().isStop()) {
+						Document sourceDocument = presentSources.getSource(sourceIndexes[s]);
+						documentNodeMerger.mergeNodeChildren(trustedDocument.getDocumentElement(), sourceDocument.getDocumentElement(), consume);
+						if (ruleMetrics != null) {
+							ruleMetrics.recordMerged();
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * imports the matches of a rule's sources under the trusted parent node, once the matches of the trusted document are
+	 * removed. The result depends only on the rule and the documents of its sources
+	 *
+	 * @param ruleMetrics null when metrics are disabled
+	 * @return the imported nodes, in document order
+	 */
+	protected List<Node> importMatches(CompiledRule compiledRule, Node trustedParentNode, Document trustedDocument,
+									   Map<String, Document> sourceDocuments, RuleMetrics ruleMetrics) throws XPathExpressionException {
+		Rule rule = compiledRule.getRule();
+		List<Source> ruleSources = compiledRule.getSources();
+		CompiledPath ruleXpath = compiledRule.getRuleXPath();
+		//pre-process coalesce trusted document rule. created for the first source with matches
+		Map<CompositeKey, Node> coalesceMatches = null;
+		// the nodes of the trusted document matching the rule xpath, in document order. all existing matches
+		// were removed above, so these are exactly the nodes imported below, appended to the same parent
+		List<Node> trustedMatches = new ArrayList<>();
+
+		PresentSources<Document> presentSources = PresentSources.of(compiledRule.getSourceNames(), sourceDocuments);
+		int[] sourceIndexes = compiledRule.getSourceIndexes();
+		// process sources in order of trustworthyness
+		// once a stop rule has matches, the less trusted sources can only match or add extra copies, which are ignored
+		boolean positionalStop = rule.getField() != null && rule.getField().isStop() && !rule.getField().isCoalesce();
+		for (int s = 0; s < sourceIndexes.length; s++) {
+			Source source = ruleSources.get(s);
+			int startingNumberOfTrustedNodes = trustedMatches.size();
+			if (positionalStop && startingNumberOfTrustedNodes > 0) {
+				break;
+			}
+			String trustedSourceName = source.getName();
+			boolean consume = consumeSources && compiledRule.isConsumable(trustedSourceName);
+			if (presentSources.isPresent(sourceIndexes[s])) {
+				Document sourceDocument = presentSources.getSource(sourceIndexes[s]);
+				// get nodes from this source matching the rule xpath
+				NodeList sourceNodes = ruleXpath.evaluateNodes(sourceDocument);
+				LOG.fine(sourceNodes.getLength() + " matching nodes found in " + source.getName() + " document.");
+				if (ruleMetrics != null) {
+					ruleMetrics.recordMatchedNodes(trustedSourceName, sourceNodes.getLength());
+				}
+				if (sourceNodes.getLength() > 0) {
+					if (coalesceMatches == null && compiledRule.getKeyExtractor() != null) {
+						// sized for the matches of the most trusted source, most keys of the others merge into them
+						coalesceMatches = new HashMap<>(Math.max(16, (int) (sourceNodes.getLength() / 0.75f) + 1));
+					}
+					// there might be multiple matches
+					for (int i = 0; i < sourceNodes.getLength(); i++) {
+						boolean ignore = false;
+						CompositeKey newKey = null;
+
+						Node sourceNode = sourceNodes.item(i);
+						Node matchingTrustedNode = null;
+						if (rule.getField() != null && rule.getField().isCoalesce()) {
+							if (compiledRule.getKeyExtractor() != null) {
+								// coalesce match rules
+								newKey = compiledRule.getKeyExtractor().extract(sourceNode);
+								LOG.log(Level.FINE, "Key for foreign node is {0}", newKey);
+
+								matchingTrustedNode = coalesceMatches.get(newKey);
+								if (matchingTrustedNode != null) {
+									LOG.fine("matching key found. should merge instead of coalesce");
+								}
+								if (ruleMetrics != null) {
+									ruleMetrics.recordCoalesce(matchingTrustedNode != null);
+								}
+							}
+						} else {
+							if (startingNumberOfTrustedNodes > 0 && startingNumberOfTrustedNodes < i + 1) {
+								// if there are more copies of this node in the source than in trusted, ignore the extras
+								ignore = true;
+							} else if (i < startingNumberOfTrustedNodes) {
+								// fall back on matching based on xpath match and position
+								matchingTrustedNode = trustedMatches.get(i);
+							}
+
+						}
+
+						if (matchingTrustedNode == null) {
+							if (!ignore) {
+								LOG.fine("importing " + sourceNode.getNodeName() + " node from " + source.getName());
+								Node newNode = DocumentNodeMerger.transfer(trustedDocument, sourceNode, consume);
+								newNode = trustedParentNode.appendChild(newNode);
+								trustedMatches.add(newNode);
+								if (ruleMetrics != null) {
+									ruleMetrics.recordImported();
+								}
+								//add new trusted node to coalesce map
+								if (newKey != null) {
+									coalesceMatches.put(newKey, newNode);
+								}
+							}
+						} else {
+							if (rule.getField() == null || !rule.getField().isStop()) {
+								LOG.fine("merging " + sourceNode.getNodeName() + " node from " + source.getName());
+								documentNodeMerger.mergeNodeChildren(matchingTrustedNode, sourceNode, consume);
+								if (ruleMetrics != null) {
+									ruleMetrics.recordMerged();
+								}
+							}
+						}
+					}
 				}
 			}
-			compoundKey.append(";");
 		}
-		return compoundKey.toString();
+		return trustedMatches;
+	}
+
+	/**
+	 * processes a rule on compact trees, the same way as on DOM documents. The sources can be compact trees or
+	 * {@link MappedXmlIndex}es, they must share the trusted tree's name pool
+	 *
+	 * @throws IllegalArgumentException if the rule or one of its child rules is not supported on compact trees
+	 * (paths outside the {@link SimplePath} subset)
+	 */
+	public CompactTree processRule(CompiledRule compiledRule, CompactTree trustedTree, Map<String, ? extends CompactSource> sourceTrees) {
+		if (!compiledRule.isCompactTreeSupported()) {
+			throw new IllegalArgumentException("rule " + compiledRule.getFullContextXPath() + " can not be processed on compact trees");
+		}
+		processCompactRule(compiledRule, trustedTree, PresentSources.<CompactSource>of(compiledRule.getSourceNames(), sourceTrees),
+				new ArrayList<DocumentNodeMerger.CompactChildIndex>());
+		return trustedTree;
 	}
 
-	List<Source> calculateSourcesToUseForRule(Rule rule) {
-		List<Source> sources = null;
-		Rule ruleToUse = rule;
-		while (sources == null && ruleToUse != null) {
-			if (ruleToUse.getWeighting() != null && ruleToUse.getWeighting().getSources() != null) {
-				sources = ruleToUse.getWeighting().getSources();
+	/**
+	 * @param mergeLevels the indexes of the node merger, shared by all the rules of a merge
+	 */
+	private void processCompactRule(CompiledRule compiledRule, CompactTree trustedTree, PresentSources<CompactSource> sourceTrees,
+									List<DocumentNodeMerger.CompactChildIndex> mergeLevels) {
+		Rule rule = compiledRule.getRule();
+		List<Source> ruleSources = compiledRule.getSources();
+		// null when metrics are disabled
+		RuleMetrics ruleMetrics = mergeMetrics.isEnabled() ? mergeMetrics.getRuleMetrics(rule.getFullContextXPath()) : null;
+		long startNanos = ruleMetrics != null ? System.nanoTime() : 0;
+
+		int[] sourceIndexes = compiledRule.getSourceIndexes();
+		if (compiledRule.isDocRoot()) {
+			for (int s = 0; s < sourceIndexes.length; s++) {
+				CompactSource sourceTree = sourceTrees.getSource(sourceIndexes[s]);
+				if (sourceTree != null && sourceTree.getDocumentElement() != CompactTree.NONE) {
+					if (trustedTree.getDocumentElement() == CompactTree.NONE) {
+						trustedTree.appendChild(0, sourceTree.copyTo(trustedTree, sourceTree.getDocumentElement()));
+						if (ruleMetrics != null) {
+							ruleMetrics.recordImported();
+						}
+					} else if (!compiledRule.isStop()) {
+						documentNodeMerger.mergeNodeChildren(trustedTree, trustedTree.getDocumentElement(), sourceTree, sourceTree.getDocumentElement(), mergeLevels);
+						if (ruleMetrics != null) {
+							ruleMetrics.recordMerged();
+						}
+					}
+				}
+			}
+		} else {
+			LOG.fine("processing rule on compact trees for xpath: " + rule.getFullContextXPath());
+			CompactPath rulePath = compiledRule.getCompactRulePath();
+			IntList existingMatches = new IntList();
+			rulePath.select(trustedTree, 0, existingMatches);
+			// remove nodes from trusted tree. this assumes all matches have the same parent
+			int trustedParentNode = CompactTree.NONE;
+			for (int i = 0; i < existingMatches.size(); i++) {
+				trustedParentNode = trustedTree.getParent(existingMatches.get(i));
+				trustedTree.removeChild(existingMatches.get(i));
+			}
+			if (trustedParentNode == CompactTree.NONE && compiledRule.getCompactFilterlessPath() != null) {
+				int filterlessNode = compiledRule.getCompactFilterlessPath().selectFirst(trustedTree, 0);
+				if (filterlessNode != CompactTree.NONE) {
+					trustedParentNode = trustedTree.getParent(filterlessNode);
+				}
+			}
+
+			if (trustedParentNode == CompactTree.NONE) {
+				LOG.info("no parent node found in trusted document for xpath " + rule.getFullContextXPath() + ". skipping rule.");
 			} else {
-				if (ruleToUse.getParentRule() != null) {
-					ruleToUse = ruleToUse.getParentRule();
-				} else {
-					sources = new ArrayList<>();
+				KeyExtractor keyExtractor = compiledRule.getKeyExtractor();
+				Map<CompositeKey, Integer> coalesceMatches = null;
+				IntList trustedMatches = new IntList();
+				IntList sourceNodes = new IntList();
+				for (int s = 0; s < sourceIndexes.length; s++) {
+					Source source = ruleSources.get(s);
+					int startingNumberOfTrustedNodes = trustedMatches.size();
+					CompactSource sourceTree = sourceTrees.getSource(sourceIndexes[s]);
+					if (sourceTree != null) {
+						sourceNodes.clear();
+						rulePath.select(sourceTree, 0, sourceNodes);
+						if (ruleMetrics != null) {
+							ruleMetrics.recordMatchedNodes(source.getName(), sourceNodes.size());
+						}
+						if (coalesceMatches == null && keyExtractor != null && sourceNodes.size() > 0) {
+							coalesceMatches = new HashMap<>(Math.max(16, (int) (sourceNodes.size() / 0.75f) + 1));
+						}
+						for (int i = 0; i < sourceNodes.size(); i++) {
+							boolean ignore = false;
+							CompositeKey newKey = null;
+							int sourceNode = sourceNodes.get(i);
+							int matchingTrustedNode = CompactTree.NONE;
+							if (compiledRule.isCoalesce()) {
+								if (keyExtractor != null) {
+									newKey = keyExtractor.extract(sourceTree, sourceNode);
+									Integer match = coalesceMatches.get(newKey);
+									matchingTrustedNode = match != null ? match : CompactTree.NONE;
+									if (ruleMetrics != null) {
+										ruleMetrics.recordCoalesce(match != null);
+									}
+								}
+							} else {
+								if (startingNumberOfTrustedNodes > 0 && startingNumberOfTrustedNodes < i + 1) {
+									// if there are more copies of this node in the source than in trusted, ignore the extras
+									ignore = true;
+								} else if (i < startingNumberOfTrustedNodes) {
+									matchingTrustedNode = trustedMatches.get(i);
+								}
+							}
+
+							if (matchingTrustedNode == CompactTree.NONE) {
+								if (!ignore) {
+									int newNode = sourceTree.copyTo(trustedTree, sourceNode);
+									trustedTree.appendChild(trustedParentNode, newNode);
+									trustedMatches.add(newNode);
+									if (ruleMetrics != null) {
+										ruleMetrics.recordImported();
+									}
+									if (newKey != null) {
+										coalesceMatches.put(newKey, newNode);
+									}
+								}
+							} else if (!compiledRule.isStop()) {
+								documentNodeMerger.mergeNodeChildren(trustedTree, matchingTrustedNode, sourceTree, sourceNode, mergeLevels);
+								if (ruleMetrics != null) {
+									ruleMetrics.recordMerged();
+								}
+							}
+						}
+					}
 				}
 			}
 		}
 
-		List<Source> trustedSources = new ArrayList<>();
+		if (ruleMetrics != null) {
+			ruleMetrics.recordEvaluation(System.nanoTime() - startNanos);
+		}
 
-		for (Source source : sources) {
-			if (source.getTrust() > 0) {
-				trustedSources.add(source);
+		if (rule.getRules() != null && sourceTrees.containsAny(compiledRule.getSourceMask())) {
+			if (!compiledRule.isStop()) {
+				for (CompiledRule subRule : compiledRule.getChildren()) {
+					processCompactRule(subRule, trustedTree, sourceTrees, mergeLevels);
+				}
+			} else {
+				LOG.warning("stop rule at " + rule.getFullContextXPath() + " has children. Ignoring these.");
 			}
 		}
+	}
 
-		Collections.sort(trustedSources);
-		return trustedSources;
+	/**
+	 * processes the child rules of a rule, one after the other in rule order
+	 */
+	protected void processChildRules(CompiledRule compiledRule, Document trustedDocument, Map<String, Document> sourceDocuments) {
+		for (CompiledRule subRule : compiledRule.getChildren()) {
+			processRule(subRule, trustedDocument, sourceDocuments);
+		}
+	}
 
+	/**
+	 * builds a key for a node. This is used for matching nodes of the same name.
+	 * The rules use a {@link KeyExtractor} compiled once per rule; this compiles the ids on every call.
+	 * @param node
+	 * @param ids
+	 * @return the value of each id, followed by ";"
+	 * @throws XPathExpressionException
+	 */
+	String buildKeyForNode(Node node, List<Id> ids) throws XPathExpressionException {
+		List<CompiledPath> idPaths = new ArrayList<>();
+		for (Id id : ids) {
+			idPaths.add(mergePlanCompiler.compile(id.getPath()));
+		}
+		return new KeyExtractor(idPaths).extract(node).toString();
 	}
 }
@@ -10,12 +10,33 @@ import java.io.InputStream;
  * Parses an inputStream into the Rules model to be passed into the XmlDocumentMerger
  */
 public class RulesParser {
+
+    /**
+     * creating a JAXBContext is expensive, so it is created on first use and shared: JAXBContext is thread-safe,
+     * only the unmarshallers are not
+     */
+    private static final class ContextHolder {
+        private static final JAXBContext CONTEXT;
+        private static final JAXBException ERROR;
+
+        static {
+            JAXBContext context = null;
+            JAXBException error = null;
+            try {
+                context = JAXBContext.newInstance(Rules.class);
+            } catch (JAXBException e) {
+                error = e;
+            }
+            CONTEXT = context;
+            ERROR = error;
+        }
+    }
+
     public Rules parse(InputStream inputStream) {
 
         Rules rules = null;
         try {
-            JAXBContext jaxbContext = JAXBContext.newInstance(Rules.class);
-            rules = (Rules) jaxbContext.createUnmarshaller().unmarshal(inputStream);
+            rules = (Rules) getJaxbContext().createUnmarshaller().unmarshal(inputStream);
         } catch (JAXBException e) {
             e.printStackTrace();
         }
@@ -24,4 +45,22 @@ public class RulesParser {
         }
         return rules;
     }
+
+    private static JAXBContext getJaxbContext() throws JAXBException {
+        if (ContextHolder.ERROR != null) {
+            throw ContextHolder.ERROR;
+        }
+        return ContextHolder.CONTEXT;
+    }
+
+    /**
+     * Parses an inputStream and compiles the rules into a MergePlan, which can be reused for any number of merges
+     *
+     * @param inputStream
+     * @return the compiled plan, or null if the rules could not be parsed
+     */
+    public MergePlan parsePlan(InputStream inputStream) {
+        Rules rules = parse(inputStream);
+        return rules != null ? new MergePlanCompiler().compile(rules) : null;
+    }
 }
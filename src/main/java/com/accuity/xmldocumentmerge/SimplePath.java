@@ -0,0 +1,253 @@
+package com.accuity.xmldocumentmerge;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The subset of xpath used by almost all rules: child steps by element name, each optionally filtered by
+ * attribute equality predicates, for example {@code /entity/addresses/address[@type = 'HQ']}, optionally ending with
+ * an attribute step as in the id paths of coalesce rules, for example {@code @type} or {@code code/@value}.
+ * <p>
+ * Paths in this subset can be evaluated without an xpath engine, by walking the tree or by matching start tags in a
+ * stream. {@link #parse(String)} returns null for anything outside the subset.
+ */
+final class SimplePath {
+
+    /**
+     * one step of the path: an element name and the attribute values it must have
+     */
+    static final class Step {
+        private final String name;
+        private final String[] attributeNames;
+        private final String[] attributeValues;
+
+        Step(String name, List<String> attributeNames, List<String> attributeValues) {
+            this.name = name;
+            this.attributeNames = attributeNames.toArray(new String[attributeNames.size()]);
+            this.attributeValues = attributeValues.toArray(new String[attributeValues.size()]);
+        }
+
+        String getName() {
+            return name;
+        }
+
+        String[] getAttributeNames() {
+            return attributeNames;
+        }
+
+        String[] getAttributeValues() {
+            return attributeValues;
+        }
+
+        /**
+         * @param elementName the qualified name of the element
+         * @param names the qualified names of the element's attributes
+         * @param values the values of the element's attributes
+         * @param count the number of attributes in names and values
+         */
+        boolean matches(String elementName, String[] names, String[] values, int count) {
+            if (!name.equals(elementName)) {
+                return false;
+            }
+            for (int p = 0; p < attributeNames.length; p++) {
+                boolean found = false;
+                for (int a = 0; a < count && !found; a++) {
+                    found = attributeNames[p].equals(names[a]) && attributeValues[p].equals(values[a]);
+                }
+                if (!found) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(name);
+            for (int p = 0; p < attributeNames.length; p++) {
+                sb.append("[@").append(attributeNames[p]).append("='").append(attributeValues[p]).append("']");
+            }
+            return sb.toString();
+        }
+    }
+
+    private final boolean absolute;
+    private final List<Step> steps;
+    private final String attribute;
+
+    private SimplePath(boolean absolute, List<Step> steps, String attribute) {
+        this.absolute = absolute;
+        this.steps = Collections.unmodifiableList(steps);
+        this.attribute = attribute;
+    }
+
+    boolean isAbsolute() {
+        return absolute;
+    }
+
+    /**
+     * @return the element steps, empty for a path that is only an attribute step
+     */
+    List<Step> getSteps() {
+        return steps;
+    }
+
+    Step getLastStep() {
+        return steps.get(steps.size() - 1);
+    }
+
+    /**
+     * @return the name of the final attribute step, or null if the path selects elements
+     */
+    String getAttribute() {
+        return attribute;
+    }
+
+    /**
+     * @param expression an xpath expression
+     * @return the parsed path, or null if the expression is not in the simple subset
+     */
+    static SimplePath parse(String expression) {
+        if (expression == null) {
+            return null;
+        }
+        return new Parser(expression).parse();
+    }
+
+    /**
+     * hand written recursive descent parser for: ['/'] step ('/' step)* ['/' '@'name] | '@'name,
+     * where step is: name ('[' '@'name '=' literal ('and' '@'name '=' literal)* ']')*
+     */
+    private static final class Parser {
+        private final String expression;
+        private int pos;
+
+        Parser(String expression) {
+            this.expression = expression.trim();
+        }
+
+        SimplePath parse() {
+            boolean absolute = false;
+            if (peek() == '/') {
+                absolute = true;
+                pos++;
+            }
+            List<Step> steps = new ArrayList<>();
+            while (true) {
+                if (peek() == '@') {
+                    pos++;
+                    String attribute = parseName();
+                    return attribute != null && pos == expression.length() ? new SimplePath(absolute, steps, attribute) : null;
+                }
+                Step step = parseStep();
+                if (step == null) {
+                    return null;
+                }
+                steps.add(step);
+                if (pos == expression.length()) {
+                    return new SimplePath(absolute, steps, null);
+                }
+                if (peek() != '/') {
+                    return null;
+                }
+                pos++;
+            }
+        }
+
+        private Step parseStep() {
+            String name = parseName();
+            if (name == null) {
+                return null;
+            }
+            List<String> attributeNames = new ArrayList<>();
+            List<String> attributeValues = new ArrayList<>();
+            while (peek() == '[') {
+                pos++;
+                do {
+                    skipWhitespace();
+                    if (peek() != '@') {
+                        return null;
+                    }
+                    pos++;
+                    String attributeName = parseName();
+                    skipWhitespace();
+                    if (attributeName == null || peek() != '=') {
+                        return null;
+                    }
+                    pos++;
+                    skipWhitespace();
+                    String value = parseLiteral();
+                    if (value == null) {
+                        return null;
+                    }
+                    attributeNames.add(attributeName);
+                    attributeValues.add(value);
+                    skipWhitespace();
+                } while (parseAnd());
+                if (peek() != ']') {
+                    return null;
+                }
+                pos++;
+            }
+            return new Step(name, attributeNames, attributeValues);
+        }
+
+        private boolean parseAnd() {
+            if (expression.startsWith("and", pos) && pos + 3 < expression.length()
+                    && Character.isWhitespace(expression.charAt(pos + 3))) {
+                pos += 3;
+                return true;
+            }
+            return false;
+        }
+
+        private String parseName() {
+            int start = pos;
+            if (pos >= expression.length() || !isNameStart(expression.charAt(pos))) {
+                return null;
+            }
+            pos++;
+            while (pos < expression.length() && (isNameChar(expression.charAt(pos)) || expression.charAt(pos) == ':')) {
+                pos++;
+            }
+            String name = expression.substring(start, pos);
+            if (name.endsWith(":") || name.indexOf(':') != name.lastIndexOf(':')) {
+                return null;
+            }
+            return name;
+        }
+
+        private String parseLiteral() {
+            char quote = peek();
+            if (quote != '\'' && quote != '"') {
+                return null;
+            }
+            int end = expression.indexOf(quote, pos + 1);
+            if (end < 0) {
+                return null;
+            }
+            String literal = expression.substring(pos + 1, end);
+            pos = end + 1;
+            return literal;
+        }
+
+        private void skipWhitespace() {
+            while (pos < expression.length() && Character.isWhitespace(expression.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private char peek() {
+            return pos < expression.length() ? expression.charAt(pos) : 0;
+        }
+
+        private static boolean isNameStart(char c) {
+            return Character.isLetter(c) || c == '_';
+        }
+
+        private static boolean isNameChar(char c) {
+            return Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '.';
+        }
+    }
+}
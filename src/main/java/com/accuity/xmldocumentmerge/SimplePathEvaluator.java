@@ -0,0 +1,171 @@
+package com.accuity.xmldocumentmerge;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Evaluates the paths of the {@link SimplePath} subset by walking the DOM, without an xpath engine.
+ * Names with a namespace prefix are not supported, so that paths never depend on a namespace context.
+ */
+public class SimplePathEvaluator implements PathEvaluator {
+
+    @Override
+    public String getName() {
+        return "simple-path";
+    }
+
+    @Override
+    public CompiledPath compile(String expression) {
+        SimplePath path = SimplePath.parse(expression);
+        if (path == null || !isUnprefixed(path)) {
+            return null;
+        }
+        return new Walker(expression, path);
+    }
+
+    private static boolean isUnprefixed(SimplePath path) {
+        if (path.getAttribute() != null && !isUnprefixedAttribute(path.getAttribute())) {
+            return false;
+        }
+        for (SimplePath.Step step : path.getSteps()) {
+            if (step.getName().indexOf(':') >= 0) {
+                return false;
+            }
+            for (String attributeName : step.getAttributeNames()) {
+                if (!isUnprefixedAttribute(attributeName)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean isUnprefixedAttribute(String name) {
+        return name.indexOf(':') < 0 && !name.equals("xmlns");
+    }
+
+    /**
+     * a compiled simple path: selects the matching elements (or their attribute) step by step
+     */
+    private static final class Walker implements CompiledPath {
+        private final String expression;
+        private final boolean absolute;
+        private final SimplePath.Step[] steps;
+        private final String attribute;
+
+        Walker(String expression, SimplePath path) {
+            this.expression = expression;
+            this.absolute = path.isAbsolute();
+            this.steps = path.getSteps().toArray(new SimplePath.Step[0]);
+            this.attribute = path.getAttribute();
+        }
+
+        @Override
+        public NodeList evaluateNodes(Node context) {
+            Node start = context;
+            if (absolute && context.getNodeType() != Node.DOCUMENT_NODE) {
+                start = context.getOwnerDocument();
+            }
+            List<Node> result = new ArrayList<>();
+            walk(start, 0, result);
+            return new NodeListImpl(result);
+        }
+
+        @Override
+        public Node evaluateFirstNode(Node context) {
+            Node start = context;
+            if (absolute && context.getNodeType() != Node.DOCUMENT_NODE) {
+                start = context.getOwnerDocument();
+            }
+            return walk(start, 0, null);
+        }
+
+        /**
+         * @param result collects all selected nodes, or null to stop at the first one
+         * @return the first selected node when result is null
+         */
+        private Node walk(Node node, int stepIndex, List<Node> result) {
+            if (stepIndex == steps.length) {
+                Node selected = node;
+                if (attribute != null) {
+                    selected = node.getNodeType() == Node.ELEMENT_NODE ? ((Element) node).getAttributeNode(attribute) : null;
+                }
+                if (selected != null && result != null) {
+                    result.add(selected);
+                }
+                return selected;
+            }
+            SimplePath.Step step = steps[stepIndex];
+            for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+                if (child.getNodeType() == Node.ELEMENT_NODE && matches(step, (Element) child)) {
+                    Node first = walk(child, stepIndex + 1, result);
+                    if (first != null && result == null) {
+                        return first;
+                    }
+                }
+            }
+            return null;
+        }
+
+        /**
+         * name tests as in xpath without a namespace context: the element must not be in a namespace
+         */
+        private static boolean matches(SimplePath.Step step, Element element) {
+            if (element.getNamespaceURI() != null || !step.getName().equals(localName(element))) {
+                return false;
+            }
+            String[] attributeNames = step.getAttributeNames();
+            String[] attributeValues = step.getAttributeValues();
+            for (int p = 0; p < attributeNames.length; p++) {
+                Attr attr = element.getAttributeNode(attributeNames[p]);
+                if (attr == null || !attributeValues[p].equals(attr.getValue())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static String localName(Element element) {
+            String localName = element.getLocalName();
+            if (localName == null) {
+                // created without namespace support
+                String nodeName = element.getNodeName();
+                localName = nodeName.substring(nodeName.indexOf(':') + 1);
+            }
+            return localName;
+        }
+
+        @Override
+        public String getExpression() {
+            return expression;
+        }
+
+        @Override
+        public String toString() {
+            return expression;
+        }
+    }
+
+    private static final class NodeListImpl implements NodeList {
+        private final List<Node> nodes;
+
+        NodeListImpl(List<Node> nodes) {
+            this.nodes = nodes;
+        }
+
+        @Override
+        public Node item(int index) {
+            return index >= 0 && index < nodes.size() ? nodes.get(index) : null;
+        }
+
+        @Override
+        public int getLength() {
+            return nodes.size();
+        }
+    }
+}
@@ -0,0 +1,1131 @@
+package com.accuity.xmldocumentmerge;
+
+import com.accuity.xmldocumentmerge.model.Id;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.xpath.XPathExpressionException;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * A merge engine for documents too large for DOM. The sources are read from {@link XMLStreamReader}s and the trusted
+ * document is written to an {@link XMLStreamWriter} in a single pass over all sources, without building a document.
+ * The trusted document is the one the {@link RuleProcessor} builds from the same sources.
+ * <p>
+ * A plan is streamed when the child rules of its docroot rule, if the docroot rule is not a stop rule, are all rules
+ * on a child of the document element without a filter, such as {@code code}, with different contexts, without child
+ * rules of their own unless they are stop rules, and with coalesce ids that are relative {@link SimplePath}s. The
+ * docroot rule merges the sources by element name and position like the {@link DocumentNodeMerger}, and the output of
+ * each child rule is written after the other children of the document element, in rule order, as the RuleProcessor
+ * appends it. Other plans can not be streamed with the same result: rules further down can match under several
+ * parents, whose matches the RuleProcessor moves to the last of them, and filters change which elements the docroot
+ * rule merges by position. Neither can be decided before the whole document is read. Such plans are rejected when the
+ * merger is created, unless the caller allows merging them on DOM documents, which takes memory in proportion to the
+ * size of the sources, see {@link #isStreamed()}.
+ * <p>
+ * Memory: the sources are read in lockstep, and the elements that have to be kept while the sources are read on are
+ * spilled to a temporary file: the matches of child rules, which are written after the other children, and siblings
+ * read ahead to find the element of the next source to merge with. Memory therefore depends on the depth of the
+ * documents, the file offsets of the spilled elements and the keys of the coalesce rules. The ids of a coalesce match
+ * are evaluated on a DOM element holding only the nodes its id paths select.
+ * <p>
+ * A StreamingDocumentMerger is immutable and can be used by several threads, each with its own readers and writer.
+ */
+public class StreamingDocumentMerger {
+    private final static Logger LOG = Logger.getLogger(StreamingDocumentMerger.class.getName());
+
+    private static final int ELEMENT = 0;
+    private static final int TEXT = 1;
+    private static final int COMMENT = 2;
+    // the record closing an element in the spill file, after the records of its children
+    private static final int END_ELEMENT = 3;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+    private final MergePlan mergePlan;
+    private final CompiledRule rootRule;
+    private final List<String> sourceNames;
+    // the step of the child rules' paths the document element has to match, null when no child rule is applied
+    private final SimplePath.Step rootStep;
+    private final List<ChildRule> childRules = new ArrayList<>();
+    private final Map<String, Integer> childRuleIndexes = new HashMap<>();
+    // the sources read by the streamed rules
+    private final BitSet streamedSources = new BitSet();
+    private final Path spillDirectory;
+    private final DocumentBuilderPool documentBuilderPool;
+    // merges the plans that are not streamed, null when the plan is streamed
+    private final XmlDocumentMerger documentMerger;
+
+    /**
+     * @param mergePlan the compiled rules
+     * @throws IllegalArgumentException if the plan can not be streamed
+     */
+    public StreamingDocumentMerger(MergePlan mergePlan) {
+        this(mergePlan, null, new DocumentBuilderPool(), false);
+    }
+
+    /**
+     * @param mergePlan           the compiled rules
+     * @param spillDirectory      the directory of the temporary files elements are spilled to, or null for the default
+     *                            temporary-file directory
+     * @param documentBuilderPool builds the source documents of plans that are not streamed, and the elements the
+     *                            coalesce ids are evaluated on
+     * @param mergeOnDocuments    merge a plan that can not be streamed by reading the whole sources into DOM documents,
+     *                            instead of rejecting it
+     * @throws IllegalArgumentException if the plan can not be streamed and mergeOnDocuments is false
+     */
+    public StreamingDocumentMerger(MergePlan mergePlan, Path spillDirectory, DocumentBuilderPool documentBuilderPool,
+                                   boolean mergeOnDocuments) {
+        this.mergePlan = mergePlan;
+        this.rootRule = mergePlan.getRootRule();
+        this.sourceNames = rootRule != null ? rootRule.getSourceNames() : Collections.<String>emptyList();
+        this.spillDirectory = spillDirectory;
+        this.documentBuilderPool = documentBuilderPool;
+
+        String notStreamable = rootRule != null ? findNotStreamable(rootRule) : null;
+        SimplePath.Step step = null;
+        if (notStreamable != null) {
+            if (!mergeOnDocuments) {
+                throw new IllegalArgumentException("plan can not be streamed: " + notStreamable);
+            }
+            LOG.warning("plan merged on DOM documents, memory grows with the size of the sources: " + notStreamable);
+            this.documentMerger = new XmlDocumentMerger(new RuleProcessor(), MergeMetrics.DISABLED, documentBuilderPool);
+        } else {
+            this.documentMerger = null;
+            if (rootRule != null) {
+                streamedSources.or(rootRule.getSourceMask());
+                // the RuleProcessor ignores the child rules of a stop rule
+                for (CompiledRule child : rootRule.isStop() ? Collections.<CompiledRule>emptyList() : rootRule.getChildren()) {
+                    SimplePath path = MergePlanCompiler.confinedPath(child);
+                    step = path.getSteps().get(0);
+                    childRuleIndexes.put(path.getLastStep().getName(), childRules.size());
+                    childRules.add(new ChildRule(child, idPaths(child)));
+                    streamedSources.or(child.getSourceMask());
+                }
+            }
+        }
+        this.rootStep = step;
+    }
+
+    /**
+     * @return true if the sources are streamed, false if the plan can not be streamed and is merged on DOM documents
+     */
+    public boolean isStreamed() {
+        return documentMerger == null;
+    }
+
+    /**
+     * Merges the sources and writes the trusted document. The readers are read up to the end of their document element;
+     * neither readers nor writer are closed.
+     *
+     * @param sourceReaders the sources to combine, keyed by the source names used in the rules. Each reader must be
+     *                      positioned at or before its document element.
+     * @param writer        receives the trusted document
+     * @return false if no trusted document was written, because there is no docroot rule or none of its sources
+     * @throws XMLStreamException if a source can not be read, the output can not be written or the spill file fails
+     */
+    public boolean mergeDocuments(Map<String, XMLStreamReader> sourceReaders, XMLStreamWriter writer) throws XMLStreamException {
+        if (rootRule == null) {
+            LOG.warning("missing docroot rule");
+            return false;
+        }
+        if (documentMerger != null) {
+            return mergeSourceDocuments(sourceReaders, writer);
+        }
+        MergeContext ctx = new MergeContext(writer, spillDirectory, documentBuilderPool);
+        try {
+            return mergeStreams(ctx, sourceReaders);
+        } finally {
+            ctx.close();
+        }
+    }
+
+    /**
+     * @return why the plan can not be streamed, or null if it can
+     */
+    private static String findNotStreamable(CompiledRule rootRule) {
+        if (rootRule.isStop()) {
+            return null;
+        }
+        Set<String> contexts = new HashSet<>();
+        for (CompiledRule child : rootRule.getChildren()) {
+            SimplePath path = MergePlanCompiler.confinedPath(child);
+            if (path == null || path.getSteps().size() != 2) {
+                return "rule " + child.getFullContextXPath() + " is not on a child of the document element, or has coalesce ids that are not relative simple paths";
+            }
+            if (path.getLastStep().getAttributeNames().length > 0) {
+                return "rule " + child.getFullContextXPath() + " has a filter";
+            }
+            if (!child.getChildren().isEmpty() && !child.isStop()) {
+                return "rule " + child.getFullContextXPath() + " has child rules";
+            }
+            if (!contexts.add(path.getLastStep().getName())) {
+                return "more than one rule on " + child.getFullContextXPath();
+            }
+        }
+        return null;
+    }
+
+    private static List<SimplePath> idPaths(CompiledRule rule) {
+        if (rule.getKeyExtractor() == null) {
+            return null;
+        }
+        List<SimplePath> idPaths = new ArrayList<>();
+        for (Id id : rule.getRule().getField().getIds()) {
+            idPaths.add(SimplePath.parse(id.getPath()));
+        }
+        return idPaths;
+    }
+
+    /**
+     * reads the sources of the plan into documents and merges them with the RuleProcessor
+     */
+    private boolean mergeSourceDocuments(Map<String, XMLStreamReader> sourceReaders, XMLStreamWriter writer) throws XMLStreamException {
+        Map<String, Document> sourceDocuments = new HashMap<>();
+        for (String sourceName : sourceNames) {
+            XMLStreamReader reader = sourceReaders.get(sourceName);
+            if (reader != null) {
+                moveToDocumentElement(reader);
+                sourceDocuments.put(sourceName, FeedReader.copyElement(reader, documentBuilderPool.newDocument()));
+            }
+        }
+        Document trustedDocument = documentMerger.mergeDocuments(mergePlan, sourceDocuments);
+        if (trustedDocument == null) {
+            return false;
+        }
+        writer.writeStartDocument();
+        FeedMerger.writeNode(writer, trustedDocument.getDocumentElement());
+        writer.writeEndDocument();
+        writer.flush();
+        return true;
+    }
+
+    private boolean mergeStreams(MergeContext ctx, Map<String, XMLStreamReader> sourceReaders) throws XMLStreamException {
+        StreamInput[] roots = new StreamInput[sourceNames.size()];
+        for (int s = 0; s < roots.length; s++) {
+            XMLStreamReader reader = sourceReaders.get(sourceNames.get(s));
+            if (reader != null && streamedSources.get(s)) {
+                moveToDocumentElement(reader);
+                roots[s] = new StreamInput(reader);
+            }
+        }
+
+        List<Cursor> merge = new ArrayList<>();
+        List<Integer> mergeSources = new ArrayList<>();
+        for (int s : rootRule.getSourceIndexes()) {
+            if (roots[s] != null && (merge.isEmpty() || !rootRule.isStop())) {
+                merge.add(new Cursor(roots[s]));
+                mergeSources.add(s);
+            }
+        }
+        if (merge.isEmpty()) {
+            LOG.info("no trusted source for docroot rule. no document generated.");
+            return false;
+        }
+
+        StartTag rootTag = merge.get(0).input.tag;
+        RuleMatches ruleMatches = null;
+        if (rootStep != null && matches(rootStep, rootTag)) {
+            // the child rules only match in sources with the same document element
+            boolean[] matchingSources = new boolean[roots.length];
+            for (int s = 0; s < roots.length; s++) {
+                matchingSources[s] = roots[s] != null && matches(rootStep, roots[s].tag);
+            }
+            ruleMatches = new RuleMatches(childRules.size(), matchingSources);
+        }
+
+        ctx.writer.writeStartDocument();
+        writeStartTag(ctx.writer, rootTag);
+        mergeChildren(ctx, merge, mergeSources, ruleMatches);
+        if (ruleMatches != null) {
+            for (int s = 0; s < roots.length; s++) {
+                if (roots[s] != null && !mergeSources.contains(s)) {
+                    Item item;
+                    while ((item = roots[s].readChild()) != null) {
+                        if (item.kind != ELEMENT || !addRuleMatch(ctx, ruleMatches, item, s, false)) {
+                            item.discard();
+                        }
+                    }
+                }
+            }
+            for (int r = 0; r < childRules.size(); r++) {
+                // like a rule of the RuleProcessor, a rule without matches in the trusted document has no parent to write to
+                if (ruleMatches.inTrustedDocument[r]) {
+                    writeRule(ctx, childRules.get(r), ruleMatches.offsets[r]);
+                }
+            }
+        }
+        ctx.writer.writeEndElement();
+        for (StreamInput root : roots) {
+            if (root != null) {
+                root.skipRest();
+            }
+        }
+        ctx.writer.writeEndDocument();
+        ctx.writer.flush();
+        return true;
+    }
+
+    private static void moveToDocumentElement(XMLStreamReader reader) throws XMLStreamException {
+        while (reader.getEventType() != XMLStreamConstants.START_ELEMENT) {
+            if (!reader.hasNext()) {
+                throw new XMLStreamException("source has no document element");
+            }
+            reader.next();
+        }
+    }
+
+    /**
+     * writes the element of the first merge input, with the merged children of all merge inputs
+     */
+    private void writeElement(MergeContext ctx, List<Cursor> merge) throws XMLStreamException {
+        Cursor lead = merge.get(0);
+        writeStartTag(ctx.writer, lead.input.tag);
+        if (merge.size() == 1) {
+            copyChildren(ctx.writer, lead);
+        } else {
+            mergeChildren(ctx, merge, null, null);
+        }
+        ctx.writer.writeEndElement();
+        for (Cursor cursor : merge) {
+            cursor.skipRest();
+        }
+    }
+
+    /**
+     * Merges the children of the merge inputs like the DocumentNodeMerger: the first input that has children of a
+     * name owns them, later inputs are merged into them by position, and their extra children of that name are ignored.
+     * Children of the document element that a child rule matches are kept for the rule instead.
+     *
+     * @param mergeSources the source of each merge input, null below the document element
+     * @param ruleMatches  receives the matches of the child rules, null below the document element or when the child
+     *                     rules do not apply
+     */
+    private void mergeChildren(MergeContext ctx, List<Cursor> merge, List<Integer> mergeSources, RuleMatches ruleMatches) throws XMLStreamException {
+        Set<String> ownedNames = new HashSet<>();
+        for (int m = 0; m < merge.size(); m++) {
+            Cursor cursor = merge.get(m);
+            Set<String> names = new HashSet<>();
+            Item item;
+            while ((item = cursor.next()) != null) {
+                if (ruleMatches != null && item.kind == ELEMENT && addRuleMatch(ctx, ruleMatches, item, mergeSources.get(m), true)) {
+                    continue;
+                }
+                String name = item.getName();
+                if (m > 0 && ownedNames.contains(name)) {
+                    // an extra copy of a child owned by a more trusted input
+                    item.discard();
+                    continue;
+                }
+                names.add(name);
+                if (item.kind == TEXT) {
+                    ctx.writer.writeCharacters(item.text);
+                } else if (item.kind == COMMENT) {
+                    ctx.writer.writeComment(item.text);
+                } else {
+                    List<Cursor> childMerge = new ArrayList<>();
+                    childMerge.add(new Cursor(item.element));
+                    for (int j = m + 1; j < merge.size(); j++) {
+                        Item partner = merge.get(j).take(ctx, name);
+                        if (partner != null) {
+                            childMerge.add(new Cursor(partner.element));
+                        }
+                    }
+                    writeElement(ctx, childMerge);
+                }
+            }
+            ownedNames.addAll(names);
+        }
+    }
+
+    /**
+     * keeps a child of the document element for the child rule with its name
+     *
+     * @param inTrustedDocument true if the child is merged into the trusted document by the docroot rule
+     * @return false if no child rule has the element's name
+     */
+    private boolean addRuleMatch(MergeContext ctx, RuleMatches ruleMatches, Item item, int source, boolean inTrustedDocument) throws XMLStreamException {
+        Integer r = childRuleIndexes.get(item.getName());
+        if (r == null) {
+            return false;
+        }
+        ruleMatches.inTrustedDocument[r] |= inTrustedDocument;
+        if (ruleMatches.matchingSources[source] && childRules.get(r).compiledRule.getSourceMask().get(source)) {
+            if (ruleMatches.offsets[r][source] == null) {
+                ruleMatches.offsets[r][source] = new Offsets();
+            }
+            ruleMatches.offsets[r][source].add(ctx.spill(item));
+        } else {
+            item.discard();
+        }
+        return true;
+    }
+
+    /**
+     * writes the output of a child rule from its matches, like {@link RuleProcessor#importMatches}
+     *
+     * @param matches the offsets of the rule's matches in the spill file, by source
+     */
+    private void writeRule(MergeContext ctx, ChildRule rule, Offsets[] matches) throws XMLStreamException {
+        int[] sources = rule.compiledRule.getSourceIndexes();
+        if (rule.compiledRule.isCoalesce() && rule.idPaths != null) {
+            Map<CompositeKey, Offsets> groups = new LinkedHashMap<>();
+            for (int s : sources) {
+                for (int i = 0; matches[s] != null && i < matches[s].size(); i++) {
+                    CompositeKey key = buildKey(ctx, rule, matches[s].get(i));
+                    Offsets group = groups.get(key);
+                    if (group == null) {
+                        group = new Offsets();
+                        groups.put(key, group);
+                        group.add(matches[s].get(i));
+                    } else if (!rule.compiledRule.isStop()) {
+                        group.add(matches[s].get(i));
+                    }
+                }
+            }
+            for (Offsets group : groups.values()) {
+                writeMatches(ctx, group);
+            }
+        } else if (rule.compiledRule.isCoalesce()) {
+            // nothing to match on, every match is appended
+            for (int s : sources) {
+                for (int i = 0; matches[s] != null && i < matches[s].size(); i++) {
+                    Offsets match = new Offsets();
+                    match.add(matches[s].get(i));
+                    writeMatches(ctx, match);
+                }
+            }
+        } else {
+            // match by position, the first source with matches determines how many there are
+            int owner = 0;
+            while (owner < sources.length && (matches[sources[owner]] == null || matches[sources[owner]].size() == 0)) {
+                owner++;
+            }
+            for (int i = 0; owner < sources.length && i < matches[sources[owner]].size(); i++) {
+                Offsets match = new Offsets();
+                match.add(matches[sources[owner]].get(i));
+                for (int t = owner + 1; t < sources.length && !rule.compiledRule.isStop(); t++) {
+                    if (matches[sources[t]] != null && i < matches[sources[t]].size()) {
+                        match.add(matches[sources[t]].get(i));
+                    }
+                }
+                writeMatches(ctx, match);
+            }
+        }
+    }
+
+    private void writeMatches(MergeContext ctx, Offsets match) throws XMLStreamException {
+        List<Cursor> merge = new ArrayList<>();
+        for (int i = 0; i < match.size(); i++) {
+            merge.add(new Cursor(ctx.open(match.get(i))));
+        }
+        writeElement(ctx, merge);
+    }
+
+    private CompositeKey buildKey(MergeContext ctx, ChildRule rule, long offset) throws XMLStreamException {
+        Element element = toDom(ctx.open(offset), ctx.getScratchDocument(), rule.idPaths, 0);
+        try {
+            return rule.compiledRule.getKeyExtractor().extract(element);
+        } catch (XPathExpressionException e) {
+            throw new XMLStreamException("error evaluating ids of rule " + rule.compiledRule.getFullContextXPath(), e);
+        }
+    }
+
+    /**
+     * reads an element into a DOM element, keeping only the nodes the id paths can select: the elements on their steps
+     * with their attributes, and everything below the elements the paths end at
+     *
+     * @param idPaths the paths whose first depth steps lead to the element, or null to keep everything below it
+     */
+    private static Element toDom(Input input, Document document, List<SimplePath> idPaths, int depth) throws XMLStreamException {
+        Element element = document.createElement(input.tag.name);
+        for (int a = 0; a < input.tag.attributeCount; a++) {
+            element.setAttribute(input.tag.attributeNames[a], input.tag.attributeValues[a]);
+        }
+        Item child;
+        while ((child = input.readChild()) != null) {
+            if (child.kind != ELEMENT) {
+                if (idPaths == null) {
+                    element.appendChild(child.kind == TEXT ? document.createTextNode(child.text) : document.createComment(child.text));
+                }
+                continue;
+            }
+            List<SimplePath> childPaths = null;
+            if (idPaths != null) {
+                childPaths = new ArrayList<>();
+                for (SimplePath idPath : idPaths) {
+                    List<SimplePath.Step> steps = idPath.getSteps();
+                    if (steps.size() > depth && matches(steps.get(depth), child.element.tag)) {
+                        if (steps.size() == depth + 1 && idPath.getAttribute() == null) {
+                            // the value of the id is the text content of the child
+                            childPaths = null;
+                            break;
+                        }
+                        childPaths.add(idPath);
+                    }
+                }
+                if (childPaths != null && childPaths.isEmpty()) {
+                    child.discard();
+                    continue;
+                }
+            }
+            element.appendChild(toDom(child.element, document, childPaths, depth + 1));
+        }
+        return element;
+    }
+
+    private static boolean matches(SimplePath.Step step, StartTag tag) {
+        return step.matches(tag.name, tag.attributeNames, tag.attributeValues, tag.attributeCount);
+    }
+
+    private static void writeStartTag(XMLStreamWriter writer, StartTag tag) throws XMLStreamException {
+        writer.writeStartElement(tag.name);
+        for (int a = 0; a < tag.attributeCount; a++) {
+            String name = tag.attributeNames[a];
+            if (name.equals("xmlns")) {
+                writer.writeDefaultNamespace(tag.attributeValues[a]);
+            } else if (name.startsWith("xmlns:")) {
+                writer.writeNamespace(name.substring(6), tag.attributeValues[a]);
+            } else {
+                writer.writeAttribute(name, tag.attributeValues[a]);
+            }
+        }
+    }
+
+    private static void copyChildren(XMLStreamWriter writer, Cursor cursor) throws XMLStreamException {
+        Item item;
+        while ((item = cursor.next()) != null) {
+            copy(writer, item);
+        }
+    }
+
+    private static void copy(XMLStreamWriter writer, Item item) throws XMLStreamException {
+        if (item.kind == TEXT) {
+            writer.writeCharacters(item.text);
+        } else if (item.kind == COMMENT) {
+            writer.writeComment(item.text);
+        } else {
+            writeStartTag(writer, item.element.tag);
+            Item child;
+            while ((child = item.element.readChild()) != null) {
+                copy(writer, child);
+            }
+            writer.writeEndElement();
+        }
+    }
+
+    /**
+     * a child rule of the docroot rule, on the children of the document element that have its name
+     */
+    private static final class ChildRule {
+        final CompiledRule compiledRule;
+        // the id paths of a coalesce rule, null when the rule has no ids
+        final List<SimplePath> idPaths;
+
+        ChildRule(CompiledRule compiledRule, List<SimplePath> idPaths) {
+            this.compiledRule = compiledRule;
+            this.idPaths = idPaths;
+        }
+    }
+
+    /**
+     * the matches of the child rules, kept until the other children of the document element are written
+     */
+    private static final class RuleMatches {
+        // by rule and source
+        final Offsets[][] offsets;
+        // by rule: true if the docroot rule merges an element of the rule's name into the trusted document
+        final boolean[] inTrustedDocument;
+        // by source: true if the source's document element matches the first step of the child rules
+        final boolean[] matchingSources;
+
+        RuleMatches(int ruleCount, boolean[] matchingSources) {
+            this.offsets = new Offsets[ruleCount][matchingSources.length];
+            this.inTrustedDocument = new boolean[ruleCount];
+            this.matchingSources = matchingSources;
+        }
+    }
+
+    /**
+     * a growable list of offsets in the spill file
+     */
+    private static final class Offsets {
+        private long[] values = new long[4];
+        private int size;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        long get(int index) {
+            return values[index];
+        }
+
+        int size() {
+            return size;
+        }
+    }
+
+    private static final class MergeContext {
+        final XMLStreamWriter writer;
+        private final Path spillDirectory;
+        private final DocumentBuilderPool documentBuilderPool;
+        private SpillFile spillFile;
+        private Document scratchDocument;
+
+        MergeContext(XMLStreamWriter writer, Path spillDirectory, DocumentBuilderPool documentBuilderPool) {
+            this.writer = writer;
+            this.spillDirectory = spillDirectory;
+            this.documentBuilderPool = documentBuilderPool;
+        }
+
+        /**
+         * reads the rest of an element into the spill file, unless it is in the spill file already
+         *
+         * @return the offset of the element in the spill file
+         */
+        long spill(Item item) throws XMLStreamException {
+            if (item.element instanceof SpillInput) {
+                SpillInput spilled = (SpillInput) item.element;
+                spilled.skipRest();
+                return spilled.offset;
+            }
+            if (spillFile == null) {
+                spillFile = new SpillFile(spillDirectory);
+            }
+            return spillFile.append(item.element);
+        }
+
+        /**
+         * keeps an element while the stream moves on, replacing it by its copy in the spill file
+         */
+        void keep(Item item) throws XMLStreamException {
+            if (item.kind == ELEMENT) {
+                StartTag tag = item.element.tag;
+                long offset = spill(item);
+                item.element = new SpillInput(tag, spillFile, offset);
+            }
+        }
+
+        SpillInput open(long offset) throws XMLStreamException {
+            return SpillInput.open(spillFile, offset);
+        }
+
+        Document getScratchDocument() {
+            if (scratchDocument == null) {
+                scratchDocument = documentBuilderPool.newDocument();
+            }
+            return scratchDocument;
+        }
+
+        void close() {
+            if (spillFile != null) {
+                spillFile.close();
+            }
+        }
+    }
+
+    /**
+     * the children of an input that have not been used yet: the ones read ahead, then the rest of the input
+     */
+    private static final class Cursor {
+        final Input input;
+        private final ArrayDeque<Item> readAhead = new ArrayDeque<>();
+
+        Cursor(Input input) {
+            this.input = input;
+        }
+
+        Item next() throws XMLStreamException {
+            Item item = readAhead.pollFirst();
+            return item != null ? item : input.readChild();
+        }
+
+        /**
+         * @return the first unused child element of the name, or null if there is none
+         */
+        Item take(MergeContext ctx, String name) throws XMLStreamException {
+            for (Iterator<Item> it = readAhead.iterator(); it.hasNext(); ) {
+                Item item = it.next();
+                if (item.kind == ELEMENT && item.getName().equals(name)) {
+                    it.remove();
+                    return item;
+                }
+            }
+            Item item;
+            while ((item = input.readChild()) != null) {
+                if (item.kind == ELEMENT && item.getName().equals(name)) {
+                    return item;
+                }
+                ctx.keep(item);
+                readAhead.addLast(item);
+            }
+            return null;
+        }
+
+        void skipRest() throws XMLStreamException {
+            readAhead.clear();
+            input.skipRest();
+        }
+    }
+
+    /**
+     * the qualified name and attributes of an element. Namespace declarations are attributes, as in a DOM that is
+     * not namespace aware.
+     */
+    private static final class StartTag {
+        final String name;
+        final String[] attributeNames;
+        final String[] attributeValues;
+        final int attributeCount;
+
+        StartTag(String name, String[] attributeNames, String[] attributeValues) {
+            this.name = name;
+            this.attributeNames = attributeNames;
+            this.attributeValues = attributeValues;
+            this.attributeCount = attributeNames.length;
+        }
+    }
+
+    /**
+     * a child of an input: an element, or the text or comment between elements
+     */
+    private static final class Item {
+        final int kind;
+        final String text;
+        Input element;
+
+        Item(int kind, String text) {
+            this.kind = kind;
+            this.text = text;
+        }
+
+        Item(Input element) {
+            this.kind = ELEMENT;
+            this.text = null;
+            this.element = element;
+        }
+
+        String getName() {
+            return kind == ELEMENT ? element.tag.name : kind == TEXT ? "#text" : "#comment";
+        }
+
+        void discard() throws XMLStreamException {
+            if (kind == ELEMENT) {
+                element.skipRest();
+            }
+        }
+    }
+
+    /**
+     * an element of a source whose children are read one at a time
+     */
+    private abstract static class Input {
+        final StartTag tag;
+
+        Input(StartTag tag) {
+            this.tag = tag;
+        }
+
+        /**
+         * @return the next child, or null after the last one
+         */
+        abstract Item readChild() throws XMLStreamException;
+
+        abstract void skipRest() throws XMLStreamException;
+    }
+
+    /**
+     * an element being read from a stream. Reading the next child skips whatever is left of the previous one.
+     */
+    private static final class StreamInput extends Input {
+        private final XMLStreamReader reader;
+        private boolean atUnreadEvent;
+        private boolean read;
+        private StreamInput lastChild;
+
+        StreamInput(XMLStreamReader reader) {
+            super(readStartTag(reader));
+            this.reader = reader;
+        }
+
+        private static StartTag readStartTag(XMLStreamReader reader) {
+            int namespaceCount = reader.getNamespaceCount();
+            int attributeCount = reader.getAttributeCount();
+            String[] names = new String[namespaceCount + attributeCount];
+            String[] values = new String[names.length];
+            for (int n = 0; n < namespaceCount; n++) {
+                String prefix = reader.getNamespacePrefix(n);
+                names[n] = prefix == null || prefix.isEmpty() ? "xmlns" : "xmlns:" + prefix;
+                values[n] = reader.getNamespaceURI(n);
+            }
+            for (int a = 0; a < attributeCount; a++) {
+                String prefix = reader.getAttributePrefix(a);
+                String localName = reader.getAttributeLocalName(a);
+                names[namespaceCount + a] = prefix == null || prefix.isEmpty() ? localName : prefix + ":" + localName;
+                values[namespaceCount + a] = reader.getAttributeValue(a);
+            }
+            String prefix = reader.getPrefix();
+            String name = prefix == null || prefix.isEmpty() ? reader.getLocalName() : prefix + ":" + reader.getLocalName();
+            return new StartTag(name, names, values);
+        }
+
+        @Override
+        Item readChild() throws XMLStreamException {
+            if (read) {
+                return null;
+            }
+            if (lastChild != null && !lastChild.read) {
+                lastChild.skipRest();
+            }
+            lastChild = null;
+            StringBuilder text = null;
+            while (true) {
+                int event = atUnreadEvent ? reader.getEventType() : reader.next();
+                atUnreadEvent = false;
+                if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA
+                        || event == XMLStreamConstants.SPACE || event == XMLStreamConstants.ENTITY_REFERENCE) {
+                    // adjacent text events are one text node in a DOM
+                    if (text == null) {
+                        text = new StringBuilder();
+                    }
+                    text.append(reader.getText());
+                    continue;
+                }
+                if (text != null) {
+                    atUnreadEvent = true;
+                    return new Item(TEXT, text.toString());
+                }
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    lastChild = new StreamInput(reader);
+                    return new Item(lastChild);
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    read = true;
+                    return null;
+                } else if (event == XMLStreamConstants.COMMENT) {
+                    return new Item(COMMENT, reader.getText());
+                }
+            }
+        }
+
+        @Override
+        void skipRest() throws XMLStreamException {
+            if (read) {
+                return;
+            }
+            if (lastChild != null && !lastChild.read) {
+                lastChild.skipRest();
+            }
+            int depth = 0;
+            while (true) {
+                int event = atUnreadEvent ? reader.getEventType() : reader.next();
+                atUnreadEvent = false;
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    if (depth == 0) {
+                        read = true;
+                        return;
+                    }
+                    depth--;
+                }
+            }
+        }
+    }
+
+    /**
+     * an element of the spill file. A spilled element is opened at its offset when its first child is read; its
+     * children share its reader, like the children of a {@link StreamInput}
+     */
+    private static final class SpillInput extends Input {
+        final long offset;
+        private final SpillFile spillFile;
+        private SpillReader reader;
+        private boolean read;
+        private SpillInput lastChild;
+
+        SpillInput(StartTag tag, SpillFile spillFile, long offset) {
+            this(tag, spillFile, offset, null);
+        }
+
+        private SpillInput(StartTag tag, SpillFile spillFile, long offset, SpillReader reader) {
+            super(tag);
+            this.spillFile = spillFile;
+            this.offset = offset;
+            this.reader = reader;
+        }
+
+        static SpillInput open(SpillFile spillFile, long offset) throws XMLStreamException {
+            SpillReader reader = new SpillReader(spillFile, offset);
+            reader.readByte();
+            return new SpillInput(readStartTag(reader), spillFile, offset, reader);
+        }
+
+        private static StartTag readStartTag(SpillReader reader) throws XMLStreamException {
+            String name = reader.readString();
+            String[] names = new String[reader.readInt()];
+            String[] values = new String[names.length];
+            for (int a = 0; a < names.length; a++) {
+                names[a] = reader.readString();
+                values[a] = reader.readString();
+            }
+            return new StartTag(name, names, values);
+        }
+
+        @Override
+        Item readChild() throws XMLStreamException {
+            if (read) {
+                return null;
+            }
+            if (reader == null) {
+                reader = new SpillReader(spillFile, offset);
+                reader.readByte();
+                readStartTag(reader);
+            }
+            if (lastChild != null && !lastChild.read) {
+                lastChild.skipRest();
+            }
+            lastChild = null;
+            long childOffset = reader.position();
+            int kind = reader.readByte();
+            if (kind == ELEMENT) {
+                lastChild = new SpillInput(readStartTag(reader), spillFile, childOffset, reader);
+                return new Item(lastChild);
+            } else if (kind == END_ELEMENT) {
+                read = true;
+                return null;
+            }
+            return new Item(kind, reader.readString());
+        }
+
+        @Override
+        void skipRest() throws XMLStreamException {
+            if (read) {
+                return;
+            }
+            read = true;
+            if (reader == null) {
+                return;
+            }
+            if (lastChild != null && !lastChild.read) {
+                lastChild.skipRest();
+            }
+            int depth = 0;
+            while (true) {
+                int kind = reader.readByte();
+                if (kind == ELEMENT) {
+                    readStartTag(reader);
+                    depth++;
+                } else if (kind == END_ELEMENT) {
+                    if (depth == 0) {
+                        return;
+                    }
+                    depth--;
+                } else {
+                    reader.readString();
+                }
+            }
+        }
+    }
+
+    /**
+     * a temporary file of spilled elements. An element is a record of its start tag: the name, the number of attributes
+     * and their names and values, then the records of its children, then an END_ELEMENT record. Text and comments are
+     * their kind and their text; strings are the length and UTF-8 bytes. Elements are read while others are appended,
+     * the file is flushed when a read reaches past the part written to it
+     */
+    private static final class SpillFile {
+        private final Path path;
+        private final FileChannel channel;
+        private final ByteBuffer writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+        // the bytes written to the channel
+        private long size;
+
+        SpillFile(Path spillDirectory) throws XMLStreamException {
+            try {
+                path = spillDirectory != null ? Files.createTempFile(spillDirectory, "merge-spill-", ".bin")
+                        : Files.createTempFile("merge-spill-", ".bin");
+                channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            } catch (IOException e) {
+                throw new XMLStreamException("error creating spill file", e);
+            }
+        }
+
+        /**
+         * writes the rest of an element
+         *
+         * @return the offset of the element
+         */
+        long append(Input input) throws XMLStreamException {
+            long offset = size + writeBuffer.position();
+            writeElement(input);
+            return offset;
+        }
+
+        private void writeElement(Input input) throws XMLStreamException {
+            writeByte(ELEMENT);
+            writeString(input.tag.name);
+            writeInt(input.tag.attributeCount);
+            for (int a = 0; a < input.tag.attributeCount; a++) {
+                writeString(input.tag.attributeNames[a]);
+                writeString(input.tag.attributeValues[a]);
+            }
+            Item child;
+            while ((child = input.readChild()) != null) {
+                if (child.kind == ELEMENT) {
+                    writeElement(child.element);
+                } else {
+                    writeByte(child.kind);
+                    writeString(child.text);
+                }
+            }
+            writeByte(END_ELEMENT);
+        }
+
+        private void writeByte(int value) throws XMLStreamException {
+            if (!writeBuffer.hasRemaining()) {
+                flush();
+            }
+            writeBuffer.put((byte) value);
+        }
+
+        private void writeInt(int value) throws XMLStreamException {
+            if (writeBuffer.remaining() < 4) {
+                flush();
+            }
+            writeBuffer.putInt(value);
+        }
+
+        private void writeString(String value) throws XMLStreamException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeInt(bytes.length);
+            for (int written = 0; written < bytes.length; ) {
+                if (!writeBuffer.hasRemaining()) {
+                    flush();
+                }
+                int length = Math.min(writeBuffer.remaining(), bytes.length - written);
+                writeBuffer.put(bytes, written, length);
+                written += length;
+            }
+        }
+
+        private void flush() throws XMLStreamException {
+            writeBuffer.flip();
+            try {
+                while (writeBuffer.hasRemaining()) {
+                    size += channel.write(writeBuffer, size);
+                }
+            } catch (IOException e) {
+                throw new XMLStreamException("error writing spill file", e);
+            }
+            writeBuffer.clear();
+        }
+
+        /**
+         * reads from the position into the buffer, as much as fits
+         *
+         * @return the number of bytes read, -1 at the end of the file
+         */
+        int read(ByteBuffer buffer, long position) throws XMLStreamException {
+            if (position + buffer.remaining() > size && writeBuffer.position() > 0) {
+                flush();
+            }
+            try {
+                return channel.read(buffer, position);
+            } catch (IOException e) {
+                throw new XMLStreamException("error reading spill file", e);
+            }
+        }
+
+        void close() {
+            try {
+                channel.close();
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                LOG.warning("error deleting spill file " + path + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * reads the records of the spill file from an offset on, through a buffer of its own
+     */
+    private static final class SpillReader {
+        private final SpillFile spillFile;
+        private final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        // the offset of the start of the buffer
+        private long bufferOffset;
+
+        SpillReader(SpillFile spillFile, long offset) {
+            this.spillFile = spillFile;
+            this.bufferOffset = offset;
+            buffer.limit(0);
+        }
+
+        long position() {
+            return bufferOffset + buffer.position();
+        }
+
+        int readByte() throws XMLStreamException {
+            require(1);
+            return buffer.get();
+        }
+
+        int readInt() throws XMLStreamException {
+            require(4);
+            return buffer.getInt();
+        }
+
+        String readString() throws XMLStreamException {
+            byte[] bytes = new byte[readInt()];
+            for (int read = 0; read < bytes.length; ) {
+                require(1);
+                int length = Math.min(buffer.remaining(), bytes.length - read);
+                buffer.get(bytes, read, length);
+                read += length;
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private void require(int count) throws XMLStreamException {
+            if (buffer.remaining() >= count) {
+                return;
+            }
+            bufferOffset += buffer.position();
+            buffer.compact();
+            while (buffer.position() < count) {
+                if (spillFile.read(buffer, bufferOffset + buffer.position()) < 0) {
+                    throw new XMLStreamException("error reading spill file", new EOFException());
+                }
+            }
+            buffer.flip();
+        }
+    }
+}
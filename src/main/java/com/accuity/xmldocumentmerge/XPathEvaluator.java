@@ -0,0 +1,19 @@
+package com.accuity.xmldocumentmerge;
+
+import javax.xml.xpath.XPathExpressionException;
+
+/**
+ * Evaluates any xpath expression with the JAXP xpath engine.
+ */
+public class XPathEvaluator implements PathEvaluator {
+
+    @Override
+    public String getName() {
+        return "xpath";
+    }
+
+    @Override
+    public CompiledPath compile(String expression) throws XPathExpressionException {
+        return CompiledXPath.compile(expression);
+    }
+}
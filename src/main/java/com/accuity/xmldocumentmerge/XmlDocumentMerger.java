@@ -3,22 +3,60 @@ package com.accuity.xmldocumentmerge;
 import com.accuity.xmldocumentmerge.model.Rules;
 import org.w3c.dom.Document;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * This is the main class to use.
+ * <p>
+ * An XmlDocumentMerger is thread-safe as long as its RuleProcessor is (the default {@link RuleProcessor} is), so one
+ * instance can serve concurrent merges. Each call must be given its own source documents.
  */
 public class XmlDocumentMerger {
     private final static Logger LOG = Logger.getLogger(XmlDocumentMerger.class.getName());
 
-    private RuleProcessor ruleProcessor;
+    private final RuleProcessor ruleProcessor;
+    private final MergeMetrics mergeMetrics;
+    private final DocumentBuilderPool documentBuilderPool;
 
     public XmlDocumentMerger(RuleProcessor ruleProcessor) {
+        this(ruleProcessor, MergeMetrics.DISABLED);
+    }
+
+    /**
+     * @param ruleProcessor
+     * @param mergeMetrics receives the latency of every merge. Give the RuleProcessor the same instance for per rule metrics
+     */
+    public XmlDocumentMerger(RuleProcessor ruleProcessor, MergeMetrics mergeMetrics) {
+        this(ruleProcessor, mergeMetrics, new DocumentBuilderPool());
+    }
+
+    /**
+     * @param ruleProcessor
+     * @param mergeMetrics receives the latency of every merge
+     * @param documentBuilderPool creates the trusted documents, and parses the sources given as streams or files
+     */
+    public XmlDocumentMerger(RuleProcessor ruleProcessor, MergeMetrics mergeMetrics, DocumentBuilderPool documentBuilderPool) {
         this.ruleProcessor = ruleProcessor;
+        this.mergeMetrics = mergeMetrics;
+        this.documentBuilderPool = documentBuilderPool;
     }
 
     /**
@@ -28,23 +66,276 @@ public class XmlDocumentMerger {
      * @return the combined document
      */
     public Document mergeDocuments(Rules trustMatrixRules, Map<String, Document> sourceDocuments) {
-        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
         Document trustedDocument = null;
         if (trustMatrixRules.getRule() != null) {
-            try {
-                DocumentBuilder db = dbf.newDocumentBuilder();
-                trustedDocument = db.newDocument();
-                trustedDocument = ruleProcessor.processRule(trustMatrixRules.getRule(), trustedDocument, sourceDocuments);
-                if (trustedDocument.getDocumentElement() == null) {
-                    LOG.info("Trust Generator generated an empty document");
-                    trustedDocument = null;
-                }
-            } catch (ParserConfigurationException e) {
-                throw new RuntimeException("error initializing DocumentBuilder", e);
+            long startNanos = mergeMetrics.isEnabled() ? System.nanoTime() : 0;
+            trustedDocument = ruleProcessor.processRule(trustMatrixRules.getRule(), newDocument(), sourceDocuments);
+            trustedDocument = nullIfEmpty(trustedDocument);
+            if (mergeMetrics.isEnabled()) {
+                mergeMetrics.recordMerge(System.nanoTime() - startNanos);
+            }
+        } else {
+            LOG.warning("missing docroot rule");
+        }
+        return trustedDocument;
+    }
+
+    /**
+     *
+     * @param mergePlan The compiled rules, see {@link MergePlanCompiler}
+     * @param sourceDocuments a map of documents to combine. The keys are the source names used in the rules
+     * @return the combined document
+     */
+    public Document mergeDocuments(MergePlan mergePlan, Map<String, Document> sourceDocuments) {
+        Document trustedDocument = null;
+        if (mergePlan.getRootRule() != null) {
+            long startNanos = mergeMetrics.isEnabled() ? System.nanoTime() : 0;
+            trustedDocument = ruleProcessor.processRule(mergePlan.getRootRule(), newDocument(), sourceDocuments);
+            trustedDocument = nullIfEmpty(trustedDocument);
+            if (mergeMetrics.isEnabled()) {
+                mergeMetrics.recordMerge(System.nanoTime() - startNanos);
             }
         } else {
             LOG.warning("missing docroot rule");
         }
         return trustedDocument;
     }
+
+    /**
+     * Merges sources held as {@link CompactTree}s, which takes much less heap than DOM and copies source nodes
+     * into the trusted tree without creating objects. Convert the result with {@link CompactTree#toDocument(Document)}.
+     * <p>
+     * Large sources can be {@link MappedXmlIndex}es instead: the rules are evaluated on the index and only the nodes
+     * imported into the trusted tree are read from the file.
+     *
+     * @param mergePlan The compiled rules. All paths must be in the {@link SimplePath} subset
+     * @param sourceTrees the trees or indexes to combine, all with the same name pool. The keys are the source names used
+     *                    in the rules
+     * @return the combined tree, {@link CompactTree#compact() compacted}, or null if it is empty
+     * @throws IllegalArgumentException if a rule is not supported on compact trees, or the trees have different name pools
+     */
+    public CompactTree mergeTrees(MergePlan mergePlan, Map<String, ? extends CompactSource> sourceTrees) {
+        if (mergePlan.getRootRule() == null) {
+            LOG.warning("missing docroot rule");
+            return null;
+        }
+        NamePool namePool = null;
+        int nodeCount = 0;
+        int charCount = 0;
+        for (CompactSource sourceTree : sourceTrees.values()) {
+            if (namePool != null && sourceTree.getNamePool() != namePool) {
+                throw new IllegalArgumentException("source trees must share a name pool");
+            }
+            namePool = sourceTree.getNamePool();
+            nodeCount += sourceTree.getNodeCountHint();
+            charCount += sourceTree.getCharCountHint();
+        }
+        long startNanos = mergeMetrics.isEnabled() ? System.nanoTime() : 0;
+        // rules remove the nodes they match and copy them again from the sources, so the trusted tree takes up more room
+        // than the sources together
+        CompactTree trustedTree = ruleProcessor.processRule(mergePlan.getRootRule(),
+                new CompactTree(namePool != null ? namePool : new NamePool(), 2 * nodeCount + 1, 2 * charCount + 1), sourceTrees);
+        if (mergeMetrics.isEnabled()) {
+            mergeMetrics.recordMerge(System.nanoTime() - startNanos);
+        }
+        if (trustedTree.getDocumentElement() == CompactTree.NONE) {
+            LOG.info("Trust Generator generated an empty document");
+            return null;
+        }
+        return trustedTree.compact();
+    }
+
+    /**
+     * Parses the sources in parallel with pooled DocumentBuilders, then merges them.
+     *
+     * @param mergePlan The compiled rules
+     * @param sourceStreams the documents to combine. The keys are the source names used in the rules
+     * @param executor parses the sources. The calling thread parses the sources no executor thread has started on, so
+     *                 this does not wait for a busy executor
+     * @return the combined document
+     * @throws RuntimeException if a source can not be read or parsed
+     */
+    public Document mergeStreams(MergePlan mergePlan, Map<String, InputStream> sourceStreams, Executor executor) {
+        Map<String, Callable<Document>> parsers = new LinkedHashMap<>();
+        for (final Map.Entry<String, InputStream> sourceStream : sourceStreams.entrySet()) {
+            parsers.put(sourceStream.getKey(), new Callable<Document>() {
+                @Override
+                public Document call() throws Exception {
+                    return documentBuilderPool.parse(sourceStream.getValue());
+                }
+            });
+        }
+        return mergeDocuments(mergePlan, parseSources(parsers, executor));
+    }
+
+    /**
+     * Parses the source files in parallel with pooled DocumentBuilders, then merges them.
+     *
+     * @param mergePlan The compiled rules
+     * @param sourceFiles the documents to combine. The keys are the source names used in the rules
+     * @param executor parses the sources, see {@link #mergeStreams(MergePlan, Map, Executor)}
+     * @return the combined document
+     * @throws RuntimeException if a source can not be read or parsed
+     */
+    public Document mergeFiles(MergePlan mergePlan, Map<String, Path> sourceFiles, Executor executor) {
+        Map<String, Callable<Document>> parsers = new LinkedHashMap<>();
+        for (final Map.Entry<String, Path> sourceFile : sourceFiles.entrySet()) {
+            parsers.put(sourceFile.getKey(), new Callable<Document>() {
+                @Override
+                public Document call() throws Exception {
+                    try (InputStream inputStream = Files.newInputStream(sourceFile.getValue())) {
+                        return documentBuilderPool.parse(inputStream);
+                    }
+                }
+            });
+        }
+        return mergeDocuments(mergePlan, parseSources(parsers, executor));
+    }
+
+    private Map<String, Document> parseSources(Map<String, Callable<Document>> parsers, Executor executor) {
+        Map<String, FutureTask<Document>> tasks = new LinkedHashMap<>();
+        for (Map.Entry<String, Callable<Document>> parser : parsers.entrySet()) {
+            FutureTask<Document> task = new FutureTask<>(parser.getValue());
+            tasks.put(parser.getKey(), task);
+            executor.execute(task);
+        }
+        Map<String, Document> sourceDocuments = new HashMap<>();
+        boolean interrupted = false;
+        try {
+            for (Map.Entry<String, FutureTask<Document>> task : tasks.entrySet()) {
+                // does nothing if an executor thread already started the task
+                task.getValue().run();
+                while (true) {
+                    try {
+                        sourceDocuments.put(task.getKey(), task.getValue().get());
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    } catch (ExecutionException e) {
+                        throw new RuntimeException("error parsing source " + task.getKey(), e.getCause());
+                    }
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return sourceDocuments;
+    }
+
+    /**
+     * Merges a batch of entities in parallel and returns the results in the order of the batch.
+     * At most twice the number of available processors entities are in flight at a time.
+     *
+     * @param mergePlan The compiled rules
+     * @param batch the source documents of each entity
+     * @param executor runs the merges, for example a ForkJoinPool or a fixed thread pool
+     * @return one result per entity, in batch order
+     * @throws InterruptedException if the calling thread is interrupted while waiting for results
+     */
+    public List<BatchMergeResult> mergeBatch(MergePlan mergePlan, Collection<Map<String, Document>> batch, Executor executor) throws InterruptedException {
+        final List<BatchMergeResult> results = new ArrayList<>(batch.size());
+        mergeBatch(mergePlan, batch.iterator(), executor, 2 * Runtime.getRuntime().availableProcessors(), true, new BatchMergeCallback() {
+            @Override
+            public void onResult(BatchMergeResult result) {
+                results.add(result);
+            }
+        });
+        return results;
+    }
+
+    /**
+     * Merges a stream of entities in parallel. The iterator is consumed on the calling thread, which also delivers every
+     * result to the callback. A merge that throws is reported as a failed result and does not stop the batch, and so is
+     * an entity the executor rejects, with the {@link RejectedExecutionException} as error.
+     *
+     * @param mergePlan The compiled rules
+     * @param batch the source documents of each entity
+     * @param executor runs the merges, for example a ForkJoinPool or a fixed thread pool
+     * @param maxInFlight the maximum number of entities taken from the iterator but not yet delivered to the callback
+     * @param preserveOrder if true, results are delivered in batch order, otherwise in order of completion
+     * @param callback receives the results
+     * @throws InterruptedException if the calling thread is interrupted while waiting for results
+     */
+    public void mergeBatch(final MergePlan mergePlan, Iterator<Map<String, Document>> batch, Executor executor,
+                           int maxInFlight, boolean preserveOrder, BatchMergeCallback callback) throws InterruptedException {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1");
+        }
+        final BlockingQueue<BatchMergeResult> completed = new LinkedBlockingQueue<>();
+        Map<Integer, BatchMergeResult> outOfOrder = new HashMap<>();
+        int submitted = 0;
+        int delivered = 0;
+        while (batch.hasNext()) {
+            // wait for a result before going over the in flight limit
+            while (submitted - delivered >= maxInFlight) {
+                delivered = deliver(completed.take(), delivered, preserveOrder, outOfOrder, callback);
+            }
+            final int index = submitted;
+            final Map<String, Document> sourceDocuments = batch.next();
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        completed.add(mergeBatchEntity(mergePlan, index, sourceDocuments));
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // reported like a failed merge, so the results of the entities in flight are still delivered
+                LOG.log(Level.WARNING, "entity " + index + " of batch rejected by the executor", e);
+                completed.add(new BatchMergeResult(index, sourceDocuments, null, e));
+            }
+            submitted++;
+            BatchMergeResult result;
+            while ((result = completed.poll()) != null) {
+                delivered = deliver(result, delivered, preserveOrder, outOfOrder, callback);
+            }
+        }
+        while (delivered < submitted) {
+            delivered = deliver(completed.take(), delivered, preserveOrder, outOfOrder, callback);
+        }
+    }
+
+    private BatchMergeResult mergeBatchEntity(MergePlan mergePlan, int index, Map<String, Document> sourceDocuments) {
+        try {
+            return new BatchMergeResult(index, sourceDocuments, mergeDocuments(mergePlan, sourceDocuments), null);
+        } catch (RuntimeException | Error e) {
+            // errors are reported too, so the calling thread never waits for a result that will not come
+            LOG.log(Level.WARNING, "error merging entity " + index + " of batch", e);
+            return new BatchMergeResult(index, sourceDocuments, null, e);
+        }
+    }
+
+    /**
+     * hands a completed result to the callback, or holds it back until its predecessors are delivered
+     *
+     * @return the new number of delivered results
+     */
+    private int deliver(BatchMergeResult result, int delivered, boolean preserveOrder,
+                        Map<Integer, BatchMergeResult> outOfOrder, BatchMergeCallback callback) {
+        if (!preserveOrder) {
+            callback.onResult(result);
+            return delivered + 1;
+        }
+        outOfOrder.put(result.getIndex(), result);
+        BatchMergeResult next;
+        while ((next = outOfOrder.remove(delivered)) != null) {
+            callback.onResult(next);
+            delivered++;
+        }
+        return delivered;
+    }
+
+    private Document newDocument() {
+        return documentBuilderPool.newDocument();
+    }
+
+    private Document nullIfEmpty(Document trustedDocument) {
+        if (trustedDocument.getDocumentElement() == null) {
+            LOG.info("Trust Generator generated an empty document");
+            return null;
+        }
+        return trustedDocument;
+    }
 }
\ No newline at end of file
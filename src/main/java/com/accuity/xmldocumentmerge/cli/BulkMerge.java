@@ -0,0 +1,92 @@
+package com.accuity.xmldocumentmerge.cli;
+
+import com.accuity.xmldocumentmerge.MergePlan;
+import com.accuity.xmldocumentmerge.RulesParser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges the entities of source directories or of a manifest with a {@link MergePipeline}, for bulk runs such as
+ * backfills. Reports throughput and latency every stats interval, and a summary at the end. Run without arguments for
+ * the options, see {@link BulkMergeOptions}.
+ * <p>
+ * Exits with 0 when every entity was merged, 1 when some failed, and 2 on invalid options or when the rules or the
+ * inputs can not be read.
+ */
+public final class BulkMerge {
+
+    private BulkMerge() {
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        System.exit(run(args, System.out, System.err));
+    }
+
+    /**
+     * @return the exit code
+     */
+    static int run(String[] args, PrintStream out, PrintStream err) throws InterruptedException {
+        BulkMergeOptions options;
+        try {
+            options = BulkMergeOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            err.println(e.getMessage());
+            err.println(BulkMergeOptions.USAGE);
+            return 2;
+        }
+
+        MergePlan mergePlan;
+        Iterator<EntityInput> entities;
+        try (InputStream rules = Files.newInputStream(options.getRules())) {
+            mergePlan = new RulesParser().parsePlan(rules);
+            if (mergePlan == null) {
+                err.println("invalid rules " + options.getRules());
+                return 2;
+            }
+            Files.createDirectories(options.getOutput());
+            entities = options.getManifest() != null ? EntityInputs.fromManifest(options.getManifest())
+                    : EntityInputs.fromDirectories(options.getSourceDirectories());
+        } catch (IOException e) {
+            err.println("error reading inputs: " + e);
+            return 2;
+        }
+
+        final MergePipeline pipeline = new MergePipeline(mergePlan, options.getOutput(), options.getThreads(), options.getQueueCapacity());
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "merge-pipeline-stats");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (options.getStatsInterval() > 0) {
+            final PrintStream stats = out;
+            reporter.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    stats.println(pipeline.report());
+                }
+            }, options.getStatsInterval(), options.getStatsInterval(), TimeUnit.SECONDS);
+        }
+        try {
+            pipeline.run(entities);
+        } catch (RuntimeException e) {
+            // listing the entities failed, the entities listed before are merged
+            err.println("error listing entities: " + e.getMessage());
+            return 2;
+        } finally {
+            reporter.shutdownNow();
+        }
+        out.println(pipeline.report());
+        return pipeline.getFailed() > 0 ? 1 : 0;
+    }
+}
@@ -0,0 +1,150 @@
+package com.accuity.xmldocumentmerge.cli;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The command line options of {@link BulkMerge}.
+ */
+public final class BulkMergeOptions {
+
+    static final String USAGE = "usage: bulk-merge --rules <rules.xml> --output <directory>\n" +
+            "                  (--source <name>=<directory> ... | --manifest <manifest.tsv>)\n" +
+            "                  [--read-threads n] [--parse-threads n] [--merge-threads n]\n" +
+            "                  [--serialize-threads n] [--write-threads n] [--queue-capacity n]\n" +
+            "                  [--stats-interval seconds]\n" +
+            "\n" +
+            "  --source          a directory with one <entity id>.xml file per entity of the source, repeated for each source\n" +
+            "  --manifest        a file of 'entity id<TAB>source name<TAB>path' lines, the lines of an entity consecutive\n" +
+            "  --stats-interval  seconds between throughput and latency reports, 0 for none";
+
+    private static final String[] STAGES = {"read", "parse", "merge", "serialize", "write"};
+
+    private Path rules;
+    private Path output;
+    private Path manifest;
+    private final Map<String, Path> sourceDirectories = new LinkedHashMap<>();
+    private final int[] threads;
+    private int queueCapacity = 256;
+    private int statsInterval = 10;
+
+    private BulkMergeOptions() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        threads = new int[]{2, cores, cores, 2, 2};
+    }
+
+    /**
+     * @throws IllegalArgumentException if an option is unknown, misses its value or has an invalid one, or a required
+     *                                  option is missing
+     */
+    public static BulkMergeOptions parse(String[] args) {
+        BulkMergeOptions options = new BulkMergeOptions();
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("missing value of " + option);
+            }
+            String value = args[++i];
+            switch (option) {
+                case "--rules":
+                    options.rules = Paths.get(value);
+                    break;
+                case "--output":
+                    options.output = Paths.get(value);
+                    break;
+                case "--manifest":
+                    options.manifest = Paths.get(value);
+                    break;
+                case "--source":
+                    int separator = value.indexOf('=');
+                    if (separator < 1 || separator == value.length() - 1) {
+                        throw new IllegalArgumentException("--source must be <name>=<directory>, got " + value);
+                    }
+                    options.sourceDirectories.put(value.substring(0, separator), Paths.get(value.substring(separator + 1)));
+                    break;
+                case "--queue-capacity":
+                    options.queueCapacity = atLeast(option, value, 1);
+                    break;
+                case "--stats-interval":
+                    options.statsInterval = atLeast(option, value, 0);
+                    break;
+                default:
+                    options.parseThreads(option, value);
+                    break;
+            }
+        }
+        if (options.rules == null || options.output == null) {
+            throw new IllegalArgumentException("--rules and --output are required");
+        }
+        if (options.sourceDirectories.isEmpty() == (options.manifest == null)) {
+            throw new IllegalArgumentException("either --source or --manifest is required");
+        }
+        return options;
+    }
+
+    private void parseThreads(String option, String value) {
+        for (int s = 0; s < STAGES.length; s++) {
+            if (option.equals("--" + STAGES[s] + "-threads")) {
+                threads[s] = atLeast(option, value, 1);
+                return;
+            }
+        }
+        throw new IllegalArgumentException("unknown option " + option);
+    }
+
+    private static int atLeast(String option, String value, int min) {
+        int number;
+        try {
+            number = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(option + " must be a number, got " + value);
+        }
+        if (number < min) {
+            throw new IllegalArgumentException(option + " must be at least " + min);
+        }
+        return number;
+    }
+
+    public Path getRules() {
+        return rules;
+    }
+
+    public Path getOutput() {
+        return output;
+    }
+
+    /**
+     * @return the manifest, or null if the sources are directories
+     */
+    public Path getManifest() {
+        return manifest;
+    }
+
+    /**
+     * @return the source directories by source name, empty if the sources are listed by a manifest
+     */
+    public Map<String, Path> getSourceDirectories() {
+        return Collections.unmodifiableMap(sourceDirectories);
+    }
+
+    /**
+     * @return the number of threads of the read, parse, merge, serialize and write stages
+     */
+    public int[] getThreads() {
+        return threads.clone();
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * @return the seconds between reports, 0 for none
+     */
+    public int getStatsInterval() {
+        return statsInterval;
+    }
+}
@@ -0,0 +1,27 @@
+package com.accuity.xmldocumentmerge.cli;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The source files of one entity: one file per source, keyed by the source names used in the rules.
+ */
+public final class EntityInput {
+
+    private final String entityId;
+    private final Map<String, Path> sourceFiles;
+
+    public EntityInput(String entityId, Map<String, Path> sourceFiles) {
+        this.entityId = entityId;
+        this.sourceFiles = Collections.unmodifiableMap(sourceFiles);
+    }
+
+    public String getEntityId() {
+        return entityId;
+    }
+
+    public Map<String, Path> getSourceFiles() {
+        return sourceFiles;
+    }
+}
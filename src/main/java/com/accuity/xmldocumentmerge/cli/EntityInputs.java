@@ -0,0 +1,159 @@
+package com.accuity.xmldocumentmerge.cli;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Lists the entities to merge, with the source files of each.
+ */
+public final class EntityInputs {
+
+    static final String EXTENSION = ".xml";
+    // the number of most recently listed entity ids a manifest entity is checked against
+    static final int MAX_CHECKED_IDS = 100000;
+
+    private EntityInputs() {
+    }
+
+    /**
+     * lists the entities of source directories. Each directory holds the files of one source, one per entity, named
+     * after the entity id with the .xml extension; the files with the same name in different directories are the
+     * sources of the same entity. Entities are listed in id order.
+     *
+     * @param sourceDirectories the directories, keyed by the source names used in the rules
+     */
+    public static Iterator<EntityInput> fromDirectories(Map<String, Path> sourceDirectories) throws IOException {
+        TreeMap<String, Map<String, Path>> entities = new TreeMap<>();
+        for (Map.Entry<String, Path> sourceDirectory : sourceDirectories.entrySet()) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(sourceDirectory.getValue(), "*" + EXTENSION)) {
+                for (Path file : files) {
+                    String fileName = file.getFileName().toString();
+                    String entityId = fileName.substring(0, fileName.length() - EXTENSION.length());
+                    Map<String, Path> sourceFiles = entities.get(entityId);
+                    if (sourceFiles == null) {
+                        sourceFiles = new LinkedHashMap<>();
+                        entities.put(entityId, sourceFiles);
+                    }
+                    sourceFiles.put(sourceDirectory.getKey(), file);
+                }
+            }
+        }
+        final Iterator<Map.Entry<String, Map<String, Path>>> iterator = entities.entrySet().iterator();
+        return new Iterator<EntityInput>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public EntityInput next() {
+                Map.Entry<String, Map<String, Path>> entity = iterator.next();
+                // the entry is not needed once it is listed
+                iterator.remove();
+                return new EntityInput(entity.getKey(), entity.getValue());
+            }
+        };
+    }
+
+    /**
+     * Reads the entities of a manifest file as they are needed, so the manifest can list any number of entities. Each
+     * line has an entity id, a source name and the path of the source file, separated by tabs. The lines of an entity
+     * must be consecutive. Relative paths are resolved against the directory of the manifest; blank lines and lines
+     * starting with # are skipped. The manifest is closed once it is read to the end or the iterator throws.
+     * <p>
+     * To keep memory bounded, an entity is only checked against the last {@value #MAX_CHECKED_IDS} entities listed
+     * before it: an entity listed again further down is not detected, and is merged a second time.
+     *
+     * @throws IllegalArgumentException from the iterator, if a line does not have three fields, lists a source of an
+     *                                  entity twice or lists an entity again after the lines of another one
+     * @throws UncheckedIOException     from the iterator, if the manifest can not be read
+     */
+    public static Iterator<EntityInput> fromManifest(final Path manifest) throws IOException {
+        final BufferedReader reader = Files.newBufferedReader(manifest, StandardCharsets.UTF_8);
+        final Path baseDirectory = manifest.toAbsolutePath().getParent();
+        return new Iterator<EntityInput>() {
+            private final Set<String> listedIds = Collections.newSetFromMap(new LinkedHashMap<String, Boolean>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                    return size() > MAX_CHECKED_IDS;
+                }
+            });
+            private int lineNumber;
+            private String[] pending = readLine();
+
+            @Override
+            public boolean hasNext() {
+                return pending != null;
+            }
+
+            @Override
+            public EntityInput next() {
+                if (pending == null) {
+                    throw new NoSuchElementException();
+                }
+                String entityId = pending[0];
+                if (!listedIds.add(entityId)) {
+                    close();
+                    throw new IllegalArgumentException("line " + lineNumber + " of " + manifest + " lists entity " + entityId
+                            + " again, the lines of an entity must be consecutive");
+                }
+                Map<String, Path> sourceFiles = new LinkedHashMap<>();
+                while (pending != null && pending[0].equals(entityId)) {
+                    if (sourceFiles.put(pending[1], baseDirectory.resolve(pending[2])) != null) {
+                        close();
+                        throw new IllegalArgumentException("source " + pending[1] + " of entity " + entityId + " listed twice in " + manifest);
+                    }
+                    pending = readLine();
+                }
+                return new EntityInput(entityId, sourceFiles);
+            }
+
+            private String[] readLine() {
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        lineNumber++;
+                        if (line.trim().isEmpty() || line.startsWith("#")) {
+                            continue;
+                        }
+                        String[] fields = line.split("\t");
+                        if (fields.length != 3) {
+                            close();
+                            throw new IllegalArgumentException("line " + lineNumber + " of " + manifest + " does not have 3 tab separated fields");
+                        }
+                        return fields;
+                    }
+                    reader.close();
+                    return null;
+                } catch (IOException e) {
+                    close();
+                    throw new UncheckedIOException("error reading " + manifest, e);
+                }
+            }
+
+            /**
+             * closes the manifest before an exception is thrown, the iterator is not used after it
+             */
+            private void close() {
+                pending = null;
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // the exception being thrown tells what went wrong
+                }
+            }
+        };
+    }
+}
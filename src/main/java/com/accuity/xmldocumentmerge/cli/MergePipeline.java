@@ -0,0 +1,356 @@
+package com.accuity.xmldocumentmerge.cli;
+
+import com.accuity.xmldocumentmerge.DocumentBuilderPool;
+import com.accuity.xmldocumentmerge.LatencyHistogram;
+import com.accuity.xmldocumentmerge.MergeMetrics;
+import com.accuity.xmldocumentmerge.MergePlan;
+import com.accuity.xmldocumentmerge.ProjectingParser;
+import com.accuity.xmldocumentmerge.RuleProcessor;
+import com.accuity.xmldocumentmerge.XmlDocumentMerger;
+import org.w3c.dom.Document;
+
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Merges entities in a pipeline of five stages: read the source files, parse them (projected on the rules, see
+ * {@link ProjectingParser}), merge them, serialize the trusted document and write it to the output directory as
+ * {@code <entity id>.xml}. Each stage has its own threads and takes its work from a bounded queue, so a slow stage
+ * blocks the stages before it instead of letting work pile up in memory; at most about five times the queue capacity
+ * entities are in flight.
+ * <p>
+ * An entity that fails in any stage is logged and counted, and the pipeline goes on with the others. Entities whose
+ * merge is empty are counted and not written.
+ */
+public class MergePipeline {
+    private final static Logger LOG = Logger.getLogger(MergePipeline.class.getName());
+
+    // tells the workers of a stage that no more work comes
+    private static final Work END = new Work(null);
+
+    private static final ThreadLocal<Transformer> TRANSFORMER = new ThreadLocal<Transformer>() {
+        @Override
+        protected Transformer initialValue() {
+            try {
+                Transformer transformer = TransformerFactory.newInstance().newTransformer();
+                transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+                return transformer;
+            } catch (TransformerConfigurationException e) {
+                throw new RuntimeException("error creating transformer", e);
+            }
+        }
+    };
+
+    private final MergePlan mergePlan;
+    private final Path outputDirectory;
+    private final ProjectingParser projectingParser;
+    private final XmlDocumentMerger xmlDocumentMerger;
+    private final BlockingQueue<Work> inputQueue;
+    private final List<Stage> stages = new ArrayList<>();
+    private final LatencyHistogram entityLatency = new LatencyHistogram();
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong empty = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final long startNanos = System.nanoTime();
+    private long lastReportNanos = startNanos;
+    private long lastReportDone;
+
+    /**
+     * @param mergePlan       the rules
+     * @param outputDirectory receives the merged entities
+     * @param threads         the number of threads of the read, parse, merge, serialize and write stages
+     * @param queueCapacity   the capacity of the queue in front of each stage
+     * @throws IllegalArgumentException if there are not five thread counts, or a count or the capacity is less than 1
+     */
+    public MergePipeline(MergePlan mergePlan, Path outputDirectory, int[] threads, int queueCapacity) {
+        if (threads.length != 5) {
+            throw new IllegalArgumentException("5 thread counts expected, got " + threads.length);
+        }
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("queueCapacity must be at least 1");
+        }
+        this.mergePlan = mergePlan;
+        this.outputDirectory = outputDirectory;
+        DocumentBuilderPool documentBuilderPool = new DocumentBuilderPool();
+        this.projectingParser = new ProjectingParser(mergePlan, documentBuilderPool);
+        this.xmlDocumentMerger = new XmlDocumentMerger(new RuleProcessor(), MergeMetrics.DISABLED, documentBuilderPool);
+
+        BlockingQueue<Work> read = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Work> parse = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Work> merge = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Work> serialize = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Work> write = new ArrayBlockingQueue<>(queueCapacity);
+        this.inputQueue = read;
+        stages.add(new Stage("read", threads[0], read, parse) {
+            @Override
+            boolean process(Work work) throws Exception {
+                work.outputFile = outputFile(work.input.getEntityId());
+                for (Map.Entry<String, Path> sourceFile : work.input.getSourceFiles().entrySet()) {
+                    work.contents.put(sourceFile.getKey(), Files.readAllBytes(sourceFile.getValue()));
+                }
+                return true;
+            }
+        });
+        stages.add(new Stage("parse", threads[1], parse, merge) {
+            @Override
+            boolean process(Work work) throws Exception {
+                for (Map.Entry<String, byte[]> content : work.contents.entrySet()) {
+                    work.documents.put(content.getKey(), projectingParser.parse(content.getKey(), new ByteArrayInputStream(content.getValue())));
+                }
+                work.contents.clear();
+                return true;
+            }
+        });
+        stages.add(new Stage("merge", threads[2], merge, serialize) {
+            @Override
+            boolean process(Work work) {
+                work.trustedDocument = xmlDocumentMerger.mergeDocuments(MergePipeline.this.mergePlan, work.documents);
+                work.documents.clear();
+                if (work.trustedDocument == null) {
+                    empty.incrementAndGet();
+                    entityLatency.record(System.nanoTime() - work.startNanos);
+                    return false;
+                }
+                return true;
+            }
+        });
+        stages.add(new Stage("serialize", threads[3], serialize, write) {
+            @Override
+            boolean process(Work work) throws Exception {
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                TRANSFORMER.get().transform(new DOMSource(work.trustedDocument), new StreamResult(output));
+                work.trustedDocument = null;
+                work.output = output.toByteArray();
+                return true;
+            }
+        });
+        stages.add(new Stage("write", threads[4], write, null) {
+            @Override
+            boolean process(Work work) throws Exception {
+                Files.write(work.outputFile, work.output);
+                written.incrementAndGet();
+                entityLatency.record(System.nanoTime() - work.startNanos);
+                return false;
+            }
+        });
+    }
+
+    /**
+     * merges the entities, blocking while the first queue is full, and waits until all are written
+     *
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    public void run(Iterator<EntityInput> entities) throws InterruptedException {
+        for (Stage stage : stages) {
+            stage.start();
+        }
+        try {
+            while (entities.hasNext()) {
+                Work work = new Work(entities.next());
+                submitted.incrementAndGet();
+                inputQueue.put(work);
+            }
+        } finally {
+            inputQueue.put(END);
+            for (Stage stage : stages) {
+                stage.join();
+            }
+        }
+    }
+
+    public long getSubmitted() {
+        return submitted.get();
+    }
+
+    public long getWritten() {
+        return written.get();
+    }
+
+    /**
+     * @return the number of entities whose merge generated an empty document
+     */
+    public long getEmpty() {
+        return empty.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return the time from reading an entity to writing it, or to finding it empty
+     */
+    public LatencyHistogram getEntityLatency() {
+        return entityLatency;
+    }
+
+    /**
+     * @return a line with the entities done so far, the throughput since the previous report, the entity latency
+     * percentiles, the time each stage spends per entity and the length of each queue
+     */
+    public synchronized String report() {
+        long now = System.nanoTime();
+        long done = written.get() + empty.get() + failed.get();
+        double interval = Math.max(1, now - lastReportNanos) / 1e9;
+        StringBuilder report = new StringBuilder(String.format(Locale.ROOT,
+                "%.0fs: %d of %d done (%d written, %d empty, %d failed), %.1f/s, latency p50 %s p99 %s max %s",
+                (now - startNanos) / 1e9, done, submitted.get(), written.get(), empty.get(), failed.get(),
+                (done - lastReportDone) / interval, millis(entityLatency.getPercentileNanos(0.5)),
+                millis(entityLatency.getPercentileNanos(0.99)), millis(entityLatency.getMaxNanos())));
+        for (Stage stage : stages) {
+            report.append(String.format(Locale.ROOT, ", %s p50 %s queue %d", stage.name,
+                    millis(stage.latency.getPercentileNanos(0.5)), stage.input.size()));
+        }
+        lastReportNanos = now;
+        lastReportDone = done;
+        return report.toString();
+    }
+
+    /**
+     * @return the stage latencies, by stage name in pipeline order
+     */
+    public Map<String, LatencyHistogram> getStageLatencies() {
+        Map<String, LatencyHistogram> latencies = new LinkedHashMap<>();
+        for (Stage stage : stages) {
+            latencies.put(stage.name, stage.latency);
+        }
+        return latencies;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the file named after the entity id is not in the output directory, as for
+     *                                  ids with path separators or ..
+     */
+    private Path outputFile(String entityId) {
+        Path directory = outputDirectory.toAbsolutePath().normalize();
+        Path outputFile = directory.resolve(entityId + EntityInputs.EXTENSION).normalize();
+        if (entityId.isEmpty() || !directory.equals(outputFile.getParent())) {
+            throw new IllegalArgumentException("entity id " + entityId + " does not name a file in " + outputDirectory);
+        }
+        return outputFile;
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.1fms", nanos / 1e6);
+    }
+
+    /**
+     * an entity on its way through the stages. Each stage drops what the next ones do not need
+     */
+    private static final class Work {
+        private final EntityInput input;
+        private final long startNanos = System.nanoTime();
+        private final Map<String, byte[]> contents = new LinkedHashMap<>();
+        private final Map<String, Document> documents = new LinkedHashMap<>();
+        private Path outputFile;
+        private Document trustedDocument;
+        private byte[] output;
+
+        Work(EntityInput input) {
+            this.input = input;
+        }
+    }
+
+    private abstract class Stage {
+        private final String name;
+        private final BlockingQueue<Work> input;
+        private final BlockingQueue<Work> output;
+        private final List<Thread> threads = new ArrayList<>();
+        private final AtomicInteger running;
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        Stage(String name, int threadCount, BlockingQueue<Work> input, BlockingQueue<Work> output) {
+            if (threadCount < 1) {
+                throw new IllegalArgumentException(name + " threads must be at least 1");
+            }
+            this.name = name;
+            this.input = input;
+            this.output = output;
+            this.running = new AtomicInteger(threadCount);
+            for (int i = 0; i < threadCount; i++) {
+                threads.add(new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        work();
+                    }
+                }, "merge-pipeline-" + name + "-" + i));
+            }
+        }
+
+        /**
+         * @return true to pass the work to the next stage
+         */
+        abstract boolean process(Work work) throws Exception;
+
+        void start() {
+            for (Thread thread : threads) {
+                thread.start();
+            }
+        }
+
+        void join() throws InterruptedException {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+
+        private void work() {
+            try {
+                while (true) {
+                    Work work = input.take();
+                    if (work == END) {
+                        // for the other threads of the stage
+                        input.put(END);
+                        break;
+                    }
+                    long startNanos = System.nanoTime();
+                    boolean forward;
+                    try {
+                        forward = process(work);
+                    } catch (Throwable e) {
+                        // errors too, since a worker that dies holds back the end of the stage and the pipeline hangs
+                        failed.incrementAndGet();
+                        entityLatency.record(System.nanoTime() - work.startNanos);
+                        LOG.log(Level.WARNING, "error in " + name + " stage of entity " + work.input.getEntityId(), e);
+                        continue;
+                    }
+                    latency.record(System.nanoTime() - startNanos);
+                    if (forward && output != null) {
+                        output.put(work);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (running.decrementAndGet() == 0 && output != null) {
+                    try {
+                        output.put(END);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }
+    }
+}
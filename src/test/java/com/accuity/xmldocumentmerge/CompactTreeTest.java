@@ -0,0 +1,175 @@
+package com.accuity.xmldocumentmerge;
+
+import org.custommonkey.xmlunit.Diff;
+import org.custommonkey.xmlunit.XMLUnit;
+import org.junit.Assert;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+public class CompactTreeTest {
+
+    private static final String RULES_START = "<tm:rules tm:context=\"/\" xmlns:tm=\"http://accuity.com/apo/trust-matrix\">" +
+            "  <tm:rule tm:context=\"entity\">" +
+            "    <tm:weightings>" +
+            "      <tm:source tm:name=\"fdb\" tm:trust=\"1.0\"></tm:source>" +
+            "      <tm:source tm:name=\"zeus\" tm:trust=\"0.9\"></tm:source>" +
+            "    </tm:weightings>";
+    private static final String RULES_END = "  </tm:rule></tm:rules>";
+
+    private static final String FDB = "<entity id=\"fdb-1\">" +
+            "<status>active</status>" +
+            "<names><name type=\"legal\">fdb legal</name><name type=\"short\">fdb short</name></names>" +
+            "<addresses><address type=\"HQ\"><city>fdb city</city></address></addresses>" +
+            "<!-- comment --><codes><code>1</code></codes>" +
+            "</entity>";
+    private static final String ZEUS = "<entity id=\"zeus-1\">" +
+            "<names><name type=\"legal\">zeus legal</name><name type=\"local\">zeus local</name></names>" +
+            "<addresses><address type=\"HQ\"><zip>zeus zip</zip></address><address type=\"branch\"><city>zeus branch</city></address></addresses>" +
+            "<codes><code>2</code><code>3</code></codes><website>http://zeus</website>" +
+            "</entity>";
+
+    @Test
+    public void testFromDocumentToDocument() throws Exception {
+        Document document = parse("<?pi data?><a x=\"1\" y=\"2\"><b>text<![CDATA[<cdata>]]></b><!--comment--><c/></a>");
+
+        CompactTree tree = CompactTree.fromDocument(document, new NamePool());
+
+        Diff diff = XMLUnit.compareXML(document, tree.toDocument(newDocument()));
+        Assert.assertTrue(diff.toString(), diff.identical());
+    }
+
+    @Test
+    public void testParseSameAsDocument() throws Exception {
+        String xml = "<a xmlns:p=\"urn:p\" p:x=\"1\">one &amp; two<b>text</b>\n<p:c>&lt;c&gt;</p:c><!--comment--></a>";
+        NamePool namePool = new NamePool();
+
+        CompactTree parsed = CompactTree.parse(XMLInputFactory.newInstance().createXMLStreamReader(new StringReader(xml)), namePool);
+        CompactTree converted = CompactTree.fromDocument(parse(xml), namePool);
+
+        Diff diff = XMLUnit.compareXML(converted.toDocument(newDocument()), parsed.toDocument(newDocument()));
+        Assert.assertTrue(diff.toString(), diff.identical());
+        Assert.assertEquals(converted.getNodeCount(), parsed.getNodeCount());
+    }
+
+    @Test
+    public void testCopyAndRemove() throws Exception {
+        NamePool namePool = new NamePool();
+        CompactTree source = CompactTree.fromDocument(parse("<a><b x=\"1\">b1<c>c1</c></b><b>b2</b></a>"), namePool);
+        CompactTree target = CompactTree.fromDocument(parse("<t><u/></t>"), namePool);
+        int sourceB = source.getFirstChild(source.getDocumentElement());
+        int targetU = target.getFirstChild(target.getDocumentElement());
+
+        // a range copy from the unchanged source, then a node by node copy from the changed target
+        target.appendChild(target.getDocumentElement(), target.copy(source, sourceB));
+        target.appendChild(target.getDocumentElement(), target.copy(target, target.getNextSibling(targetU)));
+        target.removeChild(targetU);
+
+        Assert.assertEquals("b1c1b1c1", target.getTextContent(target.getDocumentElement()));
+        Assert.assertEquals("1", target.getValue(target.getFirstAttribute(target.getFirstChild(target.getDocumentElement()))));
+        Diff diff = XMLUnit.compareXML(parse("<t><b x=\"1\">b1<c>c1</c></b><b x=\"1\">b1<c>c1</c></b></t>"), target.toDocument(newDocument()));
+        Assert.assertTrue(diff.toString(), diff.identical());
+
+        CompactTree compacted = target.compact();
+        Assert.assertEquals("the removed u is dropped", target.getNodeCount() - 1, compacted.getNodeCount());
+        CompactTree copy = new CompactTree(namePool);
+        copy.appendChild(0, copy.copy(compacted, compacted.getDocumentElement()));
+        diff = XMLUnit.compareXML(target.toDocument(newDocument()), copy.toDocument(newDocument()));
+        Assert.assertTrue(diff.toString(), diff.identical());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCopyFromOtherNamePool() throws Exception {
+        CompactTree source = CompactTree.fromDocument(parse("<a/>"), new NamePool());
+        CompactTree target = new CompactTree(new NamePool());
+
+        target.copy(source, source.getDocumentElement());
+    }
+
+    @Test
+    public void testMergeDocRoot() throws Exception {
+        assertSameAsDom("");
+    }
+
+    @Test
+    public void testMergePositionalRule() throws Exception {
+        assertSameAsDom("<tm:rule tm:context=\"codes/code\">" +
+                "  <tm:weightings>" +
+                "    <tm:source tm:name=\"zeus\" tm:trust=\"1.0\"></tm:source>" +
+                "    <tm:source tm:name=\"fdb\" tm:trust=\"0.9\"></tm:source>" +
+                "  </tm:weightings>" +
+                "</tm:rule>");
+    }
+
+    @Test
+    public void testMergeFilterRuleWithStop() throws Exception {
+        assertSameAsDom("<tm:rule tm:context=\"names/name\" tm:filter=\"[@type = 'legal']\">" +
+                "  <tm:field tm:stop=\"true\"></tm:field>" +
+                "  <tm:weightings>" +
+                "    <tm:source tm:name=\"zeus\" tm:trust=\"1.0\"></tm:source>" +
+                "    <tm:source tm:name=\"fdb\" tm:trust=\"0.5\"></tm:source>" +
+                "  </tm:weightings>" +
+                "</tm:rule>");
+    }
+
+    @Test
+    public void testMergeCoalesceRules() throws Exception {
+        assertSameAsDom("<tm:rule tm:context=\"addresses/address\">" +
+                "  <tm:field tm:coalesce=\"true\"><tm:id tm:path=\"@type\"></tm:id></tm:field>" +
+                "  <tm:rule tm:context=\"city\">" +
+                "    <tm:weightings>" +
+                "      <tm:source tm:name=\"zeus\" tm:trust=\"1.0\"></tm:source>" +
+                "    </tm:weightings>" +
+                "  </tm:rule>" +
+                "</tm:rule>" +
+                "<tm:rule tm:context=\"codes/code\">" +
+                "  <tm:field tm:coalesce=\"true\"></tm:field>" +
+                "</tm:rule>");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMergeUnsupportedRule() throws Exception {
+        MergePlan plan = parsePlan(RULES_START + "<tm:rule tm:context=\"names/name[1]\"></tm:rule>" + RULES_END);
+
+        new XmlDocumentMerger(new RuleProcessor()).mergeTrees(plan, new HashMap<String, CompactTree>());
+    }
+
+    private void assertSameAsDom(String rule) throws Exception {
+        MergePlan plan = parsePlan(RULES_START + rule + RULES_END);
+        XmlDocumentMerger merger = new XmlDocumentMerger(new RuleProcessor());
+        Map<String, Document> sourceDocuments = new HashMap<>();
+        sourceDocuments.put("fdb", parse(FDB));
+        sourceDocuments.put("zeus", parse(ZEUS));
+        NamePool namePool = new NamePool();
+        Map<String, CompactTree> sourceTrees = new HashMap<>();
+        sourceTrees.put("fdb", CompactTree.fromDocument(parse(FDB), namePool));
+        sourceTrees.put("zeus", CompactTree.parse(XMLInputFactory.newInstance().createXMLStreamReader(new StringReader(ZEUS)), namePool));
+
+        Document expected = merger.mergeDocuments(plan, sourceDocuments);
+        CompactTree trusted = merger.mergeTrees(plan, sourceTrees);
+
+        Diff diff = XMLUnit.compareXML(expected, trusted.toDocument(newDocument()));
+        Assert.assertTrue(diff.toString(), diff.identical());
+    }
+
+    private MergePlan parsePlan(String rules) {
+        return new RulesParser().parsePlan(new ByteArrayInputStream(rules.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private Document parse(String xml) throws Exception {
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private Document newDocument() throws Exception {
+        DocumentBuilder documentBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        return documentBuilder.newDocument();
+    }
+}
@@ -0,0 +1,123 @@
+package com.accuity.xmldocumentmerge;
+
+import org.custommonkey.xmlunit.Diff;
+import org.custommonkey.xmlunit.XMLUnit;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Document;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+public class CompactTreeWriterTest {
+
+    private static final String FDB = "<entity id=\"fdb-1\">" +
+            "<names><name type=\"legal\">fdb legal</name></names>" +
+            "<codes><code>1</code></codes>" +
+            "</entity>";
+    private static final String ZEUS = "<entity id='zeus-1'>\r\n" +
+            "  <names><name type='local'>zeus &#x26; local</name></names>\r\n" +
+            "  <addresses><address type='HQ'><zip>zeus zip</zip></address></addresses>\r\n" +
+            "</entity>";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testWriteSameAsDocument() throws Exception {
+        String xml = "<?pi data?><a x=\"1 &lt; &quot;2&quot;\" y=\"tab&#9;line&#10;\">one &amp; two &#x263A; &#x1F600;\r" +
+                "<b>text<![CDATA[<cdata> ]]]]><![CDATA[> end]]></b><!--comment--><c/><d>&#13;</d></a>";
+        Document document = parse(xml);
+        CompactTree tree = CompactTree.fromDocument(document, new NamePool());
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new CompactTreeWriter(16, 16).write(tree, output);
+
+        Diff diff = XMLUnit.compareXML(document, parse(output.toByteArray()));
+        Assert.assertTrue(diff.toString(), diff.identical());
+    }
+
+    @Test
+    public void testSpliceImportedElements() throws Exception {
+        NamePool namePool = new NamePool();
+        Map<String, CompactSource> sources = new HashMap<>();
+        sources.put("fdb", CompactTree.fromDocument(parse(FDB), namePool));
+        sources.put("zeus", MappedXmlIndex.map(write("zeus.xml", ZEUS), namePool));
+        Map<String, Document> sourceDocuments = new HashMap<>();
+        sourceDocuments.put("fdb", parse(FDB));
+        sourceDocuments.put("zeus", parse(ZEUS));
+        XmlDocumentMerger merger = new XmlDocumentMerger(new RuleProcessor());
+        MergePlan plan = parsePlan();
+        CompactTree trusted = merger.mergeTrees(plan, sources);
+        Path output = temporaryFolder.newFile("trusted.xml").toPath();
+
+        // a threshold of 1 transfers every spliced element from the file
+        for (int transferThreshold : new int[]{Integer.MAX_VALUE, 1}) {
+            try (FileChannel channel = FileChannel.open(output, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                new CompactTreeWriter(64, transferThreshold).write(trusted, channel);
+            }
+            byte[] written = Files.readAllBytes(output);
+
+            String text = new String(written, StandardCharsets.UTF_8);
+            Assert.assertTrue("zeus addresses are spliced verbatim: " + text, text.contains("<addresses><address type='HQ'><zip>zeus zip</zip></address></addresses>"));
+            Assert.assertTrue("merged elements are serialized: " + text, text.contains("<entity id=\"fdb-1\"><names><name type=\"legal\">"));
+            Diff diff = XMLUnit.compareXML(merger.mergeDocuments(plan, sourceDocuments), parse(written));
+            Assert.assertTrue(diff.toString(), diff.identical());
+        }
+    }
+
+    @Test
+    public void testChangedElementIsNotSpliced() throws Exception {
+        NamePool namePool = new NamePool();
+        MappedXmlIndex index = new MappedXmlIndex(ByteBuffer.wrap("<a><b><c/></b></a>".getBytes(StandardCharsets.UTF_8)), namePool);
+        CompactTree tree = new CompactTree(namePool);
+        int a = index.copyTo(tree, index.getDocumentElement());
+        tree.appendChild(0, a);
+        int b = tree.getFirstChild(a);
+        tree.appendChild(tree.getFirstChild(b), tree.createNode(CompactTree.ELEMENT, namePool.intern("d"), null, 0, 0));
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new CompactTreeWriter().write(tree, output);
+
+        Assert.assertNull(tree.getSpliceSource(a));
+        Assert.assertNull(tree.getSpliceSource(b));
+        Diff diff = XMLUnit.compareXML(parse("<a><b><c><d/></c></b></a>"), parse(output.toByteArray()));
+        Assert.assertTrue(diff.toString(), diff.identical());
+    }
+
+    private MergePlan parsePlan() {
+        String rules = "<tm:rules tm:context=\"/\" xmlns:tm=\"http://accuity.com/apo/trust-matrix\">" +
+                "  <tm:rule tm:context=\"entity\">" +
+                "    <tm:weightings>" +
+                "      <tm:source tm:name=\"fdb\" tm:trust=\"1.0\"></tm:source>" +
+                "      <tm:source tm:name=\"zeus\" tm:trust=\"0.9\"></tm:source>" +
+                "    </tm:weightings>" +
+                "  </tm:rule></tm:rules>";
+        return new RulesParser().parsePlan(new ByteArrayInputStream(rules.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private Path write(String name, String xml) throws Exception {
+        Path file = temporaryFolder.newFile(name).toPath();
+        Files.write(file, xml.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private Document parse(String xml) throws Exception {
+        return parse(xml.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Document parse(byte[] xml) throws Exception {
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new ByteArrayInputStream(xml));
+    }
+}
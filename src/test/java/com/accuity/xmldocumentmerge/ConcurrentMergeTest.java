@@ -0,0 +1,102 @@
+package com.accuity.xmldocumentmerge;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayInputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Stress test for the concurrency contract: one XmlDocumentMerger and one MergePlan shared by many threads.
+ */
+public class ConcurrentMergeTest {
+
+    private static final int THREADS = 8;
+    private static final int MERGES_PER_THREAD = 50;
+
+    private static final String RULES = "<tm:rules tm:context=\"/\" xmlns:tm=\"http://accuity.com/apo/trust-matrix\">" +
+            "  <tm:rule tm:context=\"entity\">" +
+            "    <tm:weightings>" +
+            "      <tm:source tm:name=\"fdb\" tm:trust=\"1.0\"></tm:source>" +
+            "      <tm:source tm:name=\"zeus\" tm:trust=\"0.9\"></tm:source>" +
+            "    </tm:weightings>" +
+            "    <tm:rule tm:context=\"names/name\" tm:filter=\"[@type = 'legal']\">" +
+            "      <tm:weightings>" +
+            "        <tm:source tm:name=\"zeus\" tm:trust=\"1.0\"></tm:source>" +
+            "        <tm:source tm:name=\"fdb\" tm:trust=\"0.5\"></tm:source>" +
+            "      </tm:weightings>" +
+            "    </tm:rule>" +
+            "    <tm:rule tm:context=\"addresses/address\">" +
+            "      <tm:field tm:coalesce=\"true\"><tm:id tm:path=\"@type\"></tm:id></tm:field>" +
+            "    </tm:rule>" +
+            "  </tm:rule>" +
+            "</tm:rules>";
+
+    @Test
+    public void testConcurrentMergesOnOneInstance() throws Exception {
+        final MergePlan plan = new RulesParser().parsePlan(new ByteArrayInputStream(RULES.getBytes(StandardCharsets.UTF_8)));
+        final XmlDocumentMerger merger = new XmlDocumentMerger(new RuleProcessor());
+        final String expected = merge(merger, plan, 0);
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<List<String>>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                futures.add(executor.submit(new Callable<List<String>>() {
+                    @Override
+                    public List<String> call() throws Exception {
+                        List<String> results = new ArrayList<>();
+                        for (int i = 0; i < MERGES_PER_THREAD; i++) {
+                            results.add(merge(merger, plan, i));
+                        }
+                        return results;
+                    }
+                }));
+            }
+            for (Future<List<String>> future : futures) {
+                List<String> results = future.get();
+                for (int i = 0; i < results.size(); i++) {
+                    Assert.assertEquals(expected.replace("-0", "-" + i), results.get(i));
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private String merge(XmlDocumentMerger merger, MergePlan plan, int i) throws Exception {
+        DocumentBuilder db = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        Map<String, Document> sourceDocuments = new HashMap<>();
+        sourceDocuments.put("fdb", db.parse(new ByteArrayInputStream(("<entity id=\"e-" + i + "\">" +
+                "<names><name type=\"legal\">fdb legal</name><name type=\"short\">fdb short</name></names>" +
+                "<addresses><address type=\"HQ\"><city>fdb city</city></address></addresses>" +
+                "</entity>").getBytes(StandardCharsets.UTF_8))));
+        sourceDocuments.put("zeus", db.parse(new ByteArrayInputStream(("<entity id=\"z-" + i + "\">" +
+                "<names><name type=\"legal\">zeus legal</name></names>" +
+                "<addresses><address type=\"HQ\"><zip>zeus zip</zip></address><address type=\"branch\"><city>zeus branch</city></address></addresses>" +
+                "</entity>").getBytes(StandardCharsets.UTF_8))));
+
+        Document trusted = merger.mergeDocuments(plan, sourceDocuments);
+
+        Transformer transformer = TransformerFactory.newInstance().newTransformer();
+        StringWriter sw = new StringWriter();
+        transformer.transform(new DOMSource(trusted), new StreamResult(sw));
+        return sw.toString();
+    }
+}
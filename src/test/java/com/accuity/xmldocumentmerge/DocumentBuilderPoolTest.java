@@ -0,0 +1,68 @@
+package com.accuity.xmldocumentmerge;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXParseException;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class DocumentBuilderPoolTest {
+
+    @Test
+    public void testBuildersAreReused() throws Exception {
+        DocumentBuilderPool pool = new DocumentBuilderPool(DocumentBuilderFactory.newInstance(), 2);
+
+        DocumentBuilder first = pool.acquire();
+        pool.release(first);
+
+        Assert.assertSame(first, pool.acquire());
+        Assert.assertEquals(0, pool.getIdleCount());
+    }
+
+    @Test
+    public void testIdleBuildersAreBounded() {
+        DocumentBuilderPool pool = new DocumentBuilderPool(DocumentBuilderFactory.newInstance(), 2);
+        DocumentBuilder[] builders = {pool.acquire(), pool.acquire(), pool.acquire()};
+
+        for (DocumentBuilder builder : builders) {
+            pool.release(builder);
+        }
+
+        Assert.assertEquals(2, pool.getIdleCount());
+    }
+
+    @Test
+    public void testParse() throws Exception {
+        DocumentBuilderPool pool = new DocumentBuilderPool();
+
+        Document document = pool.parse(new ByteArrayInputStream("<country><name>A</name></country>".getBytes(StandardCharsets.UTF_8)));
+
+        Assert.assertEquals("country", document.getDocumentElement().getNodeName());
+        Assert.assertEquals(1, pool.getIdleCount());
+        Assert.assertNull(pool.newDocument().getDocumentElement());
+    }
+
+    @Test(expected = SAXParseException.class)
+    public void testExternalEntityIsRejected() throws Exception {
+        Path secret = Files.createTempFile("secret", ".txt");
+        try {
+            Files.write(secret, "secret".getBytes(StandardCharsets.UTF_8));
+            String xml = "<!DOCTYPE country [<!ENTITY e SYSTEM \"" + secret.toUri() + "\">]><country><name>&e;</name></country>";
+
+            new DocumentBuilderPool().parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+        } finally {
+            Files.delete(secret);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidMaxIdle() {
+        new DocumentBuilderPool(DocumentBuilderFactory.newInstance(), 0);
+    }
+}
@@ -41,6 +41,23 @@ public class DocumentNodeMergerTest {
 
     }
 
+    @Test
+    public void testMergeCompactNodeChildren() throws Exception {
+        DocumentNodeMerger merger = new DocumentNodeMerger();
+        DocumentBuilder documentBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        NamePool namePool = new NamePool();
+
+        CompactTree tree1 = CompactTree.fromDocument(documentBuilder.parse(new ByteArrayInputStream("<a><b><c><d>1</d></c></b><bb>1</bb><bbb>1</bbb><e/></a>".getBytes(StandardCharsets.UTF_8))), namePool);
+        CompactTree tree2 = CompactTree.fromDocument(documentBuilder.parse(new ByteArrayInputStream("<a><b><c><d>2</d><dd>2</dd></c><cc>2</cc></b><bb></bb><e/><e x=\"1\">2</e></a>".getBytes(StandardCharsets.UTF_8))), namePool);
+        Document expected = documentBuilder.parse(new ByteArrayInputStream("<a><b><c><d>1</d><dd>2</dd></c><cc>2</cc></b><bb>1</bb><bbb>1</bbb><e/></a>".getBytes(StandardCharsets.UTF_8)));
+
+        merger.mergeNodeChildren(tree1, tree1.getDocumentElement(), tree2, tree2.getDocumentElement());
+
+        Diff diff = XMLUnit.compareXML(expected, tree1.toDocument(documentBuilder.newDocument()));
+
+        Assert.assertTrue(buildXmlDiffMessage(diff), diff.identical());
+    }
+
     @Test
     public void testMergeNodeChildrenMultipleSameElements() throws Exception {
         DocumentNodeMerger merger = new DocumentNodeMerger();
@@ -132,4 +149,36 @@ public class DocumentNodeMergerTest {
         Assert.assertTrue(buildXmlDiffMessage(diff), diff.similar());
 
     }
-}
\ No newline at end of file
+
+    /**
+     * Tests a wide node: every destination child is merged with the source child of the same ordinal, and the extra
+     * source children are ignored
+     */
+    @Test
+    public void testMergeNodeChildrenWide() throws Exception {
+        DocumentNodeMerger merger = new DocumentNodeMerger();
+
+        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        DocumentBuilder documentBuilder = dbf.newDocumentBuilder();
+
+        StringBuilder destination = new StringBuilder("<a>");
+        StringBuilder source = new StringBuilder("<a>");
+        StringBuilder merged = new StringBuilder("<a>");
+        for (int i = 0; i < 2000; i++) {
+            destination.append("<b><c>").append(i).append("</c></b>");
+            merged.append("<b><c>").append(i).append("</c><d>").append(i).append("</d></b>");
+        }
+        for (int i = 0; i < 3000; i++) {
+            source.append("<b><d>").append(i).append("</d></b>");
+        }
+        Document doc1 = documentBuilder.parse(new ByteArrayInputStream(destination.append("</a>").toString().getBytes(StandardCharsets.UTF_8)));
+        Document doc2 = documentBuilder.parse(new ByteArrayInputStream(source.append("</a>").toString().getBytes(StandardCharsets.UTF_8)));
+        Document expected = documentBuilder.parse(new ByteArrayInputStream(merged.append("</a>").toString().getBytes(StandardCharsets.UTF_8)));
+
+        merger.mergeNodeChildren(doc1.getDocumentElement(), doc2.getDocumentElement());
+
+        Diff diff = XMLUnit.compareXML(expected, doc1);
+
+        Assert.assertTrue(buildXmlDiffMessage(diff), diff.similar());
+    }
+}
@@ -0,0 +1,218 @@
+package com.accuity.xmldocumentmerge;
+
+import org.custommonkey.xmlunit.Diff;
+import org.custommonkey.xmlunit.XMLUnit;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class FeedMergerTest {
+
+    private static final String RULES = "<tm:rules tm:context=\"/\" xmlns:tm=\"http://accuity.com/apo/trust-matrix\">" +
+            "  <tm:rule tm:context=\"entity\">" +
+            "    <tm:weightings>" +
+            "      <tm:source tm:name=\"fdb\" tm:trust=\"1.0\"></tm:source>" +
+            "      <tm:source tm:name=\"zeus\" tm:trust=\"0.9\"></tm:source>" +
+            "    </tm:weightings>" +
+            "    <tm:rule tm:context=\"names/name\">" +
+            "      <tm:field tm:coalesce=\"true\"><tm:id tm:path=\"@type\"></tm:id></tm:field>" +
+            "    </tm:rule>" +
+            "  </tm:rule></tm:rules>";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final MergePlan plan = new RulesParser().parsePlan(new ByteArrayInputStream(RULES.getBytes(StandardCharsets.UTF_8)));
+    private final FeedMerger feedMerger = new FeedMerger(new XmlDocumentMerger(new RuleProcessor()), "@id");
+
+    @Test
+    public void testJoinsRecordsByKey() throws Exception {
+        String fdb = feed(record("1", "legal", "fdb one"), record("2", "legal", "fdb two"), record("4", "legal", "fdb four"));
+        String zeus = feed(record("1", "local", "zeus one"), record("3", "legal", "zeus three"), record("4", "legal", "zeus four"));
+
+        StringWriter output = new StringWriter();
+        long written = feedMerger.mergeFeeds(plan, readers(fdb, zeus), XMLOutputFactory.newInstance().createXMLStreamWriter(output));
+
+        Assert.assertEquals(4, written);
+        Document merged = parse(output.toString());
+        Assert.assertEquals("entities", merged.getDocumentElement().getNodeName());
+        NodeList records = merged.getDocumentElement().getElementsByTagName("entity");
+        Assert.assertEquals(4, records.getLength());
+        assertMerged(records.item(0), record("1", "legal", "fdb one"), record("1", "local", "zeus one"));
+        assertMerged(records.item(1), record("2", "legal", "fdb two"), null);
+        assertMerged(records.item(2), null, record("3", "legal", "zeus three"));
+        assertMerged(records.item(3), record("4", "legal", "fdb four"), record("4", "legal", "zeus four"));
+    }
+
+    @Test
+    public void testMergeFiles() throws Exception {
+        Path fdb = temporaryFolder.newFile("fdb.xml").toPath();
+        Path zeus = temporaryFolder.newFile("zeus.xml").toPath();
+        Path output = temporaryFolder.newFile("merged.xml").toPath();
+        Files.write(fdb, feed(record("a", "legal", "fdb \u00e9"), record("b", "legal", "fdb b")).getBytes(StandardCharsets.UTF_8));
+        Files.write(zeus, feed(record("b", "local", "zeus b")).getBytes(StandardCharsets.UTF_8));
+        Map<String, Path> sourceFeeds = new LinkedHashMap<>();
+        sourceFeeds.put("fdb", fdb);
+        sourceFeeds.put("zeus", zeus);
+
+        Assert.assertEquals(2, feedMerger.mergeFiles(plan, sourceFeeds, output));
+
+        Element merged = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(output.toFile()).getDocumentElement();
+        NodeList records = merged.getElementsByTagName("entity");
+        Assert.assertEquals(2, records.getLength());
+        assertMerged(records.item(0), record("a", "legal", "fdb \u00e9"), null);
+        assertMerged(records.item(1), record("b", "legal", "fdb b"), record("b", "local", "zeus b"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsortedFeed() throws Exception {
+        String fdb = feed(record("2", "legal", "fdb two"), record("1", "legal", "fdb one"));
+        String zeus = feed(record("1", "legal", "zeus one"));
+
+        feedMerger.mergeFeeds(plan, readers(fdb, zeus), XMLOutputFactory.newInstance().createXMLStreamWriter(new StringWriter()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRecordWithoutKey() throws Exception {
+        String fdb = feed("<entity><names/></entity>");
+
+        feedMerger.mergeFeeds(plan, readers(fdb, feed()), XMLOutputFactory.newInstance().createXMLStreamWriter(new StringWriter()));
+    }
+
+    @Test
+    public void testUnsortedFeedsAreSortedInSpilledRuns() throws Exception {
+        String fdb = feed(record("4", "legal", "fdb four"), record("1", "legal", "fdb one"), record("2", "legal", "fdb two"));
+        String zeus = feed(record("3", "legal", "zeus three"), record("4", "legal", "zeus four"), record("1", "local", "zeus one"));
+        Path spillDirectory = temporaryFolder.newFolder("spill").toPath();
+        FeedMerger unsortedMerger = new FeedMerger(new XmlDocumentMerger(new RuleProcessor()), new DocumentBuilderPool(), "@id", spillDirectory, 1);
+
+        StringWriter output = new StringWriter();
+        long written = unsortedMerger.mergeUnsortedFeeds(plan, readers(fdb, zeus), XMLOutputFactory.newInstance().createXMLStreamWriter(output));
+
+        Assert.assertEquals(4, written);
+        NodeList records = parse(output.toString()).getDocumentElement().getElementsByTagName("entity");
+        Assert.assertEquals(4, records.getLength());
+        assertMerged(records.item(0), record("1", "legal", "fdb one"), record("1", "local", "zeus one"));
+        assertMerged(records.item(1), record("2", "legal", "fdb two"), null);
+        assertMerged(records.item(2), null, record("3", "legal", "zeus three"));
+        assertMerged(records.item(3), record("4", "legal", "fdb four"), record("4", "legal", "zeus four"));
+        Assert.assertEquals("the runs are deleted", 0, spillDirectory.toFile().list().length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsortedFeedWithRepeatedKey() throws Exception {
+        String fdb = feed(record("2", "legal", "fdb two"), record("1", "legal", "fdb one"), record("2", "local", "fdb two"));
+
+        feedMerger.mergeUnsortedFeeds(plan, readers(fdb, feed()), XMLOutputFactory.newInstance().createXMLStreamWriter(new StringWriter()));
+    }
+
+    @Test
+    public void testFeedsWithDefaultNamespace() throws Exception {
+        String rules = "<tm:rules tm:context=\"/\" xmlns:tm=\"http://accuity.com/apo/trust-matrix\">" +
+                "  <tm:rule tm:context=\"entity\">" +
+                "    <tm:weightings><tm:source tm:name=\"fdb\" tm:trust=\"1.0\"></tm:source></tm:weightings>" +
+                "    <tm:rule tm:context=\"names/name\">" +
+                "      <tm:weightings>" +
+                "        <tm:source tm:name=\"fdb\" tm:trust=\"0.5\"></tm:source>" +
+                "        <tm:source tm:name=\"zeus\" tm:trust=\"1.0\"></tm:source>" +
+                "      </tm:weightings>" +
+                "    </tm:rule>" +
+                "  </tm:rule></tm:rules>";
+        MergePlan namePlan = new RulesParser().parsePlan(new ByteArrayInputStream(rules.getBytes(StandardCharsets.UTF_8)));
+        String fdb = "<entities xmlns=\"urn:x\">" + record("1", "legal", "fdb") + "</entities>";
+        String zeus = "<entities xmlns=\"urn:x\">" + record("1", "legal", "zeus") + "</entities>";
+        FeedMerger unsortedMerger = new FeedMerger(new XmlDocumentMerger(new RuleProcessor()), new DocumentBuilderPool(), "@id",
+                temporaryFolder.newFolder("spill").toPath(), 1);
+
+        StringWriter sorted = new StringWriter();
+        feedMerger.mergeFeeds(namePlan, readers(fdb, zeus), XMLOutputFactory.newInstance().createXMLStreamWriter(sorted));
+        StringWriter unsorted = new StringWriter();
+        unsortedMerger.mergeUnsortedFeeds(namePlan, readers(fdb, zeus), XMLOutputFactory.newInstance().createXMLStreamWriter(unsorted));
+
+        Map<String, Document> sourceDocuments = new HashMap<>();
+        sourceDocuments.put("fdb", parse("<entity xmlns=\"urn:x\"" + record("1", "legal", "fdb").substring("<entity".length())));
+        sourceDocuments.put("zeus", parse("<entity xmlns=\"urn:x\"" + record("1", "legal", "zeus").substring("<entity".length())));
+        Document expected = new XmlDocumentMerger(new RuleProcessor()).mergeDocuments(namePlan, sourceDocuments);
+        Assert.assertEquals("zeus", expected.getElementsByTagName("name").item(0).getTextContent());
+        for (String output : new String[]{sorted.toString(), unsorted.toString()}) {
+            Node record = parse(output).getDocumentElement().getElementsByTagName("entity").item(0);
+            Document actual = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+            actual.appendChild(actual.importNode(record, true));
+            Diff diff = XMLUnit.compareXML(expected, actual);
+            Assert.assertTrue(output + ": " + diff, diff.identical());
+        }
+    }
+
+    @Test
+    public void testSortedAndUnsortedJoinsReadTheSameRecords() throws Exception {
+        String fdb = "<x:entities xmlns:x=\"urn:x\" xmlns:y=\"urn:y\"><x:entity id=\"1\" y:code=\"c\"><y:names>" +
+                "<y:name type=\"legal\" xml:lang=\"en\">fdb &amp; <![CDATA[one]]></y:name></y:names></x:entity></x:entities>";
+        String zeus = "<entities xmlns:y=\"urn:y\"><entity id=\"1\"><y:names><y:name type=\"local\">zeus</y:name></y:names></entity></entities>";
+        FeedMerger unsortedMerger = new FeedMerger(new XmlDocumentMerger(new RuleProcessor()), new DocumentBuilderPool(), "@id",
+                temporaryFolder.newFolder("spill").toPath(), 1);
+
+        StringWriter sorted = new StringWriter();
+        feedMerger.mergeFeeds(plan, readers(fdb, zeus), XMLOutputFactory.newInstance().createXMLStreamWriter(sorted));
+        StringWriter unsorted = new StringWriter();
+        unsortedMerger.mergeUnsortedFeeds(plan, readers(fdb, zeus), XMLOutputFactory.newInstance().createXMLStreamWriter(unsorted));
+
+        Assert.assertEquals(sorted.toString(), unsorted.toString());
+    }
+
+    private void assertMerged(Node actual, String fdb, String zeus) throws Exception {
+        Map<String, Document> sourceDocuments = new HashMap<>();
+        if (fdb != null) {
+            sourceDocuments.put("fdb", parse(fdb));
+        }
+        if (zeus != null) {
+            sourceDocuments.put("zeus", parse(zeus));
+        }
+        Document expected = new XmlDocumentMerger(new RuleProcessor()).mergeDocuments(plan, sourceDocuments);
+        Document actualDocument = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+        actualDocument.appendChild(actualDocument.importNode(actual, true));
+        Diff diff = XMLUnit.compareXML(expected, actualDocument);
+        Assert.assertTrue(diff.toString(), diff.identical());
+    }
+
+    private Map<String, XMLStreamReader> readers(String fdb, String zeus) throws Exception {
+        Map<String, XMLStreamReader> readers = new LinkedHashMap<>();
+        readers.put("fdb", XMLInputFactory.newInstance().createXMLStreamReader(new StringReader(fdb)));
+        readers.put("zeus", XMLInputFactory.newInstance().createXMLStreamReader(new StringReader(zeus)));
+        return readers;
+    }
+
+    private static String feed(String... records) {
+        StringBuilder feed = new StringBuilder("<?xml version=\"1.0\"?>\n<entities>\n");
+        for (String record : records) {
+            feed.append("  ").append(record).append('\n');
+        }
+        return feed.append("</entities>").toString();
+    }
+
+    private static String record(String id, String nameType, String name) {
+        return "<entity id=\"" + id + "\"><names><name type=\"" + nameType + "\">" + name + "</name></names></entity>";
+    }
+
+    private Document parse(String xml) throws Exception {
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,77 @@
+package com.accuity.xmldocumentmerge;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.xml.stream.XMLInputFactory;
+import java.io.StringReader;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+public class FeedSorterTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testMergesRunsInPassesOfAtMostMaxFanIn() throws Exception {
+        Path spillDirectory = temporaryFolder.newFolder("spill").toPath();
+        List<String> fdbKeys = new ArrayList<>();
+        List<String> zeusKeys = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            // reversed, so that every run of one record holds a different key range
+            fdbKeys.add(String.format("%02d", 19 - i));
+            if (i % 2 == 0) {
+                zeusKeys.add(String.format("%02d", i));
+            }
+        }
+
+        List<String> keys = new ArrayList<>();
+        try (FeedSorter feedSorter = new FeedSorter(spillDirectory, 1, 3, new DocumentBuilderPool())) {
+            feedSorter.addFeed(feed("fdb", fdbKeys));
+            feedSorter.addFeed(feed("zeus", zeusKeys));
+            Assert.assertEquals(30, feedSorter.getRunCount());
+
+            while (feedSorter.nextGroup()) {
+                keys.add(feedSorter.getGroupKey());
+                int i = Integer.parseInt(feedSorter.getGroupKey());
+                Assert.assertEquals(new HashSet<>(i % 2 == 0 ? Arrays.asList("fdb", "zeus") : Arrays.asList("fdb")),
+                        feedSorter.getGroup().keySet());
+                Assert.assertEquals(feedSorter.getGroupKey(),
+                        feedSorter.getGroup().get("fdb").getDocumentElement().getAttribute("id"));
+            }
+            Assert.assertTrue(feedSorter.getOpenRunCount() <= 3);
+            Assert.assertEquals("the merged runs are deleted", feedSorter.getOpenRunCount(), spillDirectory.toFile().list().length);
+        }
+        List<String> expected = new ArrayList<>(fdbKeys);
+        Collections.sort(expected);
+        Assert.assertEquals(expected, keys);
+        Assert.assertEquals("the runs are deleted", 0, spillDirectory.toFile().list().length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRepeatedKeyAcrossIntermediatePasses() throws Exception {
+        try (FeedSorter feedSorter = new FeedSorter(temporaryFolder.newFolder("spill").toPath(), 1, 2, new DocumentBuilderPool())) {
+            feedSorter.addFeed(feed("fdb", Arrays.asList("1", "2", "3", "1", "4")));
+            while (feedSorter.nextGroup()) {
+                // fails at the repeated key
+            }
+        }
+    }
+
+    private static FeedReader feed(String sourceName, List<String> keys) throws Exception {
+        StringBuilder feed = new StringBuilder("<entities>");
+        for (String key : keys) {
+            feed.append("<entity id=\"").append(key).append("\"><name>").append(sourceName).append("</name></entity>");
+        }
+        feed.append("</entities>");
+        return new FeedReader(sourceName, XMLInputFactory.newInstance().createXMLStreamReader(new StringReader(feed.toString())),
+                new MergePlanCompiler().compile("@id"), new DocumentBuilderPool());
+    }
+}
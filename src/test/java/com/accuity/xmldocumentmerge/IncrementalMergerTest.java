@@ -0,0 +1,124 @@
+package com.accuity.xmldocumentmerge;
+
+import org.custommonkey.xmlunit.Diff;
+import org.custommonkey.xmlunit.XMLUnit;
+import org.junit.Assert;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+public class IncrementalMergerTest {
+
+    private static final String RULES = "<tm:rules tm:context=\"/\" xmlns:tm=\"http://accuity.com/apo/trust-matrix\">" +
+            "  <tm:rule tm:context=\"entity\">" +
+            "    <tm:weightings>" +
+            "      <tm:source tm:name=\"fdb\" tm:trust=\"1.0\"></tm:source>" +
+            "      <tm:source tm:name=\"zeus\" tm:trust=\"0.9\"></tm:source>" +
+            "    </tm:weightings>" +
+            "    <tm:rule tm:context=\"names/name\">" +
+            "      <tm:field tm:coalesce=\"true\"><tm:id tm:path=\"@type\"></tm:id></tm:field>" +
+            "    </tm:rule>" +
+            "    <tm:rule tm:context=\"addresses/address\">" +
+            "      <tm:weightings>" +
+            "        <tm:source tm:name=\"zeus\" tm:trust=\"1.0\"></tm:source>" +
+            "      </tm:weightings>" +
+            "      <tm:rule tm:context=\"city\">" +
+            "        <tm:weightings>" +
+            "          <tm:source tm:name=\"fdb\" tm:trust=\"1.0\"></tm:source>" +
+            "        </tm:weightings>" +
+            "      </tm:rule>" +
+            "    </tm:rule>" +
+            "    <tm:rule tm:context=\"codes/code\">" +
+            "      <tm:field tm:coalesce=\"true\"></tm:field>" +
+            "      <tm:weightings>" +
+            "        <tm:source tm:name=\"fdb\" tm:trust=\"1.0\"></tm:source>" +
+            "      </tm:weightings>" +
+            "    </tm:rule>" +
+            "  </tm:rule></tm:rules>";
+
+    private static final String FDB = "<entity id=\"fdb-1\">" +
+            "<names><name type=\"legal\">fdb legal</name></names>" +
+            "<addresses><address type=\"HQ\"><city>fdb city</city></address></addresses>" +
+            "<codes><code>1</code></codes>" +
+            "</entity>";
+    private static final String ZEUS = "<entity id=\"zeus-1\">" +
+            "<names><name type=\"legal\">zeus legal</name><name type=\"local\">zeus local</name></names>" +
+            "<addresses><address type=\"HQ\"><zip>zeus zip</zip><city>zeus city</city></address></addresses>" +
+            "<codes><code>2</code></codes>" +
+            "</entity>";
+
+    private final MergePlan plan = new RulesParser().parsePlan(new ByteArrayInputStream(RULES.getBytes(StandardCharsets.UTF_8)));
+
+    @Test
+    public void testRemergeSameAsFullMerge() throws Exception {
+        IncrementalMerger merger = new IncrementalMerger();
+        IncrementalMergeState state = merger.merge(plan, sources());
+        assertSameAsFullMerge(state);
+
+        state = merger.remerge(state, "zeus", parse(ZEUS.replace("zeus zip", "new zip").replace("local", "short")));
+        assertSameAsFullMerge(state);
+        state = merger.remerge(state, "fdb", parse(FDB.replace("fdb city", "new city").replace("<code>1</code>", "<code>3</code>")));
+        assertSameAsFullMerge(state);
+        state = merger.remerge(state, "zeus", null);
+        assertSameAsFullMerge(state);
+        state = merger.remerge(state, "zeus", parse(ZEUS));
+        assertSameAsFullMerge(state);
+        Assert.assertTrue(state.getTrustedDocument().getDocumentElement().getTextContent().contains("new city"));
+    }
+
+    @Test
+    public void testOnlyRulesTrustingChangedSourceAreRecomputed() throws Exception {
+        IncrementalMerger merger = new IncrementalMerger();
+        IncrementalMergeState state = merger.merge(plan, sources());
+        Document zeus = state.getSourceDocuments().get("zeus");
+        Assert.assertEquals(5, state.getRecomputedRules());
+        Assert.assertEquals(0, state.getReplayedRules());
+
+        // the docroot, names and addresses trust zeus; city and codes are replayed
+        IncrementalMergeState zeusChanged = merger.remerge(state, "zeus", parse(ZEUS.replace("zeus zip", "new zip")));
+        Assert.assertEquals(3, zeusChanged.getRecomputedRules());
+        Assert.assertEquals(2, zeusChanged.getReplayedRules());
+
+        // only addresses does not trust fdb
+        IncrementalMergeState fdbChanged = merger.remerge(state, "fdb", parse(FDB.replace("fdb city", "new city")));
+        Assert.assertEquals(4, fdbChanged.getRecomputedRules());
+        Assert.assertEquals(1, fdbChanged.getReplayedRules());
+
+        Assert.assertSame("the previous state is not changed", zeus, state.getSourceDocuments().get("zeus"));
+    }
+
+    @Test
+    public void testVerify() throws Exception {
+        IncrementalMerger merger = new IncrementalMerger(new DocumentBuilderPool(), true);
+        IncrementalMergeState state = merger.merge(plan, sources());
+
+        state = merger.remerge(state, "zeus", parse(ZEUS.replace("zeus city", "new city")));
+        state = merger.remerge(state, "other", parse(ZEUS));
+
+        Assert.assertEquals(0, state.getRecomputedRules());
+        Assert.assertEquals(5, state.getReplayedRules());
+        assertSameAsFullMerge(state);
+    }
+
+    private void assertSameAsFullMerge(IncrementalMergeState state) throws Exception {
+        Document expected = new XmlDocumentMerger(new RuleProcessor()).mergeDocuments(plan, new HashMap<>(state.getSourceDocuments()));
+        Diff diff = XMLUnit.compareXML(expected, state.getTrustedDocument());
+        Assert.assertTrue(diff.toString(), diff.identical());
+    }
+
+    private Map<String, Document> sources() throws Exception {
+        Map<String, Document> sourceDocuments = new HashMap<>();
+        sourceDocuments.put("fdb", parse(FDB));
+        sourceDocuments.put("zeus", parse(ZEUS));
+        return sourceDocuments;
+    }
+
+    private Document parse(String xml) throws Exception {
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,54 @@
+package com.accuity.xmldocumentmerge;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+public class KeyExtractorTest {
+
+    @Test
+    public void testExtract() throws Exception {
+        Document document = parse("<a><b type=\"t1\"><code>c1</code></b></a>");
+
+        CompositeKey key = buildExtractor("@type", "code", "missing").extract(firstB(document));
+
+        Assert.assertEquals("t1;c1;;", key.toString());
+    }
+
+    @Test
+    public void testSeparatorInValuesDoesNotCollide() throws Exception {
+        KeyExtractor extractor = buildExtractor("@type", "code");
+
+        CompositeKey first = extractor.extract(firstB(parse("<a><b type=\"x;\"><code>y</code></b></a>")));
+        CompositeKey second = extractor.extract(firstB(parse("<a><b type=\"x\"><code>;y</code></b></a>")));
+        CompositeKey third = extractor.extract(firstB(parse("<a><b type=\"x\"><code>;y</code></b></a>")));
+
+        Assert.assertEquals("the string forms are the same", first.toString(), second.toString());
+        Assert.assertNotEquals(first, second);
+        Assert.assertEquals(second, third);
+        Assert.assertEquals(second.hashCode(), third.hashCode());
+    }
+
+    private KeyExtractor buildExtractor(String... paths) throws Exception {
+        List<CompiledPath> idPaths = new ArrayList<>();
+        for (String path : paths) {
+            idPaths.add(new MergePlanCompiler().compile(path));
+        }
+        return new KeyExtractor(idPaths);
+    }
+
+    private Element firstB(Document document) {
+        return (Element) document.getDocumentElement().getFirstChild();
+    }
+
+    private Document parse(String xml) throws Exception {
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,188 @@
+package com.accuity.xmldocumentmerge;
+
+import org.custommonkey.xmlunit.Diff;
+import org.custommonkey.xmlunit.XMLUnit;
+import org.junit.Assert;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Supplier;
+
+public class LazySourceDocumentsTest {
+
+    private static final String FDB = "<entity id=\"fdb-1\"><names><name type=\"legal\">fdb legal</name></names></entity>";
+    private static final String ZEUS = "<entity id=\"zeus-1\"><names><name type=\"local\">zeus local</name></names></entity>";
+    private static final String OTHER = "<entity id=\"other-1\"><addresses><address>other</address></addresses></entity>";
+
+    private final Map<String, Integer> loads = new HashMap<>();
+
+    @Test
+    public void testUnusedSourcesAreNotLoaded() throws Exception {
+        MergePlan plan = parsePlan("", "<tm:rule tm:context=\"addresses/address\">" +
+                "  <tm:weightings><tm:source tm:name=\"other\" tm:trust=\"1.0\"></tm:source></tm:weightings>" +
+                "</tm:rule>");
+        LazySourceDocuments sources = lazySources("fdb", FDB, "zeus", ZEUS, "other", OTHER, "unknown", FDB);
+
+        Document trustedDocument = new XmlDocumentMerger(new RuleProcessor()).mergeDocuments(plan, sources);
+
+        // the trusted document has no addresses, so the rule trusting other has no parent to import into
+        Assert.assertEquals(new HashSet<>(Arrays.asList("fdb", "zeus")), sources.getLoadedSources());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("other", "unknown")), sources.getUnloadedSources());
+        assertSameAsEagerMerge(plan, trustedDocument);
+    }
+
+    @Test
+    public void testSourcesShadowedByStopRuleAreNotLoaded() throws Exception {
+        MergePlan plan = parsePlan("<tm:field tm:stop=\"true\"></tm:field>", "");
+        LazySourceDocuments sources = lazySources("fdb", FDB, "zeus", ZEUS);
+
+        Document trustedDocument = new XmlDocumentMerger(new RuleProcessor()).mergeDocuments(plan, sources);
+
+        Assert.assertEquals(Collections.singleton("zeus"), sources.getUnloadedSources());
+        assertSameAsEagerMerge(plan, trustedDocument);
+    }
+
+    @Test
+    public void testSourceIsLoadedOnce() throws Exception {
+        MergePlan plan = parsePlan("", "<tm:rule tm:context=\"names/name\">" +
+                "  <tm:field tm:coalesce=\"true\"><tm:id tm:path=\"@type\"></tm:id></tm:field>" +
+                "</tm:rule>");
+        LazySourceDocuments sources = lazySources("fdb", FDB, "zeus", ZEUS);
+
+        new XmlDocumentMerger(new RuleProcessor()).mergeDocuments(plan, sources);
+        new XmlDocumentMerger(new RuleProcessor()).mergeDocuments(plan, sources);
+
+        Assert.assertEquals(Integer.valueOf(1), loads.get("fdb"));
+        Assert.assertEquals(Integer.valueOf(1), loads.get("zeus"));
+        Assert.assertTrue(sources.getUnloadedSources().isEmpty());
+    }
+
+    @Test
+    public void testSourceIsLoadedAgainAfterAnException() throws Exception {
+        final int[] calls = {0};
+        Map<String, Supplier<Document>> suppliers = new LinkedHashMap<>();
+        suppliers.put("fdb", new Supplier<Document>() {
+            @Override
+            public Document get() {
+                if (calls[0]++ == 0) {
+                    throw new IllegalStateException("feed unavailable");
+                }
+                try {
+                    return parse(FDB);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        LazySourceDocuments sources = new LazySourceDocuments(suppliers);
+
+        try {
+            sources.get("fdb");
+            Assert.fail("expected the supplier's exception");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals(Collections.singleton("fdb"), sources.getUnloadedSources());
+        }
+        Assert.assertNotNull(sources.get("fdb"));
+        Assert.assertEquals(Collections.singleton("fdb"), sources.getLoadedSources());
+    }
+
+    @Test(timeout = 10000)
+    public void testSourcesAreLoadedConcurrently() throws Exception {
+        final CountDownLatch fdbLoading = new CountDownLatch(1);
+        final CountDownLatch zeusLoaded = new CountDownLatch(1);
+        Map<String, Supplier<Document>> suppliers = new LinkedHashMap<>();
+        suppliers.put("fdb", new Supplier<Document>() {
+            @Override
+            public Document get() {
+                try {
+                    // fdb is only loaded once zeus is, which another thread loads meanwhile
+                    fdbLoading.countDown();
+                    zeusLoaded.await();
+                    return parse(FDB);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        suppliers.put("zeus", new Supplier<Document>() {
+            @Override
+            public Document get() {
+                try {
+                    return parse(ZEUS);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        final LazySourceDocuments sources = new LazySourceDocuments(suppliers);
+        Thread fdbLoader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sources.get("fdb");
+            }
+        });
+        fdbLoader.start();
+        fdbLoading.await();
+
+        Assert.assertNotNull(sources.get("zeus"));
+        zeusLoaded.countDown();
+        fdbLoader.join();
+
+        Assert.assertEquals(new HashSet<>(Arrays.asList("fdb", "zeus")), sources.getLoadedSources());
+    }
+
+    private void assertSameAsEagerMerge(MergePlan plan, Document trustedDocument) throws Exception {
+        Map<String, Document> sourceDocuments = new HashMap<>();
+        sourceDocuments.put("fdb", parse(FDB));
+        sourceDocuments.put("zeus", parse(ZEUS));
+        sourceDocuments.put("other", parse(OTHER));
+        Document expected = new XmlDocumentMerger(new RuleProcessor()).mergeDocuments(plan, sourceDocuments);
+        Diff diff = XMLUnit.compareXML(expected, trustedDocument);
+        Assert.assertTrue(diff.toString(), diff.identical());
+    }
+
+    private LazySourceDocuments lazySources(String... namesAndDocuments) {
+        Map<String, Supplier<Document>> suppliers = new LinkedHashMap<>();
+        for (int i = 0; i < namesAndDocuments.length; i += 2) {
+            final String name = namesAndDocuments[i];
+            final String xml = namesAndDocuments[i + 1];
+            suppliers.put(name, new Supplier<Document>() {
+                @Override
+                public Document get() {
+                    loads.put(name, loads.containsKey(name) ? loads.get(name) + 1 : 1);
+                    try {
+                        return parse(xml);
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+        }
+        return new LazySourceDocuments(suppliers);
+    }
+
+    private MergePlan parsePlan(String docRootField, String childRules) {
+        String rules = "<tm:rules tm:context=\"/\" xmlns:tm=\"http://accuity.com/apo/trust-matrix\">" +
+                "  <tm:rule tm:context=\"entity\">" + docRootField +
+                "    <tm:weightings>" +
+                "      <tm:source tm:name=\"fdb\" tm:trust=\"1.0\"></tm:source>" +
+                "      <tm:source tm:name=\"zeus\" tm:trust=\"0.9\"></tm:source>" +
+                "    </tm:weightings>" + childRules +
+                "  </tm:rule></tm:rules>";
+        return new RulesParser().parsePlan(new ByteArrayInputStream(rules.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static Document parse(String xml) throws Exception {
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+}
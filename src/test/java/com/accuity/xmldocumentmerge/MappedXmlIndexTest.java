@@ -0,0 +1,171 @@
+package com.accuity.xmldocumentmerge;
+
+import org.custommonkey.xmlunit.Diff;
+import org.custommonkey.xmlunit.XMLUnit;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Document;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+public class MappedXmlIndexTest {
+
+    private static final String RULES_START = "<tm:rules tm:context=\"/\" xmlns:tm=\"http://accuity.com/apo/trust-matrix\">" +
+            "  <tm:rule tm:context=\"entity\">" +
+            "    <tm:weightings>" +
+            "      <tm:source tm:name=\"fdb\" tm:trust=\"1.0\"></tm:source>" +
+            "      <tm:source tm:name=\"zeus\" tm:trust=\"0.9\"></tm:source>" +
+            "    </tm:weightings>";
+    private static final String RULES_END = "  </tm:rule></tm:rules>";
+
+    private static final String FDB = "<entity id=\"fdb-1\">" +
+            "<names><name type=\"legal\">fdb legal</name></names>" +
+            "<addresses><address type=\"HQ\"><city>fdb city</city></address></addresses>" +
+            "<codes><code>1</code></codes>" +
+            "</entity>";
+    private static final String ZEUS = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+            "<entity id='zeus-1'>\n" +
+            "  <names><name type=\"legal\">zeus legal</name><name type=\"local\">zeus &amp; local</name></names>\n" +
+            "  <addresses><address type=\"HQ\"><zip>zeus zip</zip></address><address type = \"branch\"><city>zeus branch</city></address></addresses>\n" +
+            "  <codes><code>2</code><code>3</code></codes><website>http://zeus</website>\n" +
+            "</entity>\n";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testCopySameAsDocument() throws Exception {
+        String xml = "\uFEFF<?xml version='1.0'?><?pi data?><!--before-->" +
+                "<a xmlns:p=\"urn:p\" p:x=\"1 &lt; 2\" y='line\r\nbreak\ttab &#10;'>one &amp; two &#x263A;\r\n" +
+                "<b>text<![CDATA[<cdata> & \"]]></b><!--comment--><c/><p:d   /><e\u00E9>caf\u00E9</e\u00E9></a>\n";
+        NamePool namePool = new NamePool();
+
+        MappedXmlIndex index = index(xml, namePool);
+        CompactTree copy = new CompactTree(namePool);
+        for (int node = index.getFirstChild(0); node != CompactTree.NONE; node = index.getNextSibling(node)) {
+            copy.appendChild(0, index.copyTo(copy, node));
+        }
+
+        Document expected = parse(xml);
+        Diff diff = XMLUnit.compareXML(expected, copy.toDocument(newDocument()));
+        Assert.assertTrue(diff.toString(), diff.identical());
+        Assert.assertEquals(expected.getDocumentElement().getTextContent(), index.getTextContent(index.getDocumentElement()));
+    }
+
+    @Test
+    public void testAttributes() throws Exception {
+        NamePool namePool = new NamePool();
+        MappedXmlIndex index = index("<a x=\"1\" y = 'two &amp; three'/>", namePool);
+        int a = index.getDocumentElement();
+
+        Assert.assertEquals("two & three", index.getAttributeValue(a, namePool.get("y")));
+        Assert.assertTrue(index.attributeEquals(a, namePool.get("x"), "1"));
+        Assert.assertFalse(index.attributeEquals(a, namePool.get("x"), "2"));
+        Assert.assertNull(index.getAttributeValue(a, namePool.intern("z")));
+        Assert.assertEquals(CompactTree.NONE, index.getFirstChild(a));
+    }
+
+    @Test
+    public void testMergeMappedFilesSameAsDom() throws Exception {
+        String rules = "<tm:rule tm:context=\"names/name\" tm:filter=\"[@type = 'legal']\">" +
+                "  <tm:field tm:stop=\"true\"></tm:field>" +
+                "  <tm:weightings>" +
+                "    <tm:source tm:name=\"zeus\" tm:trust=\"1.0\"></tm:source>" +
+                "    <tm:source tm:name=\"fdb\" tm:trust=\"0.5\"></tm:source>" +
+                "  </tm:weightings>" +
+                "</tm:rule>" +
+                "<tm:rule tm:context=\"addresses/address\">" +
+                "  <tm:field tm:coalesce=\"true\"><tm:id tm:path=\"@type\"></tm:id></tm:field>" +
+                "  <tm:rule tm:context=\"city\">" +
+                "    <tm:weightings>" +
+                "      <tm:source tm:name=\"zeus\" tm:trust=\"1.0\"></tm:source>" +
+                "    </tm:weightings>" +
+                "  </tm:rule>" +
+                "</tm:rule>" +
+                "<tm:rule tm:context=\"codes/code\">" +
+                "  <tm:field tm:coalesce=\"true\"></tm:field>" +
+                "</tm:rule>";
+        MergePlan plan = parsePlan(RULES_START + rules + RULES_END);
+        XmlDocumentMerger merger = new XmlDocumentMerger(new RuleProcessor());
+        Map<String, Document> sourceDocuments = new HashMap<>();
+        sourceDocuments.put("fdb", parse(FDB));
+        sourceDocuments.put("zeus", parse(ZEUS));
+        NamePool namePool = new NamePool();
+        Map<String, CompactSource> sources = new HashMap<>();
+        sources.put("fdb", CompactTree.fromDocument(parse(FDB), namePool));
+        sources.put("zeus", MappedXmlIndex.map(write("zeus.xml", ZEUS), namePool));
+
+        Document expected = merger.mergeDocuments(plan, sourceDocuments);
+        CompactTree trusted = merger.mergeTrees(plan, sources);
+
+        Diff diff = XMLUnit.compareXML(expected, trusted.toDocument(newDocument()));
+        Assert.assertTrue(diff.toString(), diff.identical());
+    }
+
+    @Test
+    public void testShadowedSourceIsNotCopied() throws Exception {
+        MergePlan plan = parsePlan("<tm:rules tm:context=\"/\" xmlns:tm=\"http://accuity.com/apo/trust-matrix\">" +
+                "  <tm:rule tm:context=\"entity\">" +
+                "    <tm:field tm:stop=\"true\"></tm:field>" +
+                "    <tm:weightings>" +
+                "      <tm:source tm:name=\"fdb\" tm:trust=\"1.0\"></tm:source>" +
+                "      <tm:source tm:name=\"zeus\" tm:trust=\"0.9\"></tm:source>" +
+                "    </tm:weightings>" +
+                "  </tm:rule></tm:rules>");
+        NamePool namePool = new NamePool();
+        CompactTree fdb = CompactTree.fromDocument(parse(FDB), namePool);
+        Map<String, CompactSource> sources = new HashMap<>();
+        sources.put("fdb", fdb);
+        sources.put("zeus", index(ZEUS, namePool));
+
+        CompactTree trusted = new RuleProcessor().processRule(plan.getRootRule(), new CompactTree(namePool), sources);
+
+        Assert.assertEquals("only fdb is copied", fdb.getNodeCount(), trusted.getNodeCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnbalancedTags() throws Exception {
+        index("<a><b></a>", new NamePool());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInternalDtdSubset() throws Exception {
+        index("<!DOCTYPE a [<!ENTITY e \"entity\">]><a>&e;</a>", new NamePool());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOtherEncoding() throws Exception {
+        index("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?><a/>", new NamePool());
+    }
+
+    private MappedXmlIndex index(String xml, NamePool namePool) {
+        return new MappedXmlIndex(ByteBuffer.wrap(xml.getBytes(StandardCharsets.UTF_8)), namePool);
+    }
+
+    private Path write(String name, String xml) throws Exception {
+        Path file = temporaryFolder.newFile(name).toPath();
+        Files.write(file, xml.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private MergePlan parsePlan(String rules) {
+        return new RulesParser().parsePlan(new ByteArrayInputStream(rules.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private Document parse(String xml) throws Exception {
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private Document newDocument() throws Exception {
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+    }
+}
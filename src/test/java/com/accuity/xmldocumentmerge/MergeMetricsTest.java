@@ -0,0 +1,120 @@
+package com.accuity.xmldocumentmerge;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+public class MergeMetricsTest {
+
+    private static final String RULES = "<tm:rules tm:context=\"/\" xmlns:tm=\"http://accuity.com/apo/trust-matrix\">" +
+            "  <tm:rule tm:context=\"entity\">" +
+            "    <tm:weightings>" +
+            "      <tm:source tm:name=\"fdb\" tm:trust=\"1.0\"></tm:source>" +
+            "      <tm:source tm:name=\"zeus\" tm:trust=\"0.9\"></tm:source>" +
+            "    </tm:weightings>" +
+            "    <tm:rule tm:context=\"addresses/address\">" +
+            "      <tm:field tm:coalesce=\"true\"><tm:id tm:path=\"@type\"></tm:id></tm:field>" +
+            "    </tm:rule>" +
+            "  </tm:rule>" +
+            "</tm:rules>";
+
+    @Test
+    public void testRuleMetrics() throws Exception {
+        MergeMetrics metrics = new MergeMetrics();
+        XmlDocumentMerger merger = new XmlDocumentMerger(new RuleProcessor(new MergePlanCompiler(), metrics), metrics);
+        MergePlan plan = new RulesParser().parsePlan(new ByteArrayInputStream(RULES.getBytes(StandardCharsets.UTF_8)));
+
+        merger.mergeDocuments(plan, buildSources());
+        merger.mergeDocuments(plan, buildSources());
+
+        Assert.assertEquals(2, metrics.getMergeCount());
+        Assert.assertTrue(metrics.getLatencyP99Millis() > 0);
+        Assert.assertEquals(2, metrics.getRuleCount());
+
+        RuleMetrics docRoot = metrics.getRuleMetrics("/entity");
+        Assert.assertEquals(2, docRoot.getEvaluationCount());
+        Assert.assertEquals("root imported from fdb", 2, docRoot.getImportedNodes());
+        Assert.assertEquals("zeus merged into the root", 2, docRoot.getMergedNodes());
+
+        RuleMetrics addresses = metrics.getRuleMetrics("/entity/addresses/address");
+        Assert.assertEquals(2, addresses.getEvaluationCount());
+        Assert.assertEquals(Long.valueOf(2), addresses.getMatchedNodesBySource().get("fdb"));
+        Assert.assertEquals(Long.valueOf(4), addresses.getMatchedNodesBySource().get("zeus"));
+        Assert.assertEquals("HQ from fdb, branch from zeus", 4, addresses.getImportedNodes());
+        Assert.assertEquals("HQ from zeus", 2, addresses.getMergedNodes());
+        Assert.assertEquals(2, addresses.getCoalesceHits());
+        Assert.assertEquals(4, addresses.getCoalesceMisses());
+    }
+
+    @Test
+    public void testDisabledMetricsRecordNothing() throws Exception {
+        XmlDocumentMerger merger = new XmlDocumentMerger(new RuleProcessor(), MergeMetrics.DISABLED);
+        MergePlan plan = new RulesParser().parsePlan(new ByteArrayInputStream(RULES.getBytes(StandardCharsets.UTF_8)));
+
+        merger.mergeDocuments(plan, buildSources());
+
+        Assert.assertEquals(0, MergeMetrics.DISABLED.getMergeCount());
+        Assert.assertEquals(0, MergeMetrics.DISABLED.getRuleCount());
+    }
+
+    @Test
+    public void testMBeans() throws Exception {
+        MergeMetrics metrics = new MergeMetrics();
+        metrics.getRuleMetrics("/entity");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+        metrics.registerMBeans("com.accuity.test");
+        try {
+            metrics.getRuleMetrics("/entity/names/name[@type='legal']").recordEvaluation(1000);
+
+            Assert.assertEquals(2, server.getAttribute(new ObjectName("com.accuity.test:type=MergeMetrics"), "RuleCount"));
+            Assert.assertEquals(1L, server.getAttribute(MergeMetrics.ruleObjectName("com.accuity.test", "/entity/names/name[@type='legal']"), "EvaluationCount"));
+            Assert.assertTrue(server.isRegistered(MergeMetrics.ruleObjectName("com.accuity.test", "/entity")));
+        } finally {
+            metrics.unregisterMBeans();
+        }
+        Assert.assertFalse(server.isRegistered(new ObjectName("com.accuity.test:type=MergeMetrics")));
+    }
+
+    @Test
+    public void testLatencyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+
+        Assert.assertEquals(1000, histogram.getCount());
+        Assert.assertEquals(1000000L, histogram.getMaxNanos());
+        long p50 = histogram.getPercentileNanos(0.5);
+        Assert.assertTrue("p50 " + p50, p50 >= 500000 && p50 <= 500000 * 1.125);
+        long p99 = histogram.getPercentileNanos(0.99);
+        Assert.assertTrue("p99 " + p99, p99 >= 990000 && p99 <= 1000000);
+
+        for (long value = 0; value < 100000; value += 7) {
+            int bucket = LatencyHistogram.bucket(value);
+            Assert.assertTrue(LatencyHistogram.lowerBound(bucket) <= value && value < LatencyHistogram.lowerBound(bucket + 1));
+        }
+    }
+
+    private Map<String, Document> buildSources() throws Exception {
+        DocumentBuilder db = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        Map<String, Document> sourceDocuments = new HashMap<>();
+        sourceDocuments.put("fdb", db.parse(new ByteArrayInputStream(("<entity>" +
+                "<addresses><address type=\"HQ\"><city>fdb city</city></address></addresses>" +
+                "</entity>").getBytes(StandardCharsets.UTF_8))));
+        sourceDocuments.put("zeus", db.parse(new ByteArrayInputStream(("<entity>" +
+                "<addresses><address type=\"HQ\"><zip>zeus zip</zip></address><address type=\"branch\"><city>zeus branch</city></address></addresses>" +
+                "</entity>").getBytes(StandardCharsets.UTF_8))));
+        return sourceDocuments;
+    }
+}
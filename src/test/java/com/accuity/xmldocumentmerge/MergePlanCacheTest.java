@@ -0,0 +1,53 @@
+package com.accuity.xmldocumentmerge;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+public class MergePlanCacheTest {
+
+    @Test
+    public void testSameRulesShareOnePlan() {
+        MergePlanCache cache = new MergePlanCache(10);
+
+        MergePlan first = cache.getPlan(rules("entity"));
+        MergePlan second = cache.getPlan(new ByteArrayInputStream(rules("entity")));
+
+        Assert.assertNotNull(first);
+        Assert.assertSame(first, second);
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedPlanIsEvicted() {
+        MergePlanCache cache = new MergePlanCache(2);
+
+        MergePlan a = cache.getPlan(rules("a"));
+        MergePlan b = cache.getPlan(rules("b"));
+        Assert.assertSame(a, cache.getPlan(rules("a")));
+        cache.getPlan(rules("c"));
+
+        Assert.assertEquals(2, cache.size());
+        Assert.assertSame(a, cache.getPlan(rules("a")));
+        Assert.assertNotSame("b was evicted", b, cache.getPlan(rules("b")));
+    }
+
+    @Test
+    public void testInvalidRulesAreNotCached() {
+        MergePlanCache cache = new MergePlanCache(2);
+
+        Assert.assertNull(cache.getPlan("<not-rules".getBytes(StandardCharsets.UTF_8)));
+        Assert.assertEquals(0, cache.size());
+    }
+
+    private byte[] rules(String context) {
+        return ("<tm:rules tm:context=\"/\" xmlns:tm=\"http://accuity.com/apo/trust-matrix\">" +
+                "  <tm:rule tm:context=\"" + context + "\">" +
+                "    <tm:weightings><tm:source tm:name=\"fdb\" tm:trust=\"1.0\"></tm:source></tm:weightings>" +
+                "  </tm:rule>" +
+                "</tm:rules>").getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,265 @@
+package com.accuity.xmldocumentmerge;
+
+import com.accuity.xmldocumentmerge.model.Field;
+import com.accuity.xmldocumentmerge.model.Id;
+import com.accuity.xmldocumentmerge.model.Rule;
+import com.accuity.xmldocumentmerge.model.Rules;
+import com.accuity.xmldocumentmerge.model.Source;
+import com.accuity.xmldocumentmerge.model.Weighting;
+import org.junit.Assert;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.xpath.XPathExpressionException;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class MergePlanCompilerTest {
+
+    @Test
+    public void testCompile() throws Exception {
+        Rules rules = buildRules();
+
+        MergePlan plan = new MergePlanCompiler().compile(rules);
+
+        CompiledRule root = plan.getRootRule();
+        Assert.assertTrue(root.isDocRoot());
+        Assert.assertNull("docroot xpath is never evaluated", root.getRuleXPath());
+        Assert.assertEquals("sources are sorted by trust", "sourceA", root.getSources().get(0).getName());
+        Assert.assertEquals(2, root.getChildren().size());
+
+        CompiledRule filtered = root.getChildren().get(0);
+        Assert.assertFalse(filtered.isDocRoot());
+        Assert.assertNotNull(filtered.getRuleXPath());
+        Assert.assertEquals("/root/child", filtered.getFilterlessXPath().getExpression());
+        Assert.assertEquals(1, filtered.getIdExpressions().size());
+        Assert.assertEquals("inherits the parent's sources", 2, filtered.getSources().size());
+
+        CompiledRule unfiltered = root.getChildren().get(1);
+        Assert.assertNull(unfiltered.getFilterlessXPath());
+        Assert.assertNull(unfiltered.getIdExpressions());
+        Assert.assertEquals("untrusted sources are dropped", 1, unfiltered.getSources().size());
+    }
+
+    @Test
+    public void testCompileWithoutDocRoot() {
+        MergePlan plan = new MergePlanCompiler().compile(new Rules());
+
+        Assert.assertNull(plan.getRootRule());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCompileInvalidXPath() {
+        Rules rules = buildRules();
+        rules.getRule().getRules().get(1).setFilter("[@type = ");
+        rules.getRule().setParentRulesForChildren();
+
+        new MergePlanCompiler().compile(rules);
+    }
+
+    @Test
+    public void testCompileWithXPathOnly() throws Exception {
+        MergePlanCompiler compiler = new MergePlanCompiler(Collections.<PathEvaluator>singletonList(new XPathEvaluator()));
+
+        MergePlan plan = compiler.compile(buildRules());
+
+        Assert.assertTrue(plan.getRootRule().getChildren().get(0).getRuleXPath() instanceof CompiledXPath);
+        Assert.assertFalse(new MergePlanCompiler().compile("/root/child") instanceof CompiledXPath);
+        Assert.assertTrue(new MergePlanCompiler().compile("/root/child[1]") instanceof CompiledXPath);
+    }
+
+    @Test
+    public void testCompiledXPathsKeptPerThreadAreBounded() throws Exception {
+        final CompiledXPath first = CompiledXPath.compile("/root/child[1]");
+        for (int i = 0; i <= CompiledXPath.MAX_CACHED_EXPRESSIONS; i++) {
+            CompiledXPath.compile("/root/child[" + (i + 2) + "]");
+        }
+        final Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                .parse(new ByteArrayInputStream("<root><child>a</child></root>".getBytes(StandardCharsets.UTF_8)));
+
+        Assert.assertEquals(CompiledXPath.MAX_CACHED_EXPRESSIONS, CompiledXPath.getCachedExpressionCount());
+        // evicted expressions are compiled again, on any thread
+        Assert.assertEquals("a", first.evaluateFirstNode(document).getTextContent());
+        final Node[] found = new Node[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    found[0] = first.evaluateFirstNode(document);
+                } catch (XPathExpressionException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        thread.start();
+        thread.join();
+        Assert.assertEquals("a", found[0].getTextContent());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCompileWithoutSupportingEvaluator() {
+        Rules rules = buildRules();
+        rules.getRule().getRules().get(1).setFilter("[1]");
+        rules.getRule().setParentRulesForChildren();
+
+        new MergePlanCompiler(Collections.<PathEvaluator>singletonList(new SimplePathEvaluator())).compile(rules);
+    }
+
+    @Test
+    public void testSections() {
+        String rules = "<tm:rules tm:context=\"/\" xmlns:tm=\"http://accuity.com/apo/trust-matrix\">" +
+                "  <tm:rule tm:context=\"entity\">" +
+                "    <tm:rule tm:context=\"names/name\" tm:filter=\"[@type = 'legal']\">" +
+                "      <tm:rule tm:context=\"value\"></tm:rule>" +
+                "    </tm:rule>" +
+                "    <tm:rule tm:context=\"addresses/address\">" +
+                "      <tm:field tm:coalesce=\"true\"><tm:id tm:path=\"@type\"></tm:id></tm:field>" +
+                "    </tm:rule>" +
+                "    <tm:rule tm:context=\"status\"></tm:rule>" +
+                "    <tm:rule tm:context=\"codes/code\" tm:filter=\"[1]\"></tm:rule>" +
+                "    <tm:rule tm:context=\"ids/id\">" +
+                "      <tm:field tm:coalesce=\"true\"><tm:id tm:path=\"../@type\"></tm:id></tm:field>" +
+                "    </tm:rule>" +
+                "    <tm:rule tm:context=\"websites/website\">" +
+                "      <tm:rule tm:context=\"url[2]\"></tm:rule>" +
+                "    </tm:rule>" +
+                "  </tm:rule>" +
+                "</tm:rules>";
+        List<CompiledRule> children = new RulesParser().parsePlan(new java.io.ByteArrayInputStream(rules.getBytes())).getRootRule().getChildren();
+
+        Assert.assertEquals("names", children.get(0).getSection());
+        Assert.assertNull("matches are children of the parent rule's matches", children.get(0).getChildren().get(0).getSection());
+        Assert.assertEquals("addresses", children.get(1).getSection());
+        Assert.assertNull("matches are children of the docroot", children.get(2).getSection());
+        Assert.assertNull("not a simple path", children.get(3).getSection());
+        Assert.assertNull("id path leaves the match", children.get(4).getSection());
+        Assert.assertNull("child rule is not a simple path", children.get(5).getSection());
+    }
+
+    @Test
+    public void testConsumableSources() {
+        String rules = "<tm:rules tm:context=\"/\" xmlns:tm=\"http://accuity.com/apo/trust-matrix\">" +
+                "  <tm:rule tm:context=\"entity\">" +
+                "    <tm:weightings>" +
+                "      <tm:source tm:name=\"fdb\" tm:trust=\"1.0\"></tm:source>" +
+                "      <tm:source tm:name=\"zeus\" tm:trust=\"0.9\"></tm:source>" +
+                "    </tm:weightings>" +
+                "    <tm:rule tm:context=\"codes/code\" tm:filter=\"[1]\"></tm:rule>" +
+                "    <tm:rule tm:context=\"names/name\" tm:filter=\"[@type = 'legal']\">" +
+                "      <tm:rule tm:context=\"value\"></tm:rule>" +
+                "    </tm:rule>" +
+                "    <tm:rule tm:context=\"names/name\" tm:filter=\"[@type = 'local']\"></tm:rule>" +
+                "    <tm:rule tm:context=\"addresses/address\">" +
+                "      <tm:weightings><tm:source tm:name=\"zeus\" tm:trust=\"1.0\"></tm:source></tm:weightings>" +
+                "      <tm:rule tm:context=\"city\">" +
+                "        <tm:weightings><tm:source tm:name=\"fdb\" tm:trust=\"1.0\"></tm:source></tm:weightings>" +
+                "      </tm:rule>" +
+                "    </tm:rule>" +
+                "  </tm:rule>" +
+                "</tm:rules>";
+        CompiledRule root = new RulesParser().parsePlan(new java.io.ByteArrayInputStream(rules.getBytes())).getRootRule();
+        List<CompiledRule> children = root.getChildren();
+
+        Assert.assertFalse("child rules read the whole document", root.isConsumable("fdb"));
+        Assert.assertFalse("not a simple path", children.get(0).isConsumable("fdb"));
+        Assert.assertFalse("its child rule reads the matches", children.get(1).isConsumable("fdb"));
+        Assert.assertFalse("a later rule of the same path reads the matches", children.get(1).getChildren().get(0).isConsumable("zeus"));
+        Assert.assertTrue(children.get(2).isConsumable("fdb"));
+        Assert.assertTrue(children.get(2).isConsumable("zeus"));
+        Assert.assertTrue("its child rule reads fdb only", children.get(3).isConsumable("zeus"));
+        Assert.assertTrue(children.get(3).getChildren().get(0).isConsumable("fdb"));
+    }
+
+    @Test
+    public void testSourceIndexes() {
+        String rules = "<tm:rules tm:context=\"/\" xmlns:tm=\"http://accuity.com/apo/trust-matrix\">" +
+                "  <tm:rule tm:context=\"entity\">" +
+                "    <tm:weightings>" +
+                "      <tm:source tm:name=\"zeus\" tm:trust=\"0.9\"></tm:source>" +
+                "      <tm:source tm:name=\"fdb\" tm:trust=\"1.0\"></tm:source>" +
+                "    </tm:weightings>" +
+                "    <tm:rule tm:context=\"names/name\"></tm:rule>" +
+                "    <tm:rule tm:context=\"codes/code\">" +
+                "      <tm:weightings>" +
+                "        <tm:source tm:name=\"other\" tm:trust=\"1.0\"></tm:source>" +
+                "        <tm:source tm:name=\"zeus\" tm:trust=\"0.5\"></tm:source>" +
+                "        <tm:source tm:name=\"fdb\" tm:trust=\"0\"></tm:source>" +
+                "      </tm:weightings>" +
+                "    </tm:rule>" +
+                "  </tm:rule>" +
+                "</tm:rules>";
+        CompiledRule root = new RulesParser().parsePlan(new java.io.ByteArrayInputStream(rules.getBytes())).getRootRule();
+        CompiledRule codes = root.getChildren().get(1);
+
+        Assert.assertEquals(java.util.Arrays.asList("fdb", "zeus", "other"), root.getSourceNames());
+        Assert.assertSame(root.getSourceNames(), codes.getSourceNames());
+        Assert.assertArrayEquals("in trust order", new int[]{0, 1}, root.getSourceIndexes());
+        Assert.assertArrayEquals(new int[]{0, 1}, root.getChildren().get(0).getSourceIndexes());
+        Assert.assertArrayEquals("untrusted sources are left out", new int[]{2, 1}, codes.getSourceIndexes());
+        Assert.assertEquals("{1, 2}", codes.getSourceMask().toString());
+
+        Map<String, Object> sources = new HashMap<>();
+        sources.put("other", "other document");
+        PresentSources<Object> presentSources = PresentSources.of(root.getSourceNames(), sources);
+        Assert.assertFalse(presentSources.containsAny(root.getSourceMask()));
+        Assert.assertTrue(presentSources.containsAny(codes.getSourceMask()));
+        Assert.assertEquals("other document", presentSources.getSource(2));
+        Assert.assertSame(presentSources, PresentSources.of(codes.getSourceNames(), presentSources));
+    }
+
+    private Rules buildRules() {
+        Rule root = new Rule();
+        root.setContext("root");
+        root.setWeighting(buildWeighting(0.5f, 1f));
+
+        Id id = new Id();
+        id.setPath("@type");
+        List<Id> ids = new ArrayList<>();
+        ids.add(id);
+        Field coalesce = new Field();
+        coalesce.setCoalesce(true);
+        coalesce.setIds(ids);
+
+        Rule filtered = new Rule();
+        filtered.setContext("child");
+        filtered.setFilter("[@type = 'a']");
+        filtered.setField(coalesce);
+
+        Rule unfiltered = new Rule();
+        unfiltered.setContext("other");
+        unfiltered.setWeighting(buildWeighting(1f, 0f));
+
+        List<Rule> children = new ArrayList<>();
+        children.add(filtered);
+        children.add(unfiltered);
+        root.setRules(children);
+
+        Rules rules = new Rules();
+        rules.setRule(root);
+        root.setParentRulesForChildren();
+        return rules;
+    }
+
+    private Weighting buildWeighting(float trustB, float trustA) {
+        Source sourceB = new Source();
+        sourceB.setName("sourceB");
+        sourceB.setTrust(trustB);
+        Source sourceA = new Source();
+        sourceA.setName("sourceA");
+        sourceA.setTrust(trustA);
+
+        List<Source> sources = new ArrayList<>();
+        sources.add(sourceB);
+        sources.add(sourceA);
+        Weighting weighting = new Weighting();
+        weighting.setSources(sources);
+        return weighting;
+    }
+}
@@ -0,0 +1,116 @@
+package com.accuity.xmldocumentmerge;
+
+import org.custommonkey.xmlunit.Diff;
+import org.custommonkey.xmlunit.XMLUnit;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.w3c.dom.Document;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+public class MergeResultCacheTest {
+
+    private static final String FDB = "<entity id=\"fdb-1\"><names><name type=\"legal\">fdb legal</name></names></entity>";
+    private static final String ZEUS = "<entity id=\"zeus-1\"><codes><code>2</code></codes></entity>";
+
+    @Test
+    public void testHitSkipsMerge() throws Exception {
+        XmlDocumentMerger merger = Mockito.spy(new XmlDocumentMerger(new RuleProcessor()));
+        MergeResultCache cache = new MergeResultCache(merger, 1024 * 1024);
+        MergePlan plan = parsePlan("entity");
+
+        byte[] first = cache.merge(plan, sources(FDB, ZEUS));
+        byte[] second = cache.merge(plan, sources(FDB, ZEUS));
+
+        Assert.assertSame(first, second);
+        Mockito.verify(merger, Mockito.times(1)).mergeStreams(Matchers.eq(plan), Matchers.<Map<String, InputStream>>any(), Matchers.any(Executor.class));
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+        Map<String, Document> sourceDocuments = new HashMap<>();
+        sourceDocuments.put("fdb", parse(FDB.getBytes(StandardCharsets.UTF_8)));
+        sourceDocuments.put("zeus", parse(ZEUS.getBytes(StandardCharsets.UTF_8)));
+        Diff diff = XMLUnit.compareXML(new XmlDocumentMerger(new RuleProcessor()).mergeDocuments(plan, sourceDocuments), parse(first));
+        Assert.assertTrue(diff.toString(), diff.identical());
+    }
+
+    @Test
+    public void testChangedSourceOrPlanMisses() {
+        MergeResultCache cache = new MergeResultCache(new XmlDocumentMerger(new RuleProcessor()), 1024 * 1024);
+        MergePlan plan = parsePlan("entity");
+
+        cache.merge(plan, sources(FDB, ZEUS));
+        cache.merge(plan, sources(FDB, ZEUS.replace("2", "3")));
+        cache.merge(parsePlan("entity"), sources(FDB, ZEUS));
+        Map<String, byte[]> swapped = new HashMap<>();
+        swapped.put("fdb", ZEUS.getBytes(StandardCharsets.UTF_8));
+        swapped.put("zeus", FDB.getBytes(StandardCharsets.UTF_8));
+        cache.merge(plan, swapped);
+
+        Assert.assertEquals(0, cache.getHits());
+        Assert.assertEquals(4, cache.getMisses());
+        Assert.assertEquals(4, cache.size());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedResultIsEvicted() {
+        MergePlan plan = parsePlan("entity");
+        MergeResultCache sizing = new MergeResultCache(new XmlDocumentMerger(new RuleProcessor()), 1024 * 1024);
+        sizing.merge(plan, sources(FDB, "<entity id=\"a\"/>"));
+        MergeResultCache cache = new MergeResultCache(new XmlDocumentMerger(new RuleProcessor()), 2 * sizing.getBytes());
+
+        cache.merge(plan, sources(FDB, "<entity id=\"a\"/>"));
+        cache.merge(plan, sources(FDB, "<entity id=\"b\"/>"));
+        cache.merge(plan, sources(FDB, "<entity id=\"a\"/>"));
+        cache.merge(plan, sources(FDB, "<entity id=\"c\"/>"));
+
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(1, cache.getEvictions());
+        Assert.assertTrue(cache.getBytes() <= cache.getMaxBytes());
+        cache.merge(plan, sources(FDB, "<entity id=\"a\"/>"));
+        Assert.assertEquals("a is kept", 2, cache.getHits());
+        cache.merge(plan, sources(FDB, "<entity id=\"b\"/>"));
+        Assert.assertEquals("b was evicted", 4, cache.getMisses());
+    }
+
+    @Test
+    public void testEmptyResultIsCached() {
+        MergeResultCache cache = new MergeResultCache(new XmlDocumentMerger(new RuleProcessor()), 1024 * 1024);
+        MergePlan plan = parsePlan("entity");
+        Map<String, byte[]> sources = new HashMap<>();
+        sources.put("other", FDB.getBytes(StandardCharsets.UTF_8));
+
+        Assert.assertNull(cache.merge(plan, sources));
+        Assert.assertNull(cache.merge(plan, sources));
+        Assert.assertEquals(1, cache.getHits());
+    }
+
+    private Map<String, byte[]> sources(String fdb, String zeus) {
+        Map<String, byte[]> sources = new HashMap<>();
+        sources.put("fdb", fdb.getBytes(StandardCharsets.UTF_8));
+        sources.put("zeus", zeus.getBytes(StandardCharsets.UTF_8));
+        return sources;
+    }
+
+    private MergePlan parsePlan(String context) {
+        String rules = "<tm:rules tm:context=\"/\" xmlns:tm=\"http://accuity.com/apo/trust-matrix\">" +
+                "  <tm:rule tm:context=\"" + context + "\">" +
+                "    <tm:weightings>" +
+                "      <tm:source tm:name=\"fdb\" tm:trust=\"1.0\"></tm:source>" +
+                "      <tm:source tm:name=\"zeus\" tm:trust=\"0.9\"></tm:source>" +
+                "    </tm:weightings>" +
+                "  </tm:rule></tm:rules>";
+        return new RulesParser().parsePlan(new ByteArrayInputStream(rules.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private Document parse(byte[] xml) throws Exception {
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new ByteArrayInputStream(xml));
+    }
+}
@@ -0,0 +1,167 @@
+package com.accuity.xmldocumentmerge;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayInputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+
+public class ParallelRuleProcessorTest {
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(4);
+
+    private static final String RULES = "<tm:rules tm:context=\"/\" xmlns:tm=\"http://accuity.com/apo/trust-matrix\">" +
+            "  <tm:rule tm:context=\"entity\">" +
+            "    <tm:weightings>" +
+            "      <tm:source tm:name=\"fdb\" tm:trust=\"1.0\"></tm:source>" +
+            "      <tm:source tm:name=\"zeus\" tm:trust=\"0.9\"></tm:source>" +
+            "    </tm:weightings>" +
+            "    <tm:rule tm:context=\"names/name\" tm:filter=\"[@type = 'legal']\">" +
+            "      <tm:weightings>" +
+            "        <tm:source tm:name=\"zeus\" tm:trust=\"1.0\"></tm:source>" +
+            "        <tm:source tm:name=\"fdb\" tm:trust=\"0.5\"></tm:source>" +
+            "      </tm:weightings>" +
+            "    </tm:rule>" +
+            "    <tm:rule tm:context=\"addresses/address\">" +
+            "      <tm:field tm:coalesce=\"true\"><tm:id tm:path=\"@type\"></tm:id></tm:field>" +
+            "      <tm:rule tm:context=\"city\">" +
+            "        <tm:weightings>" +
+            "          <tm:source tm:name=\"zeus\" tm:trust=\"1.0\"></tm:source>" +
+            "        </tm:weightings>" +
+            "      </tm:rule>" +
+            "    </tm:rule>" +
+            "    <tm:rule tm:context=\"website\">" +
+            "      <tm:weightings>" +
+            "        <tm:source tm:name=\"zeus\" tm:trust=\"1.0\"></tm:source>" +
+            "      </tm:weightings>" +
+            "    </tm:rule>" +
+            "    <tm:rule tm:context=\"codes/code\">" +
+            "      <tm:field tm:coalesce=\"true\"></tm:field>" +
+            "    </tm:rule>" +
+            "    <tm:rule tm:context=\"names/name\" tm:filter=\"[@type = 'local']\">" +
+            "      <tm:field tm:stop=\"true\"></tm:field>" +
+            "    </tm:rule>" +
+            "    <tm:rule tm:context=\"identifiers/identifier\">" +
+            "      <tm:field tm:coalesce=\"true\"><tm:id tm:path=\"@scheme\"></tm:id></tm:field>" +
+            "    </tm:rule>" +
+            "  </tm:rule>" +
+            "</tm:rules>";
+
+    private static final String FDB = "<entity id=\"fdb-1\">" +
+            "<names><name type=\"legal\">fdb legal</name><name type=\"short\">fdb short</name></names>" +
+            "<addresses><address type=\"HQ\"><city>fdb city</city></address></addresses>" +
+            "<codes><code>1</code></codes>" +
+            "<identifiers><identifier scheme=\"lei\">L1</identifier></identifiers>" +
+            "<addresses><address type=\"mail\"><city>fdb mail</city></address></addresses>" +
+            "</entity>";
+    private static final String ZEUS = "<entity id=\"zeus-1\">" +
+            "<website>http://zeus</website>" +
+            "<names><name type=\"legal\">zeus legal</name><name type=\"local\">zeus local</name></names>" +
+            "<addresses><address type=\"HQ\"><city>zeus city</city><zip>zeus zip</zip></address><address type=\"branch\"><city>zeus branch</city></address></addresses>" +
+            "<identifiers><identifier scheme=\"lei\">L2</identifier><identifier scheme=\"bic\">B2</identifier></identifiers>" +
+            "<codes><code>2</code><code>3</code></codes>" +
+            "</entity>";
+
+    @AfterClass
+    public static void tearDown() {
+        POOL.shutdown();
+    }
+
+    @Test
+    public void testSameAsSequential() throws Exception {
+        MergePlan plan = new RulesParser().parsePlan(new ByteArrayInputStream(RULES.getBytes(StandardCharsets.UTF_8)));
+
+        String sequential = merge(new RuleProcessor(), plan);
+        for (int i = 0; i < 20; i++) {
+            Assert.assertEquals(sequential, merge(new ParallelRuleProcessor(POOL), plan));
+        }
+    }
+
+    @Test
+    public void testMetricsOfParallelRules() throws Exception {
+        MergePlan plan = new RulesParser().parsePlan(new ByteArrayInputStream(RULES.getBytes(StandardCharsets.UTF_8)));
+        MergeMetrics metrics = new MergeMetrics();
+
+        merge(new ParallelRuleProcessor(new MergePlanCompiler(), metrics, POOL), plan);
+
+        Assert.assertEquals(1, metrics.getRuleMetrics("/entity/addresses/address/city").getEvaluationCount());
+        Assert.assertEquals(Long.valueOf(2), metrics.getRuleMetrics("/entity/addresses/address").getMatchedNodesBySource().get("zeus"));
+    }
+
+    @Test
+    public void testSourceMissing() throws Exception {
+        MergePlan plan = new RulesParser().parsePlan(new ByteArrayInputStream(RULES.getBytes(StandardCharsets.UTF_8)));
+        Map<String, Document> sourceDocuments = new HashMap<>();
+        sourceDocuments.put("zeus", parse(ZEUS));
+        Map<String, Document> parallelSourceDocuments = new HashMap<>();
+        parallelSourceDocuments.put("zeus", parse(ZEUS));
+
+        Document sequential = new XmlDocumentMerger(new RuleProcessor()).mergeDocuments(plan, sourceDocuments);
+        Document parallel = new XmlDocumentMerger(new ParallelRuleProcessor(POOL)).mergeDocuments(plan, parallelSourceDocuments);
+
+        Assert.assertEquals(serialize(sequential), serialize(parallel));
+    }
+
+    @Test
+    public void testLoadsOnlyTrustedSources() throws Exception {
+        MergePlan plan = new RulesParser().parsePlan(new ByteArrayInputStream(RULES.getBytes(StandardCharsets.UTF_8)));
+        Map<String, Supplier<Document>> suppliers = new LinkedHashMap<>();
+        for (final String[] source : new String[][]{{"fdb", FDB}, {"unused", FDB}, {"zeus", ZEUS}}) {
+            suppliers.put(source[0], new Supplier<Document>() {
+                @Override
+                public Document get() {
+                    try {
+                        return parse(source[1]);
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+        }
+        LazySourceDocuments sourceDocuments = new LazySourceDocuments(suppliers);
+
+        Document parallel = new XmlDocumentMerger(new ParallelRuleProcessor(POOL)).mergeDocuments(plan, sourceDocuments);
+
+        Assert.assertEquals(Collections.singleton("unused"), sourceDocuments.getUnloadedSources());
+        Assert.assertEquals(merge(new RuleProcessor(), plan), serialize(parallel));
+    }
+
+    private String merge(RuleProcessor ruleProcessor, MergePlan plan) throws Exception {
+        Map<String, Document> sourceDocuments = new HashMap<>();
+        sourceDocuments.put("fdb", parse(FDB));
+        sourceDocuments.put("zeus", parse(ZEUS));
+        String fdb = serialize(sourceDocuments.get("fdb"));
+
+        Document trusted = new XmlDocumentMerger(ruleProcessor).mergeDocuments(plan, sourceDocuments);
+
+        Assert.assertEquals("sources are not modified", fdb, serialize(sourceDocuments.get("fdb")));
+        return serialize(trusted);
+    }
+
+    private Document parse(String xml) throws Exception {
+        DocumentBuilder db = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        return db.parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private String serialize(Document document) throws Exception {
+        Transformer transformer = TransformerFactory.newInstance().newTransformer();
+        StringWriter sw = new StringWriter();
+        transformer.transform(new DOMSource(document), new StreamResult(sw));
+        return sw.toString();
+    }
+}
@@ -0,0 +1,129 @@
+package com.accuity.xmldocumentmerge;
+
+import org.custommonkey.xmlunit.Diff;
+import org.custommonkey.xmlunit.XMLUnit;
+import org.junit.Assert;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+public class ProjectingParserTest {
+
+    private static final String FDB = "<entity id=\"fdb-1\">" +
+            "<names><name type=\"legal\">fdb legal</name></names>" +
+            "<addresses><address type=\"HQ\"><city>fdb city</city></address></addresses>" +
+            "</entity>";
+    private static final String ZEUS = "<entity id=\"zeus-1\">" +
+            "<names><name type=\"legal\">zeus legal</name></names>" +
+            "<addresses><!-- two addresses -->" +
+            "<address type=\"HQ\"><zip>zeus zip</zip><city>zeus city</city></address>" +
+            "<address type=\"branch\"><city>zeus branch</city></address>" +
+            "</addresses>" +
+            "<codes><code>2</code></codes>" +
+            "</entity>";
+    private static final String ZEUS_NAMESPACED = ZEUS
+            .replace("<entity id=", "<entity xmlns=\"urn:x\" id=")
+            .replace("<addresses>", "<addresses xmlns:y=\"urn:y\">")
+            .replace("<city>zeus city", "<city y:kind=\"main\">zeus city");
+
+    @Test
+    public void testKeepsOnlyTrustedSubtrees() throws Exception {
+        MergePlan plan = parsePlan("<tm:rule tm:context=\"addresses/address\">" +
+                "  <tm:weightings>" +
+                "    <tm:source tm:name=\"zeus\" tm:trust=\"1.0\"></tm:source>" +
+                "    <tm:source tm:name=\"fdb\" tm:trust=\"0.5\"></tm:source>" +
+                "  </tm:weightings>" +
+                "</tm:rule>");
+        ProjectingParser parser = new ProjectingParser(plan);
+
+        Document zeus = parser.parse("zeus", stream(ZEUS));
+
+        Assert.assertTrue(parser.isProjected("zeus"));
+        Assert.assertFalse(parser.isProjected("fdb"));
+        Diff diff = XMLUnit.compareXML(parse("<entity id=\"zeus-1\"><addresses>" +
+                "<address type=\"HQ\"><zip>zeus zip</zip><city>zeus city</city></address>" +
+                "<address type=\"branch\"><city>zeus branch</city></address>" +
+                "</addresses></entity>"), zeus);
+        Assert.assertTrue(diff.toString(), diff.identical());
+        assertSameMerge(plan, parser);
+    }
+
+    @Test
+    public void testAncestorFilters() throws Exception {
+        MergePlan plan = parsePlan("<tm:rule tm:context=\"addresses/address[@type='HQ']/city\">" +
+                "  <tm:weightings><tm:source tm:name=\"zeus\" tm:trust=\"1.0\"></tm:source></tm:weightings>" +
+                "</tm:rule>");
+        ProjectingParser parser = new ProjectingParser(plan);
+
+        Document zeus = parser.parse("zeus", stream(ZEUS));
+
+        Diff diff = XMLUnit.compareXML(parse("<entity id=\"zeus-1\"><addresses>" +
+                "<address type=\"HQ\"><city>zeus city</city></address>" +
+                "</addresses></entity>"), zeus);
+        Assert.assertTrue(diff.toString(), diff.identical());
+        assertSameMerge(plan, parser);
+    }
+
+    @Test
+    public void testUntrustedSourceKeepsDocumentElement() throws Exception {
+        ProjectingParser parser = new ProjectingParser(parsePlan(""));
+
+        Document other = parser.parse("other", stream(ZEUS));
+
+        Assert.assertEquals("entity", other.getDocumentElement().getNodeName());
+        Assert.assertFalse(other.getDocumentElement().hasChildNodes());
+    }
+
+    @Test
+    public void testRuleOutsideSimplePathsParsesWhole() throws Exception {
+        ProjectingParser parser = new ProjectingParser(parsePlan("<tm:rule tm:context=\"codes/code[1]\">" +
+                "  <tm:weightings><tm:source tm:name=\"zeus\" tm:trust=\"1.0\"></tm:source></tm:weightings>" +
+                "</tm:rule>"));
+
+        Assert.assertFalse(parser.isProjected("zeus"));
+        Diff diff = XMLUnit.compareXML(parse(ZEUS), parser.parse("zeus", stream(ZEUS)));
+        Assert.assertTrue(diff.toString(), diff.identical());
+    }
+
+    private void assertSameMerge(MergePlan plan, ProjectingParser parser) throws Exception {
+        assertSameMerge(plan, parser, ZEUS);
+        assertSameMerge(plan, parser, ZEUS_NAMESPACED);
+    }
+
+    private void assertSameMerge(MergePlan plan, ProjectingParser parser, String zeus) throws Exception {
+        Map<String, Document> whole = new HashMap<>();
+        whole.put("fdb", parse(FDB));
+        whole.put("zeus", parse(zeus));
+        Map<String, Document> projected = new HashMap<>();
+        projected.put("fdb", parser.parse("fdb", stream(FDB)));
+        projected.put("zeus", parser.parse("zeus", stream(zeus)));
+        Document expected = new XmlDocumentMerger(new RuleProcessor()).mergeDocuments(plan, whole);
+        Document actual = new XmlDocumentMerger(new RuleProcessor()).mergeDocuments(plan, projected);
+        Diff diff = XMLUnit.compareXML(expected, actual);
+        Assert.assertTrue(zeus + ": " + diff, diff.identical());
+    }
+
+    private MergePlan parsePlan(String childRules) {
+        String rules = "<tm:rules tm:context=\"/\" xmlns:tm=\"http://accuity.com/apo/trust-matrix\">" +
+                "  <tm:rule tm:context=\"entity\">" +
+                "    <tm:weightings>" +
+                "      <tm:source tm:name=\"fdb\" tm:trust=\"1.0\"></tm:source>" +
+                "    </tm:weightings>" + childRules +
+                "  </tm:rule></tm:rules>";
+        return new RulesParser().parsePlan(new ByteArrayInputStream(rules.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static InputStream stream(String xml) {
+        return new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Document parse(String xml) throws Exception {
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(stream(xml));
+    }
+}
@@ -10,6 +10,7 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import org.xml.sax.SAXException;
 
 import javax.xml.parsers.DocumentBuilder;
@@ -846,6 +847,41 @@ public class RuleProcessorTest {
         }
     }
 
+    /**
+     * Tests that repeated nodes are merged by position, and that the extra copies of a less trusted source are ignored
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testProcessRuleRepeatedNodesMergedByPosition() throws Exception {
+        RuleProcessor ruleProcessor = new RuleProcessor();
+
+        DocumentBuilder documentBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+
+        Document fdbDocument = documentBuilder.parse(new ByteArrayInputStream("<test source=\"fdb\"><complexElement><childElement>fdb1</childElement></complexElement><complexElement><childElement>fdb2</childElement></complexElement></test>".getBytes(StandardCharsets.UTF_8)));
+        Document zeusDocument = documentBuilder.parse(new ByteArrayInputStream("<test source=\"zeus\"><complexElement><zeusElement>zeus1</zeusElement></complexElement><complexElement><zeusElement>zeus2</zeusElement></complexElement><complexElement><zeusElement>zeus3</zeusElement></complexElement></test>".getBytes(StandardCharsets.UTF_8)));
+
+        Map<String, Document> sourceDocuments = new HashMap<>();
+        sourceDocuments.put("fdb", fdbDocument);
+        sourceDocuments.put("zeus", zeusDocument);
+
+        // simulate what the trusted doc will be after doc root rule is applied
+        Document trusted = documentBuilder.parse(new ByteArrayInputStream("<test source=\"trusted\"><complexElement></complexElement></test>".getBytes(StandardCharsets.UTF_8)));
+
+        Rule subRule = new Rule();
+        subRule.setContext("complexElement");
+        subRule.setFullContextXPath("/test/complexElement");
+        subRule.setWeighting(buildFdbFirstWeighting());
+        subRule.setParentRule(new Rule());
+
+        ruleProcessor.processRule(subRule, trusted, sourceDocuments);
+
+        Document expected = documentBuilder.parse(new ByteArrayInputStream("<test source=\"trusted\"><complexElement><childElement>fdb1</childElement><zeusElement>zeus1</zeusElement></complexElement><complexElement><childElement>fdb2</childElement><zeusElement>zeus2</zeusElement></complexElement></test>".getBytes(StandardCharsets.UTF_8)));
+
+        Diff diff = XMLUnit.compareXML(expected, trusted);
+        Assert.assertTrue(buildXmlDiffMessage(diff), diff.similar());
+    }
+
     private Weighting buildZeusFirstWeighting() {
         Source zeusSource = new Source();
         zeusSource.setName("zeus");
@@ -1144,4 +1180,108 @@ public class RuleProcessorTest {
         Diff diff = XMLUnit.compareXML(expected, trusted);
         Assert.assertTrue(buildXmlDiffMessage(diff), diff.similar());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testConsumeSourcesSameAsCopy() throws Exception {
+        String rules = "<tm:rules tm:context=\"/\" xmlns:tm=\"http://accuity.com/apo/trust-matrix\">" +
+                "  <tm:rule tm:context=\"entity\">" +
+                "    <tm:weightings>" +
+                "      <tm:source tm:name=\"fdb\" tm:trust=\"1.0\"></tm:source>" +
+                "      <tm:source tm:name=\"zeus\" tm:trust=\"0.9\"></tm:source>" +
+                "    </tm:weightings>" +
+                "    <tm:rule tm:context=\"names/name\">" +
+                "      <tm:field tm:coalesce=\"true\"><tm:id tm:path=\"@type\"></tm:id></tm:field>" +
+                "    </tm:rule>" +
+                "    <tm:rule tm:context=\"addresses/address\">" +
+                "      <tm:weightings><tm:source tm:name=\"zeus\" tm:trust=\"1.0\"></tm:source></tm:weightings>" +
+                "      <tm:rule tm:context=\"city\">" +
+                "        <tm:weightings><tm:source tm:name=\"fdb\" tm:trust=\"1.0\"></tm:source></tm:weightings>" +
+                "      </tm:rule>" +
+                "    </tm:rule>" +
+                "  </tm:rule></tm:rules>";
+        String fdb = "<entity id=\"fdb-1\"><names><name type=\"legal\"><value>fdb legal</value></name></names>" +
+                "<addresses><address type=\"HQ\"><city>fdb city</city></address></addresses></entity>";
+        String zeus = "<entity id=\"zeus-1\"><names><name type=\"legal\"><value>zeus legal</value><script>latin</script></name>" +
+                "<name type=\"local\"><value>zeus local</value></name></names>" +
+                "<addresses><address type=\"HQ\"><zip>zeus zip</zip><city>zeus city</city></address></addresses><website/></entity>";
+        MergePlan plan = new RulesParser().parsePlan(new ByteArrayInputStream(rules.getBytes(StandardCharsets.UTF_8)));
+        DocumentBuilder documentBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+
+        Map<String, Document> copied = new HashMap<>();
+        copied.put("fdb", documentBuilder.parse(new ByteArrayInputStream(fdb.getBytes(StandardCharsets.UTF_8))));
+        copied.put("zeus", documentBuilder.parse(new ByteArrayInputStream(zeus.getBytes(StandardCharsets.UTF_8))));
+        Document expected = new RuleProcessor().processRule(plan.getRootRule(), documentBuilder.newDocument(), copied);
+        Map<String, Document> consumed = new HashMap<>();
+        consumed.put("fdb", documentBuilder.parse(new ByteArrayInputStream(fdb.getBytes(StandardCharsets.UTF_8))));
+        consumed.put("zeus", documentBuilder.parse(new ByteArrayInputStream(zeus.getBytes(StandardCharsets.UTF_8))));
+        Document trusted = new RuleProcessor(new MergePlanCompiler(), MergeMetrics.DISABLED, true)
+                .processRule(plan.getRootRule(), documentBuilder.newDocument(), consumed);
+
+        Diff diff = XMLUnit.compareXML(expected, trusted);
+        Assert.assertTrue(buildXmlDiffMessage(diff), diff.identical());
+        Assert.assertEquals("copied sources are not changed", 2, copied.get("zeus").getElementsByTagName("name").getLength());
+        Assert.assertEquals("the local name is moved, the legal name merged", 1, consumed.get("zeus").getElementsByTagName("name").getLength());
+        Assert.assertEquals("children merged in are moved", 0, consumed.get("zeus").getElementsByTagName("script").getLength());
+        Assert.assertEquals("addresses are moved", 0, consumed.get("zeus").getElementsByTagName("address").getLength());
+        Assert.assertEquals("cities are moved", 0, consumed.get("fdb").getElementsByTagName("city").getLength());
+        Assert.assertEquals("the docroot copies", 1, consumed.get("zeus").getElementsByTagName("website").getLength());
+    }
+
+    @Test
+    public void testConsumeSourcesMovesDocRoot() throws Exception {
+        String rules = "<tm:rules tm:context=\"/\" xmlns:tm=\"http://accuity.com/apo/trust-matrix\">" +
+                "  <tm:rule tm:context=\"entity\">" +
+                "    <tm:weightings>" +
+                "      <tm:source tm:name=\"fdb\" tm:trust=\"1.0\"></tm:source>" +
+                "      <tm:source tm:name=\"zeus\" tm:trust=\"0.9\"></tm:source>" +
+                "    </tm:weightings>" +
+                "  </tm:rule></tm:rules>";
+        MergePlan plan = new RulesParser().parsePlan(new ByteArrayInputStream(rules.getBytes(StandardCharsets.UTF_8)));
+        DocumentBuilder documentBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        Map<String, Document> sourceDocuments = new HashMap<>();
+        sourceDocuments.put("fdb", documentBuilder.parse(new ByteArrayInputStream("<entity><a>fdb</a></entity>".getBytes(StandardCharsets.UTF_8))));
+        sourceDocuments.put("zeus", documentBuilder.parse(new ByteArrayInputStream("<entity><a>zeus</a><b>zeus</b></entity>".getBytes(StandardCharsets.UTF_8))));
+        Element fdbRoot = sourceDocuments.get("fdb").getDocumentElement();
+
+        Document trusted = new RuleProcessor(new MergePlanCompiler(), MergeMetrics.DISABLED, true)
+                .processRule(plan.getRootRule(), documentBuilder.newDocument(), sourceDocuments);
+
+        Assert.assertSame(fdbRoot, trusted.getDocumentElement());
+        Assert.assertNull(sourceDocuments.get("fdb").getDocumentElement());
+        Diff diff = XMLUnit.compareXML(documentBuilder.parse(new ByteArrayInputStream("<entity><a>fdb</a><b>zeus</b></entity>".getBytes(StandardCharsets.UTF_8))), trusted);
+        Assert.assertTrue(buildXmlDiffMessage(diff), diff.identical());
+        Assert.assertEquals("the merged in b is moved", 0, sourceDocuments.get("zeus").getElementsByTagName("b").getLength());
+    }
+
+    @Test
+    public void testRuleWithInvalidXPathIsSkipped() throws Exception {
+        String rules = "<tm:rules tm:context=\"/\" xmlns:tm=\"http://accuity.com/apo/trust-matrix\">" +
+                "  <tm:rule tm:context=\"entity\">" +
+                "    <tm:weightings><tm:source tm:name=\"fdb\" tm:trust=\"1.0\"></tm:source></tm:weightings>" +
+                "    <tm:rule tm:context=\"names/name\" tm:filter=\"[@type = \">" +
+                "      <tm:weightings><tm:source tm:name=\"zeus\" tm:trust=\"1.0\"></tm:source></tm:weightings>" +
+                "    </tm:rule>" +
+                "    <tm:rule tm:context=\"website\">" +
+                "      <tm:weightings><tm:source tm:name=\"zeus\" tm:trust=\"1.0\"></tm:source></tm:weightings>" +
+                "    </tm:rule>" +
+                "  </tm:rule></tm:rules>";
+        Rules parsedRules = new RulesParser().parse(new ByteArrayInputStream(rules.getBytes(StandardCharsets.UTF_8)));
+        DocumentBuilder documentBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        Map<String, Document> sourceDocuments = new HashMap<>();
+        sourceDocuments.put("fdb", documentBuilder.parse(new ByteArrayInputStream("<entity><names><name>fdb</name></names><website>fdb</website></entity>".getBytes(StandardCharsets.UTF_8))));
+        sourceDocuments.put("zeus", documentBuilder.parse(new ByteArrayInputStream("<entity><names><name>zeus</name></names><website>zeus</website></entity>".getBytes(StandardCharsets.UTF_8))));
+
+        // rules processed without a plan skip the invalid rule, as they did before rules were compiled
+        Document trusted = new XmlDocumentMerger(new RuleProcessor()).mergeDocuments(parsedRules, sourceDocuments);
+
+        Diff diff = XMLUnit.compareXML(documentBuilder.parse(new ByteArrayInputStream(
+                "<entity><names><name>fdb</name></names><website>zeus</website></entity>".getBytes(StandardCharsets.UTF_8))), trusted);
+        Assert.assertTrue(buildXmlDiffMessage(diff), diff.identical());
+        try {
+            new MergePlanCompiler().compile(parsedRules);
+            Assert.fail("plans are not compiled from invalid rules");
+        } catch (IllegalArgumentException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("invalid xpath"));
+        }
+    }
+}
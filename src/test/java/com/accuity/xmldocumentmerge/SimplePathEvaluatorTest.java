@@ -0,0 +1,83 @@
+package com.accuity.xmldocumentmerge;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+public class SimplePathEvaluatorTest {
+
+    private static final String XML = "<entity id=\"1\">" +
+            "<names><name type=\"legal\" lang=\"en\">legal</name><name type=\"short\">short</name><name type=\"legal\" lang=\"fr\">legal fr</name></names>" +
+            "<addresses><address type=\"HQ\"><city>city</city></address></addresses>" +
+            "<names><name type=\"legal\">second</name></names>" +
+            "</entity>";
+
+    @Test
+    public void testSameNodesAsXPath() throws Exception {
+        Document document = parse(XML, false);
+        String[] expressions = {
+                "/entity",
+                "/entity/names/name",
+                "/entity/names/name[@type='legal']",
+                "/entity/names/name[@type = \"legal\"][@lang='fr']",
+                "/entity/names/name[@type='legal' and @lang='en']",
+                "/entity/addresses/address/city",
+                "/entity/missing/name",
+                "/other",
+                "/entity/@id",
+                "/entity/names/name/@type"
+        };
+        for (String expression : expressions) {
+            assertSameNodes(expression, document, document);
+        }
+        Node address = document.getElementsByTagName("address").item(0);
+        assertSameNodes("@type", document, address);
+        assertSameNodes("city", document, address);
+        assertSameNodes("@missing", document, address);
+        assertSameNodes("/entity/names", document, address);
+    }
+
+    @Test
+    public void testNamespaceAwareDocument() throws Exception {
+        Document document = parse("<entity xmlns=\"urn:test\"><names><name type=\"legal\"/></names></entity>", true);
+
+        assertSameNodes("/entity/names/name", document, document);
+    }
+
+    @Test
+    public void testUnsupportedExpressions() throws Exception {
+        SimplePathEvaluator evaluator = new SimplePathEvaluator();
+
+        Assert.assertNull(evaluator.compile("/entity/names/name[1]"));
+        Assert.assertNull(evaluator.compile("//name"));
+        Assert.assertNull(evaluator.compile("/entity/names/name[@type != 'legal']"));
+        Assert.assertNull(evaluator.compile("name/text()"));
+        Assert.assertNull(evaluator.compile("/p:entity"));
+        Assert.assertNull(evaluator.compile("/entity[@xmlns='urn:test']"));
+        Assert.assertNull(evaluator.compile("/entity/@id/name"));
+    }
+
+    private void assertSameNodes(String expression, Document document, Node context) throws Exception {
+        CompiledPath simplePath = new SimplePathEvaluator().compile(expression);
+        Assert.assertNotNull(expression, simplePath);
+        NodeList expected = new XPathEvaluator().compile(expression).evaluateNodes(context);
+        NodeList actual = simplePath.evaluateNodes(context);
+
+        Assert.assertEquals(expression, expected.getLength(), actual.getLength());
+        for (int i = 0; i < expected.getLength(); i++) {
+            Assert.assertSame(expression, expected.item(i), actual.item(i));
+        }
+    }
+
+    private Document parse(String xml, boolean namespaceAware) throws Exception {
+        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setNamespaceAware(namespaceAware);
+        return dbf.newDocumentBuilder().parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,339 @@
+package com.accuity.xmldocumentmerge;
+
+import org.custommonkey.xmlunit.Diff;
+import org.custommonkey.xmlunit.XMLUnit;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Document;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compares the streaming engine with the DOM engine on the same rules and sources.
+ */
+public class StreamingDocumentMergerTest {
+
+    private static final String RULES_START = "<tm:rules tm:context=\"/\" xmlns:tm=\"http://accuity.com/apo/trust-matrix\">" +
+            "  <tm:rule tm:context=\"entity\">" +
+            "    <tm:weightings>" +
+            "      <tm:source tm:name=\"fdb\" tm:trust=\"1.0\"></tm:source>" +
+            "      <tm:source tm:name=\"zeus\" tm:trust=\"0.9\"></tm:source>" +
+            "    </tm:weightings>";
+    private static final String RULES_END = "  </tm:rule></tm:rules>";
+
+    private static final String FDB = "<entity id=\"fdb-1\">" +
+            "<status>active</status>" +
+            "<names><name type=\"legal\">fdb legal</name><name type=\"short\">fdb short</name></names>" +
+            "<addresses><address type=\"HQ\"><city>fdb city</city></address></addresses>" +
+            "<!-- comment --><codes><code>1</code></codes>" +
+            "</entity>";
+    private static final String ZEUS = "<entity id=\"zeus-1\">" +
+            "<names><name type=\"legal\">zeus legal</name><name type=\"local\">zeus local</name></names>" +
+            "<addresses><address type=\"HQ\"><zip>zeus zip</zip></address><address type=\"branch\"><city>zeus branch</city></address></addresses>" +
+            "<codes><code>2</code><code>3</code></codes><website>http://zeus</website>" +
+            "</entity>";
+
+    // the same data, with the elements the child rules match directly below the document element
+    private static final String FLAT_FDB = "<entity id=\"fdb-1\">" +
+            "<status>active</status>" +
+            "<name type=\"legal\">fdb legal</name><name type=\"short\">fdb short</name>" +
+            "<address type=\"HQ\"><city>fdb city</city><line>1</line></address>" +
+            "<!-- comment --><code>1</code><flags><flag>a</flag></flags>" +
+            "</entity>";
+    private static final String FLAT_ZEUS = "<entity id=\"zeus-1\">" +
+            "<name type=\"legal\">zeus legal</name><name type=\"local\">zeus local</name>" +
+            "<address type=\"HQ\"><zip>zeus zip</zip><line>2</line><line>3</line></address><address type=\"branch\"><city>zeus branch</city></address>" +
+            "<code>2</code><code>3</code><website>http://zeus</website><flags><flag>b</flag><flag>c</flag></flags>" +
+            "</entity>";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+        XMLUnit.setIgnoreComments(false);
+        XMLUnit.setIgnoreWhitespace(true);
+    }
+
+    @Test
+    public void testDocRootMerge() throws Exception {
+        assertSameAsDom("", FDB, ZEUS, true);
+    }
+
+    @Test
+    public void testDocRootStop() throws Exception {
+        String rules = "<tm:rules tm:context=\"/\" xmlns:tm=\"http://accuity.com/apo/trust-matrix\">" +
+                "  <tm:rule tm:context=\"entity\">" +
+                "    <tm:field tm:stop=\"true\"></tm:field>" +
+                "    <tm:weightings>" +
+                "      <tm:source tm:name=\"zeus\" tm:trust=\"1.0\"></tm:source>" +
+                "      <tm:source tm:name=\"fdb\" tm:trust=\"0.9\"></tm:source>" +
+                "    </tm:weightings>" +
+                "    <tm:rule tm:context=\"names/name\"></tm:rule>" +
+                "  </tm:rule></tm:rules>";
+        Assert.assertTrue(new StreamingDocumentMerger(parsePlan(rules)).isStreamed());
+        Assert.assertEquals("<?xml version=\"1.0\" ?>" + ZEUS, mergeStreaming(rules, FDB, ZEUS));
+    }
+
+    @Test
+    public void testPositionalRule() throws Exception {
+        assertSameAsDom("<tm:rule tm:context=\"code\">" +
+                "  <tm:weightings>" +
+                "    <tm:source tm:name=\"zeus\" tm:trust=\"1.0\"></tm:source>" +
+                "    <tm:source tm:name=\"fdb\" tm:trust=\"0.9\"></tm:source>" +
+                "  </tm:weightings>" +
+                "</tm:rule>", FLAT_FDB, FLAT_ZEUS, true);
+    }
+
+    @Test
+    public void testPositionalRuleWithStop() throws Exception {
+        assertSameAsDom("<tm:rule tm:context=\"name\">" +
+                "  <tm:field tm:stop=\"true\"></tm:field>" +
+                "  <tm:weightings>" +
+                "    <tm:source tm:name=\"zeus\" tm:trust=\"1.0\"></tm:source>" +
+                "    <tm:source tm:name=\"fdb\" tm:trust=\"0.5\"></tm:source>" +
+                "  </tm:weightings>" +
+                "</tm:rule>", FLAT_FDB, FLAT_ZEUS, true);
+    }
+
+    @Test
+    public void testCoalesceRuleWithIds() throws Exception {
+        assertSameAsDom("<tm:rule tm:context=\"address\">" +
+                "  <tm:field tm:coalesce=\"true\"><tm:id tm:path=\"@type\"></tm:id></tm:field>" +
+                "</tm:rule>", FLAT_FDB, FLAT_ZEUS, true);
+    }
+
+    @Test
+    public void testCoalesceRuleWithIdsAndStop() throws Exception {
+        assertSameAsDom("<tm:rule tm:context=\"address\">" +
+                "  <tm:field tm:coalesce=\"true\" tm:stop=\"true\"><tm:id tm:path=\"@type\"></tm:id></tm:field>" +
+                "</tm:rule>", FLAT_FDB, FLAT_ZEUS, true);
+    }
+
+    @Test
+    public void testCoalesceRuleWithElementIds() throws Exception {
+        String zeus = FLAT_ZEUS.replace("<zip>zeus zip</zip>", "<city>fdb <!-- split -->city</city>");
+        assertSameAsDom("<tm:rule tm:context=\"address\">" +
+                "  <tm:field tm:coalesce=\"true\"><tm:id tm:path=\"city\"></tm:id><tm:id tm:path=\"line/@n\"></tm:id></tm:field>" +
+                "</tm:rule>", FLAT_FDB, zeus, true);
+    }
+
+    @Test
+    public void testCoalesceRuleWithoutIds() throws Exception {
+        assertSameAsDom("<tm:rule tm:context=\"code\">" +
+                "  <tm:field tm:coalesce=\"true\"></tm:field>" +
+                "</tm:rule>", FLAT_FDB, FLAT_ZEUS, true);
+    }
+
+    @Test
+    public void testSourceOnlyUsedByChildRule() throws Exception {
+        String rules = "<tm:rules tm:context=\"/\" xmlns:tm=\"http://accuity.com/apo/trust-matrix\">" +
+                "  <tm:rule tm:context=\"entity\">" +
+                "    <tm:weightings>" +
+                "      <tm:source tm:name=\"fdb\" tm:trust=\"1.0\"></tm:source>" +
+                "    </tm:weightings>" +
+                "    <tm:rule tm:context=\"name\">" +
+                "      <tm:weightings>" +
+                "        <tm:source tm:name=\"zeus\" tm:trust=\"1.0\"></tm:source>" +
+                "      </tm:weightings>" +
+                "    </tm:rule>" +
+                "    <tm:rule tm:context=\"website\">" +
+                "      <tm:weightings>" +
+                "        <tm:source tm:name=\"zeus\" tm:trust=\"1.0\"></tm:source>" +
+                "      </tm:weightings>" +
+                "    </tm:rule>" +
+                "  </tm:rule></tm:rules>";
+        Assert.assertTrue(new StreamingDocumentMerger(parsePlan(rules)).isStreamed());
+        assertIdentical(mergeDom(rules, FLAT_FDB, FLAT_ZEUS), mergeStreaming(rules, FLAT_FDB, FLAT_ZEUS));
+    }
+
+    @Test
+    public void testSiblingOrderDiffers() throws Exception {
+        String zeus = "<entity id=\"zeus-1\">" +
+                "<flags><flag>b</flag></flags><website>http://zeus</website><code>2</code>" +
+                "<address type=\"branch\"><city>zeus branch</city></address><address type=\"HQ\"><line>2</line><zip>zeus zip</zip></address>" +
+                "<name type=\"local\">zeus local</name><name type=\"legal\">zeus legal</name><status>inactive</status>" +
+                "</entity>";
+        assertSameAsDom("<tm:rule tm:context=\"name\">" +
+                "  <tm:weightings>" +
+                "    <tm:source tm:name=\"zeus\" tm:trust=\"1.0\"></tm:source>" +
+                "  </tm:weightings>" +
+                "</tm:rule>" +
+                "<tm:rule tm:context=\"address\">" +
+                "  <tm:field tm:coalesce=\"true\"><tm:id tm:path=\"@type\"></tm:id></tm:field>" +
+                "</tm:rule>", FLAT_FDB, zeus, true);
+    }
+
+    @Test
+    public void testDocumentElementsDiffer() throws Exception {
+        String zeus = FLAT_ZEUS.replace("<entity", "<other").replace("</entity>", "</other>");
+        assertSameAsDom("<tm:rule tm:context=\"code\">" +
+                "  <tm:weightings>" +
+                "    <tm:source tm:name=\"zeus\" tm:trust=\"1.0\"></tm:source>" +
+                "    <tm:source tm:name=\"fdb\" tm:trust=\"0.9\"></tm:source>" +
+                "  </tm:weightings>" +
+                "</tm:rule>" +
+                "<tm:rule tm:context=\"website\">" +
+                "  <tm:weightings>" +
+                "    <tm:source tm:name=\"zeus\" tm:trust=\"1.0\"></tm:source>" +
+                "  </tm:weightings>" +
+                "</tm:rule>", FLAT_FDB, zeus, true);
+    }
+
+    @Test
+    public void testRulesBelowTheChildrenOfTheDocumentElementAreMergedOnDocuments() throws Exception {
+        assertSameAsDom("<tm:rule tm:context=\"codes/code\">" +
+                "  <tm:weightings>" +
+                "    <tm:source tm:name=\"zeus\" tm:trust=\"1.0\"></tm:source>" +
+                "    <tm:source tm:name=\"fdb\" tm:trust=\"0.9\"></tm:source>" +
+                "  </tm:weightings>" +
+                "</tm:rule>" +
+                "<tm:rule tm:context=\"addresses/address\">" +
+                "  <tm:field tm:coalesce=\"true\"><tm:id tm:path=\"@type\"></tm:id></tm:field>" +
+                "</tm:rule>", FDB, ZEUS, false);
+    }
+
+    @Test
+    public void testFilterRuleIsMergedOnDocuments() throws Exception {
+        assertSameAsDom("<tm:rule tm:context=\"name\" tm:filter=\"[@type = 'legal']\">" +
+                "  <tm:field tm:stop=\"true\"></tm:field>" +
+                "  <tm:weightings>" +
+                "    <tm:source tm:name=\"zeus\" tm:trust=\"1.0\"></tm:source>" +
+                "    <tm:source tm:name=\"fdb\" tm:trust=\"0.5\"></tm:source>" +
+                "  </tm:weightings>" +
+                "</tm:rule>", FLAT_FDB, FLAT_ZEUS, false);
+    }
+
+    @Test
+    public void testRuleWithChildRulesIsMergedOnDocuments() throws Exception {
+        assertSameAsDom("<tm:rule tm:context=\"address\">" +
+                "  <tm:field tm:coalesce=\"true\"><tm:id tm:path=\"@type\"></tm:id></tm:field>" +
+                "  <tm:rule tm:context=\"line\">" +
+                "    <tm:weightings>" +
+                "      <tm:source tm:name=\"zeus\" tm:trust=\"1.0\"></tm:source>" +
+                "    </tm:weightings>" +
+                "  </tm:rule>" +
+                "</tm:rule>", FLAT_FDB, FLAT_ZEUS, false);
+    }
+
+    @Test
+    public void testUnsupportedRuleIsMergedOnDocuments() throws Exception {
+        assertSameAsDom("<tm:rule tm:context=\"names/name[1]\"></tm:rule>", FDB, ZEUS, false);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPlanThatCanNotBeStreamedIsRejected() {
+        new StreamingDocumentMerger(parsePlan(RULES_START + "<tm:rule tm:context=\"names/name\"></tm:rule>" + RULES_END));
+    }
+
+    @Test
+    public void testNoTrustedSource() throws Exception {
+        MergePlan plan = parsePlan(RULES_START + RULES_END);
+        Map<String, XMLStreamReader> readers = new HashMap<>();
+        readers.put("other", reader(FDB));
+
+        StringWriter sw = new StringWriter();
+        boolean merged = new StreamingDocumentMerger(plan).mergeDocuments(readers, XMLOutputFactory.newInstance().createXMLStreamWriter(sw));
+
+        Assert.assertFalse(merged);
+        Assert.assertEquals("", sw.toString());
+    }
+
+    @Test
+    public void testSpilledElementsLargerThanTheBuffers() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            text.append("text \u00e9 ").append(i);
+        }
+        StringBuilder fdb = new StringBuilder("<entity><status>").append(text).append("</status>");
+        StringBuilder zeus = new StringBuilder("<entity>");
+        for (int i = 0; i < 2000; i++) {
+            fdb.append("<code n=\"").append(i).append("\"><value>fdb ").append(i).append("</value></code>");
+            // read ahead while looking for the status to merge with
+            zeus.append("<code n=\"").append(i % 50).append("\"><other>zeus ").append(i).append("</other></code>");
+        }
+        fdb.append("</entity>");
+        zeus.append("<status>").append(text).append("<note>zeus</note></status></entity>");
+        String rules = RULES_START +
+                "<tm:rule tm:context=\"code\">" +
+                "  <tm:field tm:coalesce=\"true\"><tm:id tm:path=\"@n\"></tm:id></tm:field>" +
+                "</tm:rule>" + RULES_END;
+        Path spillDirectory = temporaryFolder.newFolder("spill").toPath();
+
+        Map<String, XMLStreamReader> readers = new HashMap<>();
+        readers.put("fdb", reader(fdb.toString()));
+        readers.put("zeus", reader(zeus.toString()));
+        StringWriter sw = new StringWriter();
+        Assert.assertTrue(new StreamingDocumentMerger(parsePlan(rules), spillDirectory, new DocumentBuilderPool(), false)
+                .mergeDocuments(readers, XMLOutputFactory.newInstance().createXMLStreamWriter(sw)));
+
+        assertIdentical(mergeDom(rules, fdb.toString(), zeus.toString()), sw.toString());
+        Assert.assertEquals("the spill file is deleted", 0, spillDirectory.toFile().list().length);
+    }
+
+    private void assertSameAsDom(String rule, String fdb, String zeus, boolean streamed) throws Exception {
+        String rules = RULES_START + rule + RULES_END;
+        Assert.assertEquals(streamed, merger(rules).isStreamed());
+        assertIdentical(mergeDom(rules, fdb, zeus), mergeStreaming(rules, fdb, zeus));
+    }
+
+    /**
+     * a merger that falls back on DOM documents, or the default one that only takes streamed plans
+     */
+    private StreamingDocumentMerger merger(String rules) {
+        try {
+            return new StreamingDocumentMerger(parsePlan(rules));
+        } catch (IllegalArgumentException e) {
+            return new StreamingDocumentMerger(parsePlan(rules), null, new DocumentBuilderPool(), true);
+        }
+    }
+
+    private void assertIdentical(Document expected, String actual) throws Exception {
+        Diff diff = XMLUnit.compareXML(expected, XMLUnit.buildControlDocument(actual));
+        Assert.assertTrue(diff.toString() + " in " + actual, diff.identical());
+    }
+
+    private Document mergeDom(String rules, String fdb, String zeus) throws Exception {
+        Map<String, Document> sourceDocuments = new HashMap<>();
+        sourceDocuments.put("fdb", parse(fdb));
+        sourceDocuments.put("zeus", parse(zeus));
+        return new XmlDocumentMerger(new RuleProcessor()).mergeDocuments(parsePlan(rules), sourceDocuments);
+    }
+
+    private String mergeStreaming(String rules, String fdb, String zeus) throws Exception {
+        Map<String, XMLStreamReader> readers = new HashMap<>();
+        readers.put("fdb", reader(fdb));
+        readers.put("zeus", reader(zeus));
+        StringWriter sw = new StringWriter();
+        XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(sw);
+
+        Assert.assertTrue(merger(rules).mergeDocuments(readers, writer));
+        return sw.toString();
+    }
+
+    private MergePlan parsePlan(String rules) {
+        return new RulesParser().parsePlan(new ByteArrayInputStream(rules.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private Document parse(String xml) throws Exception {
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private XMLStreamReader reader(String xml) throws Exception {
+        return XMLInputFactory.newInstance().createXMLStreamReader(new StringReader(xml));
+    }
+}
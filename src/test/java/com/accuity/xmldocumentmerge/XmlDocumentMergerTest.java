@@ -15,11 +15,19 @@ import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 public class XmlDocumentMergerTest {
 
@@ -118,4 +126,253 @@ public class XmlDocumentMergerTest {
         // asserts
         Assert.assertNull("Generated document should be null", trustedDocument);
     }
-}
\ No newline at end of file
+
+    /**
+     * Tests that a compiled merge plan can be reused for several merges
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testMergeDocumentsWithMergePlan() throws Exception {
+        DocumentBuilder db = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        MergePlan plan = buildCountryPlan();
+
+        XmlDocumentMerger merger = new XmlDocumentMerger(new RuleProcessor());
+
+        for (int i = 0; i < 2; i++) {
+            Map<String, Document> sourceDocuments = buildCountrySources(db, i);
+
+            Document trusted = merger.mergeDocuments(plan, sourceDocuments);
+
+            Assert.assertEquals("B" + i, trusted.getElementsByTagName("name").item(0).getTextContent());
+            Assert.assertEquals("A", trusted.getElementsByTagName("code").item(0).getTextContent());
+        }
+    }
+
+    @Test
+    public void testMergeBatchPreservesOrder() throws Exception {
+        DocumentBuilder db = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        List<Map<String, Document>> batch = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            batch.add(buildCountrySources(db, i));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<BatchMergeResult> results = new XmlDocumentMerger(new RuleProcessor()).mergeBatch(buildCountryPlan(), batch, executor);
+
+            Assert.assertEquals(20, results.size());
+            for (int i = 0; i < 20; i++) {
+                Assert.assertEquals(i, results.get(i).getIndex());
+                Assert.assertTrue(results.get(i).isSuccessful());
+                Assert.assertEquals("B" + i, results.get(i).getDocument().getElementsByTagName("name").item(0).getTextContent());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Tests that a failing entity is reported in its result without affecting the rest of the batch
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testMergeBatchIsolatesErrors() throws Exception {
+        DocumentBuilder db = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        List<Map<String, Document>> batch = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            batch.add(buildCountrySources(db, i));
+        }
+        batch.get(3).put("sourceA", null);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<BatchMergeResult> results = new XmlDocumentMerger(new RuleProcessor()).mergeBatch(buildCountryPlan(), batch, executor);
+
+            Assert.assertEquals(5, results.size());
+            Assert.assertFalse(results.get(3).isSuccessful());
+            Assert.assertNotNull(results.get(3).getError());
+            Assert.assertNull(results.get(3).getDocument());
+            Assert.assertTrue(results.get(4).isSuccessful());
+            Assert.assertEquals("B4", results.get(4).getDocument().getElementsByTagName("name").item(0).getTextContent());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Tests that an entity the executor rejects is reported as failed and the rest of the batch is still merged
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testMergeBatchReportsRejectedEntities() throws Exception {
+        DocumentBuilder db = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        List<Map<String, Document>> batch = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            batch.add(buildCountrySources(db, i));
+        }
+        final int[] executed = {0};
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                if (executed[0]++ == 2) {
+                    throw new RejectedExecutionException("queue full");
+                }
+                command.run();
+            }
+        };
+
+        List<BatchMergeResult> results = new XmlDocumentMerger(new RuleProcessor()).mergeBatch(buildCountryPlan(), batch, executor);
+
+        Assert.assertEquals(5, results.size());
+        Assert.assertTrue(results.get(2).getError() instanceof RejectedExecutionException);
+        Assert.assertSame(batch.get(2), results.get(2).getSourceDocuments());
+        for (int i : new int[]{0, 1, 3, 4}) {
+            Assert.assertTrue(results.get(i).isSuccessful());
+            Assert.assertEquals(i, results.get(i).getIndex());
+        }
+    }
+
+    /**
+     * Tests that no more than maxInFlight entities are taken from the iterator before their results are delivered
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testMergeBatchBoundsInFlightEntities() throws Exception {
+        final DocumentBuilder db = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        final int[] taken = new int[1];
+        final int[] delivered = new int[1];
+        final int[] maxInFlight = new int[1];
+        Iterator<Map<String, Document>> batch = new Iterator<Map<String, Document>>() {
+            @Override
+            public boolean hasNext() {
+                return taken[0] < 50;
+            }
+
+            @Override
+            public Map<String, Document> next() {
+                maxInFlight[0] = Math.max(maxInFlight[0], ++taken[0] - delivered[0]);
+                try {
+                    return buildCountrySources(db, taken[0]);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            new XmlDocumentMerger(new RuleProcessor()).mergeBatch(buildCountryPlan(), batch, executor, 3, false, new BatchMergeCallback() {
+                @Override
+                public void onResult(BatchMergeResult result) {
+                    Assert.assertTrue(result.isSuccessful());
+                    delivered[0]++;
+                }
+            });
+        } finally {
+            executor.shutdown();
+        }
+
+        Assert.assertEquals(50, delivered[0]);
+        Assert.assertTrue("in flight entities: " + maxInFlight[0], maxInFlight[0] <= 3);
+    }
+
+    @Test
+    public void testMergeStreams() throws Exception {
+        Map<String, InputStream> sourceStreams = new HashMap<>();
+        sourceStreams.put("sourceA", new ByteArrayInputStream("<country><name>A</name><code>A</code></country>".getBytes(StandardCharsets.UTF_8)));
+        sourceStreams.put("sourceB", new ByteArrayInputStream("<country><name>B</name><code>B</code></country>".getBytes(StandardCharsets.UTF_8)));
+        DocumentBuilderPool pool = new DocumentBuilderPool(DocumentBuilderFactory.newInstance(), 4);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Document trusted = new XmlDocumentMerger(new RuleProcessor(), MergeMetrics.DISABLED, pool).mergeStreams(buildCountryPlan(), sourceStreams, executor);
+
+            Assert.assertEquals("B", trusted.getElementsByTagName("name").item(0).getTextContent());
+            Assert.assertEquals("A", trusted.getElementsByTagName("code").item(0).getTextContent());
+            Assert.assertTrue("builders are returned to the pool", pool.getIdleCount() > 0);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Tests that the calling thread parses the sources when the executor never runs them
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testMergeFilesWithIdleExecutor() throws Exception {
+        Path sourceA = Files.createTempFile("sourceA", ".xml");
+        Path sourceB = Files.createTempFile("sourceB", ".xml");
+        try {
+            Files.write(sourceA, "<country><name>A</name><code>A</code></country>".getBytes(StandardCharsets.UTF_8));
+            Files.write(sourceB, "<country><name>B</name><code>B</code></country>".getBytes(StandardCharsets.UTF_8));
+            Map<String, Path> sourceFiles = new HashMap<>();
+            sourceFiles.put("sourceA", sourceA);
+            sourceFiles.put("sourceB", sourceB);
+
+            Document trusted = new XmlDocumentMerger(new RuleProcessor()).mergeFiles(buildCountryPlan(), sourceFiles, new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    // never runs anything
+                }
+            });
+
+            Assert.assertEquals("B", trusted.getElementsByTagName("name").item(0).getTextContent());
+            Assert.assertEquals("A", trusted.getElementsByTagName("code").item(0).getTextContent());
+        } finally {
+            Files.delete(sourceA);
+            Files.delete(sourceB);
+        }
+    }
+
+    @Test
+    public void testMergeStreamsWithInvalidSource() throws Exception {
+        Map<String, InputStream> sourceStreams = new HashMap<>();
+        sourceStreams.put("sourceA", new ByteArrayInputStream("<country><name>A</name>".getBytes(StandardCharsets.UTF_8)));
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            new XmlDocumentMerger(new RuleProcessor()).mergeStreams(buildCountryPlan(), sourceStreams, executor);
+            Assert.fail("invalid source is not reported");
+        } catch (RuntimeException e) {
+            Assert.assertEquals("error parsing source sourceA", e.getMessage());
+            Assert.assertTrue(e.getCause() instanceof SAXException);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private MergePlan buildCountryPlan() {
+        String rulesXml = "<tm:rules tm:context=\"/\" xmlns:tm=\"http://accuity.com/apo/trust-matrix\">" +
+                "  <tm:rule tm:context=\"country\">" +
+                "    <tm:weightings>" +
+                "      <tm:source tm:name=\"sourceA\" tm:trust=\"1.0\"></tm:source>" +
+                "      <tm:source tm:name=\"sourceB\" tm:trust=\"0.9\"></tm:source>" +
+                "    </tm:weightings>" +
+                "    <tm:rule tm:context=\"name\">" +
+                "      <tm:weightings>" +
+                "        <tm:source tm:name=\"sourceB\" tm:trust=\"1.0\"></tm:source>" +
+                "      </tm:weightings>" +
+                "    </tm:rule>" +
+                "  </tm:rule>" +
+                "</tm:rules>";
+        return new RulesParser().parsePlan(new ByteArrayInputStream(rulesXml.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private Map<String, Document> buildCountrySources(DocumentBuilder db, int i) throws IOException, SAXException {
+        Map<String, Document> sourceDocuments = new HashMap<>();
+        sourceDocuments.put("sourceA", db.parse(new ByteArrayInputStream(("<country><name>A" + i + "</name><code>A</code></country>").getBytes(StandardCharsets.UTF_8))));
+        sourceDocuments.put("sourceB", db.parse(new ByteArrayInputStream(("<country><name>B" + i + "</name><code>B</code></country>").getBytes(StandardCharsets.UTF_8))));
+        return sourceDocuments;
+    }
+}
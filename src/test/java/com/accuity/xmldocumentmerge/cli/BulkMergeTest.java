@@ -0,0 +1,58 @@
+package com.accuity.xmldocumentmerge.cli;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class BulkMergeTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream err = new ByteArrayOutputStream();
+
+    @Test
+    public void testManifest() throws Exception {
+        Path directory = temporaryFolder.newFolder("inputs").toPath();
+        Path rules = directory.resolve("rules.xml");
+        Files.write(rules, MergePipelineTest.RULES.getBytes(StandardCharsets.UTF_8));
+        StringBuilder manifest = new StringBuilder("# entity\tsource\tpath\n");
+        for (int i = 0; i < 3; i++) {
+            Files.write(directory.resolve("fdb-" + i + ".xml"), MergePipelineTest.fdb(i).getBytes(StandardCharsets.UTF_8));
+            Files.write(directory.resolve("zeus-" + i + ".xml"), MergePipelineTest.zeus(i).getBytes(StandardCharsets.UTF_8));
+            manifest.append("e").append(i).append("\tfdb\tfdb-").append(i).append(".xml\n");
+            manifest.append("e").append(i).append("\tzeus\tzeus-").append(i).append(".xml\n");
+        }
+        Files.write(directory.resolve("manifest.tsv"), manifest.toString().getBytes(StandardCharsets.UTF_8));
+        Path output = directory.resolve("output");
+
+        int exitCode = run("--rules", rules.toString(), "--manifest", directory.resolve("manifest.tsv").toString(),
+                "--output", output.toString(), "--merge-threads", "2", "--queue-capacity", "1", "--stats-interval", "0");
+
+        Assert.assertEquals(err.toString(), 0, exitCode);
+        Assert.assertTrue(out.toString(), out.toString().contains("3 of 3 done (3 written, 0 empty, 0 failed)"));
+        String merged = new String(Files.readAllBytes(output.resolve("e1.xml")), StandardCharsets.UTF_8);
+        Assert.assertTrue(merged, merged.contains("fdb 1") && merged.contains("zeus 1"));
+    }
+
+    @Test
+    public void testInvalidOptions() throws Exception {
+        Assert.assertEquals(2, run("--rules", "rules.xml", "--output", "out"));
+        Assert.assertTrue(err.toString().contains("either --source or --manifest is required"));
+        Assert.assertEquals(2, run("--rules", "rules.xml", "--output", "out", "--manifest", "m.tsv", "--parse-threads", "0"));
+        Assert.assertEquals(2, run("--rules", "rules.xml", "--output", "out", "--manifest", "m.tsv", "--colour", "blue"));
+        Assert.assertTrue(err.toString().contains("usage: bulk-merge"));
+    }
+
+    private int run(String... args) throws Exception {
+        return BulkMerge.run(args, new PrintStream(out, true, "UTF-8"), new PrintStream(err, true, "UTF-8"));
+    }
+}
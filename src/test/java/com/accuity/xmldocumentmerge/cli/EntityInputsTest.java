@@ -0,0 +1,67 @@
+package com.accuity.xmldocumentmerge.cli;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+
+public class EntityInputsTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testManifest() throws Exception {
+        Path manifest = manifest("# entity\tsource\tpath\n" +
+                "e1\tfdb\tfdb/e1.xml\n" +
+                "e1\tzeus\t/data/zeus/e1.xml\n" +
+                "\n" +
+                "e2\tfdb\tfdb/e2.xml\n");
+
+        Iterator<EntityInput> entities = EntityInputs.fromManifest(manifest);
+
+        EntityInput e1 = entities.next();
+        Assert.assertEquals("e1", e1.getEntityId());
+        Assert.assertEquals(manifest.getParent().resolve("fdb/e1.xml"), e1.getSourceFiles().get("fdb"));
+        Assert.assertEquals(manifest.getFileSystem().getPath("/data/zeus/e1.xml"), e1.getSourceFiles().get("zeus"));
+        Assert.assertEquals("e2", entities.next().getEntityId());
+        Assert.assertFalse(entities.hasNext());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEntityLinesNotConsecutive() throws Exception {
+        Iterator<EntityInput> entities = EntityInputs.fromManifest(manifest(
+                "e1\tfdb\tfdb/e1.xml\n" +
+                "e2\tfdb\tfdb/e2.xml\n" +
+                "e1\tzeus\tzeus/e1.xml\n"));
+
+        while (entities.hasNext()) {
+            entities.next();
+        }
+    }
+
+    @Test
+    public void testInvalidLineEndsTheManifest() throws Exception {
+        Iterator<EntityInput> entities = EntityInputs.fromManifest(manifest(
+                "e1\tfdb\tfdb/e1.xml\n" +
+                "e1\tzeus\n"));
+
+        try {
+            entities.next();
+            Assert.fail("expected the invalid line to be reported");
+        } catch (IllegalArgumentException e) {
+            Assert.assertFalse(entities.hasNext());
+        }
+    }
+
+    private Path manifest(String lines) throws Exception {
+        Path manifest = temporaryFolder.newFile("manifest.tsv").toPath().toAbsolutePath();
+        Files.write(manifest, lines.getBytes(StandardCharsets.UTF_8));
+        return manifest;
+    }
+}
@@ -0,0 +1,155 @@
+package com.accuity.xmldocumentmerge.cli;
+
+import com.accuity.xmldocumentmerge.MergePlan;
+import com.accuity.xmldocumentmerge.RuleProcessor;
+import com.accuity.xmldocumentmerge.RulesParser;
+import com.accuity.xmldocumentmerge.XmlDocumentMerger;
+import org.custommonkey.xmlunit.Diff;
+import org.custommonkey.xmlunit.XMLUnit;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Document;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class MergePipelineTest {
+
+    static final String RULES = "<tm:rules tm:context=\"/\" xmlns:tm=\"http://accuity.com/apo/trust-matrix\">" +
+            "  <tm:rule tm:context=\"entity\">" +
+            "    <tm:weightings>" +
+            "      <tm:source tm:name=\"fdb\" tm:trust=\"1.0\"></tm:source>" +
+            "    </tm:weightings>" +
+            "    <tm:rule tm:context=\"names/name\">" +
+            "      <tm:field tm:coalesce=\"true\"><tm:id tm:path=\"@type\"></tm:id></tm:field>" +
+            "      <tm:weightings>" +
+            "        <tm:source tm:name=\"fdb\" tm:trust=\"1.0\"></tm:source>" +
+            "        <tm:source tm:name=\"zeus\" tm:trust=\"0.9\"></tm:source>" +
+            "      </tm:weightings>" +
+            "    </tm:rule>" +
+            "  </tm:rule></tm:rules>";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final MergePlan plan = new RulesParser().parsePlan(new ByteArrayInputStream(RULES.getBytes(StandardCharsets.UTF_8)));
+
+    @Test
+    public void testMergesEveryEntity() throws Exception {
+        Map<String, Path> sourceDirectories = writeSources(40);
+        Path output = temporaryFolder.newFolder("output").toPath();
+        MergePipeline pipeline = new MergePipeline(plan, output, new int[]{2, 3, 3, 2, 2}, 1);
+
+        pipeline.run(EntityInputs.fromDirectories(sourceDirectories));
+
+        Assert.assertEquals(40, pipeline.getSubmitted());
+        Assert.assertEquals(40, pipeline.getWritten());
+        Assert.assertEquals(0, pipeline.getFailed());
+        Assert.assertEquals(40, pipeline.getEntityLatency().getCount());
+        for (int i = 0; i < 40; i++) {
+            Map<String, Document> sourceDocuments = new HashMap<>();
+            sourceDocuments.put("fdb", parse(fdb(i)));
+            sourceDocuments.put("zeus", parse(zeus(i)));
+            Document expected = new XmlDocumentMerger(new RuleProcessor()).mergeDocuments(plan, sourceDocuments);
+            Diff diff = XMLUnit.compareXML(expected, parse(new String(Files.readAllBytes(output.resolve("e" + i + ".xml")), StandardCharsets.UTF_8)));
+            Assert.assertTrue(diff.toString(), diff.identical());
+        }
+        Assert.assertTrue(pipeline.report().contains("40 of 40 done"));
+    }
+
+    @Test
+    public void testFailedAndEmptyEntitiesAreCounted() throws Exception {
+        Map<String, Path> sourceDirectories = writeSources(5);
+        Files.write(sourceDirectories.get("fdb").resolve("e2.xml"), "<entity>".getBytes(StandardCharsets.UTF_8));
+        Files.delete(sourceDirectories.get("fdb").resolve("e3.xml"));
+        Path output = temporaryFolder.newFolder("output").toPath();
+        MergePipeline pipeline = new MergePipeline(plan, output, new int[]{1, 1, 1, 1, 1}, 2);
+
+        pipeline.run(EntityInputs.fromDirectories(sourceDirectories));
+
+        Assert.assertEquals(3, pipeline.getWritten());
+        Assert.assertEquals(1, pipeline.getFailed());
+        Assert.assertEquals("e3 has no docroot source", 1, pipeline.getEmpty());
+        Assert.assertFalse(Files.exists(output.resolve("e2.xml")));
+        Assert.assertFalse(Files.exists(output.resolve("e3.xml")));
+        Assert.assertTrue(Files.exists(output.resolve("e4.xml")));
+    }
+
+    @Test(timeout = 30000)
+    public void testErrorFailsOnlyItsEntity() throws Exception {
+        Map<String, Path> sourceDirectories = writeSources(4);
+        Path output = temporaryFolder.newFolder("output").toPath();
+        MergePipeline pipeline = new MergePipeline(plan, output, new int[]{1, 1, 1, 1, 1}, 1);
+        List<EntityInput> entities = new ArrayList<>();
+        Iterator<EntityInput> listed = EntityInputs.fromDirectories(sourceDirectories);
+        entities.add(new EntityInput("overflow", new HashMap<String, Path>() {
+            @Override
+            public Set<Map.Entry<String, Path>> entrySet() {
+                throw new StackOverflowError();
+            }
+        }));
+        while (listed.hasNext()) {
+            entities.add(listed.next());
+        }
+
+        pipeline.run(entities.iterator());
+
+        Assert.assertEquals(1, pipeline.getFailed());
+        Assert.assertEquals(4, pipeline.getWritten());
+    }
+
+    @Test
+    public void testEntityIdsOutsideTheOutputDirectoryFail() throws Exception {
+        Map<String, Path> sourceDirectories = writeSources(1);
+        Path output = temporaryFolder.newFolder("output").toPath();
+        MergePipeline pipeline = new MergePipeline(plan, output, new int[]{1, 1, 1, 1, 1}, 4);
+        Map<String, Path> sourceFiles = new HashMap<>();
+        sourceFiles.put("fdb", sourceDirectories.get("fdb").resolve("e0.xml"));
+        Files.createDirectories(output.resolve("a"));
+
+        pipeline.run(Arrays.asList(new EntityInput("../escaped", sourceFiles), new EntityInput("a/b", sourceFiles),
+                new EntityInput("", sourceFiles), new EntityInput("e0", sourceFiles)).iterator());
+
+        Assert.assertEquals(3, pipeline.getFailed());
+        Assert.assertEquals(1, pipeline.getWritten());
+        Assert.assertFalse(Files.exists(output.resolveSibling("escaped.xml")));
+        Assert.assertFalse(Files.exists(output.resolve("a").resolve("b.xml")));
+        Assert.assertTrue(Files.exists(output.resolve("e0.xml")));
+    }
+
+    private Map<String, Path> writeSources(int entities) throws Exception {
+        Map<String, Path> sourceDirectories = new LinkedHashMap<>();
+        sourceDirectories.put("fdb", temporaryFolder.newFolder("fdb").toPath());
+        sourceDirectories.put("zeus", temporaryFolder.newFolder("zeus").toPath());
+        for (int i = 0; i < entities; i++) {
+            Files.write(sourceDirectories.get("fdb").resolve("e" + i + ".xml"), fdb(i).getBytes(StandardCharsets.UTF_8));
+            Files.write(sourceDirectories.get("zeus").resolve("e" + i + ".xml"), zeus(i).getBytes(StandardCharsets.UTF_8));
+        }
+        return sourceDirectories;
+    }
+
+    static String fdb(int i) {
+        return "<entity id=\"" + i + "\"><names><name type=\"legal\">fdb " + i + "</name></names><codes><code>" + i + "</code></codes></entity>";
+    }
+
+    static String zeus(int i) {
+        return "<entity id=\"zeus-" + i + "\"><names><name type=\"local\">zeus " + i + "</name></names><notes>ignored</notes></entity>";
+    }
+
+    private static Document parse(String xml) throws Exception {
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+}